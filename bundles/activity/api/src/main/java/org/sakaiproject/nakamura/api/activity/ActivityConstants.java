@@ -40,6 +40,12 @@ public interface ActivityConstants {
    * The property name for the source of the activity.
    */
   public static final String PARAM_SOURCE = "sakai:activity-source";
+  /**
+   * The property name marking an activity that is shown in the feeds of the actor's
+   * contacts at read time rather than copied into each of them. The contacts are looked
+   * up when the feed is searched, never stored on the activity.
+   */
+  public static final String PARAM_FANOUT_ON_READ = "sakai:activity-fanout-on-read";
 
 
   // Node names
@@ -0,0 +1,268 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes activities on a fixed number of threads. Activities are partitioned by actor,
+ * each partition has its own queue and a single thread, so the activities of one actor
+ * are delivered in the order they were posted while different actors are delivered in
+ * parallel. A thread hands everything waiting in its queue, up to the batch size, to the
+ * {@link BatchHandler} in one go.
+ */
+public class ActivityDeliveryPool implements ActivityDeliveryPoolMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityDeliveryPool.class);
+
+  /**
+   * Routes and delivers a batch of activities.
+   */
+  public interface BatchHandler {
+    /**
+     * @param activityPaths
+     *          the activities in the order they were posted.
+     * @return the number of activities that could not be delivered.
+     */
+    int deliver(List<String> activityPaths);
+  }
+
+  private final BatchHandler handler;
+  private final int batchSize;
+  private final List<BlockingQueue<String>> queues;
+  private Thread[] consumers = new Thread[0];
+  private volatile boolean running;
+
+  private AtomicLong processed = new AtomicLong();
+  private AtomicLong failed = new AtomicLong();
+  private AtomicLong batches = new AtomicLong();
+  private AtomicLong deliveries = new AtomicLong();
+  private AtomicLong deliveryTime = new AtomicLong();
+  private AtomicLong maxDeliveryTime = new AtomicLong();
+  private AtomicLong routings = new AtomicLong();
+  private AtomicLong routingTime = new AtomicLong();
+  private volatile long resetTime = System.currentTimeMillis();
+
+  /**
+   * @param handler
+   * @param partitions
+   *          the number of consumer threads.
+   * @param queueSize
+   *          the number of activities that may be waiting in each partition.
+   * @param batchSize
+   *          the most activities handed to the handler in one go.
+   */
+  public ActivityDeliveryPool(BatchHandler handler, int partitions, int queueSize,
+      int batchSize) {
+    this.handler = handler;
+    this.batchSize = Math.max(1, batchSize);
+    int n = Math.max(1, partitions);
+    queues = new ArrayList<BlockingQueue<String>>(n);
+    for (int i = 0; i < n; i++) {
+      queues.add(new ArrayBlockingQueue<String>(Math.max(1, queueSize)));
+    }
+  }
+
+  public synchronized void start() {
+    running = true;
+    consumers = new Thread[queues.size()];
+    for (int i = 0; i < consumers.length; i++) {
+      final BlockingQueue<String> queue = queues.get(i);
+      consumers[i] = new Thread(new Runnable() {
+        public void run() {
+          List<String> batch = new ArrayList<String>(batchSize);
+          while (running) {
+            try {
+              String activityPath = queue.poll(100, TimeUnit.MILLISECONDS);
+              if (activityPath != null) {
+                batch.add(activityPath);
+                queue.drainTo(batch, batchSize - 1);
+                process(batch);
+                batch.clear();
+              }
+            } catch (InterruptedException e) {
+              LOGGER.debug("Interrupted ");
+            } catch (Throwable t) {
+              LOGGER.error(t.getMessage(), t);
+              failed.addAndGet(batch.size());
+              batch.clear();
+            }
+          }
+        }
+      }, "LiteActivityListener-consumer-" + i);
+      consumers[i].setDaemon(true);
+      consumers[i].start();
+    }
+  }
+
+  /**
+   * Stop the consumer threads and deliver whatever is left in the queues.
+   */
+  public synchronized void stop() {
+    running = false;
+    for (Thread consumer : consumers) {
+      try {
+        consumer.join(5000);
+      } catch (InterruptedException e) {
+        LOGGER.debug("Interrupted waiting for consumer ");
+      }
+    }
+    consumers = new Thread[0];
+    List<String> batch = new ArrayList<String>(batchSize);
+    for (BlockingQueue<String> queue : queues) {
+      while (queue.drainTo(batch, batchSize) > 0) {
+        process(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Queue an activity, blocking while the partition of the actor is full so that the JMS
+   * consumer slows down rather than the backlog growing without bound.
+   *
+   * @param actor
+   *          the partition key, may be null in which case the path is used.
+   * @param activityPath
+   */
+  public void submit(String actor, String activityPath) {
+    if (!running) {
+      process(Collections.singletonList(activityPath));
+      return;
+    }
+    try {
+      queues.get(partition(actor == null ? activityPath : actor, queues.size())).put(
+          activityPath);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.warn("Interrupted queueing activity {} ", activityPath);
+      failed.incrementAndGet();
+    }
+  }
+
+  static int partition(String key, int partitions) {
+    return (key.hashCode() & 0x7fffffff) % partitions;
+  }
+
+  private void process(List<String> batch) {
+    int failures = handler.deliver(batch);
+    failed.addAndGet(failures);
+    processed.addAndGet(batch.size() - failures);
+    batches.incrementAndGet();
+  }
+
+  /**
+   * Record the time taken to work out the routes of one activity.
+   *
+   * @param nanos
+   */
+  public void recordRouting(long nanos) {
+    routings.incrementAndGet();
+    routingTime.addAndGet(nanos);
+  }
+
+  /**
+   * Record the time taken to write one activity into one feed.
+   *
+   * @param nanos
+   */
+  public void recordDelivery(long nanos) {
+    deliveries.incrementAndGet();
+    deliveryTime.addAndGet(nanos);
+    long max = maxDeliveryTime.get();
+    while (nanos > max && !maxDeliveryTime.compareAndSet(max, nanos)) {
+      max = maxDeliveryTime.get();
+    }
+  }
+
+  public int getQueueDepth() {
+    int depth = 0;
+    for (BlockingQueue<String> queue : queues) {
+      depth += queue.size();
+    }
+    return depth;
+  }
+
+  public int getQueueCapacity() {
+    int capacity = 0;
+    for (BlockingQueue<String> queue : queues) {
+      capacity += queue.size() + queue.remainingCapacity();
+    }
+    return capacity;
+  }
+
+  public int getPartitions() {
+    return queues.size();
+  }
+
+  public long getProcessed() {
+    return processed.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getDeliveries() {
+    return deliveries.get();
+  }
+
+  public long getAverageRoutingTime() {
+    long n = routings.get();
+    return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(routingTime.get() / n);
+  }
+
+  public long getAverageDeliveryTime() {
+    long n = deliveries.get();
+    return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(deliveryTime.get() / n);
+  }
+
+  public long getMaxDeliveryTime() {
+    return TimeUnit.NANOSECONDS.toMillis(maxDeliveryTime.get());
+  }
+
+  public long getThroughput() {
+    long t = System.currentTimeMillis() - resetTime;
+    return t <= 0 ? 0 : processed.get() * 1000L / t;
+  }
+
+  public void reset() {
+    processed.set(0);
+    failed.set(0);
+    batches.set(0);
+    deliveries.set(0);
+    deliveryTime.set(0);
+    maxDeliveryTime.set(0);
+    routings.set(0);
+    routingTime.set(0);
+    resetTime = System.currentTimeMillis();
+  }
+}
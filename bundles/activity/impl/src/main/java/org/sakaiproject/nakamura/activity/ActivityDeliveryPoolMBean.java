@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+/**
+ * JMX view of the {@link ActivityDeliveryPool} used by the {@link LiteActivityListener}.
+ */
+public interface ActivityDeliveryPoolMBean {
+
+  /**
+   * @return activities waiting to be routed, over all partitions.
+   */
+  int getQueueDepth();
+
+  int getQueueCapacity();
+
+  int getPartitions();
+
+  /**
+   * @return activities routed and delivered.
+   */
+  long getProcessed();
+
+  /**
+   * @return activities that could not be routed or delivered.
+   */
+  long getFailed();
+
+  long getBatches();
+
+  /**
+   * @return feed copies written.
+   */
+  long getDeliveries();
+
+  /**
+   * @return the mean time in ms taken to work out the routes of an activity.
+   */
+  long getAverageRoutingTime();
+
+  /**
+   * @return the mean time in ms taken to write an activity into one feed.
+   */
+  long getAverageDeliveryTime();
+
+  long getMaxDeliveryTime();
+
+  /**
+   * @return activities processed per second since the counters were reset.
+   */
+  long getThroughput();
+
+  void reset();
+}
@@ -23,6 +23,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
@@ -37,10 +38,16 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.jcr.RepositoryException;
@@ -50,9 +57,26 @@ import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Topic;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
-@Component(immediate = true)
-public class LiteActivityListener implements MessageListener {
+/**
+ * Consumes the activity topic and hands each activity to an {@link ActivityDeliveryPool}
+ * partitioned by actor, so activities of different actors are routed in parallel while
+ * those of one actor stay in order.
+ */
+@Component(immediate = true, metatype = true)
+public class LiteActivityListener implements MessageListener,
+    ActivityDeliveryPool.BatchHandler {
+
+  @Property(intValue = 4)
+  static final String CONSUMERS = "activity.consumers";
+  @Property(intValue = 1000)
+  static final String QUEUE_SIZE = "activity.queueSize";
+  @Property(intValue = 20)
+  static final String BATCH_SIZE = "activity.batchSize";
+
+  private static final String STATS_NAME = "org.sakaiproject.nakamura.activity:type=ActivityDelivery";
 
   // References/properties need for JMS
   @Reference
@@ -69,10 +93,17 @@ public class LiteActivityListener implements MessageListener {
 
   private Connection connection = null;
 
+  private ActivityDeliveryPool deliveryPool = new ActivityDeliveryPool(this, 1, 1, 1);
+
   /**
-   * Start a JMS connection.
+   * Start the consumers and a JMS connection.
    */
   public void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    deliveryPool = new ActivityDeliveryPool(this, toInt(properties.get(CONSUMERS), 4),
+        toInt(properties.get(QUEUE_SIZE), 1000), toInt(properties.get(BATCH_SIZE), 20));
+    deliveryPool.start();
+    registerStats();
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       javax.jms.Session session = connection.createSession(false,
@@ -103,6 +134,36 @@ public class LiteActivityListener implements MessageListener {
         LOG.error("Cannot close the activity JMS connection.", e);
       }
     }
+    deliveryPool.stop();
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(STATS_NAME));
+    } catch (Exception e) {
+      LOG.debug("Unable to unregister {} {} ", STATS_NAME, e.getMessage());
+    }
+  }
+
+  private void registerStats() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(STATS_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(deliveryPool, objectName);
+    } catch (Exception e) {
+      LOG.warn("Unable to register {} {} ", STATS_NAME, e.getMessage());
+    }
+  }
+
+  private static int toInt(Object value, int defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(String.valueOf(value));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
   }
 
   /**
@@ -114,39 +175,93 @@ public class LiteActivityListener implements MessageListener {
     try {
       final String activityItemPath = message
           .getStringProperty(ActivityConstants.EVENT_PROP_PATH);
-      Session session = sparseRepository.loginAdministrative(); 
+      String actor = message.getStringProperty(UserConstants.EVENT_PROP_USERID);
+      deliveryPool.submit(actor, activityItemPath);
+    } catch (JMSException e) {
+      LOG.error("Got a JMS exception in the activity listener.", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Routes the activities of a batch in one administrative session and then writes the
+   * copies feed by feed.
+   *
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryPool.BatchHandler#deliver(java.util.List)
+   */
+  public int deliver(List<String> activityPaths) {
+    Session session = null;
+    int failed = 0;
+    try {
+      session = sparseRepository.loginAdministrative();
       ContentManager contentManager = session.getContentManager();
-      try {
-        Content activity = contentManager.get(activityItemPath);
-        if (activity == null || !activity.hasProperty(PARAM_ACTOR_ID)) {
-          // we must know the actor
-          throw new IllegalStateException(
-              "Could not determine actor of activity: " + activity);
-        }
-  
-        // Get all the routes for this activity.
-        List<ActivityRoute> routes = activityRouterManager
-            .getActivityRoutes(activity, session);
-  
-        // Copy the activity items to each endpoint.
-        for (ActivityRoute route : routes) {
-          deliverActivityToFeed(session, activity, route.getDestination());
-        }
-      } finally {
-        try { 
-          session.logout(); 
-        } catch ( Exception e) {
-          LOG.warn("Failed to logout of administrative session {} ",e.getMessage());
+      Map<String, List<Content>> feeds = new LinkedHashMap<String, List<Content>>();
+      for (String activityItemPath : activityPaths) {
+        try {
+          Content activity = contentManager.get(activityItemPath);
+          if (activity == null || !activity.hasProperty(PARAM_ACTOR_ID)) {
+            // we must know the actor
+            throw new IllegalStateException(
+                "Could not determine actor of activity: " + activity);
+          }
+
+          // Get all the routes for this activity.
+          long start = System.nanoTime();
+          List<ActivityRoute> routes = activityRouterManager
+              .getActivityRoutes(activity, session);
+          deliveryPool.recordRouting(System.nanoTime() - start);
+
+          for (ActivityRoute route : routes) {
+            List<Content> feed = feeds.get(route.getDestination());
+            if (feed == null) {
+              feed = new ArrayList<Content>();
+              feeds.put(route.getDestination(), feed);
+            }
+            feed.add(activity);
+          }
+        } catch (IllegalStateException e) {
+          LOG.error(e.getMessage());
+          failed++;
+        } catch (AccessDeniedException e) {
+          LOG.error("Got a repository exception in the activity listener.", e);
+          failed++;
+        } catch (StorageClientException e) {
+          LOG.error("Got a repository exception in the activity listener.", e);
+          failed++;
         }
       }
 
-    } catch (JMSException e) {
-      LOG.error("Got a JMS exception in the activity listener.", e);
-    } catch (AccessDeniedException e) {
-      LOG.error("Got a repository exception in the activity listener.", e);
+      // Copy the activity items to each endpoint.
+      for (Entry<String, List<Content>> feed : feeds.entrySet()) {
+        for (Content activity : feed.getValue()) {
+          long start = System.nanoTime();
+          try {
+            deliverActivityToFeed(session, activity, feed.getKey());
+          } catch (AccessDeniedException e) {
+            LOG.error("Failed to deliver " + activity.getPath() + " to " + feed.getKey(), e);
+          } catch (StorageClientException e) {
+            LOG.error("Failed to deliver " + activity.getPath() + " to " + feed.getKey(), e);
+          }
+          deliveryPool.recordDelivery(System.nanoTime() - start);
+        }
+      }
     } catch (StorageClientException e) {
       LOG.error("Got a repository exception in the activity listener.", e);
+      return activityPaths.size();
+    } catch (AccessDeniedException e) {
+      LOG.error("Got a repository exception in the activity listener.", e);
+      return activityPaths.size();
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (Exception e) {
+          LOG.warn("Failed to logout of administrative session {} ", e.getMessage());
+        }
+      }
     }
+    return failed;
   }
 
   /**
@@ -17,7 +17,10 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
@@ -36,10 +39,12 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -52,17 +57,43 @@ import javax.jcr.security.Privilege;
  * This router will deliver an activity to the feed of all the contacts of the actor. It
  * will only deliver if the contact has READ access on the node where the activity was
  * performed on.
+ *
+ * In the default "read" fanout mode the sparse activity is not copied at all, it is
+ * marked so its actor is indexed and each contact's feed picks it up at search time by
+ * matching the actor against the reader's current contacts, where the readers filter
+ * takes care of the READ check. The contacts are never stored on the activity nor in the
+ * index, so a new or removed contact needs no reindex. The "write" mode keeps the old
+ * copy per contact.
  */
-@Component(immediate = true, enabled = true)
+@Component(immediate = true, enabled = true, metatype = true)
 @Service(value = ActivityRouter.class)
 public class ContactsActivityRouter implements ActivityRouter {
 
+  public static final String FANOUT_READ = "read";
+  public static final String FANOUT_WRITE = "write";
+
+  /**
+   * Either "read" to match the activity against the contacts at search time or "write"
+   * to copy the activity into the feed of each contact.
+   */
+  @Property(value = FANOUT_READ)
+  static final String FANOUT = "fanout";
+
   @Reference
   protected ConnectionManager connectionManager;
 
+  private boolean fanoutOnRead = true;
+
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ContactsActivityRouter.class);
 
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    Object fanout = properties.get(FANOUT);
+    fanoutOnRead = fanout == null || !FANOUT_WRITE.equals(String.valueOf(fanout));
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -127,6 +158,10 @@ public class ContactsActivityRouter implements ActivityRouter {
 
   public void route(Content activity, List<ActivityRoute> routes, org.sakaiproject.nakamura.api.lite.Session adminSession) {
     try {
+      if (fanoutOnRead) {
+        markFanoutOnRead(activity, adminSession);
+        return;
+      }
       String activityFeedPath = null;
       String actor = (String) activity.getProperty(ActivityConstants.PARAM_ACTOR_ID);
       List<String> connections = connectionManager.getConnectedUsers(adminSession, actor,
@@ -161,4 +196,23 @@ public class ContactsActivityRouter implements ActivityRouter {
     }
   }
 
+  /**
+   * Marks the activity for the activity feed search to match through its indexed actor
+   * instead of on a delivered copy. It is marked even when the actor has no contacts yet,
+   * as contacts made later will see it too. The actor's own feed does not match on it as
+   * the personal router already delivers there.
+   */
+  private void markFanoutOnRead(Content activity,
+      org.sakaiproject.nakamura.api.lite.Session adminSession) {
+    activity.setProperty(ActivityConstants.PARAM_FANOUT_ON_READ, true);
+    try {
+      ContentManager contentManager = adminSession.getContentManager();
+      contentManager.update(activity);
+    } catch (StorageClientException e) {
+      LOGGER.error("Unable to mark activity " + activity.getPath(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Unable to mark activity " + activity.getPath(), e);
+    }
+  }
+
 }
@@ -57,6 +57,8 @@ public class ActivityIndexingHandler implements IndexingHandler {
   // list of properties to be indexed
   private static final Set<String> WHITELISTED_PROPS = ImmutableSet.of("_created");
 
+  private static final String FIELD_ACTOR = "actor";
+
   private static final Logger logger = LoggerFactory
       .getLogger(ActivityIndexingHandler.class);
 
@@ -106,6 +108,14 @@ public class ActivityIndexingHandler implements IndexingHandler {
           for (String prop : WHITELISTED_PROPS) {
             doc.addField(prop, content.getProperty(prop));
           }
+          if (ActivityConstants.ACTIVITY_SOURCE_ITEM_RESOURCE_TYPE.equals(content
+              .getProperty("sling:resourceType"))
+              && Boolean.TRUE.equals(content
+                  .getProperty(ActivityConstants.PARAM_FANOUT_ON_READ))) {
+            // the feed search matches the contacts of the reader against the actor, so
+            // a change of contacts needs no reindex.
+            doc.addField(FIELD_ACTOR, content.getProperty(ActivityConstants.PARAM_ACTOR_ID));
+          }
           doc.addField(_DOC_SOURCE_OBJECT, content);
           documents.add(doc);
         }
@@ -20,12 +20,17 @@ package org.sakaiproject.nakamura.activity.search;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchPropertyProvider;
 
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 @Component(label = "ActivitySearchPropertyProvider")
@@ -37,6 +42,9 @@ import java.util.Map;
 @Service
 public class ActivitySearchPropertyProvider implements SolrSearchPropertyProvider {
 
+  @Reference
+  protected ConnectionManager connectionManager;
+
   /**
    * {@inheritDoc}
    *
@@ -53,5 +61,39 @@ public class ActivitySearchPropertyProvider implements SolrSearchPropertyProvide
     // Encode the path
     path = ClientUtils.escapeQueryChars(path);
     propertiesMap.put("_myFeed", path);
+    propertiesMap.put("_myContacts", getMyContacts(request, user));
+  }
+
+  /**
+   * Get the clause matching the activities of the user's contacts that are delivered on
+   * read. The contacts are looked up on every search so a new or removed contact is
+   * reflected straight away.
+   *
+   * @param request
+   * @param user
+   *          The user to get the contacts for.
+   * @return " OR (actor:(\"simon\" OR \"ieb\") AND resourceType:sakai/activity-post)" or
+   *         an empty string if the user has no contacts.
+   */
+  protected String getMyContacts(SlingHttpServletRequest request, String user) {
+    List<String> connectedUsers = connectionManager.getConnectedUsers(request, user,
+        ConnectionState.ACCEPTED);
+    StringBuilder sb = new StringBuilder();
+
+    if (connectedUsers != null && connectedUsers.size() > 0) {
+      sb.append(" OR (actor:(");
+      Iterator<String> users = connectedUsers.iterator();
+      while (users.hasNext()) {
+        String u = users.next();
+        sb.append("\"").append(ClientUtils.escapeQueryChars(u)).append("\"");
+
+        if (users.hasNext()) {
+          sb.append(" OR ");
+        }
+      }
+      sb.append(") AND resourceType:sakai/activity-post)");
+    }
+
+    return sb.toString();
   }
 }
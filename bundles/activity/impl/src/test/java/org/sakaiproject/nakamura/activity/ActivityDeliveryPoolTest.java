@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ActivityDeliveryPoolTest {
+
+  @Test
+  public void testOrderPerActor() throws Exception {
+    final Map<String, List<Integer>> seen = Collections
+        .synchronizedMap(new HashMap<String, List<Integer>>());
+    ActivityDeliveryPool pool = new ActivityDeliveryPool(
+        new ActivityDeliveryPool.BatchHandler() {
+          public int deliver(List<String> activityPaths) {
+            for (String path : activityPaths) {
+              String[] parts = path.split("/");
+              synchronized (seen) {
+                List<Integer> l = seen.get(parts[0]);
+                if (l == null) {
+                  l = new ArrayList<Integer>();
+                  seen.put(parts[0], l);
+                }
+                l.add(Integer.parseInt(parts[1]));
+              }
+            }
+            return 0;
+          }
+        }, 4, 10, 5);
+    pool.start();
+    for (int i = 0; i < 200; i++) {
+      for (int a = 0; a < 8; a++) {
+        pool.submit("actor" + a, "actor" + a + "/" + i);
+      }
+    }
+    pool.stop();
+
+    assertEquals(8, seen.size());
+    for (List<Integer> l : seen.values()) {
+      assertEquals(200, l.size());
+      for (int i = 0; i < l.size(); i++) {
+        assertEquals(i, l.get(i).intValue());
+      }
+    }
+    assertEquals(1600, pool.getProcessed());
+    assertEquals(0, pool.getQueueDepth());
+    assertTrue(pool.getBatches() <= 1600);
+  }
+
+  @Test
+  public void testFailuresCounted() {
+    ActivityDeliveryPool pool = new ActivityDeliveryPool(
+        new ActivityDeliveryPool.BatchHandler() {
+          public int deliver(List<String> activityPaths) {
+            return activityPaths.size();
+          }
+        }, 2, 10, 5);
+    // not started, delivered on the calling thread.
+    pool.submit("jack", "/a/activity/1");
+    pool.submit(null, "/a/activity/2");
+    assertEquals(0, pool.getProcessed());
+    assertEquals(2, pool.getFailed());
+    assertEquals(2, pool.getBatches());
+  }
+
+  @Test
+  public void testPartition() {
+    for (String actor : new String[] { "jack", "", "polygenelubricants", "zzzzzzzzzzzzzzzzzzzzz" }) {
+      int p = ActivityDeliveryPool.partition(actor, 7);
+      assertTrue(p >= 0 && p < 7);
+      assertEquals(p, ActivityDeliveryPool.partition(actor, 7));
+    }
+  }
+}
@@ -17,12 +17,20 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -55,4 +63,28 @@ public class ContactsActivityRouterTest extends AbstractActivityRouterTest {
     verify();
   }
 
+  @Test
+  public void testFanoutOnReadMarksActivity() throws Exception {
+    Content content = new Content("/p/abc/activity/1", ImmutableMap.of(
+        ActivityConstants.PARAM_ACTOR_ID, (Object) user));
+    Session adminSession = createMock(Session.class);
+    ContentManager contentManager = createMock(ContentManager.class);
+    EasyMock.expect(adminSession.getContentManager()).andReturn(contentManager);
+    contentManager.update(content);
+    EasyMock.expectLastCall().once();
+    // the contacts are only looked up when the feed is searched
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+
+    replay();
+    ContactsActivityRouter router = new ContactsActivityRouter();
+    router.connectionManager = connectionManager;
+    router.activate(ImmutableMap.of("fanout", (Object) ContactsActivityRouter.FANOUT_READ));
+    router.route(content, routes, adminSession);
+
+    // no copies, one write carrying the mark
+    assertTrue(routes.isEmpty());
+    assertEquals(true, content.getProperty(ActivityConstants.PARAM_FANOUT_ON_READ));
+    verify();
+  }
+
 }
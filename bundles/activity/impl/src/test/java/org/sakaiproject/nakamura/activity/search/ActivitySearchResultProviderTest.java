@@ -28,9 +28,13 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -54,15 +58,21 @@ public class ActivitySearchResultProviderTest extends AbstractEasyMockTest {
     expect(session.getUserManager()).andReturn(um);
     expect(request.getResourceResolver()).andReturn(resolver);
     expect(resolver.adaptTo(Session.class)).andReturn(session);
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(connectionManager.getConnectedUsers(request, "admin", ConnectionState.ACCEPTED))
+        .andReturn(Arrays.asList("bob", "carol"));
 
     replay();
     ActivitySearchPropertyProvider provider = new ActivitySearchPropertyProvider();
+    provider.connectionManager = connectionManager;
     Map<String, String> propertiesMap = new HashMap<String, String>();
     provider.loadUserProperties(request, propertiesMap);
     String actual = propertiesMap.get("_myFeed");
     String expected = ClientUtils.escapeQueryChars(LitePersonalUtils.PATH_AUTHORIZABLE
         + "admin/private/" + ActivityConstants.ACTIVITY_FEED_NAME);
     assertEquals(expected, actual);
+    assertEquals(" OR (actor:(\"bob\" OR \"carol\") AND resourceType:sakai/activity-post)",
+        propertiesMap.get("_myContacts"));
   }
 
   @Test
@@ -77,15 +87,20 @@ public class ActivitySearchResultProviderTest extends AbstractEasyMockTest {
     expect(session.getUserManager()).andReturn(um);
     expect(request.getResourceResolver()).andReturn(resolver);
     expect(resolver.adaptTo(Session.class)).andReturn(session);
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(connectionManager.getConnectedUsers(request, "anonymous",
+        ConnectionState.ACCEPTED)).andReturn(Collections.<String> emptyList());
 
     replay();
     ActivitySearchPropertyProvider provider = new ActivitySearchPropertyProvider();
+    provider.connectionManager = connectionManager;
     Map<String, String> propertiesMap = new HashMap<String, String>();
     provider.loadUserProperties(request, propertiesMap);
     String actual = propertiesMap.get("_myFeed");
     String expected = ClientUtils.escapeQueryChars(LitePersonalUtils.PATH_AUTHORIZABLE
         + "anonymous/private/" + ActivityConstants.ACTIVITY_FEED_NAME);
     assertEquals(expected, actual);
+    assertEquals("", propertiesMap.get("_myContacts"));
   }
 
 }
@@ -20,13 +20,14 @@ package org.sakaiproject.nakamura.batch;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceNotFoundException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
-import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.util.RequestInfo;
 import org.sakaiproject.nakamura.util.RequestWrapper;
@@ -35,14 +36,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -55,9 +62,38 @@ public class BatchHelper {
 
   protected static final String REQUESTS_PARAMETER = "requests";
 
+  private final SlingRequestProcessor requestProcessor;
+  private final ExecutorService executor;
+  private final long timeout;
 
   /**
-   * Takes the original request and starts the batching.
+   * A helper that runs the requests of a batch one after another.
+   */
+  public BatchHelper() {
+    this(null, null, 0L);
+  }
+
+  /**
+   * A helper that runs batches of only safe requests in parallel, each request with its
+   * own resource resolver.
+   *
+   * @param requestProcessor
+   *          processes the parallel requests.
+   * @param executor
+   *          runs the parallel requests, null to run all requests one after another.
+   * @param timeout
+   *          the time in ms to wait for a parallel request before reporting it as failed.
+   */
+  public BatchHelper(SlingRequestProcessor requestProcessor, ExecutorService executor,
+      long timeout) {
+    this.requestProcessor = requestProcessor;
+    this.executor = executor;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Takes the original request and starts the batching. Each result is written to the
+   * client as soon as it, and every result before it, is complete.
    *
    * @param request
    * @param response
@@ -69,6 +105,7 @@ public class BatchHelper {
     // Grab the JSON block out of it and convert it to RequestData objects we can use.
 
     List<RequestInfo> batchedRequests = new ArrayList<RequestInfo>();
+    boolean allSafe = true;
     try {
       JSONArray arr = new JSONArray(jsonRequest);
       for (int i = 0; i < arr.length(); i++) {
@@ -76,6 +113,7 @@ public class BatchHelper {
         RequestInfo r = new RequestInfo(obj);
         if ( allowModify || r.isSafe() ) {
           batchedRequests.add(r);
+          allSafe = allSafe && r.isSafe();
         }
       }
     } catch (MalformedURLException e) {
@@ -94,43 +132,108 @@ public class BatchHelper {
       return;
     }
 
-    // Loop over the requests and handle each one.
-    try {
-      StringWriter sw = new StringWriter();
-      JSONWriter write = new JSONWriter(sw);
-      write.object();
-      write.key("results");
-      write.array();
+    // TODO: This is a nasty hack to work around white listing of /system/batch POST
+    // requests. This should be removed when the UI has refactored itself not to use batch
+    // POSTs in place of GETs (see http spec for reasons by thats bad)
+    // Checked before anything is written, as results are streamed.
+    if (User.ANON_USER.equals(request.getRemoteUser())) {
+      for (RequestInfo r : batchedRequests) {
+        if (!"GET".equals(r.getMethod())) {
+          response.reset();
+          throw new ServletException("Anon Users may only perform GET operations");
+        }
+      }
+    }
 
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    Writer writer = response.getWriter();
+    writer.write("{\"results\":[");
+    if (allSafe && executor != null && requestProcessor != null
+        && batchedRequests.size() > 1) {
+      doParallelRequests(request, response, batchedRequests, writer);
+    } else {
+      // Loop over the requests and handle each one.
+      boolean first = true;
       for (RequestInfo r : batchedRequests) {
-        doRequest(request, response, r, write);
+        ResponseWrapper responseWrapper = doRequest(request, response, r);
+        first = writeResult(writer, responseWrapper, r, first);
       }
-      write.endArray();
-      write.endObject();
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-      response.getWriter().write(sw.getBuffer().toString());
-    } catch (JSONException e) {
-      LOGGER.warn("Failed to create a JSON response");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to write JSON response");
     }
+    writer.write("]}");
+    writer.flush();
   }
 
-  private void doRequest(SlingHttpServletRequest request,
-      SlingHttpServletResponse response, RequestInfo requestInfo,
-      JSONWriter write) throws JSONException, ServletException {
-    // Look for a matching resource in the usual way. If one is found,
-    // the resource will also be embedded with any necessary RequestPathInfo.
-    // TODO: This is a nasty hack to work around white listing of /system/batch POST
-    // requests. This should be removed when the UI has refactored itself not to use batch
-    // POSTs in place of GETs (see http spec for reasons by thats bad)
-    if (User.ANON_USER.equals(request.getRemoteUser())) {
-      if (!"GET".equals(requestInfo.getMethod())) {
-        response.reset();
-        throw new ServletException("Anon Users may only perform GET operations");
+  private void doParallelRequests(final SlingHttpServletRequest request,
+      final SlingHttpServletResponse response, List<RequestInfo> batchedRequests,
+      Writer writer) throws IOException {
+    List<Future<ResponseWrapper>> futures = new ArrayList<Future<ResponseWrapper>>();
+    for (final RequestInfo r : batchedRequests) {
+      futures.add(executor.submit(new Callable<ResponseWrapper>() {
+        public ResponseWrapper call() throws Exception {
+          return doDetachedRequest(request, response, r);
+        }
+      }));
+    }
+    long deadline = System.currentTimeMillis() + timeout;
+    boolean first = true;
+    for (int i = 0; i < futures.size(); i++) {
+      Future<ResponseWrapper> future = futures.get(i);
+      RequestInfo r = batchedRequests.get(i);
+      ResponseWrapper responseWrapper = null;
+      try {
+        responseWrapper = future.get(Math.max(0L, deadline - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        future.cancel(true);
+      } catch (ExecutionException e) {
+        LOGGER.debug("Batched request to {} failed: {}", r.getUrl(), e.getMessage());
+      } catch (TimeoutException e) {
+        LOGGER.warn("Batched request to {} timed out", r.getUrl());
+        future.cancel(true);
+      }
+      first = writeResult(writer, responseWrapper, r, first);
+    }
+  }
+
+  /**
+   * Process a request with its own resource resolver, so that it can run on another
+   * thread alongside the rest of the batch.
+   *
+   * @return the response, or null if the request failed.
+   */
+  private ResponseWrapper doDetachedRequest(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, RequestInfo requestInfo) {
+    ResourceResolver resourceResolver = null;
+    try {
+      resourceResolver = request.getResourceResolver().clone(null);
+      ResponseWrapper responseWrapper = new ResponseWrapper(response);
+      requestProcessor.processRequest(new DetachedRequestWrapper(request, requestInfo),
+          responseWrapper, resourceResolver);
+      return responseWrapper;
+    } catch (LoginException e) {
+      LOGGER.warn("Unable to open a resource resolver for {}: {}", requestInfo.getUrl(),
+          e.getMessage());
+    } catch (ServletException e) {
+      LOGGER.debug("Batched request to {} failed: {}", requestInfo.getUrl(), e.getMessage());
+    } catch (IOException e) {
+      LOGGER.debug("Batched request to {} failed: {}", requestInfo.getUrl(), e.getMessage());
+    } finally {
+      if (resourceResolver != null) {
+        resourceResolver.close();
       }
     }
+    return null;
+  }
+
+  /**
+   * @return the response, or null if the request failed.
+   */
+  private ResponseWrapper doRequest(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, RequestInfo requestInfo) {
+    // Look for a matching resource in the usual way. If one is found,
+    // the resource will also be embedded with any necessary RequestPathInfo.
     String requestPath = requestInfo.getUrl();
     ResourceResolver resourceResolver = request.getResourceResolver();
     Resource resource = resourceResolver.resolve(request, requestPath);
@@ -155,53 +258,57 @@ public class BatchHelper {
       } catch (SlingException e) {
         responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
-      // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestInfo);
+      return responseWrapper;
     } catch (ServletException e) {
-      writeFailedRequest(write, requestInfo);
+      return null;
     } catch (IOException e) {
-      writeFailedRequest(write, requestInfo);
+      return null;
     }
-
   }
 
-  private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
-      RequestInfo requestData) throws JSONException {
-    try {
-      String body = responseWrapper.getDataAsString();
-      write.object();
-      write.key("url");
-      write.value(requestData.getUrl());
-      write.key("success");
-      write.value(true);
-      write.key("body");
-      write.value(body);
-      write.key("status");
-      write.value(responseWrapper.getResponseStatus());
-      write.key("headers");
-      write.object();
+  /**
+   * Write the response (status, headers, body) back to the client, the body is copied
+   * from the buffered response without building a String.
+   *
+   * @param responseWrapper
+   *          the response, null if the request failed.
+   * @return false, to pass as first for the next result.
+   */
+  private boolean writeResult(Writer write, ResponseWrapper responseWrapper,
+      RequestInfo requestData, boolean first) throws IOException {
+    if (!first) {
+      write.write(',');
+    }
+    write.write("{\"url\":");
+    write.write(JSONObject.quote(requestData.getUrl()));
+    if (responseWrapper == null) {
+      write.write(",\"success\":false}");
+    } else {
+      write.write(",\"success\":true,\"body\":\"");
+      JsonStringOutputStream body = new JsonStringOutputStream(write);
+      responseWrapper.writeData(body);
+      body.close();
+      write.write("\",\"status\":");
+      write.write(String.valueOf(responseWrapper.getResponseStatus()));
+      write.write(",\"headers\":{");
       Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
       Enumeration<String> keys = headers.keys();
+      boolean firstHeader = true;
       while (keys.hasMoreElements()) {
         String k = keys.nextElement();
-        write.key(k);
-        write.value(headers.get(k));
+        if (!firstHeader) {
+          write.write(',');
+        }
+        write.write(JSONObject.quote(k));
+        write.write(':');
+        write.write(JSONObject.quote(headers.get(k)));
+        firstHeader = false;
       }
-      write.endObject();
-      write.endObject();
-    } catch (UnsupportedEncodingException e) {
-      writeFailedRequest(write, requestData);
+      write.write("}}");
     }
-  }
-
-  private void writeFailedRequest(JSONWriter write, RequestInfo requestData)
-      throws JSONException {
-    write.object();
-    write.key("url");
-    write.value(requestData.getUrl());
-    write.key("success");
-    write.value(false);
-    write.endObject();
+    // let the client have this result while the rest are processed.
+    write.flush();
+    return false;
   }
 
 }
@@ -17,10 +17,17 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -29,11 +36,18 @@ import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
-@SlingServlet(methods = { "POST" }, generateService = true, paths = { "/system/batch" })
+@Component(immediate = true, metatype = true)
+@SlingServlet(methods = { "POST" }, generateService = true, generateComponent = false, paths = { "/system/batch" })
 @ServiceDocumentation(name = "BatchServlet", okForVersion = "1.1",
     shortDescription = "Bundles multiple requests into a single response.",
     description = "Allows multiple requests to be executed in a single request.",
@@ -63,9 +77,50 @@ public class BatchServlet extends SlingAllMethodsServlet {
   private static final long serialVersionUID = 419598445499567027L;
 
   protected static final String REQUESTS_PARAMETER = "requests";
-  
+
+  @Property(intValue = 8, label = "Parallel threads",
+      description = "Number of threads that run the requests of batches containing only GET requests in parallel; 0 runs every request one after another")
+  protected static final String PARALLEL_THREADS = "batch.parallel.threads";
+
+  @Property(longValue = 30000L, label = "Parallel timeout (MS)",
+      description = "Time a batch waits for its parallel requests before reporting them as failed")
+  protected static final String PARALLEL_TIMEOUT = "batch.parallel.timeout";
+
+  @Reference
+  protected transient SlingRequestProcessor requestProcessor;
+
+  private transient ThreadPoolExecutor executor;
+
   private BatchHelper helper = new BatchHelper();
 
+  @Activate
+  protected void activate(Map<String, Object> props) {
+    int threads = PropertiesUtil.toInteger(props.get(PARALLEL_THREADS), 8);
+    long timeout = PropertiesUtil.toLong(props.get(PARALLEL_TIMEOUT), 30000L);
+    if (threads > 0) {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(threads * 8), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "batch-request-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          }, new ThreadPoolExecutor.CallerRunsPolicy());
+      executor.allowCoreThreadTimeOut(true);
+      helper = new BatchHelper(requestProcessor, executor, timeout);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    helper = new BatchHelper();
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
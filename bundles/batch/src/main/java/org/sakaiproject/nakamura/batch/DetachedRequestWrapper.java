@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.sakaiproject.nakamura.util.RequestInfo;
+import org.sakaiproject.nakamura.util.RequestWrapper;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A batched request that is processed on its own thread, alongside the other requests of
+ * the batch. Attributes set while processing it are kept in the wrapper rather than on
+ * the shared original request, and the path excludes the query string so the request can
+ * be resolved from scratch.
+ */
+class DetachedRequestWrapper extends RequestWrapper {
+
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+  private final Set<String> removed = new HashSet<String>();
+  private final String path;
+
+  DetachedRequestWrapper(SlingHttpServletRequest request, RequestInfo requestInfo) {
+    super(request, requestInfo);
+    String url = requestInfo.getUrl();
+    int i = url.indexOf('?');
+    this.path = i < 0 ? url : url.substring(0, i);
+  }
+
+  @Override
+  public String getPathInfo() {
+    return path;
+  }
+
+  @Override
+  public String getRequestURI() {
+    return path;
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    if (attributes.containsKey(name)) {
+      return attributes.get(name);
+    }
+    if (removed.contains(name)) {
+      return null;
+    }
+    return super.getAttribute(name);
+  }
+
+  @Override
+  public void setAttribute(String name, Object o) {
+    if (o == null) {
+      removeAttribute(name);
+    } else {
+      attributes.put(name, o);
+      removed.remove(name);
+    }
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    attributes.remove(name);
+    removed.add(name);
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Override
+  public Enumeration getAttributeNames() {
+    Set<String> names = new HashSet<String>();
+    for (Enumeration e = super.getAttributeNames(); e.hasMoreElements();) {
+      names.add((String) e.nextElement());
+    }
+    names.removeAll(removed);
+    names.addAll(attributes.keySet());
+    return Collections.enumeration(names);
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes UTF-8 bytes and writes them to a writer as the content of a JSON string,
+ * escaped the same way as JSONObject.quote(). Used to copy a response body into the batch
+ * response without first turning it into a String.
+ */
+class JsonStringOutputStream extends OutputStream {
+
+  private static final String HEX = "0123456789abcdef";
+
+  private final Writer out;
+  private final CharsetDecoder decoder;
+  private final ByteBuffer in = ByteBuffer.allocate(4096);
+  private final CharBuffer chars = CharBuffer.allocate(4096);
+  private char last;
+
+  JsonStringOutputStream(Writer out) {
+    this.out = out;
+    this.decoder = Charset.forName("UTF-8").newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = Math.min(len, in.remaining());
+      in.put(b, off, n);
+      off += n;
+      len -= n;
+      decode(false);
+    }
+  }
+
+  /**
+   * Write out anything left over, does not close the writer.
+   */
+  @Override
+  public void close() throws IOException {
+    decode(true);
+    decoder.flush(chars);
+    drain();
+  }
+
+  private void decode(boolean endOfInput) throws IOException {
+    in.flip();
+    while (decoder.decode(in, chars, endOfInput).isOverflow()) {
+      drain();
+    }
+    drain();
+    // keep any partial character for the next write
+    in.compact();
+  }
+
+  private void drain() throws IOException {
+    chars.flip();
+    while (chars.hasRemaining()) {
+      escape(chars.get());
+    }
+    chars.clear();
+  }
+
+  private void escape(char c) throws IOException {
+    switch (c) {
+    case '\\':
+    case '"':
+      out.write('\\');
+      out.write(c);
+      break;
+    case '/':
+      if (last == '<') {
+        out.write('\\');
+      }
+      out.write(c);
+      break;
+    case '\b':
+      out.write("\\b");
+      break;
+    case '\t':
+      out.write("\\t");
+      break;
+    case '\n':
+      out.write("\\n");
+      break;
+    case '\f':
+      out.write("\\f");
+      break;
+    case '\r':
+      out.write("\\r");
+      break;
+    default:
+      if (c < ' ' || (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100)) {
+        out.write("\\u");
+        out.write(HEX.charAt((c >> 12) & 0xf));
+        out.write(HEX.charAt((c >> 8) & 0xf));
+        out.write(HEX.charAt((c >> 4) & 0xf));
+        out.write(HEX.charAt(c & 0xf));
+      } else {
+        out.write(c);
+      }
+    }
+    last = c;
+  }
+}
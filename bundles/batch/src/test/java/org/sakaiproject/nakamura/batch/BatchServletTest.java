@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -26,15 +28,23 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -80,4 +90,74 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testParallelRequestsStreamInOrder() throws Exception {
+    String json = "[{\"url\" : \"/slow.json?a=1\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/fast.json\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/missing.json\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.clone(null)).thenReturn(resourceResolver);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(baos, "UTF-8"));
+    when(response.getWriter()).thenReturn(writer);
+
+    // the fast request completes first but must be written second.
+    final CountDownLatch fastDone = new CountDownLatch(1);
+    SlingRequestProcessor processor = new SlingRequestProcessor() {
+      public void processRequest(HttpServletRequest req, HttpServletResponse resp,
+          ResourceResolver resolver) throws ServletException, IOException {
+        if ("/slow.json".equals(req.getPathInfo())) {
+          try {
+            fastDone.await();
+          } catch (InterruptedException e) {
+            throw new ServletException(e);
+          }
+          resp.setContentType("application/json");
+          resp.getWriter().write("{\"q\":\"" + req.getParameter("a") + "</a>\\u00e9\"}");
+        } else if ("/fast.json".equals(req.getPathInfo())) {
+          resp.getOutputStream().write("caf\u00e9".getBytes("UTF-8"));
+          fastDone.countDown();
+        } else {
+          throw new ServletException("boom");
+        }
+      }
+    };
+    servlet.requestProcessor = processor;
+    Map<String, Object> props = Collections.emptyMap();
+    servlet.activate(props);
+    try {
+      servlet.doGet(request, response);
+    } finally {
+      servlet.deactivate();
+    }
+
+    writer.flush();
+    JSONArray results = new JSONObject(baos.toString("UTF-8")).getJSONArray("results");
+    assertEquals(3, results.length());
+    JSONObject slow = results.getJSONObject(0);
+    assertEquals("/slow.json?a=1", slow.getString("url"));
+    assertTrue(slow.getBoolean("success"));
+    assertEquals("{\"q\":\"1</a>\\u00e9\"}", slow.getString("body"));
+    assertEquals("application/json", slow.getJSONObject("headers").getString("Content-Type"));
+    assertEquals(200, slow.getInt("status"));
+    assertEquals("caf\u00e9", results.getJSONObject(1).getString("body"));
+    assertEquals(false, results.getJSONObject(2).getBoolean("success"));
+  }
+
+  @Test
+  public void testBodyEscapedLikeJSONObject() throws Exception {
+    String body = "<script>\"quoted\" \\ back/slash</script>\t\n\r\u0001\u0085\u2028 \u4e2d\u6587";
+    java.io.StringWriter out = new java.io.StringWriter();
+    JsonStringOutputStream stream = new JsonStringOutputStream(out);
+    byte[] bytes = body.getBytes("UTF-8");
+    // write one byte at a time to split multi byte characters
+    for (byte b : bytes) {
+      stream.write(b);
+    }
+    stream.close();
+    assertEquals(JSONObject.quote(body), "\"" + out.toString() + "\"");
+  }
+
 }
@@ -63,4 +63,11 @@ public interface ConnectionConstants {
    */
   public static final String EVENT_TOPIC_BASE = "org/sakaiproject/nakamura/connections/";
 
+  /**
+   * Posted by the connection index once it has applied a change to a user's connections
+   * that it keeps, with the path of the user's contact store as the path property.
+   * Connections asked for after this event include the change.
+   */
+  public static final String EVENT_TOPIC_INDEX_CHANGED = "org/sakaiproject/nakamura/connections/index/CHANGED";
+
 }
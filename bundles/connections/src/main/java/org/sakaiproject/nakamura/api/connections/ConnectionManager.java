@@ -70,6 +70,29 @@ public interface ConnectionManager {
       Session session, String actor,
       ConnectionState accepted);
 
+  /**
+   * Get the users that both users have accepted connections with.
+   *
+   * @param session
+   * @param user
+   * @param otherUser
+   * @return the ids of the users connected to both, in no particular order.
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  List<String> getMutualConnections(Session session, String user, String otherUser);
+
+  /**
+   * Get the users that the user's connections are connected to, but the user is not.
+   *
+   * @param session
+   * @param user
+   * @param limit the most users to return.
+   * @return the ids of the users, those with the most connections in common with the
+   *         user first.
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  List<String> getConnectionsOfConnections(Session session, String user, int limit);
+
   /**
    * Get connection details to <code>otherUser</code> from <code>thisUser</code>
    *
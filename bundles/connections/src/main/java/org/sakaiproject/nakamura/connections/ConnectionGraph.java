@@ -0,0 +1,436 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A compact in memory index of connections and group memberships. Users and groups are
+ * interned to int ids. Each loaded user has a sorted array of the ids they are connected
+ * to for every connection state, and each loaded group a sorted array of its members.
+ * Arrays are replaced rather than changed, so a reader only holds the lock long enough to
+ * pick them up.
+ *
+ * The graph holds no storage code, {@link ConnectionIndex} loads it and keeps it up to
+ * date.
+ */
+public class ConnectionGraph {
+
+  private static final int[] EMPTY = new int[0];
+
+  private static final int STATES = ConnectionState.values().length;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+  private String[] names = new String[256];
+
+  private int size;
+
+  /**
+   * Connections by user id and then state, null for users whose connections are not
+   * loaded.
+   */
+  private int[][][] connections = new int[256][][];
+
+  /**
+   * Members by group id, null for groups that are not loaded.
+   */
+  private int[][] members = new int[256][];
+
+  private long[] loaded = new long[256];
+
+  private long[] changed = new long[256];
+
+  private long version;
+
+  /**
+   * @return a stamp to pass to {@link #setConnections(String, Map, long, long)} when a
+   *         load starts, so the load is dropped if the user's connections change while
+   *         it is being read.
+   */
+  public long version() {
+    lock.readLock().lock();
+    try {
+      return version;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the stamp of the last change to the connections of the user, 0 if there has
+   *         been none.
+   */
+  public long changed(String user) {
+    lock.readLock().lock();
+    try {
+      Integer id = ids.get(user);
+      return (id == null) ? 0L : changed[id];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if the connections of the user were loaded at or after the given time.
+   */
+  public boolean hasConnections(String user, long since) {
+    lock.readLock().lock();
+    try {
+      Integer id = ids.get(user);
+      return id != null && connections[id] != null && loaded[id] >= since;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if the members of the group were loaded at or after the given time.
+   */
+  public boolean hasMembers(String group, long since) {
+    lock.readLock().lock();
+    try {
+      Integer id = ids.get(group);
+      return id != null && members[id] != null && loaded[id] >= since;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Replace all the connections of a user.
+   *
+   * @param user
+   * @param userConnections
+   *          The state of each connection of the user.
+   * @param startVersion
+   *          {@link #version()} from before the connections were read.
+   * @param now
+   * @return false if the user's connections changed since startVersion, in which case
+   *         nothing is set.
+   */
+  public boolean setConnections(String user, Map<String, ConnectionState> userConnections,
+      long startVersion, long now) {
+    lock.writeLock().lock();
+    try {
+      int id = intern(user);
+      if (changed[id] > startVersion) {
+        return false;
+      }
+      int[][] byState = new int[STATES][];
+      int[] counts = new int[STATES];
+      for (ConnectionState state : userConnections.values()) {
+        counts[state.ordinal()]++;
+      }
+      for (int i = 0; i < STATES; i++) {
+        byState[i] = counts[i] == 0 ? EMPTY : new int[counts[i]];
+        counts[i] = 0;
+      }
+      for (Entry<String, ConnectionState> e : userConnections.entrySet()) {
+        int state = e.getValue().ordinal();
+        byState[state][counts[state]++] = intern(e.getKey());
+      }
+      for (int[] a : byState) {
+        Arrays.sort(a);
+      }
+      connections[id] = byState;
+      loaded[id] = now;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Record the state of one connection. Nothing is kept for a user whose connections
+   * are not loaded, they will be read when they are next needed.
+   *
+   * @return the stamp of the change, as returned by {@link #changed(String)} until the
+   *         user's connections change again.
+   */
+  public long setConnection(String user, String other, ConnectionState state) {
+    lock.writeLock().lock();
+    try {
+      int id = intern(user);
+      long stamp = ++version;
+      changed[id] = stamp;
+      int[][] byState = connections[id];
+      if (byState == null) {
+        return stamp;
+      }
+      int otherId = intern(other);
+      int[][] updated = new int[STATES][];
+      for (int i = 0; i < STATES; i++) {
+        updated[i] = remove(byState[i], otherId);
+      }
+      if (state != ConnectionState.NONE) {
+        updated[state.ordinal()] = add(updated[state.ordinal()], otherId);
+      }
+      connections[id] = updated;
+      return stamp;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Forget the connections of a user, they will be read again when next needed.
+   */
+  public void removeConnections(String user) {
+    lock.writeLock().lock();
+    try {
+      Integer id = ids.get(user);
+      if (id != null) {
+        changed[id] = ++version;
+        connections[id] = null;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void setMembers(String group, Collection<String> groupMembers, long now) {
+    lock.writeLock().lock();
+    try {
+      int id = intern(group);
+      int[] m = new int[groupMembers.size()];
+      int i = 0;
+      for (String member : groupMembers) {
+        m[i++] = intern(member);
+      }
+      Arrays.sort(m);
+      members[id] = m;
+      loaded[id] = now;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Forget the members of a group, they will be read again when next needed.
+   */
+  public void removeMembers(String group) {
+    lock.writeLock().lock();
+    try {
+      Integer id = ids.get(group);
+      if (id != null) {
+        members[id] = null;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the users connected to the user in the given state, or null if the user's
+   *         connections are not loaded.
+   */
+  public List<String> getConnections(String user, ConnectionState state) {
+    lock.readLock().lock();
+    try {
+      int[] c = connections(user, state);
+      return c == null ? null : toNames(c, c.length);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the users with an accepted connection to both users, or null if the
+   *         connections of either are not loaded.
+   */
+  public List<String> getMutualConnections(String user, String other) {
+    lock.readLock().lock();
+    try {
+      int[] a = connections(user, ConnectionState.ACCEPTED);
+      int[] b = connections(other, ConnectionState.ACCEPTED);
+      if (a == null || b == null) {
+        return null;
+      }
+      int[] mutual = new int[Math.min(a.length, b.length)];
+      int n = 0;
+      for (int i = 0, j = 0; i < a.length && j < b.length;) {
+        if (a[i] < b[j]) {
+          i++;
+        } else if (a[i] > b[j]) {
+          j++;
+        } else {
+          mutual[n++] = a[i];
+          i++;
+          j++;
+        }
+      }
+      return toNames(mutual, n);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The users connected to the user's connections that the user is not connected to,
+   * those with the most connections in common first. Connections of connections that are
+   * not loaded are left out.
+   *
+   * @param user
+   * @param limit
+   *          The most users to return.
+   * @return the users, or null if the user's connections are not loaded.
+   */
+  public List<String> getConnectionsOfConnections(String user, int limit) {
+    lock.readLock().lock();
+    try {
+      int[] mine = connections(user, ConnectionState.ACCEPTED);
+      if (mine == null) {
+        return null;
+      }
+      int total = 0;
+      int[][] theirs = new int[mine.length][];
+      for (int i = 0; i < mine.length; i++) {
+        int[][] byState = connections[mine[i]];
+        theirs[i] = byState == null ? EMPTY : byState[ConnectionState.ACCEPTED.ordinal()];
+        total += theirs[i].length;
+      }
+      int[] all = new int[total];
+      int n = 0;
+      for (int[] t : theirs) {
+        System.arraycopy(t, 0, all, n, t.length);
+        n += t.length;
+      }
+      Arrays.sort(all);
+      // one entry per user, ordered by the number of connections in common and then id
+      int self = ids.get(user);
+      long[] ranked = new long[all.length];
+      int r = 0;
+      for (int i = 0; i < all.length;) {
+        int id = all[i];
+        int j = i;
+        while (j < all.length && all[j] == id) {
+          j++;
+        }
+        if (id != self && Arrays.binarySearch(mine, id) < 0) {
+          ranked[r++] = ((long) (Integer.MAX_VALUE - (j - i)) << 32) | id;
+        }
+        i = j;
+      }
+      Arrays.sort(ranked, 0, r);
+      int[] result = new int[Math.min(r, Math.max(limit, 0))];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = (int) ranked[i];
+      }
+      return toNames(result, result.length);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the members of the group, or null if they are not loaded.
+   */
+  public List<String> getMembers(String group) {
+    lock.readLock().lock();
+    try {
+      Integer id = ids.get(group);
+      if (id == null || members[id] == null) {
+        return null;
+      }
+      return toNames(members[id], members[id].length);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private int[] connections(String user, ConnectionState state) {
+    Integer id = ids.get(user);
+    if (id == null || connections[id] == null) {
+      return null;
+    }
+    return connections[id][state.ordinal()];
+  }
+
+  private List<String> toNames(int[] a, int n) {
+    if (n == 0) {
+      return Collections.emptyList();
+    }
+    List<String> result = new ArrayList<String>(n);
+    for (int i = 0; i < n; i++) {
+      result.add(names[a[i]]);
+    }
+    return result;
+  }
+
+  /**
+   * Must be called holding the write lock.
+   */
+  private int intern(String name) {
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+    if (size == names.length) {
+      int capacity = size * 2;
+      names = Arrays.copyOf(names, capacity);
+      connections = Arrays.copyOf(connections, capacity);
+      members = Arrays.copyOf(members, capacity);
+      loaded = Arrays.copyOf(loaded, capacity);
+      changed = Arrays.copyOf(changed, capacity);
+    }
+    names[size] = name;
+    ids.put(name, size);
+    return size++;
+  }
+
+  private static int[] add(int[] a, int id) {
+    int i = Arrays.binarySearch(a, id);
+    if (i >= 0) {
+      return a;
+    }
+    i = -i - 1;
+    int[] b = new int[a.length + 1];
+    System.arraycopy(a, 0, b, 0, i);
+    b[i] = id;
+    System.arraycopy(a, i, b, i + 1, a.length - i);
+    return b;
+  }
+
+  private static int[] remove(int[] a, int id) {
+    int i = Arrays.binarySearch(a, id);
+    if (i < 0) {
+      return a;
+    }
+    if (a.length == 1) {
+      return EMPTY;
+    }
+    int[] b = new int[a.length - 1];
+    System.arraycopy(a, 0, b, 0, i);
+    System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+    return b;
+  }
+}
@@ -0,0 +1,472 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers connection and group membership queries from a {@link ConnectionGraph}. A
+ * user's connections are read from their contact store the first time they are needed,
+ * and a group's members the first time they are asked for. After that they are kept up
+ * to date by {@link ConnectionManagerImpl} and by content and authorizable events, and
+ * read again once they are older than the configured time to live, which covers changes
+ * made on other servers. Once an event has been applied to a user that is kept a
+ * {@link ConnectionConstants#EVENT_TOPIC_INDEX_CHANGED} is posted, so that anything
+ * keeping a view of the connections knows when to ask again. The connections of a user's
+ * connections are read on a
+ * background thread, so connections of connections leave out anyone not yet read.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { ConnectionIndex.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE",
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+public class ConnectionIndex implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionIndex.class);
+
+  /**
+   * How long in seconds connections and members are used before being read again.
+   */
+  @Property(longValue = 300)
+  static final String TIME_TO_LIVE = "connections.index.ttl";
+
+  /**
+   * The most connections of connections waiting to be read in the background, others are
+   * read when next asked for.
+   */
+  @Property(intValue = 1000)
+  static final String MAX_PENDING = "connections.index.pending";
+
+  private static final String CONTACT_STORE = "/" + ConnectionConstants.CONTACT_STORE_NAME;
+
+  /**
+   * How many times a read is repeated when the user's connections change while it runs.
+   */
+  private static final int LOAD_ATTEMPTS = 3;
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected EventAdmin eventAdmin;
+
+  private final ConnectionGraph graph = new ConnectionGraph();
+
+  private long timeToLive = 300000L;
+
+  /**
+   * Reads the connections of connections in the background.
+   */
+  private ThreadPoolExecutor loader;
+
+  /**
+   * The users waiting to be read by the loader.
+   */
+  private final Set<String> pending = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * The stamp each change made through {@link #connectionChanged} left on the graph, by
+   * user and other user, until the content event for it arrives.
+   */
+  private final ConcurrentMap<String, Long> applied = new ConcurrentHashMap<String, Long>();
+
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> properties) {
+    timeToLive = PropertiesUtil.toLong(properties.get(TIME_TO_LIVE), 300) * 1000L;
+    int maxPending = PropertiesUtil.toInteger(properties.get(MAX_PENDING), 1000);
+    deactivate();
+    loader = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(Math.max(maxPending, 1)), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "connection-index-loader");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    loader.allowCoreThreadTimeOut(true);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (loader != null) {
+      loader.shutdownNow();
+      loader = null;
+    }
+    pending.clear();
+    applied.clear();
+  }
+
+  /**
+   * @param user
+   * @param state
+   * @return the users connected to the user in the given state.
+   */
+  public List<String> getConnectedUsers(String user, ConnectionState state) {
+    Map<String, Map<String, ConnectionState>> read = load(Collections.singletonList(user));
+    return getConnections(user, state, read);
+  }
+
+  /**
+   * @return the users with an accepted connection to both users.
+   */
+  public List<String> getMutualConnections(String user, String otherUser) {
+    Map<String, Map<String, ConnectionState>> read = load(Arrays.asList(user, otherUser));
+    List<String> mutual = graph.getMutualConnections(user, otherUser);
+    if (mutual != null) {
+      return new ArrayList<String>(mutual);
+    }
+    // one of them could not be kept, answer from what was read.
+    List<String> connected = getConnections(user, ConnectionState.ACCEPTED, read);
+    connected.retainAll(new HashSet<String>(getConnections(otherUser,
+        ConnectionState.ACCEPTED, read)));
+    return connected;
+  }
+
+  /**
+   * Connections that have not been read yet are queued to be read in the background and
+   * left out until they are.
+   *
+   * @return up to limit users connected to the user's connections but not to the user,
+   *         those with most connections in common first.
+   */
+  public List<String> getConnectionsOfConnections(String user, int limit) {
+    load(Collections.singletonList(user));
+    List<String> connected = graph.getConnections(user, ConnectionState.ACCEPTED);
+    if (connected == null || connected.isEmpty()) {
+      return new ArrayList<String>();
+    }
+    loadLater(connected);
+    List<String> result = graph.getConnectionsOfConnections(user, limit);
+    return (result == null) ? new ArrayList<String>() : new ArrayList<String>(result);
+  }
+
+  /**
+   * The members of a group, read with the given session the first time. The members are
+   * shared with every caller after that, so only ask for groups the session's user could
+   * already read, such as the groups they are a member of.
+   *
+   * @param session
+   * @param groupId
+   * @return the ids of the members of the group, empty if it is not a readable group.
+   */
+  public List<String> getMembers(Session session, String groupId) {
+    long now = System.currentTimeMillis();
+    if (!graph.hasMembers(groupId, now - timeToLive)) {
+      try {
+        Authorizable group = session.getAuthorizableManager().findAuthorizable(groupId);
+        if (!(group instanceof Group)) {
+          return new ArrayList<String>();
+        }
+        String[] members = ((Group) group).getMembers();
+        graph.setMembers(groupId, (members == null) ? Collections.<String> emptyList()
+            : Arrays.asList(members), now);
+      } catch (AccessDeniedException e) {
+        LOGGER.debug("Unable to read group {} {} ", groupId, e.getMessage());
+        return new ArrayList<String>();
+      } catch (StorageClientException e) {
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+    }
+    List<String> members = graph.getMembers(groupId);
+    return (members == null) ? new ArrayList<String>() : new ArrayList<String>(members);
+  }
+
+  /**
+   * Record a change to a connection as it is made, so it can be seen straight away and
+   * the content event the change causes need not read it again.
+   */
+  void connectionChanged(String user, String otherUser, ConnectionState state) {
+    applied.put(user + "/" + otherUser, graph.setConnection(user, otherUser, state));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    boolean deleted = event.getTopic().endsWith("/DELETE");
+    if (event.getTopic().startsWith("org/sakaiproject/nakamura/lite/authorizables/")) {
+      // membership is kept on the group, any change may have changed it.
+      graph.removeMembers(path);
+      return;
+    }
+    if (!path.startsWith(LitePersonalUtils.PATH_AUTHORIZABLE)) {
+      return;
+    }
+    int slash = path.indexOf('/');
+    String user = path.substring(LitePersonalUtils.PATH_AUTHORIZABLE.length(),
+        slash < 0 ? path.length() : slash);
+    String rest = slash < 0 ? "" : path.substring(slash);
+    if (rest.startsWith(CONTACT_STORE + "/") && rest.indexOf('/', CONTACT_STORE.length() + 1) < 0) {
+      // a single connection
+      String otherUser = rest.substring(CONTACT_STORE.length() + 1);
+      Long stamp = applied.remove(user + "/" + otherUser);
+      if (!graph.hasConnections(user, 0)) {
+        return;
+      }
+      if (stamp != null && stamp == graph.changed(user)) {
+        // made through the manager, which already applied it, and nothing has changed
+        // the user since, so there is no need to read it.
+        LOGGER.debug("Connection {} already applied ", path);
+      } else if (deleted) {
+        graph.setConnection(user, otherUser, ConnectionState.NONE);
+      } else {
+        updateConnection(path, user, otherUser);
+      }
+      indexChanged(user);
+    } else if (deleted && (rest.length() == 0 || rest.equals(CONTACT_STORE))) {
+      // the whole store, or the whole home, has gone.
+      boolean kept = graph.hasConnections(user, 0);
+      graph.removeConnections(user);
+      if (kept) {
+        indexChanged(user);
+      }
+    }
+  }
+
+  private void indexChanged(String user) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", ConnectionUtils.getConnectionPathBase(user));
+    eventAdmin.postEvent(new Event(ConnectionConstants.EVENT_TOPIC_INDEX_CHANGED,
+        properties));
+  }
+
+  private void updateConnection(String path, String user, String otherUser) {
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      Content connection = session.getContentManager().get(path);
+      if (connection == null) {
+        graph.setConnection(user, otherUser, ConnectionState.NONE);
+      } else if (ConnectionConstants.SAKAI_CONTACT_RT.equals(connection
+          .getProperty("sling:resourceType"))) {
+        graph.setConnection(user, otherUser, getState(connection));
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to index connection {} {} ", path, e.getMessage());
+      graph.removeConnections(user);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to index connection {} {} ", path, e.getMessage());
+      graph.removeConnections(user);
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * @return the users connected in the given state, from the graph or, if the user could
+   *         not be kept there, from what was read.
+   */
+  private List<String> getConnections(String user, ConnectionState state,
+      Map<String, Map<String, ConnectionState>> read) {
+    List<String> connected = graph.getConnections(user, state);
+    if (connected != null) {
+      return new ArrayList<String>(connected);
+    }
+    Map<String, ConnectionState> connections = read.get(user);
+    if (connections == null) {
+      // dropped by an event since it was checked, read it again.
+      connections = load(Collections.singletonList(user)).get(user);
+      connected = graph.getConnections(user, state);
+      if (connected != null) {
+        return new ArrayList<String>(connected);
+      }
+    }
+    List<String> result = new ArrayList<String>();
+    if (connections != null) {
+      for (Entry<String, ConnectionState> e : connections.entrySet()) {
+        if (e.getValue() == state) {
+          result.add(e.getKey());
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Queue the users that are not loaded, or are too old, to be read by the loader.
+   */
+  private void loadLater(Collection<String> users) {
+    ThreadPoolExecutor pool = loader;
+    if (pool == null) {
+      return;
+    }
+    long since = System.currentTimeMillis() - timeToLive;
+    final List<String> stale = new ArrayList<String>();
+    for (String user : users) {
+      if (!graph.hasConnections(user, since) && pending.add(user)) {
+        stale.add(user);
+      }
+    }
+    if (stale.isEmpty()) {
+      return;
+    }
+    Runnable task = new Runnable() {
+      public void run() {
+        try {
+          load(stale);
+        } catch (IllegalStateException e) {
+          LOGGER.warn("Unable to index connections {} ", e.getMessage());
+        } finally {
+          pending.removeAll(stale);
+        }
+      }
+    };
+    try {
+      pool.execute(task);
+    } catch (RejectedExecutionException e) {
+      // the queue is full, they are queued again when next asked for.
+      pending.removeAll(stale);
+    }
+  }
+
+  /**
+   * Read the connections of any of the users that are not loaded, or are too old. A read
+   * is repeated if the user's connections change while it runs.
+   *
+   * @return the connections read for each user that was read, whether it could be kept
+   *         in the graph or not.
+   */
+  private Map<String, Map<String, ConnectionState>> load(Collection<String> users) {
+    long now = System.currentTimeMillis();
+    List<String> stale = new ArrayList<String>();
+    for (String user : users) {
+      if (!graph.hasConnections(user, now - timeToLive)) {
+        stale.add(user);
+      }
+    }
+    Map<String, Map<String, ConnectionState>> read = new HashMap<String, Map<String, ConnectionState>>();
+    if (stale.isEmpty()) {
+      return read;
+    }
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      for (String user : stale) {
+        for (int attempt = 1;; attempt++) {
+          long startVersion = graph.version();
+          Map<String, ConnectionState> connections = read(contentManager, user);
+          read.put(user, connections);
+          if (graph.setConnections(user, connections, startVersion, now)
+              || attempt == LOAD_ATTEMPTS) {
+            break;
+          }
+        }
+      }
+      LOGGER.debug("Indexed connections of {} users ", stale.size());
+    } catch (StorageClientException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } finally {
+      logout(session);
+    }
+    return read;
+  }
+
+  private Map<String, ConnectionState> read(ContentManager contentManager, String user)
+      throws StorageClientException, AccessDeniedException {
+    Map<String, ConnectionState> connections = new HashMap<String, ConnectionState>();
+    Content store = contentManager.get(ConnectionUtils.getConnectionPathBase(user));
+    if (store != null) {
+      for (Content connection : store.listChildren()) {
+        if (ConnectionConstants.SAKAI_CONTACT_RT.equals(connection
+            .getProperty("sling:resourceType"))) {
+          connections.put(StorageClientUtils.getObjectName(connection.getPath()),
+              getState(connection));
+        }
+      }
+    }
+    return connections;
+  }
+
+  private ConnectionState getState(Content connection) {
+    String state = (String) connection.getProperty(ConnectionConstants.SAKAI_CONNECTION_STATE);
+    return (state == null) ? ConnectionState.NONE : ConnectionState.valueOf(state);
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+  }
+}
@@ -98,6 +98,9 @@ public class ConnectionManagerImpl implements ConnectionManager {
   @Reference
   protected transient Repository repository;
 
+  @Reference
+  protected transient ConnectionIndex connectionIndex;
+
 
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
@@ -282,6 +285,8 @@ public class ConnectionManagerImpl implements ConnectionManager {
       ContentManager contentManager = adminSession.getContentManager();
       contentManager.update(thisNode);
       contentManager.update(otherNode);
+      connectionIndex.connectionChanged(thisUserId, otherUserId, getConnectionState(thisNode));
+      connectionIndex.connectionChanged(otherUserId, thisUserId, getConnectionState(otherNode));
 
       if (operation == ConnectionOperation.invite) {
         throw new ConnectionException(200, "Invitation made between "
@@ -394,6 +399,14 @@ public class ConnectionManagerImpl implements ConnectionManager {
    *      org.sakaiproject.nakamura.api.connections.ConnectionState)
    */
   public List<String> getConnectedUsers(Session session, String user, ConnectionState state) {
+    // the index is read with an administrative session, so it only answers the user, the
+    // admin, and accepted connections of a store the session can read, which is everyone
+    // once a connection has been accepted (KERN-1696).
+    if (state != null
+        && (user.equals(session.getUserId()) || User.ADMIN_USER.equals(session.getUserId())
+            || (state == ACCEPTED && canRead(session, user)))) {
+      return connectionIndex.getConnectedUsers(user, state);
+    }
     List<String> connections = Lists.newArrayList();
     try {
       ContentManager contentManager = session.getContentManager();
@@ -420,6 +433,45 @@ public class ConnectionManagerImpl implements ConnectionManager {
     return connections;
   }
 
+  /**
+   * @return true if the session can read the contact store of the user.
+   */
+  private boolean canRead(Session session, String user) {
+    try {
+      Authorizable thisUser = session.getAuthorizableManager().findAuthorizable(
+          session.getUserId());
+      return thisUser != null
+          && session.getAccessControlManager().can(thisUser, Security.ZONE_CONTENT,
+              ConnectionUtils.getConnectionPathBase(user), Permissions.CAN_READ);
+    } catch (StorageClientException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.debug("Unable to check access to the connections of {} {} ", user,
+          e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.connections.ConnectionManager#getMutualConnections(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, java.lang.String)
+   */
+  public List<String> getMutualConnections(Session session, String user, String otherUser) {
+    return connectionIndex.getMutualConnections(user, otherUser);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.connections.ConnectionManager#getConnectionsOfConnections(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, int)
+   */
+  public List<String> getConnectionsOfConnections(Session session, String user, int limit) {
+    return connectionIndex.getConnectionsOfConnections(user, limit);
+  }
+
   protected Content getOrCreateConnectionNode(Session session, Authorizable fromUser,
       Authorizable toUser) throws StorageClientException, AccessDeniedException {
     String nodePath = ConnectionUtils.getConnectionPath(fromUser, toUser);
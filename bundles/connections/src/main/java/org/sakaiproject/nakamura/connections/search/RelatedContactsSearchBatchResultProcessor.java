@@ -39,7 +39,6 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
@@ -51,12 +50,14 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.connections.ConnectionIndex;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -109,6 +110,9 @@ public class RelatedContactsSearchBatchResultProcessor implements
   @Reference
   private ConnectionManager connectionManager;
 
+  @Reference
+  private ConnectionIndex connectionIndex;
+
   /**
    * Used for random people matching
    */
@@ -142,8 +146,9 @@ public class RelatedContactsSearchBatchResultProcessor implements
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
     final String user = session.getUserId();
-    final List<String> connectedUsers = connectionManager.getConnectedUsers(request,
-        session.getUserId(), ConnectionState.ACCEPTED);
+    final Set<String> connectedUsers = new HashSet<String>(
+        connectionManager.getConnectedUsers(request, session.getUserId(),
+            ConnectionState.ACCEPTED));
     final long nitems = SolrSearchUtil.longRequestParameter(request,
         PARAMS_ITEMS_PER_PAGE, DEFAULT_PAGED_ITEMS);
     // TODO add proper paging support
@@ -176,6 +181,16 @@ public class RelatedContactsSearchBatchResultProcessor implements
         LOG.debug("writeResults() first iteration took {} seconds",
             new Object[] { (float) (firstIterationTicks - startTicks) / 1000 });
       }
+      if (processedUsers.size() < nitems && !connectedUsers.isEmpty()) {
+        /* Add contacts from my contacts, those shared with most of my contacts first */
+        for (final String peep : connectionManager.getConnectionsOfConnections(session,
+            user, (int) nitems)) {
+          if (processedUsers.size() >= nitems) {
+            break;
+          }
+          renderContact(peep, session, authMgr, writer, connectedUsers, processedUsers);
+        }
+      }
       if (processedUsers.size() < nitems) {
         // TODO migrate to part of the primary solr query - this was a quick solution
         /* Add people that are a member of groups I'm a member of */
@@ -186,13 +201,7 @@ public class RelatedContactsSearchBatchResultProcessor implements
           final List<String> randomPrincipals = Arrays.asList(principals);
           Collections.shuffle(randomPrincipals);
           for (int i = 0; i < randomPrincipals.size() && processedUsers.size() < nitems; i++) {
-            final Group group = (Group) authMgr.findAuthorizable(randomPrincipals.get(i));
-            if (group != null) {
-              final String[] members = group.getMembers();
-              if (members != null) {
-                relatedUsers.addAll(Arrays.asList(members));
-              }
-            }
+            relatedUsers.addAll(connectionIndex.getMembers(session, randomPrincipals.get(i)));
           }
           // randomize the list because we want different people showing up each time
           // but limit the size of the list to the number required by spec - significant optimization
@@ -302,7 +311,7 @@ public class RelatedContactsSearchBatchResultProcessor implements
    * @throws StorageClientException
    */
   protected void renderConnection(Session session, AuthorizableManager authMgr, JSONWriter writer,
-      Result result, final List<String> connectedUsers, final Set<String> processedUsers)
+      Result result, final Collection<String> connectedUsers, final Set<String> processedUsers)
       throws AccessDeniedException, JSONException, StorageClientException {
 
     final String contactUser = result.getPath().substring(
@@ -324,7 +333,7 @@ public class RelatedContactsSearchBatchResultProcessor implements
    * @throws StorageClientException
    */
   protected void renderAuthorizable(Session session, AuthorizableManager authMgr,
-      final JSONWriter writer, final Result result, final List<String> connectedUsers,
+      final JSONWriter writer, final Result result, final Collection<String> connectedUsers,
       final Set<String> processedUsers) throws AccessDeniedException, JSONException,
       StorageClientException {
 
@@ -345,7 +354,7 @@ public class RelatedContactsSearchBatchResultProcessor implements
    * @throws StorageClientException
    */
   private void renderContact(String user, Session session, AuthorizableManager authMgr,
-      JSONWriter writer, List<String> connectedUsers, Set<String> processedUsers)
+      JSONWriter writer, Collection<String> connectedUsers, Set<String> processedUsers)
       throws AccessDeniedException, StorageClientException, JSONException {
 
     if (user == null) {
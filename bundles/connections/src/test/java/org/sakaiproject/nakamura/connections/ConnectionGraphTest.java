@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ *
+ */
+public class ConnectionGraphTest {
+
+  private ConnectionGraph graph;
+
+  @Before
+  public void setUp() {
+    graph = new ConnectionGraph();
+    accept("alice", "bob", "carol", "dave");
+    accept("bob", "alice", "carol", "eve", "frank");
+    accept("carol", "alice", "bob", "eve");
+    accept("dave", "alice", "frank");
+  }
+
+  @Test
+  public void testConnections() {
+    assertEquals(set("bob", "carol", "dave"),
+        set(graph.getConnections("alice", ConnectionState.ACCEPTED)));
+    assertTrue(graph.getConnections("alice", ConnectionState.PENDING).isEmpty());
+    assertNull(graph.getConnections("eve", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testSetConnection() {
+    graph.setConnection("alice", "eve", ConnectionState.PENDING);
+    assertEquals(set("eve"), set(graph.getConnections("alice", ConnectionState.PENDING)));
+    graph.setConnection("alice", "eve", ConnectionState.ACCEPTED);
+    assertTrue(graph.getConnections("alice", ConnectionState.PENDING).isEmpty());
+    assertEquals(set("bob", "carol", "dave", "eve"),
+        set(graph.getConnections("alice", ConnectionState.ACCEPTED)));
+    graph.setConnection("alice", "bob", ConnectionState.NONE);
+    assertEquals(set("carol", "dave", "eve"),
+        set(graph.getConnections("alice", ConnectionState.ACCEPTED)));
+
+    // not loaded, stays that way
+    graph.setConnection("eve", "alice", ConnectionState.ACCEPTED);
+    assertNull(graph.getConnections("eve", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testStaleLoadIsDropped() {
+    long start = graph.version();
+    graph.setConnection("zed", "alice", ConnectionState.INVITED);
+    assertFalse(graph.setConnections("zed",
+        ImmutableMap.of("alice", ConnectionState.NONE), start, 1L));
+    assertFalse(graph.hasConnections("zed", 0));
+    assertTrue(graph.setConnections("zed",
+        ImmutableMap.of("alice", ConnectionState.INVITED), graph.version(), 1L));
+    assertTrue(graph.hasConnections("zed", 1L));
+    assertFalse(graph.hasConnections("zed", 2L));
+
+    graph.removeConnections("zed");
+    assertFalse(graph.hasConnections("zed", 0));
+  }
+
+  @Test
+  public void testMutualConnections() {
+    assertEquals(set("carol"), set(graph.getMutualConnections("alice", "bob")));
+    assertEquals(set("alice", "frank"), set(graph.getMutualConnections("bob", "dave")));
+    assertNull(graph.getMutualConnections("alice", "eve"));
+  }
+
+  @Test
+  public void testConnectionsOfConnections() {
+    // eve is connected to bob and carol, frank only to bob and dave.
+    graph.setConnection("dave", "frank", ConnectionState.NONE);
+    List<String> related = graph.getConnectionsOfConnections("alice", 10);
+    assertEquals(Arrays.asList("eve", "frank"), related);
+    assertEquals(Arrays.asList("eve"), graph.getConnectionsOfConnections("alice", 1));
+    assertTrue(graph.getConnectionsOfConnections("alice", 0).isEmpty());
+  }
+
+  @Test
+  public void testMembers() {
+    assertNull(graph.getMembers("math101"));
+    graph.setMembers("math101", Arrays.asList("alice", "zed"), 5L);
+    assertTrue(graph.hasMembers("math101", 5L));
+    assertEquals(set("alice", "zed"), set(graph.getMembers("math101")));
+    graph.removeMembers("math101");
+    assertNull(graph.getMembers("math101"));
+  }
+
+  @Test
+  public void testGrows() {
+    for (int i = 0; i < 1000; i++) {
+      graph.setConnection("alice", "user" + i, ConnectionState.INVITED);
+    }
+    assertEquals(1000, graph.getConnections("alice", ConnectionState.INVITED).size());
+    assertEquals(set("bob", "carol", "dave"),
+        set(graph.getConnections("alice", ConnectionState.ACCEPTED)));
+  }
+
+  private void accept(String user, String... others) {
+    ImmutableMap.Builder<String, ConnectionState> b = ImmutableMap.builder();
+    for (String other : others) {
+      b.put(other, ConnectionState.ACCEPTED);
+    }
+    graph.setConnections(user, b.build(), graph.version(), 1L);
+  }
+
+  private HashSet<String> set(String... values) {
+    return new HashSet<String>(Arrays.asList(values));
+  }
+
+  private HashSet<String> set(List<String> values) {
+    return new HashSet<String>(values);
+  }
+}
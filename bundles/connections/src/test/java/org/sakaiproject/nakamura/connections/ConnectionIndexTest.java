@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+
+public class ConnectionIndexTest {
+
+  private ConnectionIndex index;
+  private Repository repository;
+  private Session adminSession;
+  private EventAdmin eventAdmin;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    adminSession = repository.loginAdministrative();
+    index = new ConnectionIndex();
+    index.repository = repository;
+    eventAdmin = mock(EventAdmin.class);
+    index.eventAdmin = eventAdmin;
+    index.modified(new HashMap<String, Object>());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    index.deactivate();
+    adminSession.logout();
+  }
+
+  private void connect(String user, String otherUser, ConnectionState state)
+      throws Exception {
+    adminSession.getContentManager().update(
+        new Content(ConnectionUtils.getConnectionPathBase(user) + "/" + otherUser,
+            ImmutableMap.of("sling:resourceType", (Object) ConnectionConstants.SAKAI_CONTACT_RT,
+                ConnectionConstants.SAKAI_CONNECTION_STATE, state.toString())));
+  }
+
+  private Event event(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    return new Event(topic, (Dictionary<String, Object>) properties);
+  }
+
+  @Test
+  public void testConnectionsAreReadFromStore() throws Exception {
+    connect("alice", "bob", ConnectionState.ACCEPTED);
+    connect("alice", "carol", ConnectionState.INVITED);
+    assertEquals(Arrays.asList("bob"),
+        index.getConnectedUsers("alice", ConnectionState.ACCEPTED));
+    assertEquals(Arrays.asList("carol"),
+        index.getConnectedUsers("alice", ConnectionState.INVITED));
+    assertTrue(index.getConnectedUsers("dave", ConnectionState.ACCEPTED).isEmpty());
+  }
+
+  @Test
+  public void testContentEventUpdatesConnection() throws Exception {
+    connect("alice", "bob", ConnectionState.ACCEPTED);
+    index.getConnectedUsers("alice", ConnectionState.ACCEPTED);
+
+    connect("alice", "carol", ConnectionState.ACCEPTED);
+    index.handleEvent(event("org/sakaiproject/nakamura/lite/content/ADDED",
+        "a:alice/contacts/carol"));
+    List<String> connected = index.getConnectedUsers("alice", ConnectionState.ACCEPTED);
+    assertEquals(2, connected.size());
+    assertTrue(connected.contains("carol"));
+
+    index.handleEvent(event("org/sakaiproject/nakamura/lite/content/DELETE",
+        "a:alice/contacts/bob"));
+    assertEquals(Arrays.asList("carol"),
+        index.getConnectedUsers("alice", ConnectionState.ACCEPTED));
+
+    // both changes were applied, changes to users that are not kept are not.
+    index.handleEvent(event("org/sakaiproject/nakamura/lite/content/ADDED",
+        "a:dave/contacts/carol"));
+    verify(eventAdmin, times(2)).postEvent(any(Event.class));
+  }
+
+  @Test
+  public void testChangeMadeHereIsNotReadAgain() throws Exception {
+    connect("alice", "bob", ConnectionState.ACCEPTED);
+    index.getConnectedUsers("alice", ConnectionState.ACCEPTED);
+
+    connect("alice", "carol", ConnectionState.ACCEPTED);
+    index.connectionChanged("alice", "carol", ConnectionState.ACCEPTED);
+    Repository mockRepository = mock(Repository.class);
+    index.repository = mockRepository;
+    index.handleEvent(event("org/sakaiproject/nakamura/lite/content/ADDED",
+        "a:alice/contacts/carol"));
+    verify(mockRepository, never()).loginAdministrative();
+    assertEquals(2, index.getConnectedUsers("alice", ConnectionState.ACCEPTED).size());
+
+    // a later change made elsewhere is read
+    index.repository = repository;
+    connect("alice", "carol", ConnectionState.IGNORED);
+    index.handleEvent(event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        "a:alice/contacts/carol"));
+    assertEquals(Arrays.asList("bob"),
+        index.getConnectedUsers("alice", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testDeletedStoreIsReadAgain() throws Exception {
+    connect("alice", "bob", ConnectionState.ACCEPTED);
+    index.getConnectedUsers("alice", ConnectionState.ACCEPTED);
+
+    adminSession.getContentManager().delete("a:alice/contacts/bob");
+    index.handleEvent(event("org/sakaiproject/nakamura/lite/content/DELETE",
+        "a:alice/contacts"));
+    assertTrue(index.getConnectedUsers("alice", ConnectionState.ACCEPTED).isEmpty());
+  }
+
+  @Test
+  public void testAuthorizableEventDropsMembers() throws Exception {
+    AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+    authorizableManager.createGroup("g1", "g1", null);
+    Group group = (Group) authorizableManager.findAuthorizable("g1");
+    group.addMember("alice");
+    authorizableManager.updateAuthorizable(group);
+    assertEquals(Arrays.asList("alice"), index.getMembers(adminSession, "g1"));
+
+    group = (Group) authorizableManager.findAuthorizable("g1");
+    group.addMember("bob");
+    authorizableManager.updateAuthorizable(group);
+    // kept until the event arrives
+    assertEquals(1, index.getMembers(adminSession, "g1").size());
+    index.handleEvent(event("org/sakaiproject/nakamura/lite/authorizables/UPDATED", "g1"));
+    assertEquals(2, index.getMembers(adminSession, "g1").size());
+  }
+
+  @Test
+  public void testMutualConnections() throws Exception {
+    connect("alice", "carol", ConnectionState.ACCEPTED);
+    connect("alice", "dave", ConnectionState.ACCEPTED);
+    connect("bob", "carol", ConnectionState.ACCEPTED);
+    connect("bob", "erin", ConnectionState.INVITED);
+    assertEquals(Arrays.asList("carol"), index.getMutualConnections("alice", "bob"));
+  }
+
+  @Test
+  public void testConnectionsOfConnectionsAreReadInBackground() throws Exception {
+    connect("alice", "bob", ConnectionState.ACCEPTED);
+    connect("bob", "alice", ConnectionState.ACCEPTED);
+    connect("bob", "carol", ConnectionState.ACCEPTED);
+    long deadline = System.currentTimeMillis() + 5000L;
+    List<String> related = index.getConnectionsOfConnections("alice", 10);
+    while (related.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+      related = index.getConnectionsOfConnections("alice", 10);
+    }
+    assertEquals(Arrays.asList("carol"), related);
+  }
+
+  @Test
+  public void testChangedLoadFallsBackToRead() throws Exception {
+    final Content bob = new Content("a:alice/contacts/bob", ImmutableMap.of(
+        "sling:resourceType", (Object) ConnectionConstants.SAKAI_CONTACT_RT,
+        ConnectionConstants.SAKAI_CONNECTION_STATE, ConnectionState.ACCEPTED.toString()));
+    final Content store = mock(Content.class);
+    when(store.listChildren()).thenReturn(Collections.singletonList(bob));
+    ContentManager contentManager = mock(ContentManager.class);
+    // alice's connections change during every read.
+    when(contentManager.get(anyString())).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) {
+        index.connectionChanged("alice", "carol", ConnectionState.ACCEPTED);
+        return store;
+      }
+    });
+    Session session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    Repository mockRepository = mock(Repository.class);
+    when(mockRepository.loginAdministrative()).thenReturn(session);
+    index.repository = mockRepository;
+
+    assertEquals(Arrays.asList("bob"),
+        index.getConnectedUsers("alice", ConnectionState.ACCEPTED));
+    verify(contentManager, times(3)).get(anyString());
+  }
+}
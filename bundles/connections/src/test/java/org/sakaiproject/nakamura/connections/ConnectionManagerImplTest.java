@@ -19,7 +19,14 @@ package org.sakaiproject.nakamura.connections;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -30,12 +37,15 @@ import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.user.UserConstants;
@@ -43,6 +53,7 @@ import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.RepositoryImpl;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -61,6 +72,8 @@ public class ConnectionManagerImplTest {
     repository = baseMemoryRepository.getRepository();
     connectionManager = new ConnectionManagerImpl();
     connectionManager.repository = repository;
+    connectionManager.connectionIndex = new ConnectionIndex();
+    connectionManager.connectionIndex.repository = repository;
   }
 
   @Test
@@ -257,4 +270,88 @@ public class ConnectionManagerImplTest {
     assertEquals(ConnectionConstants.SAKAI_CONTACT_RT, result.getProperty("sling:resourceType"));
     assertEquals("a:alice/public/authprofile", result.getProperty("reference"));
   }
+
+  private void connect(String user, String otherUser, ConnectionState state)
+      throws StorageClientException, AccessDeniedException {
+    Session session = repository.loginAdministrative();
+    session.getContentManager().update(
+        new Content(ConnectionUtils.getConnectionPathBase(user) + "/" + otherUser,
+            ImmutableMap.of("sling:resourceType", (Object) ConnectionConstants.SAKAI_CONTACT_RT,
+                ConnectionConstants.SAKAI_CONNECTION_STATE, state.toString())));
+    session.logout();
+  }
+
+  private Session mockSession(String userId, ContentManager contentManager)
+      throws StorageClientException {
+    Session session = mock(Session.class);
+    when(session.getUserId()).thenReturn(userId);
+    when(session.getContentManager()).thenReturn(contentManager);
+    return session;
+  }
+
+  private Session mockSession(String userId, ContentManager contentManager,
+      boolean canRead) throws Exception {
+    Session session = mockSession(userId, contentManager);
+    Authorizable authorizable = mock(Authorizable.class);
+    AuthorizableManager authorizableManager = mock(AuthorizableManager.class);
+    when(authorizableManager.findAuthorizable(userId)).thenReturn(authorizable);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    AccessControlManager accessControlManager = mock(AccessControlManager.class);
+    when(accessControlManager.can(any(Authorizable.class), anyString(), anyString(),
+        any(Permission.class))).thenReturn(canRead);
+    when(session.getAccessControlManager()).thenReturn(accessControlManager);
+    return session;
+  }
+
+  @Test
+  public void testAcceptedConnectionsComeFromIndex() throws Exception {
+    connect("alice", "bob", ConnectionState.ACCEPTED);
+    ContentManager contentManager = mock(ContentManager.class);
+    Session session = mockSession("carol", contentManager, true);
+    assertEquals(Arrays.asList("bob"),
+        connectionManager.getConnectedUsers(session, "alice", ConnectionState.ACCEPTED));
+
+    // a change made through the manager is seen straight away
+    connectionManager.connectionIndex.connectionChanged("alice", "dave",
+        ConnectionState.ACCEPTED);
+    assertEquals(2,
+        connectionManager.getConnectedUsers(session, "alice", ConnectionState.ACCEPTED).size());
+    verify(contentManager, never()).get(anyString());
+  }
+
+  @Test
+  public void testUnreadableConnectionsComeFromStorage() throws Exception {
+    connect("alice", "bob", ConnectionState.ACCEPTED);
+    ContentManager contentManager = mock(ContentManager.class);
+    Session carol = mockSession("carol", contentManager, false);
+    assertEquals(0,
+        connectionManager.getConnectedUsers(carol, "alice", ConnectionState.ACCEPTED).size());
+    verify(contentManager).get("a:alice/contacts");
+  }
+
+  @Test
+  public void testOtherStatesOfOthersComeFromStorage() throws Exception {
+    connect("alice", "bob", ConnectionState.INVITED);
+    ContentManager contentManager = mock(ContentManager.class);
+    Session alice = mockSession("alice", contentManager);
+    assertEquals(Arrays.asList("bob"),
+        connectionManager.getConnectedUsers(alice, "alice", ConnectionState.INVITED));
+    verify(contentManager, never()).get(anyString());
+
+    // only what the caller's session can read
+    Session carol = mockSession("carol", contentManager);
+    assertEquals(0,
+        connectionManager.getConnectedUsers(carol, "alice", ConnectionState.INVITED).size());
+    verify(contentManager).get("a:alice/contacts");
+  }
+
+  @Test
+  public void testMutualConnectionsComeFromIndex() throws Exception {
+    connect("alice", "carol", ConnectionState.ACCEPTED);
+    connect("bob", "carol", ConnectionState.ACCEPTED);
+    connect("bob", "dave", ConnectionState.ACCEPTED);
+    Session session = mockSession("alice", mock(ContentManager.class));
+    assertEquals(Arrays.asList("carol"),
+        connectionManager.getMutualConnections(session, "alice", "bob"));
+  }
 }
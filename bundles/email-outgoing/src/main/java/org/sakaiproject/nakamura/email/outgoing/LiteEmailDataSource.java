@@ -22,6 +22,8 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,10 +42,14 @@ public class LiteEmailDataSource implements DataSource {
 
   private ContentManager contentManger;
 
-  public LiteEmailDataSource(ContentManager contentManager, Content node, String streamId) {
+  private BlobAccess blobAccess;
+
+  public LiteEmailDataSource(ContentManager contentManager, BlobAccess blobAccess,
+      Content node, String streamId) {
     this.node = node;
     this.streamId = streamId;
     this.contentManger = contentManager;
+    this.blobAccess = blobAccess;
   }
 
   public String getContentType() {
@@ -56,7 +62,7 @@ public class LiteEmailDataSource implements DataSource {
 
   public InputStream getInputStream() throws IOException {
     try {
-      return contentManger.getInputStream(node.getPath(), streamId);
+      return ContentBlobUtils.getInputStream(blobAccess, contentManger, node, streamId);
     } catch (StorageClientException e) {
       LOGGER.error(e.getMessage(),e);
       throw new IOException(e.getMessage(),e);
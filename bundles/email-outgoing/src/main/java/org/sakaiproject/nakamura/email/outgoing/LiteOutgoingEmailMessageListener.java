@@ -28,6 +28,8 @@ import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.commons.scheduler.Job;
 import org.apache.sling.commons.scheduler.JobContext;
@@ -49,6 +51,7 @@ import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.util.BlobAccess;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -120,6 +123,8 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   protected BasicUserInfoService basicUserInfo;
   @Reference
   protected ProfileService profileService;
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
 
   /**
    * If present points to a node
@@ -403,8 +408,8 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
         description = (String) contentNode.getProperty(StorageClientUtils.getAltField(
             MessageConstants.PROP_SAKAI_ATTACHMENT_DESCRIPTION, streamId));
       }
-      LiteEmailDataSource ds = new LiteEmailDataSource(contentManager, contentNode,
-          streamId);
+      LiteEmailDataSource ds = new LiteEmailDataSource(contentManager, blobAccess,
+          contentNode, streamId);
       try {
         email.attach(ds, streamId, description);
       } catch (EmailException e) {
@@ -0,0 +1,625 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventAcknowledgeMode;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
+import org.sakaiproject.nakamura.util.osgi.EventUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends OSGi events to JMS from a bounded queue. Sender threads take whatever is waiting
+ * in the queue, up to the batch size, and send it through a long lived session with
+ * producers cached per destination, committing once per batch if the sessions are
+ * transacted. Sessions are kept per acknowledge mode, so an event that asks for its own
+ * mode is sent through a session created with it. When the queue is full the overflow
+ * policy for the event topic decides whether the caller waits, the event is dropped or
+ * the caller sends it itself.
+ */
+public class JmsEventPublisher implements JmsEventPublisherMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JmsEventPublisher.class);
+
+  /**
+   * What to do with an event when the queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Wait for space in the queue, up to the block timeout, then send the event on the
+     * calling thread.
+     */
+    BLOCK(),
+    /**
+     * Drop the event.
+     */
+    DROP(),
+    /**
+     * Send the event on the calling thread.
+     */
+    SYNC();
+  }
+
+  /**
+   * A session and its producers, only ever used by one thread at a time.
+   */
+  private static final class PublishingSession {
+    private final Session session;
+    private final Map<String, MessageProducer> producers = new HashMap<String, MessageProducer>();
+
+    private PublishingSession(Session session) {
+      this.session = session;
+    }
+
+    private MessageProducer getProducer(Event event) throws JMSException {
+      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
+          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+      boolean p2p = deliveryMode == EventDeliveryMode.P2P;
+      String key = (p2p ? "queue:" : "topic:") + event.getTopic();
+      MessageProducer producer = producers.get(key);
+      if (producer == null) {
+        Destination destination = null;
+        if (p2p) {
+          destination = session.createQueue(event.getTopic());
+        } else {
+          destination = session.createTopic(event.getTopic());
+        }
+        producer = session.createProducer(destination);
+        producers.put(key, producer);
+      }
+      return producer;
+    }
+
+    private void close() {
+      for (MessageProducer producer : producers.values()) {
+        try {
+          producer.close();
+        } catch (Exception e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+      producers.clear();
+      try {
+        session.close();
+      } catch (Exception e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  private ConnectionFactoryService connFactoryService;
+  private boolean transacted;
+  private int acknowledgeMode;
+  private String serverId;
+  private int batchSize;
+  private BlockingQueue<Event> queue;
+  private ConcurrentMap<Integer, BlockingQueue<PublishingSession>> idleSessions = new ConcurrentHashMap<Integer, BlockingQueue<PublishingSession>>();
+  private Connection connection;
+  private Object connectionLock = new Object();
+  private Thread[] senders = new Thread[0];
+  private volatile boolean running;
+
+  private OverflowPolicy defaultPolicy = OverflowPolicy.BLOCK;
+  private Map<String, OverflowPolicy> topicPolicies = new HashMap<String, OverflowPolicy>();
+  private Map<String, OverflowPolicy> prefixPolicies = new HashMap<String, OverflowPolicy>();
+  private long blockTimeout = 100;
+
+  private AtomicLong published = new AtomicLong();
+  private AtomicLong publishedSynchronously = new AtomicLong();
+  private AtomicLong dropped = new AtomicLong();
+  private AtomicLong failed = new AtomicLong();
+  private AtomicLong batches = new AtomicLong();
+  private volatile long resetTime = System.currentTimeMillis();
+  private long lastMessage = System.currentTimeMillis();
+  private AtomicLong droppedSinceWarning = new AtomicLong();
+  private AtomicLong lastDropWarning = new AtomicLong();
+  private volatile String lastDroppedTopic;
+
+  /**
+   * @param connFactoryService
+   * @param transacted
+   *          if true each batch is sent in one transaction.
+   * @param acknowledgeMode
+   *          used for the sessions if they are not transacted and the event does not set
+   *          {@link EventDeliveryConstants#ACKNOWLEDGE_MODE}.
+   * @param serverId
+   *          added to every message as clusterServerId.
+   * @param queueSize
+   *          the number of events that may be waiting to be sent.
+   * @param batchSize
+   *          the most events sent in one batch.
+   */
+  public JmsEventPublisher(ConnectionFactoryService connFactoryService, boolean transacted,
+      int acknowledgeMode, String serverId, int queueSize, int batchSize) {
+    this.connFactoryService = connFactoryService;
+    this.transacted = transacted;
+    this.acknowledgeMode = acknowledgeMode;
+    this.serverId = serverId;
+    this.queue = new ArrayBlockingQueue<Event>(Math.max(1, queueSize));
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * @param defaultPolicy
+   *          the policy for topics that are not listed.
+   * @param policies
+   *          entries of the form topic;policy where the topic may end in * to match a
+   *          prefix and policy is block, drop or sync.
+   * @param blockTimeout
+   *          the time in ms a blocked caller waits before it sends the event itself.
+   */
+  public void setOverflowPolicies(OverflowPolicy defaultPolicy, String[] policies,
+      long blockTimeout) {
+    this.defaultPolicy = defaultPolicy;
+    this.blockTimeout = blockTimeout;
+    topicPolicies.clear();
+    prefixPolicies.clear();
+    if (policies != null) {
+      for (String p : policies) {
+        int i = p.lastIndexOf(';');
+        if (i <= 0) {
+          LOGGER.warn("Ignoring overflow policy {}, expected topic;policy ", p);
+          continue;
+        }
+        String topic = p.substring(0, i).trim();
+        OverflowPolicy policy = parsePolicy(p.substring(i + 1), defaultPolicy);
+        if (topic.endsWith("*")) {
+          prefixPolicies.put(topic.substring(0, topic.length() - 1), policy);
+        } else {
+          topicPolicies.put(topic, policy);
+        }
+      }
+    }
+  }
+
+  static OverflowPolicy parsePolicy(String policy, OverflowPolicy defaultPolicy) {
+    try {
+      return OverflowPolicy.valueOf(policy.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn("Unknown overflow policy {} using {} ", policy, defaultPolicy);
+      return defaultPolicy;
+    }
+  }
+
+  OverflowPolicy getPolicy(String topic) {
+    OverflowPolicy policy = topicPolicies.get(topic);
+    if (policy == null) {
+      int longest = -1;
+      for (Entry<String, OverflowPolicy> e : prefixPolicies.entrySet()) {
+        if (topic.startsWith(e.getKey()) && e.getKey().length() > longest) {
+          longest = e.getKey().length();
+          policy = e.getValue();
+        }
+      }
+    }
+    return policy == null ? defaultPolicy : policy;
+  }
+
+  /**
+   * Start the sender threads. A single sender keeps events in the order they were
+   * published.
+   *
+   * @param threads
+   */
+  public synchronized void start(int threads) {
+    running = true;
+    senders = new Thread[Math.max(1, threads)];
+    for (int i = 0; i < senders.length; i++) {
+      senders[i] = new Thread(new Runnable() {
+        public void run() {
+          List<Event> batch = new ArrayList<Event>(batchSize);
+          while (running) {
+            try {
+              Event event = queue.poll(100, TimeUnit.MILLISECONDS);
+              if (event != null) {
+                batch.add(event);
+                queue.drainTo(batch, batchSize - 1);
+                send(batch);
+                batch.clear();
+              }
+              warnDropped();
+            } catch (InterruptedException e) {
+              LOGGER.debug("Interrupted ");
+            } catch (Throwable t) {
+              LOGGER.error(t.getMessage(), t);
+              batch.clear();
+            }
+          }
+        }
+      }, "OsgiJmsBridge-sender-" + i);
+      senders[i].setDaemon(true);
+      senders[i].start();
+    }
+  }
+
+  /**
+   * Stop the sender threads, send anything left in the queue and close the sessions and
+   * connection.
+   */
+  public synchronized void stop() {
+    running = false;
+    for (Thread sender : senders) {
+      try {
+        sender.join(5000);
+      } catch (InterruptedException e) {
+        LOGGER.debug("Interrupted waiting for sender ");
+      }
+    }
+    senders = new Thread[0];
+    List<Event> batch = new ArrayList<Event>(batchSize);
+    while (queue.drainTo(batch, batchSize) > 0) {
+      send(batch);
+      batch.clear();
+    }
+    warnDropped();
+    resetConnection();
+  }
+
+  /**
+   * Queue an event for sending.
+   *
+   * @param event
+   */
+  public void publish(Event event) {
+    if (!running) {
+      LOGGER.debug("Not running, event {} not sent ", event);
+      return;
+    }
+    if (queue.offer(event)) {
+      return;
+    }
+    switch (getPolicy(event.getTopic())) {
+    case BLOCK:
+      try {
+        if (queue.offer(event, blockTimeout, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      // still full, send it here rather than lose it.
+    case SYNC:
+      send(Collections.singletonList(event));
+      publishedSynchronously.incrementAndGet();
+      return;
+    case DROP:
+    default:
+      break;
+    }
+    dropped.incrementAndGet();
+    droppedSinceWarning.incrementAndGet();
+    lastDroppedTopic = event.getTopic();
+    warnDropped();
+  }
+
+  /**
+   * Log the events dropped since the last warning, at most once every 15s. The sender
+   * threads call this as well, so drops are reported even if no more events arrive.
+   */
+  private void warnDropped() {
+    long now = System.currentTimeMillis();
+    long last = lastDropWarning.get();
+    if (droppedSinceWarning.get() > 0 && (now - last) > 15000L
+        && lastDropWarning.compareAndSet(last, now)) {
+      LOGGER.warn("JMS event queue full, dropped {} events since the last warning, {} "
+          + "dropped so far, latest {} ", new Object[] { droppedSinceWarning.getAndSet(0),
+          dropped.get(), lastDroppedTopic });
+    }
+  }
+
+  /**
+   * Send a batch of events, each run of events with the same acknowledge mode through one
+   * session, keeping the events in order.
+   *
+   * @param batch
+   */
+  void send(List<Event> batch) {
+    int start = 0;
+    while (start < batch.size()) {
+      int mode = getAcknowledgeMode(batch.get(start));
+      int end = start + 1;
+      while (end < batch.size() && getAcknowledgeMode(batch.get(end)) == mode) {
+        end++;
+      }
+      send(batch.subList(start, end), mode);
+      start = end;
+    }
+  }
+
+  /**
+   * @return the acknowledge mode the event asks for, or the configured one.
+   */
+  int getAcknowledgeMode(Event event) {
+    EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
+        .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
+    if (acknowledgeModeForEvent != null) {
+      switch (acknowledgeModeForEvent) {
+      case AUTO_ACKNOWLEDGE:
+        return Session.AUTO_ACKNOWLEDGE;
+      case CLIENT_ACKNOWLEDGE:
+        return Session.CLIENT_ACKNOWLEDGE;
+      case DUPS_OK_ACKNOWLEDGE:
+        return Session.DUPS_OK_ACKNOWLEDGE;
+      }
+    }
+    return acknowledgeMode;
+  }
+
+  /**
+   * Send events through one session. Events that can't be made into a message are
+   * dropped on their own. If a transacted batch is rolled back for any other reason than
+   * a broken connection its events are sent again one at a time, so only the ones that
+   * fail again are lost.
+   *
+   * @param batch
+   * @param acknowledgeMode
+   *          the acknowledge mode of the session to send them through.
+   */
+  private void send(List<Event> batch, int acknowledgeMode) {
+    PublishingSession publishingSession = null;
+    int sent = 0;
+    int rejected = 0;
+    try {
+      publishingSession = borrowSession(acknowledgeMode);
+      List<Event> events = new ArrayList<Event>(batch.size());
+      List<Message> messages = new ArrayList<Message>(batch.size());
+      for (Event event : batch) {
+        try {
+          messages.add(createMessage(publishingSession.session, event));
+          events.add(event);
+        } catch (JMSException e) {
+          if (isConnectionBroken(e)) {
+            throw e;
+          }
+          rejected++;
+          LOGGER.warn("Unable to send event {}, {} ", event.getTopic(), e.getMessage());
+        }
+      }
+      boolean committed = false;
+      if (transacted && messages.size() > 1) {
+        try {
+          for (int i = 0; i < messages.size(); i++) {
+            LOGGER.debug("Sending Message {} to {}  ", messages.get(i), events.get(i)
+                .getTopic());
+            publishingSession.getProducer(events.get(i)).send(messages.get(i));
+          }
+          publishingSession.session.commit();
+          sent = messages.size();
+          committed = true;
+        } catch (JMSException e) {
+          if (isConnectionBroken(e)) {
+            throw e;
+          }
+          LOGGER.warn("Batch of {} events rolled back, sending them one at a time, {} ",
+              messages.size(), e.getMessage());
+          publishingSession.session.rollback();
+        }
+      }
+      if (!committed) {
+        for (int i = 0; i < messages.size(); i++) {
+          try {
+            LOGGER.debug("Sending Message {} to {}  ", messages.get(i), events.get(i)
+                .getTopic());
+            publishingSession.getProducer(events.get(i)).send(messages.get(i));
+            if (transacted) {
+              publishingSession.session.commit();
+            }
+            sent++;
+          } catch (JMSException e) {
+            if (isConnectionBroken(e)) {
+              throw e;
+            }
+            if (transacted) {
+              publishingSession.session.rollback();
+            }
+            rejected++;
+            LOGGER.warn("Unable to send event {}, {} ", events.get(i).getTopic(),
+                e.getMessage());
+          }
+        }
+      }
+      published.addAndGet(sent);
+      failed.addAndGet(rejected);
+      batches.incrementAndGet();
+      getIdleSessions(acknowledgeMode).offer(publishingSession);
+    } catch (JMSException e) {
+      published.addAndGet(sent);
+      failed.addAndGet(batch.size() - sent);
+      logFailure(e);
+      if (publishingSession != null) {
+        publishingSession.close();
+      }
+      // the connection is broken, start again with the next batch.
+      resetConnection();
+    }
+  }
+
+  /**
+   * @return true if the exception means the session or connection can't be used any
+   *         more, rather than that one message was refused.
+   */
+  static boolean isConnectionBroken(JMSException e) {
+    return e instanceof javax.jms.IllegalStateException
+        || e.getCause() instanceof IOException
+        || e.getLinkedException() instanceof IOException;
+  }
+
+  private Message createMessage(Session session, Event event) throws JMSException {
+    EventMessageMode messageMode = (EventMessageMode) event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+    Message msg = session.createMessage();
+
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    if (messageMode == EventMessageMode.PERSISTENT) {
+      msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
+    } else {
+      msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    }
+    msg.setJMSType(event.getTopic());
+
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List || obj instanceof Object[]) {
+        msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
+      }
+    }
+
+    msg.setStringProperty("clusterServerId", serverId);
+    return msg;
+  }
+
+  private BlockingQueue<PublishingSession> getIdleSessions(int acknowledgeMode) {
+    BlockingQueue<PublishingSession> sessions = idleSessions.get(acknowledgeMode);
+    if (sessions == null) {
+      BlockingQueue<PublishingSession> newSessions = new LinkedBlockingQueue<PublishingSession>();
+      sessions = idleSessions.putIfAbsent(acknowledgeMode, newSessions);
+      if (sessions == null) {
+        sessions = newSessions;
+      }
+    }
+    return sessions;
+  }
+
+  private PublishingSession borrowSession(int acknowledgeMode) throws JMSException {
+    PublishingSession publishingSession = getIdleSessions(acknowledgeMode).poll();
+    if (publishingSession == null) {
+      synchronized (connectionLock) {
+        if (connection == null) {
+          connection = connFactoryService.getDefaultPooledConnectionFactory()
+              .createConnection();
+        }
+        publishingSession = new PublishingSession(connection.createSession(transacted,
+            acknowledgeMode));
+      }
+    }
+    return publishingSession;
+  }
+
+  private void resetConnection() {
+    synchronized (connectionLock) {
+      for (BlockingQueue<PublishingSession> sessions : idleSessions.values()) {
+        PublishingSession publishingSession = sessions.poll();
+        while (publishingSession != null) {
+          publishingSession.close();
+          publishingSession = sessions.poll();
+        }
+      }
+      try {
+        if (connection != null) {
+          connection.close();
+        }
+      } catch (Exception e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+      connection = null;
+    }
+  }
+
+  private void logFailure(JMSException e) {
+    Throwable t = e.getCause();
+    if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
+      if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
+      }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public int getQueueCapacity() {
+    return queue.size() + queue.remainingCapacity();
+  }
+
+  public long getPublished() {
+    return published.get();
+  }
+
+  public long getPublishedSynchronously() {
+    return publishedSynchronously.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getAverageBatchSize() {
+    long n = batches.get();
+    return n == 0 ? 0 : published.get() / n;
+  }
+
+  public long getPublishRate() {
+    long t = System.currentTimeMillis() - resetTime;
+    return t <= 0 ? 0 : published.get() * 1000L / t;
+  }
+
+  public void reset() {
+    published.set(0);
+    publishedSynchronously.set(0);
+    dropped.set(0);
+    failed.set(0);
+    batches.set(0);
+    resetTime = System.currentTimeMillis();
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+/**
+ * JMX view of the {@link JmsEventPublisher} used by the {@link OsgiJmsBridge}.
+ */
+public interface JmsEventPublisherMBean {
+
+  /**
+   * @return events waiting to be sent.
+   */
+  int getQueueDepth();
+
+  int getQueueCapacity();
+
+  /**
+   * @return events sent to JMS.
+   */
+  long getPublished();
+
+  /**
+   * @return events sent on the calling thread because the queue was full.
+   */
+  long getPublishedSynchronously();
+
+  /**
+   * @return events discarded because the queue was full.
+   */
+  long getDropped();
+
+  /**
+   * @return events lost because JMS failed while sending them.
+   */
+  long getFailed();
+
+  long getBatches();
+
+  /**
+   * @return the mean number of events sent per batch.
+   */
+  long getAverageBatchSize();
+
+  /**
+   * @return events sent per second since the counters were reset.
+   */
+  long getPublishRate();
+
+  void reset();
+}
@@ -17,19 +17,14 @@
  */
 package org.sakaiproject.nakamura.events;
 
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
 import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
-import javax.jms.Connection;
-import javax.jms.DeliveryMode;
-import javax.jms.Destination;
-import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
@@ -42,16 +37,14 @@ import org.osgi.service.event.EventConstants;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventAcknowledgeMode;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
-import org.sakaiproject.nakamura.util.osgi.EventUtils;
+import org.sakaiproject.nakamura.events.JmsEventPublisher.OverflowPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Bridge to send OSGi events onto a JMS topic.
+ * Bridge to send OSGi events onto a JMS topic. Events are queued and sent in batches by a
+ * {@link JmsEventPublisher} so that the thread delivering the OSGi event does not wait for
+ * JMS.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate = true)
 @Service
@@ -64,15 +57,59 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = "sakai.event.bridge")
   static final String CONNECTION_CLIENT_ID = "bridge.connectionClientId";
 
-  @Property(boolValue = false, propertyPrivate = true)
+  @Property(boolValue = true, propertyPrivate = true)
   static final String SESSION_TRANSACTED = "bridge.sessionTransacted";
 
+  /**
+   * The acknowledge mode of the sessions if they are not transacted, events may ask for
+   * another with {@link org.sakaiproject.nakamura.api.events.EventDeliveryConstants#ACKNOWLEDGE_MODE}.
+   */
   @Property(intValue = Session.AUTO_ACKNOWLEDGE, propertyPrivate = true)
   static final String ACKNOWLEDGE_MODE = "bridge.acknowledgeMode";
 
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  /**
+   * The number of events that may be waiting to be sent to JMS.
+   */
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queueSize";
+
+  /**
+   * The most events sent to JMS in one batch.
+   */
+  @Property(intValue = 100)
+  static final String BATCH_SIZE = "bridge.batchSize";
+
+  /**
+   * The number of threads sending to JMS, more than 1 and events may be sent out of order.
+   */
+  @Property(intValue = 1)
+  static final String SENDER_THREADS = "bridge.senderThreads";
+
+  /**
+   * What to do when the queue is full for topics with no overflow policy, one of block,
+   * drop or sync.
+   */
+  @Property(value = "block")
+  static final String OVERFLOW_POLICY = "bridge.overflowPolicy";
+
+  /**
+   * Overflow policies for topics, topic;policy where topic may end in * to match a prefix.
+   */
+  @Property(value = {"org/osgi/service/log/LogEntry/*;drop", "org/apache/sling/api/resource/Resource/*;drop"})
+  static final String TOPIC_OVERFLOW_POLICIES = "bridge.topicOverflowPolicies";
+
+  /**
+   * The time in ms the block policy waits for space in the queue before the caller sends
+   * the event itself.
+   */
+  @Property(longValue = 100)
+  static final String BLOCK_TIMEOUT = "bridge.blockTimeout";
+
+  private static final String STATS_NAME = "org.sakaiproject.nakamura.events:type=OsgiJmsBridge";
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
 
 
@@ -87,7 +124,7 @@ public class OsgiJmsBridge implements EventHandler {
   private String connectionClientId;
   private int acknowledgeMode;
 
-  private long lastMessage = System.currentTimeMillis();
+  private JmsEventPublisher publisher;
 
   private String serverId;
 
@@ -120,7 +157,7 @@ public class OsgiJmsBridge implements EventHandler {
   protected void activate(ComponentContext ctx) {
     Dictionary props = ctx.getProperties();
 
-    transacted = PropertiesUtil.toBoolean(props.get(SESSION_TRANSACTED), false);
+    transacted = PropertiesUtil.toBoolean(props.get(SESSION_TRANSACTED), true);
     acknowledgeMode = PropertiesUtil.toInteger(props.get(ACKNOWLEDGE_MODE), 0);
     connectionClientId = PropertiesUtil.toString(props.get(CONNECTION_CLIENT_ID), "sakai.event.bridge");
     serverId = clusterTrackingService.getCurrentServerId();
@@ -134,8 +171,36 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
 
-    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
-        new Object[] { transacted, acknowledgeMode, connectionClientId });
+    int queueSize = PropertiesUtil.toInteger(props.get(QUEUE_SIZE), 10000);
+    int batchSize = PropertiesUtil.toInteger(props.get(BATCH_SIZE), 100);
+    int senderThreads = PropertiesUtil.toInteger(props.get(SENDER_THREADS), 1);
+    OverflowPolicy overflowPolicy = JmsEventPublisher.parsePolicy(
+        PropertiesUtil.toString(props.get(OVERFLOW_POLICY), "block"), OverflowPolicy.BLOCK);
+    long blockTimeout = PropertiesUtil.toLong(props.get(BLOCK_TIMEOUT), 100);
+
+    if (publisher != null) {
+      publisher.stop();
+    }
+    publisher = new JmsEventPublisher(connFactoryService, transacted, acknowledgeMode,
+        serverId, queueSize, batchSize);
+    publisher.setOverflowPolicies(overflowPolicy,
+        PropertiesUtil.toStringArray(props.get(TOPIC_OVERFLOW_POLICIES)), blockTimeout);
+    publisher.start(senderThreads);
+
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(STATS_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(publisher, objectName);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register event bridge statistics {} ", e.getMessage());
+    }
+
+    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}, "
+        + "Queue Size: {}, Batch Size: {}",
+        new Object[] { transacted, acknowledgeMode, connectionClientId, queueSize, batchSize });
   }
 
   /**
@@ -144,6 +209,14 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(STATS_NAME));
+    } catch (Exception e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+    if (publisher != null) {
+      publisher.stop();
+    }
   }
 
   /**
@@ -157,121 +230,11 @@ public class OsgiJmsBridge implements EventHandler {
       // Ignore Log messages in jms.
       return;
     }
-    Connection conn = null;
-
     LOGGER.debug("Processing event {}", event);
-    Session clientSession = null;
-    try {
-
-      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
-      // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
-      EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
-          .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
-
-      int clientAcknowledgeMode = acknowledgeMode;
-      if (acknowledgeModeForEvent != null) {
-        switch (acknowledgeModeForEvent) {
-        case AUTO_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
-          break;
-        case CLIENT_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
-          break;
-        case DUPS_OK_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
-          break;
-        }
-      }
-
-      clientSession = conn.createSession(transacted, clientAcknowledgeMode);
-
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
-        }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-      }
-
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
-      }
-      MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List || obj instanceof Object[]) {
-          msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
-        }
-      }
+    publisher.publish(event);
+  }
 
-      msg.setStringProperty("clusterServerId", serverId);
-
-      // add the current user
-
-      LOGGER.debug("Sending Message {} to {}  ",msg, destination);
-      producer.send(msg);
-    } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
-      }
-    } finally {
-      try {
-        if (conn != null) {
-          conn.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
-      }
-      try {
-        if (clientSession != null) {
-          clientSession.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
-      }
-    }
+  JmsEventPublisher getPublisher() {
+    return publisher;
   }
 }
@@ -26,6 +26,7 @@ import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -35,6 +36,7 @@ import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageFormatException;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.Topic;
@@ -44,7 +46,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.events.JmsEventPublisher.OverflowPolicy;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventAcknowledgeMode;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 
 /**
@@ -187,8 +192,10 @@ public class OsgiJmsBridgeTest {
     // construct and send the message
     Dictionary<Object, Object> props = buildEventProperties();
     sendMessage(props);
+    bridge.deactivate(ctx);
     // should log the message, but not fail
     verify(ctx, connFactory, clusterTrackingService);
+    assertEquals(1, bridge.getPublisher().getFailed());
   }
 
 
@@ -223,6 +230,210 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory, clusterTrackingService);
   }
 
+  @Test
+  public void testBatchedTransacted() throws Exception {
+    compProps.put(OsgiJmsBridge.SESSION_TRANSACTED, true);
+    setUpConnection(true);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
+    // one session and one producer for all the events.
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(3);
+    prod.send((Message) anyObject());
+    expectLastCall().times(3);
+    sess.commit();
+    expectLastCall().atLeastOnce();
+    prod.close();
+    sess.close();
+
+    replay(ctx, connFactoryService, connFactory, conn, sess, topic, prod, clusterTrackingService);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    for (int i = 0; i < 3; i++) {
+      bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    }
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+    assertEquals(3, bridge.getPublisher().getPublished());
+    assertEquals(0, bridge.getPublisher().getQueueDepth());
+  }
+
+  @Test
+  public void testBadEventDroppedFromBatch() throws Exception {
+    setUpConnection(true);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    Message first = new ActiveMQMessage();
+    Message last = new ActiveMQMessage();
+    Message bad = new ActiveMQMessage() {
+      @Override
+      public void setObjectProperty(String name, Object value) throws JMSException {
+        throw new MessageFormatException("Unable to serialize " + name);
+      }
+    };
+    expect(sess.createMessage()).andReturn(first);
+    expect(sess.createMessage()).andReturn(bad);
+    expect(sess.createMessage()).andReturn(last);
+    prod.send(first);
+    prod.send(last);
+    // one commit for the good events, the connection is kept.
+    sess.commit();
+    prod.close();
+    sess.close();
+
+    replay(connFactoryService, connFactory, conn, sess, topic, prod);
+
+    JmsEventPublisher publisher = new JmsEventPublisher(connFactoryService, true,
+        Session.AUTO_ACKNOWLEDGE, "CurrentServerID", 10, 10);
+    publisher.send(Arrays.asList(new Event("test-event", buildEventProperties()),
+        new Event("test-event", buildEventProperties()), new Event("test-event",
+            buildEventProperties())));
+    assertEquals(2, publisher.getPublished());
+    assertEquals(1, publisher.getFailed());
+    publisher.stop();
+
+    verify(connFactory, conn, sess, topic, prod);
+  }
+
+  @Test
+  public void testRolledBackBatchSentOneAtATime() throws Exception {
+    setUpConnection(true);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    Message first = new ActiveMQMessage();
+    Message refused = new ActiveMQMessage();
+    Message last = new ActiveMQMessage();
+    expect(sess.createMessage()).andReturn(first);
+    expect(sess.createMessage()).andReturn(refused);
+    expect(sess.createMessage()).andReturn(last);
+    // the batch is rolled back, then each event is sent in its own transaction.
+    prod.send(first);
+    expectLastCall().times(2);
+    prod.send(refused);
+    expectLastCall().andThrow(new JMSException("Message too large")).times(2);
+    prod.send(last);
+    sess.rollback();
+    expectLastCall().times(2);
+    sess.commit();
+    expectLastCall().times(2);
+    prod.close();
+    sess.close();
+
+    replay(connFactoryService, connFactory, conn, sess, topic, prod);
+
+    JmsEventPublisher publisher = new JmsEventPublisher(connFactoryService, true,
+        Session.AUTO_ACKNOWLEDGE, "CurrentServerID", 10, 10);
+    publisher.send(Arrays.asList(new Event("test-event", buildEventProperties()),
+        new Event("test-event", buildEventProperties()), new Event("test-event",
+            buildEventProperties())));
+    assertEquals(2, publisher.getPublished());
+    assertEquals(1, publisher.getFailed());
+    publisher.stop();
+
+    verify(connFactory, conn, sess, topic, prod);
+  }
+
+  @Test
+  public void testBrokenConnectionIsReset() throws Exception {
+    setUpConnection(true);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(2);
+    prod.send((Message) anyObject());
+    expectLastCall().andThrow(new javax.jms.IllegalStateException("The Session is closed"));
+    prod.close();
+    sess.close();
+
+    replay(connFactoryService, connFactory, conn, sess, topic, prod);
+
+    JmsEventPublisher publisher = new JmsEventPublisher(connFactoryService, true,
+        Session.AUTO_ACKNOWLEDGE, "CurrentServerID", 10, 10);
+    publisher.send(Arrays.asList(new Event("test-event", buildEventProperties()),
+        new Event("test-event", buildEventProperties())));
+    assertEquals(0, publisher.getPublished());
+    assertEquals(2, publisher.getFailed());
+
+    verify(connFactory, conn, sess, topic, prod);
+  }
+
+  @Test
+  public void testAcknowledgeModeOfEventIsUsed() throws Exception {
+    setUpConnection(true);
+    sess = createMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(2);
+    prod.send((Message) anyObject());
+    expectLastCall().times(2);
+    prod.close();
+    sess.close();
+    // the event asking for client acknowledge gets a session of its own.
+    Session clientSession = createMock(Session.class);
+    expect(conn.createSession(false, Session.CLIENT_ACKNOWLEDGE)).andReturn(clientSession);
+    Topic clientTopic = createMock(Topic.class);
+    expect(clientSession.createTopic("test-event")).andReturn(clientTopic);
+    MessageProducer clientProd = createMock(MessageProducer.class);
+    expect(clientSession.createProducer(clientTopic)).andReturn(clientProd);
+    expect(clientSession.createMessage()).andReturn(new ActiveMQMessage());
+    clientProd.send((Message) anyObject());
+    clientProd.close();
+    clientSession.close();
+
+    replay(connFactoryService, connFactory, conn, sess, topic, prod, clientSession,
+        clientTopic, clientProd);
+
+    JmsEventPublisher publisher = new JmsEventPublisher(connFactoryService, false,
+        Session.AUTO_ACKNOWLEDGE, "CurrentServerID", 10, 10);
+    Dictionary<Object, Object> clientProperties = buildEventProperties();
+    clientProperties.put(EventDeliveryConstants.ACKNOWLEDGE_MODE,
+        EventAcknowledgeMode.CLIENT_ACKNOWLEDGE);
+    publisher.send(Arrays.asList(new Event("test-event", buildEventProperties()),
+        new Event("test-event", clientProperties), new Event("test-event",
+            buildEventProperties())));
+    assertEquals(3, publisher.getPublished());
+    publisher.stop();
+
+    verify(connFactory, conn, sess, topic, prod, clientSession, clientTopic, clientProd);
+  }
+
+  @Test
+  public void testOverflowPolicies() {
+    JmsEventPublisher publisher = new JmsEventPublisher(connFactoryService, true,
+        Session.AUTO_ACKNOWLEDGE, "CurrentServerID", 1, 10);
+    publisher.setOverflowPolicies(OverflowPolicy.BLOCK, new String[] {
+        "org/osgi/service/log/LogEntry/*;drop", "org/osgi/service/log/LogEntry/LOG_ERROR;sync",
+        "org/sakaiproject/*;sync", "org/sakaiproject/nakamura/*;drop", "bad" }, 10);
+    assertEquals(OverflowPolicy.DROP, publisher.getPolicy("org/osgi/service/log/LogEntry/LOG_WARNING"));
+    assertEquals(OverflowPolicy.SYNC, publisher.getPolicy("org/osgi/service/log/LogEntry/LOG_ERROR"));
+    assertEquals(OverflowPolicy.DROP, publisher.getPolicy("org/sakaiproject/nakamura/lite/content"));
+    assertEquals(OverflowPolicy.SYNC, publisher.getPolicy("org/sakaiproject/other"));
+    assertEquals(OverflowPolicy.BLOCK, publisher.getPolicy("test-event"));
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
@@ -321,7 +532,9 @@ public class OsgiJmsBridgeTest {
 
       // expect the message to be sent
       prod.send(message);
-      
+
+      // the producer is cached until the bridge is deactivated
+      prod.close();
 
       sess.close();
     } catch (JMSException e) {
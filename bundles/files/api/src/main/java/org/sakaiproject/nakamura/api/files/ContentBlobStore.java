@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.files;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A content addressed store for uploaded bodies. Every distinct body is stored once and
+ * content items refer to it by its hash, see
+ * {@link org.sakaiproject.nakamura.util.ContentBlobUtils} for reading them back.
+ */
+public interface ContentBlobStore {
+
+  /**
+   * Stores a body and points a stream of a content item at it. The body is hashed while
+   * it streams into the store, if a body with the same hash is already stored that one is
+   * used instead and the new copy is dropped.
+   *
+   * @param contentManager
+   *          The content manager used to update the content item.
+   * @param path
+   *          The path of the content item.
+   * @param in
+   *          The body.
+   * @param streamId
+   *          The alternative stream, or null for the main body.
+   * @return the hash of the body.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   * @throws IOException
+   */
+  String writeBody(ContentManager contentManager, String path, InputStream in,
+      String streamId) throws StorageClientException, AccessDeniedException, IOException;
+
+  /**
+   * Points a stream of a content item at the body of another one, without copying it.
+   *
+   * @param contentManager
+   *          The content manager used to read the source and update the target.
+   * @param fromPath
+   * @param fromStreamId
+   * @param toPath
+   *          The content item to point at the body, created if it does not exist.
+   * @param toStreamId
+   * @return false if the source body is not in the blob store, in which case nothing is
+   *         changed.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  boolean copyBody(ContentManager contentManager, String fromPath, String fromStreamId,
+      String toPath, String toStreamId) throws StorageClientException,
+      AccessDeniedException;
+}
@@ -24,13 +24,16 @@ import java.util.Map;
 public interface FileUploadHandler {
   /**
    * This method is called when a file is uploaded via the
-   * CreateContentPoolServlet--after the file has been added to the repository.
+   * CreateContentPoolServlet--while the file is being added to the repository, on a
+   * thread of its own. The stream only ends once the file has been added, so a handler
+   * that needs the stored file should read the stream to the end first.
    *
    * @param poolId
    *          The path of the content object for the file.
    *
    * @param fileInputStream
-   *          A FileInputStream on the uploaded content, set to position zero.
+   *          A stream on the uploaded content, set to position zero. A handler that falls
+   *          too far behind the upload gets an IOException.
    *
    * @param userId
    *          The login name of the client performing the file upload (as per
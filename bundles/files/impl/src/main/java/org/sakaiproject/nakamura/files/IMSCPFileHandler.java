@@ -25,16 +25,21 @@ import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAGS;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.files.ContentBlobStore;
 import org.sakaiproject.nakamura.api.files.FileUploadHandler;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -52,6 +57,8 @@ import org.sakaiproject.nakamura.cp.Organization;
 import org.sakaiproject.nakamura.cp.Resource;
 import org.sakaiproject.nakamura.lom.basic.General;
 import org.sakaiproject.nakamura.lom.elements.Keyword;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -77,6 +84,12 @@ import javax.activation.MimetypesFileTypeMap;
 public class IMSCPFileHandler implements FileUploadHandler {
   @Reference
   protected Repository sparseRepository;
+
+  @Reference
+  protected ContentBlobStore contentBlobStore;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
   
   private static final Logger LOGGER = LoggerFactory
       .getLogger(IMSCPFileHandler.class);
@@ -130,9 +143,12 @@ public class IMSCPFileHandler implements FileUploadHandler {
         zin.close();
         return;
       }
+      // The upload is only in the repository once its stream has ended.
+      IOUtils.copy(fileInputStream, new NullOutputStream());
       
-      InputStream inputStream = contentManager.getInputStream(poolId);
-      String name = (String)contentManager.get(poolId).getProperty(POOLED_CONTENT_FILENAME);
+      Content poolContent = contentManager.get(poolId);
+      InputStream inputStream = ContentBlobUtils.getInputStream(blobAccess, contentManager, poolContent, null);
+      String name = (String)poolContent.getProperty(POOLED_CONTENT_FILENAME);
       Content content = createCourse(poolId, adminSession, inputStream, name, userId);
       if (content == null) {
         LOGGER.debug("PoolID {} is not IMS_CP format, ignore", poolId);
@@ -204,7 +220,10 @@ public class IMSCPFileHandler implements FileUploadHandler {
     zin.closeEntry();
     zin.close();
 
-    contentManager.writeBody(poolId + "/" + name, contentManager.getInputStream(poolId));
+    // The package is already in the blob store, so there is no need to copy it.
+    if (!contentBlobStore.copyBody(contentManager, poolId, null, poolId + "/" + name, null)) {
+      contentManager.writeBody(poolId + "/" + name, contentManager.getInputStream(poolId));
+    }
     //Replace relative file path to JCR path
     for (Entry<String, String> fileContentEntry : fileContent.entrySet()) {
       String htmlContent = fileContentEntry.getValue();
@@ -0,0 +1,497 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.sakaiproject.nakamura.util.ContentBlobUtils.BLOB_FIELD;
+import static org.sakaiproject.nakamura.util.ContentBlobUtils.BLOB_ROOT;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.files.ContentBlobStore;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Keeps uploaded bodies under {@link ContentBlobUtils#BLOB_ROOT}, one item per distinct
+ * SHA-1.
+ *
+ * Nobody but the administrator can read the blob root or anything under it. Bodies are
+ * read through {@link ContentBlobUtils}, which checks the caller can read the content
+ * item first and then has this store, registered as the {@link BlobAccess} service, read
+ * the blob, provided the item holds a reference to it.
+ *
+ * Every content item referring to a blob has a reference item below the blob, and an
+ * index item under {@link #PATHS_ROOT} to find its blobs by path. These are only ever
+ * created or deleted, never updated, so servers sharing the store can't lose each
+ * other's changes. A reference is dropped when neither the content item nor any of its
+ * saved versions refers to the blob any more, and the blob with its last reference.
+ * Adding a reference and dropping the blob hold a lock on the blob id, so an upload of a
+ * body that is being released keeps its blob.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { ContentBlobStore.class, BlobAccess.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = "org/sakaiproject/nakamura/lite/content/DELETE") })
+public class ContentBlobStoreImpl implements ContentBlobStore, EventHandler, BlobAccess {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ContentBlobStoreImpl.class);
+
+  /**
+   * Index of the blobs each content item refers to, by hash of the item path.
+   */
+  static final String PATHS_ROOT = BLOB_ROOT + "/paths";
+
+  /**
+   * The property of a reference item holding the path of the content item.
+   */
+  static final String PATH_FIELD = "path";
+
+  @Property(intValue = 65536)
+  static final String MEMORY_THRESHOLD = "blob.memoryThreshold";
+
+  @Reference
+  protected Repository sparseRepository;
+
+  private int memoryThreshold = 65536;
+
+  /**
+   * Held on the stripe of a blob id from adding a reference until the body is known to be
+   * stored, and from checking for other references until the blob is deleted.
+   */
+  private final Object[] blobLocks = new Object[64];
+
+  public ContentBlobStoreImpl() {
+    for (int i = 0; i < blobLocks.length; i++) {
+      blobLocks[i] = new Object();
+    }
+  }
+
+  @Activate
+  protected void activate(Map<?, ?> props) throws ClientPoolException,
+      StorageClientException, AccessDeniedException {
+    memoryThreshold = PropertiesUtil.toInteger(props.get(MEMORY_THRESHOLD), 65536);
+    Session adminSession = sparseRepository.loginAdministrative();
+    try {
+      ContentManager contentManager = adminSession.getContentManager();
+      if (!contentManager.exists(BLOB_ROOT)) {
+        contentManager.update(new Content(BLOB_ROOT, null));
+      }
+      List<AclModification> modifications = new ArrayList<AclModification>();
+      AclModification.addAcl(false, Permissions.ALL, User.ANON_USER, modifications);
+      AclModification.addAcl(false, Permissions.ALL, Group.EVERYONE, modifications);
+      adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT, BLOB_ROOT,
+          modifications.toArray(new AclModification[modifications.size()]));
+    } finally {
+      adminSession.logout();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The body is spooled (in memory when it is small) while it is hashed, so a body that
+   * is already stored is never written to storage again.
+   *
+   * @see org.sakaiproject.nakamura.api.files.ContentBlobStore#writeBody(org.sakaiproject.nakamura.api.lite.content.ContentManager,
+   *      java.lang.String, java.io.InputStream, java.lang.String)
+   */
+  public String writeBody(ContentManager contentManager, String path, InputStream in,
+      String streamId) throws StorageClientException, AccessDeniedException, IOException {
+    MessageDigest digest = newDigest();
+    File spoolFile = File.createTempFile("blob", null);
+    try {
+      DeferredFileOutputStream spool = new DeferredFileOutputStream(memoryThreshold,
+          spoolFile);
+      try {
+        IOUtils.copyLarge(new DigestInputStream(in, digest), spool);
+      } finally {
+        spool.close();
+      }
+      String blobId = StringUtils.byteToHex(digest.digest());
+
+      Session adminSession = sparseRepository.loginAdministrative();
+      try {
+        ContentManager adminContentManager = adminSession.getContentManager();
+        String blobPath = ContentBlobUtils.getBlobPath(blobId);
+        synchronized (blobLock(blobId)) {
+          if (!adminContentManager.exists(blobPath)) {
+            adminContentManager.update(new Content(blobPath, null));
+          }
+          // the reference goes in before the body is looked for, so a server releasing
+          // the last other reference at the same time keeps the blob.
+          addReference(adminContentManager, path, blobId);
+          if (!adminContentManager.hasBody(blobPath, null)) {
+            // Two servers uploading the same new body might both get here, they write
+            // the same bytes so that does no harm.
+            InputStream body = spool.isInMemory() ? new ByteArrayInputStream(spool
+                .getData()) : new FileInputStream(spoolFile);
+            try {
+              adminContentManager.writeBody(blobPath, body);
+            } finally {
+              body.close();
+            }
+            LOGGER.debug("Stored new blob {} ", blobId);
+          } else {
+            LOGGER.debug("Body of {} is already stored as blob {} ", path, blobId);
+          }
+        }
+        refer(contentManager, adminContentManager, path, streamId, blobId);
+      } finally {
+        adminSession.logout();
+      }
+      return blobId;
+    } finally {
+      if (!spoolFile.delete()) {
+        LOGGER.debug("Unable to delete {} ", spoolFile);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.files.ContentBlobStore#copyBody(org.sakaiproject.nakamura.api.lite.content.ContentManager,
+   *      java.lang.String, java.lang.String, java.lang.String, java.lang.String)
+   */
+  public boolean copyBody(ContentManager contentManager, String fromPath,
+      String fromStreamId, String toPath, String toStreamId)
+      throws StorageClientException, AccessDeniedException {
+    Content from = contentManager.get(fromPath);
+    String blobId = (from == null) ? null : ContentBlobUtils.getBlobId(from, fromStreamId);
+    if (blobId == null) {
+      return false;
+    }
+    Session adminSession = sparseRepository.loginAdministrative();
+    try {
+      ContentManager adminContentManager = adminSession.getContentManager();
+      synchronized (blobLock(blobId)) {
+        if (!hasReference(adminContentManager, fromPath, blobId)) {
+          return false;
+        }
+        addReference(adminContentManager, toPath, blobId);
+      }
+      refer(contentManager, adminContentManager, toPath, toStreamId, blobId);
+    } finally {
+      adminSession.logout();
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.util.BlobAccess#getInputStream(java.lang.String,
+   *      java.lang.String)
+   */
+  public InputStream getInputStream(String path, String blobId)
+      throws StorageClientException, AccessDeniedException, IOException {
+    final Session adminSession = sparseRepository.loginAdministrative();
+    boolean open = false;
+    try {
+      ContentManager adminContentManager = adminSession.getContentManager();
+      if (!hasReference(adminContentManager, path, blobId)) {
+        return null;
+      }
+      InputStream in = adminContentManager.getInputStream(ContentBlobUtils
+          .getBlobPath(blobId));
+      if (in == null) {
+        LOGGER.warn("Blob {} is referenced by {} but has no body ", blobId, path);
+        return null;
+      }
+      open = true;
+      return new FilterInputStream(in) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            logout(adminSession);
+          }
+        }
+      };
+    } finally {
+      if (!open) {
+        logout(adminSession);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.util.BlobAccess#hasBody(java.lang.String,
+   *      java.lang.String)
+   */
+  public boolean hasBody(String path, String blobId) throws StorageClientException,
+      AccessDeniedException {
+    Session adminSession = sparseRepository.loginAdministrative();
+    try {
+      ContentManager adminContentManager = adminSession.getContentManager();
+      return hasReference(adminContentManager, path, blobId)
+          && adminContentManager.hasBody(ContentBlobUtils.getBlobPath(blobId), null);
+    } finally {
+      adminSession.logout();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.util.BlobAccess#copyReferences(java.lang.String,
+   *      java.lang.String)
+   */
+  public void copyReferences(String fromPath, String toPath)
+      throws StorageClientException, AccessDeniedException {
+    Session adminSession = sparseRepository.loginAdministrative();
+    try {
+      ContentManager adminContentManager = adminSession.getContentManager();
+      Content to = adminContentManager.get(toPath);
+      if (to == null) {
+        return;
+      }
+      for (Entry<String, Object> property : to.getProperties().entrySet()) {
+        if (ContentBlobUtils.isBlobField(property.getKey())) {
+          String blobId = String.valueOf(property.getValue());
+          synchronized (blobLock(blobId)) {
+            if (hasReference(adminContentManager, fromPath, blobId)) {
+              addReference(adminContentManager, toPath, blobId);
+            }
+          }
+        }
+      }
+    } finally {
+      adminSession.logout();
+    }
+  }
+
+  /**
+   * Drops the references of deleted content items, and the blobs nothing else refers to.
+   * Bodies are only uploaded to pool items and copied to items under them, so other
+   * deletes are ignored without looking for references.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null || !(isPoolPath(path) || FilesConstants.POOLED_CONTENT_RT
+        .equals(event.getProperty("resourceType")))) {
+      return;
+    }
+    Session adminSession = null;
+    try {
+      adminSession = sparseRepository.loginAdministrative();
+      ContentManager adminContentManager = adminSession.getContentManager();
+      List<String> blobIds = new ArrayList<String>();
+      for (Iterator<String> i = adminContentManager.listChildPaths(getIndexPath(path)); i
+          .hasNext();) {
+        String indexPath = i.next();
+        blobIds.add(indexPath.substring(indexPath.lastIndexOf('/') + 1));
+      }
+      for (String blobId : blobIds) {
+        release(adminContentManager, path, blobId);
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to release the blobs of {}: {} ", path, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to release the blobs of {}: {} ", path, e.getMessage());
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * Points a stream of a content item at a blob, releasing the blob it pointed at before.
+   */
+  private void refer(ContentManager contentManager, ContentManager adminContentManager,
+      String path, String streamId, String blobId) throws StorageClientException,
+      AccessDeniedException {
+    Content blob = adminContentManager.get(ContentBlobUtils.getBlobPath(blobId));
+    long length = (blob == null) ? 0 : StorageClientUtils.toLong(blob
+        .getProperty(Content.LENGTH_FIELD));
+    Content content = contentManager.get(path);
+    String previous = null;
+    if (content == null) {
+      content = new Content(path, null);
+    } else {
+      previous = ContentBlobUtils.getBlobId(content, streamId);
+    }
+    content.setProperty(StorageClientUtils.getAltField(BLOB_FIELD, streamId), blobId);
+    content.setProperty(StorageClientUtils.getAltField(Content.LENGTH_FIELD, streamId),
+        length);
+    if (streamId != null) {
+      content.setProperty(
+          StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, streamId),
+          System.currentTimeMillis());
+    }
+    contentManager.update(content);
+    if (previous != null && !previous.equals(blobId)) {
+      release(adminContentManager, path, previous);
+    }
+  }
+
+  private void addReference(ContentManager adminContentManager, String path,
+      String blobId) throws StorageClientException, AccessDeniedException {
+    String referencePath = getReferencePath(path, blobId);
+    if (!adminContentManager.exists(referencePath)) {
+      Content reference = new Content(referencePath, null);
+      reference.setProperty(PATH_FIELD, path);
+      adminContentManager.update(reference);
+      adminContentManager.update(new Content(getIndexPath(path) + "/" + blobId, null));
+    }
+  }
+
+  private boolean hasReference(ContentManager adminContentManager, String path,
+      String blobId) throws StorageClientException, AccessDeniedException {
+    return adminContentManager.exists(getReferencePath(path, blobId));
+  }
+
+  /**
+   * @return true if the path is a pool item or under one. Pool ids are at the root, other
+   *         content is under a path starting with a slash or in a home such as a:user.
+   */
+  static boolean isPoolPath(String path) {
+    if (path.startsWith("/")) {
+      return false;
+    }
+    int slash = path.indexOf('/');
+    return (slash < 0 ? path : path.substring(0, slash)).indexOf(':') < 0;
+  }
+
+  /**
+   * Drops the reference of a content item to a blob, unless the item or one of its saved
+   * versions still refers to it, and the blob itself once nothing refers to it.
+   */
+  private void release(ContentManager adminContentManager, String path, String blobId)
+      throws StorageClientException, AccessDeniedException {
+    Content content = adminContentManager.get(path);
+    if (content != null) {
+      if (refersTo(content, blobId)) {
+        return;
+      }
+      for (String versionId : adminContentManager.getVersionHistory(path)) {
+        Content version = adminContentManager.getVersion(path, versionId);
+        if (version != null && refersTo(version, blobId)) {
+          return;
+        }
+      }
+    }
+    synchronized (blobLock(blobId)) {
+      adminContentManager.delete(getReferencePath(path, blobId));
+      adminContentManager.delete(getIndexPath(path) + "/" + blobId);
+      String blobPath = ContentBlobUtils.getBlobPath(blobId);
+      if (!adminContentManager.listChildPaths(blobPath).hasNext()) {
+        adminContentManager.delete(blobPath);
+        LOGGER.debug("Deleted blob {}, the last reference was {} ", blobId, path);
+      }
+    }
+  }
+
+  private Object blobLock(String blobId) {
+    return blobLocks[(blobId.hashCode() & 0x7fffffff) % blobLocks.length];
+  }
+
+  private boolean refersTo(Content content, String blobId) {
+    for (Entry<String, Object> property : content.getProperties().entrySet()) {
+      if (ContentBlobUtils.isBlobField(property.getKey())
+          && blobId.equals(String.valueOf(property.getValue()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String getReferencePath(String path, String blobId) throws StorageClientException {
+    return ContentBlobUtils.getBlobPath(blobId) + "/" + hash(path);
+  }
+
+  private String getIndexPath(String path) throws StorageClientException {
+    String pathHash = hash(path);
+    return PATHS_ROOT + "/" + pathHash.substring(0, 2) + "/" + pathHash;
+  }
+
+  private String hash(String path) throws StorageClientException {
+    try {
+      return StringUtils.byteToHex(newDigest().digest(path.getBytes("UTF-8")));
+    } catch (UnsupportedEncodingException e) {
+      throw new StorageClientException(e.getMessage());
+    } catch (IOException e) {
+      throw new StorageClientException(e.getMessage());
+    }
+  }
+
+  private void logout(Session adminSession) {
+    if (adminSession != null) {
+      try {
+        adminSession.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  private MessageDigest newDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+}
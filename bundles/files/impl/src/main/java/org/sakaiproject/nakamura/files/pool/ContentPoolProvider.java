@@ -20,6 +20,9 @@ package org.sakaiproject.nakamura.files.pool;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.resource.Resource;
@@ -34,6 +37,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.util.BlobAccess;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,6 +55,9 @@ public class ContentPoolProvider implements ResourceProvider {
   public static final String CONTENT_RESOURCE_PROVIDER = ContentPoolProvider.class
       .getName();
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
+
   // this 36*36 = 1296, so /a/aa/aa/aa will have 36 at the first level, then 46656 at the
   // second and then 60M, then 7e10 items at the last level.
 
@@ -118,7 +125,7 @@ public class ContentPoolProvider implements ResourceProvider {
       Content content = contentManager.get(poolId);
       if ( content != null ) {
         SparseContentResource cpr = new SparseContentResource(content, session,
-            resourceResolver, path);
+            resourceResolver, path, blobAccess);
         cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
         LOGGER.debug("Resolved {} as {} ",path,cpr);
         return cpr;
@@ -139,13 +146,13 @@ public class ContentPoolProvider implements ResourceProvider {
           String[] possibleStructure = StringUtils.split(resourceId, "/", 2);
           if ( resourceId.equals(content.getProperty(FilesConstants.POOLED_CONTENT_FILENAME))) {
             SparseContentResource cpr = new SparseContentResource(content, session,
-                resourceResolver, path);
+                resourceResolver, path, blobAccess);
             cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
             LOGGER.debug("Resolved {} as {} ",path,cpr);
             return cpr;
           } else if ( possibleStructure != null && possibleStructure.length > 0 && content.hasProperty(FilesConstants.STRUCTURE_FIELD_STEM+possibleStructure[0]) ) {
             SparseContentResource cpr = new SparseContentResource(content, session,
-                resourceResolver, path);
+                resourceResolver, path, blobAccess);
             cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
             LOGGER.debug("Resolved {} as {} ",path,cpr);
             return cpr;
@@ -157,7 +164,7 @@ public class ContentPoolProvider implements ResourceProvider {
                 String altField = StorageClientUtils.getAltField(Content.BODY_CREATED_FIELD, possibleAltStream[1]);
                 if (altParent.hasProperty(altField)) {
                   SparseContentResource cpr = new SparseContentResource(altParent, session,
-                      resourceResolver, path);
+                      resourceResolver, path, blobAccess);
                   cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
                   LOGGER.debug("Resolved {} as {} ",path,cpr);
                   return cpr;
@@ -171,7 +178,7 @@ public class ContentPoolProvider implements ResourceProvider {
           }
         } else {
           SparseContentResource cpr = new SparseContentResource(content, session,
-              resourceResolver, path);
+              resourceResolver, path, blobAccess);
           cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
           LOGGER.debug("Resolved {} as {} ",path,cpr);
           return cpr;
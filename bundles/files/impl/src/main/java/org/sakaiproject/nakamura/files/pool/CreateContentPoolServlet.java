@@ -28,6 +28,9 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -41,6 +44,7 @@ import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
@@ -50,6 +54,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.files.ContentBlobStore;
 import org.sakaiproject.nakamura.api.files.FileUploadHandler;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
@@ -77,15 +82,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
@@ -138,6 +154,9 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
   @Reference
   protected EventAdmin eventAdmin;
 
+  @Reference
+  protected ContentBlobStore contentBlobStore;
+
   @Reference
   protected transient AuthorizableCountChanger authorizableCountChanger;
 
@@ -149,6 +168,24 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
 
   private Set<FileUploadHandler> fileUploadHandlers = new HashSet<FileUploadHandler>();
 
+  @Property(intValue = 8, label = "Upload handler threads",
+      description = "Threads running file upload handlers while uploads are stored, 0 runs them after the upload is stored")
+  static final String UPLOAD_HANDLER_THREADS = "upload.handler.threads";
+
+  @Property(intValue = 262144, label = "Upload handler buffer",
+      description = "Bytes a file upload handler may fall behind an upload being stored")
+  static final String UPLOAD_HANDLER_BUFFER = "upload.handler.buffer";
+
+  @Property(longValue = 30000L, label = "Upload handler timeout",
+      description = "Time (MS) an upload waits on a file upload handler that has fallen behind before dropping it")
+  static final String UPLOAD_HANDLER_TIMEOUT = "upload.handler.timeout";
+
+  private transient ExecutorService handlerExecutor;
+
+  private int handlerBufferSize = 262144;
+
+  private long handlerTimeout = 30000L;
+
   public void bindFileUploadHandler(FileUploadHandler fileUploadHandler) {
     fileUploadHandlers.add(fileUploadHandler);
   }
@@ -158,24 +195,150 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
   }
 
 
-  private void notifyFileUploadHandlers(Map<String, Object> results, String poolId, RequestParameter p,
-                                        String userId, boolean isNew)
-    throws AccessDeniedException, StorageClientException
-  {
-    // A note to the curious: it's safe to repeatedly call p.getInputStream()
-    // because each call yields a newly-created InputStream object (positioned
-    // to the beginning of the file).
-    for (FileUploadHandler fileUploadHandler : fileUploadHandlers) {
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    int threads = PropertiesUtil.toInteger(props.get(UPLOAD_HANDLER_THREADS), 8);
+    handlerBufferSize = PropertiesUtil.toInteger(props.get(UPLOAD_HANDLER_BUFFER), 262144);
+    handlerTimeout = PropertiesUtil.toLong(props.get(UPLOAD_HANDLER_TIMEOUT), 30000L);
+    deactivate();
+    if (threads > 0) {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      // No queue, an upload that can't get a thread for a handler runs that handler once
+      // the body is stored instead.
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L,
+          TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "file-upload-handler-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+      handlerExecutor = executor;
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (handlerExecutor != null) {
+      handlerExecutor.shutdown();
+      handlerExecutor = null;
+    }
+  }
+
+  /**
+   * The file upload handlers for one upload. They read the body while it is being stored,
+   * through an {@link UploadPipeline}, so the upload is only read once.
+   */
+  private class UploadHandlers {
+    private final String poolId;
+    private final String userId;
+    private final boolean isNew;
+    private final Map<String, Object> handlerResults = Collections
+        .synchronizedMap(new HashMap<String, Object>());
+    private final List<Future<?>> running = new ArrayList<Future<?>>();
+    private final List<FileUploadHandler> deferred = new ArrayList<FileUploadHandler>();
+    private UploadPipeline pipeline;
+
+    private UploadHandlers(String poolId, String userId, boolean isNew) {
+      this.poolId = poolId;
+      this.userId = userId;
+      this.isNew = isNew;
+    }
+
+    /**
+     * Starts the handlers, called once the content item exists.
+     *
+     * @return the stream to store the body from.
+     */
+    private InputStream start(RequestParameter p) throws IOException {
+      List<FileUploadHandler> handlers = new ArrayList<FileUploadHandler>(fileUploadHandlers);
+      ExecutorService executor = handlerExecutor;
+      if (executor == null || handlers.isEmpty()) {
+        deferred.addAll(handlers);
+        return p.getInputStream();
+      }
+      pipeline = new UploadPipeline(p.getInputStream(), handlerBufferSize, handlerTimeout);
+      for (final FileUploadHandler fileUploadHandler : handlers) {
+        final InputStream in = pipeline.addBranch();
+        try {
+          running.add(executor.submit(new Runnable() {
+            public void run() {
+              try {
+                handle(fileUploadHandler, in);
+              } finally {
+                closeQuietly(in);
+              }
+            }
+          }));
+        } catch (RejectedExecutionException e) {
+          closeQuietly(in);
+          deferred.add(fileUploadHandler);
+        }
+      }
+      return pipeline.getInputStream();
+    }
+
+    private void stored() {
+      if (pipeline != null) {
+        pipeline.finish();
+      }
+    }
+
+    private void failed() {
+      if (pipeline != null) {
+        pipeline.abort("The upload of " + poolId + " failed");
+      }
+    }
+
+    /**
+     * Waits for the handlers to finish and adds what they reported to the results.
+     */
+    private void finish(Map<String, Object> results, RequestParameter p) {
+      for (Future<?> f : running) {
+        try {
+          f.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          LOGGER.warn("Interrupted waiting for file upload handlers of {} ", poolId);
+          break;
+        } catch (ExecutionException e) {
+          LOGGER.warn(e.getMessage(), e);
+        }
+      }
+      // A note to the curious: it's safe to repeatedly call p.getInputStream()
+      // because each call yields a newly-created InputStream object (positioned
+      // to the beginning of the file).
+      for (FileUploadHandler fileUploadHandler : deferred) {
+        try {
+          handle(fileUploadHandler, p.getInputStream());
+        } catch (IOException e) {
+          LOGGER.warn(e.getMessage(), e);
+        }
+      }
+      results.putAll(handlerResults);
+    }
+
+    private void handle(FileUploadHandler fileUploadHandler, InputStream in) {
       try {
-        fileUploadHandler.handleFile(results, poolId, p.getInputStream(), userId, isNew);
+        fileUploadHandler.handleFile(handlerResults, poolId, in, userId, isNew);
       } catch (Throwable t) {
         LOGGER.error("FileUploadHandler '{}' failed to handle upload of file '{}' for userid '{}': {}",
-                     new Object[] { fileUploadHandler, p.getFileName(), userId, t.getMessage()});
+                     new Object[] { fileUploadHandler, poolId, userId, t.getMessage()});
         t.printStackTrace();
       }
     }
   }
 
+  private static void closeQuietly(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
 
   @Override
   protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
@@ -229,20 +392,22 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
             String fileName = FilenameUtils.getName(p.getFileName()); // IE still sends in an absolute path sometimes.
             if ( poolId == null ) {
               String createPoolId = generatePoolId();
-              Content content = createFile(createPoolId, null, adminSession, p, au, true);
+              UploadHandlers uploadHandlers = new UploadHandlers(createPoolId, au.getId(), true);
+              Content content = createFile(createPoolId, null, adminSession, p, au, true, uploadHandlers);
               results.put(fileName, ImmutableMap.of("poolId", (Object)createPoolId, "item", content.getProperties()));
               statusCode = HttpServletResponse.SC_CREATED;
               fileUpload = true;
 
-              notifyFileUploadHandlers(results, createPoolId, p, au.getId(), true);
+              uploadHandlers.finish(results, p);
             } else {
               // Add it to the map so we can output something to the UI.
-              Content content = createFile(poolId, alternativeStream, session, p, au, false);
+              UploadHandlers uploadHandlers = new UploadHandlers(poolId, au.getId(), false);
+              Content content = createFile(poolId, alternativeStream, session, p, au, false, uploadHandlers);
               results.put(fileName, ImmutableMap.of("poolId", (Object)poolId, "item", content.getProperties()));
               statusCode = HttpServletResponse.SC_OK;
               fileUpload = true;
 
-              notifyFileUploadHandlers(results, poolId, p, au.getId(), false);
+              uploadHandlers.finish(results, p);
               break;
             }
 
@@ -354,7 +519,7 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
   }
 
   private Content createFile(String poolId, String alternativeStream, Session session, RequestParameter value,
-      Authorizable au, boolean create) throws IOException, AccessDeniedException, StorageClientException {
+      Authorizable au, boolean create, UploadHandlers uploadHandlers) throws IOException, AccessDeniedException, StorageClientException {
     // Get the content type.
     String contentType = getContentType(value);
     ContentManager contentManager = session.getContentManager();
@@ -374,7 +539,7 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
       
       contentManager.update(content);
       
-      contentManager.writeBody(poolId, value.getInputStream());
+      writeBody(contentManager, poolId, null, value, uploadHandlers);
       
       
       // deny anon everything
@@ -395,7 +560,7 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
           Content.MIMETYPE_FIELD, (Object) contentType, SLING_RESOURCE_TYPE_PROPERTY,
           POOLED_CONTENT_RT));
       contentManager.update(alternativeContent);
-      contentManager.writeBody(alternativeContent.getPath(), value.getInputStream(), previewSize);
+      writeBody(contentManager, alternativeContent.getPath(), previewSize, value, uploadHandlers);
       ActivityUtils.postActivity(eventAdmin, au.getId(), poolId, "Content", "default",
           "pooled content", "CREATED_ALT_FILE",
           ImmutableMap.<String, Object> of("altPath", poolId + "/" + pageId));
@@ -403,12 +568,33 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
       Content content = contentManager.get(poolId);
       content.setProperty(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream), contentType);
       contentManager.update(content);
-      contentManager.writeBody(poolId, value.getInputStream(),alternativeStream);
+      writeBody(contentManager, poolId, alternativeStream, value, uploadHandlers);
       ActivityUtils.postActivity(eventAdmin, au.getId(), poolId, "Content", "default", "pooled content", "UPDATED_FILE", null);
     }
     return contentManager.get(poolId);
   }
 
+  /**
+   * Stores the body of an upload, with the file upload handlers reading it as it goes.
+   */
+  private void writeBody(ContentManager contentManager, String path, String streamId,
+      RequestParameter value, UploadHandlers uploadHandlers) throws IOException,
+      AccessDeniedException, StorageClientException {
+    InputStream in = uploadHandlers.start(value);
+    boolean stored = false;
+    try {
+      contentBlobStore.writeBody(contentManager, path, in, streamId);
+      stored = true;
+    } finally {
+      if (stored) {
+        uploadHandlers.stored();
+      } else {
+        uploadHandlers.failed();
+      }
+      in.close();
+    }
+  }
+
   /**
    * Get the content type of a file that's in a {@link RequestParameter}.
    *
@@ -4,6 +4,8 @@ import org.apache.commons.io.FileUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
@@ -33,6 +35,8 @@ import org.sakaiproject.nakamura.lom.elements.Description;
 import org.sakaiproject.nakamura.lom.elements.Keyword;
 import org.sakaiproject.nakamura.lom.elements.LangString;
 import org.sakaiproject.nakamura.lom.elements.Title;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,6 +67,9 @@ public class ExportIMSCP implements ResourceProvider {
   
   @Reference
   protected transient Repository repository;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
   
   public Resource getResource(ResourceResolver resourceResolver,
       HttpServletRequest request, String path) {
@@ -113,7 +120,7 @@ public class ExportIMSCP implements ResourceProvider {
                 .adaptTo(javax.jcr.Session.class));
             
             cpr = new SparseContentResource(content, userSession,
-                resourceResolver, "/p/" + poolId + "/" + filename);
+                resourceResolver, "/p/" + poolId + "/" + filename, blobAccess);
             cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
             
             LOGGER.debug("Resolved {} as {} ", path, cpr);
@@ -345,7 +352,7 @@ public class ExportIMSCP implements ResourceProvider {
       else {
         newHtml = "<a href=\"" + fileName + "\">" + fileName + "</a>";
       }
-      InputStream input = contentManager.getInputStream(resourcePath);
+      InputStream input = ContentBlobUtils.getInputStream(blobAccess, contentManager, content, null);
       int read;
       ZipEntry zae = new ZipEntry("resources/" + fileName);
       zos.putNextEntry(zae);
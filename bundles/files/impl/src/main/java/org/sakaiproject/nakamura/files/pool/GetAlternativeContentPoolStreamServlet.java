@@ -19,6 +19,9 @@ package org.sakaiproject.nakamura.files.pool;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -31,6 +34,7 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.BlobAccess;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +62,9 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
     RESERVED_SELECTORS.add("selector-used-elsewhere");
   }
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
+
   public void doDelegateGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
    doGet(request, response);
@@ -81,7 +88,7 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
         LOGGER.debug(e.getMessage(), e);
       }
       
-      streamHelper.stream(request, contentManager, node, alternativeStream, response, resource, sc);
+      streamHelper.stream(request, contentManager, blobAccess, node, alternativeStream, response, resource, sc);
     } catch (ClientPoolException e) {
       LOGGER.warn(e.getMessage(),e);
       throw new ServletException(e.getMessage(), e);
@@ -19,6 +19,9 @@ package org.sakaiproject.nakamura.files.pool;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -34,6 +37,8 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,6 +61,9 @@ public class GetPoolStructureServlet extends SlingSafeMethodsServlet implements
   private static final Logger LOGGER = LoggerFactory
       .getLogger(GetPoolStructureServlet.class);
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
+
 
   public void doDelegateGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
@@ -74,7 +82,7 @@ public class GetPoolStructureServlet extends SlingSafeMethodsServlet implements
         String resourcePath = StorageClientUtils.newPath(content.getPath(), resourceId);
         Content resourceContent = contentManager.get(resourcePath);
         if (resourceContent != null) {
-          if (contentManager.hasBody(resourcePath, null)) {
+          if (ContentBlobUtils.hasBody(blobAccess, contentManager, resourceContent, null)) {
             LOGGER.debug("Getting Resource Path {} Has Body", resourcePath);
              StreamHelper streamHelper = new StreamHelper();
              ServletContext sc = null;
@@ -83,7 +91,7 @@ public class GetPoolStructureServlet extends SlingSafeMethodsServlet implements
              } catch ( IllegalStateException e ) {
                LOGGER.debug(e.getMessage(), e);
              }
-             streamHelper.stream(request, contentManager, resourceContent, null, response, resource, sc);
+             streamHelper.stream(request, contentManager, blobAccess, resourceContent, null, response, resource, sc);
           } else {
             LOGGER.debug("Getting Resource Path {} No Body", resourcePath);
             response.setContentType("application/json");
@@ -215,8 +223,10 @@ public class GetPoolStructureServlet extends SlingSafeMethodsServlet implements
                 String resourceId = getResourceId(srequest, content);
                 LOGGER.debug("Resource ID is {} ",resourceId);
                 if (resourceId != null) {
-                  return !contentManager.hasBody(
-                      StorageClientUtils.newPath(content.getPath(), resourceId), null);
+                  Content resourceContent = contentManager.get(
+                      StorageClientUtils.newPath(content.getPath(), resourceId));
+                  return resourceContent == null
+                      || !ContentBlobUtils.hasBody(blobAccess, contentManager, resourceContent, null);
                 } else {
                   LOGGER.debug("No Resource ID found");
                 }
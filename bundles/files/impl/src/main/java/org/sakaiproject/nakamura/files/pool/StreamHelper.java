@@ -18,6 +18,8 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
@@ -28,9 +30,20 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -40,25 +53,298 @@ import javax.servlet.http.HttpServletResponse;
 
 public class StreamHelper {
 
-  public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
-    InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
+  /**
+   * Requests asking for more ranges than this (after merging overlapping ones) get the
+   * whole body, which is allowed by the spec and stops a request for thousands of tiny
+   * ranges from turning into thousands of seeks.
+   */
+  static final int MAX_RANGES = 16;
 
-    if ( dataStream == null ) {
-      response.sendError(HttpServletResponse.SC_NOT_FOUND);
-      return;
+  private static final String MULTIPART_BOUNDARY = "NAKAMURA_BYTERANGES";
+
+  private static final Comparator<long[]> RANGE_START = new Comparator<long[]>() {
+    public int compare(long[] o1, long[] o2) {
+      return (o1[0] < o2[0]) ? -1 : ((o1[0] == o2[0]) ? 0 : 1);
     }
-    
+  };
+
+  public void stream(HttpServletRequest request, ContentManager contentManager, BlobAccess blobAccess, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
     Map<String, Object> properties = node.getProperties();
     long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (unmodified(request, modifTime)) {
+    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    // A body in the blob store is named by its hash, which makes a strong validator.
+    String blobId = ContentBlobUtils.getBlobId(node, alternativeStream);
+    String etag = (blobId != null) ? "\"" + blobId + "\"" : getETag(modifTime, length);
+
+    // Check the validators before opening the body, a 304 doesn't need it.
+    if (unmodified(request, etag, modifTime)) {
+      if (etag != null) {
+        response.setHeader("ETag", etag);
+      }
       response.setStatus(SC_NOT_MODIFIED);
       return;
     }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+    InputStream dataStream = ContentBlobUtils.getInputStream(blobAccess, contentManager, node, alternativeStream);
+
+    if ( dataStream == null ) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    try {
+      List<long[]> ranges = null;
+      if (length > 0) {
+        response.setHeader("Accept-Ranges", "bytes");
+        if (ifRange(request, etag, modifTime)) {
+          ranges = getRanges(request.getHeader("Range"), length);
+        }
+      }
+      if (etag != null) {
+        response.setHeader("ETag", etag);
+      }
+
+      if (ranges == null) {
+        setHeaders(properties, resource, response, alternativeStream, servletContext);
+        setContentLength(response, length);
+        if (length > 0) {
+          copy(dataStream, 0, length, response.getOutputStream());
+        } else {
+          IOUtils.copyLarge(dataStream, response.getOutputStream());
+        }
+      } else if (ranges.isEmpty()) {
+        response.setHeader("Content-Range", "bytes */" + length);
+        response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      } else if (ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        setHeaders(properties, resource, response, alternativeStream, servletContext);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", contentRange(range, length));
+        setContentLength(response, range[1] - range[0] + 1);
+        copy(dataStream, range[0], range[1] - range[0] + 1, response.getOutputStream());
+      } else {
+        if (modifTime > 0) {
+          response.setDateHeader(HEADER_LAST_MODIFIED, modifTime);
+        }
+        String contentType = getContentType(properties, resource, alternativeStream, servletContext);
+        streamMultipart(dataStream, ranges, length, contentType, response);
+      }
+    } finally {
+      dataStream.close();
+    }
+  }
+
+  /**
+   * Writes a <code>multipart/byteranges</code> response, one part per range.
+   */
+  private void streamMultipart(InputStream dataStream, List<long[]> ranges, long length,
+      String contentType, HttpServletResponse response) throws IOException {
+    String[] partHeaders = new String[ranges.size()];
+    String end = "\r\n--" + MULTIPART_BOUNDARY + "--\r\n";
+    long contentLength = end.length();
+    for (int i = 0; i < partHeaders.length; i++) {
+      long[] range = ranges.get(i);
+      StringBuilder sb = new StringBuilder();
+      sb.append("\r\n--").append(MULTIPART_BOUNDARY).append("\r\n");
+      if (contentType != null) {
+        sb.append("Content-Type: ").append(contentType).append("\r\n");
+      }
+      sb.append("Content-Range: ").append(contentRange(range, length)).append("\r\n\r\n");
+      partHeaders[i] = sb.toString();
+      contentLength += partHeaders[i].length() + range[1] - range[0] + 1;
+    }
+
+    response.setStatus(SC_PARTIAL_CONTENT);
+    response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+    setContentLength(response, contentLength);
+    OutputStream out = response.getOutputStream();
+    // The ranges are sorted, so the body is only ever read forwards.
+    long position = 0;
+    for (int i = 0; i < partHeaders.length; i++) {
+      long[] range = ranges.get(i);
+      out.write(partHeaders[i].getBytes("ISO-8859-1"));
+      copy(dataStream, range[0] - position, range[1] - range[0] + 1, out);
+      position = range[1] + 1;
+    }
+    out.write(end.getBytes("ISO-8859-1"));
+  }
+
+  /**
+   * Copies <code>count</code> bytes, starting <code>skip</code> bytes further into the
+   * stream. When the body store is file backed the bytes are transferred straight from
+   * the file channel rather than being copied through a buffer on the heap.
+   */
+  private void copy(InputStream in, long skip, long count, OutputStream out)
+      throws IOException {
+    if (in instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) in).getChannel();
+      long position = channel.position() + skip;
+      WritableByteChannel target = Channels.newChannel(out);
+      long end = Math.min(position + count, channel.size());
+      while (position < end) {
+        long n = channel.transferTo(position, end - position, target);
+        if (n <= 0) {
+          break;
+        }
+        position += n;
+      }
+      channel.position(position);
+      return;
+    }
+
+    while (skip > 0) {
+      long n = in.skip(skip);
+      if (n <= 0) {
+        if (in.read() < 0) {
+          return;
+        }
+        n = 1;
+      }
+      skip -= n;
+    }
+    byte[] buffer = new byte[8192];
+    while (count > 0) {
+      int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+      if (n < 0) {
+        break;
+      }
+      out.write(buffer, 0, n);
+      count -= n;
+    }
+  }
+
+  /**
+   * Parses a <code>Range</code> header.
+   *
+   * @param header
+   *          The value of the header, may be null.
+   * @param length
+   *          The length of the body.
+   * @return null if the whole body should be sent, an empty list if none of the ranges
+   *         can be satisfied, or the satisfiable ranges as inclusive
+   *         <code>{first, last}</code> pairs, sorted with overlapping and adjacent ranges
+   *         merged.
+   */
+  static List<long[]> getRanges(String header, long length) {
+    if (header == null || !header.startsWith("bytes=")) {
+      return null;
+    }
+    List<long[]> ranges = new ArrayList<long[]>();
+    for (String spec : header.substring("bytes=".length()).split(",")) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long first;
+      long last;
+      try {
+        if (dash == 0) {
+          // Suffix range, the last n bytes.
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          first = Math.max(0, length - suffix);
+          last = length - 1;
+        } else {
+          first = Long.parseLong(spec.substring(0, dash));
+          if (dash == spec.length() - 1) {
+            last = length - 1;
+          } else {
+            last = Long.parseLong(spec.substring(dash + 1));
+            if (last < first) {
+              // Syntactically invalid, the header has to be ignored.
+              return null;
+            }
+            last = Math.min(last, length - 1);
+          }
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (first < length) {
+        ranges.add(new long[] { first, last });
+      }
+    }
+
+    Collections.sort(ranges, RANGE_START);
+    List<long[]> merged = new ArrayList<long[]>();
+    for (long[] range : ranges) {
+      long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (previous != null && range[0] <= previous[1] + 1) {
+        previous[1] = Math.max(previous[1], range[1]);
+      } else {
+        merged.add(range);
+      }
+    }
+    if (merged.size() > MAX_RANGES) {
+      return null;
+    }
+    return merged;
+  }
+
+  private String contentRange(long[] range, long length) {
+    return "bytes " + range[0] + "-" + range[1] + "/" + length;
+  }
+
+  /**
+   * The body of a piece of content only changes together with its length or last
+   * modification time, so those make a strong validator.
+   *
+   * @return the ETag, or null if there is nothing to build one from.
+   */
+  static String getETag(long modifTime, long length) {
+    if (modifTime <= 0 && length <= 0) {
+      return null;
+    }
+    return "\"" + Long.toHexString(length) + "-" + Long.toHexString(modifTime) + "\"";
+  }
+
+  /**
+   * Returns <code>true</code> if the request has an <code>If-None-Match</code> header
+   * matching the ETag or, failing that, an <code>If-Modified-Since</code> header whose
+   * date value is later than the last modification time given as <code>modifTime</code>.
+   */
+  private boolean unmodified(HttpServletRequest request, String etag, long modifTime) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return etag != null && matches(ifNoneMatch, etag);
+    }
+    return unmodified(request, modifTime);
+  }
+
+  private boolean matches(String header, String etag) {
+    for (String candidate : header.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if ("*".equals(candidate) || etag.equals(candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return <code>true</code> if there is no <code>If-Range</code> header, or it still
+   *         matches the current body so that the requested ranges can be sent.
+   */
+  private boolean ifRange(HttpServletRequest request, String etag, long modifTime) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.startsWith("\"")) {
+      return ifRange.equals(etag);
+    }
+    try {
+      long date = request.getDateHeader("If-Range");
+      return modifTime > 0 && date >= 0 && modifTime / 1000 == date / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
   }
 
   /**
@@ -99,13 +385,7 @@ public class StreamHelper {
       response.setDateHeader(HEADER_LAST_MODIFIED, modifTime);
     }
 
-    String contentType = (String) properties.get(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream));
-    if (contentType == null && servletContext != null) {
-      final String ct = servletContext.getMimeType(resource.getPath());
-      if (ct != null) {
-        contentType = ct;
-      }
-    }
+    String contentType = getContentType(properties, resource, alternativeStream, servletContext);
     if (contentType != null) {
       response.setContentType(contentType);
     }
@@ -116,6 +396,17 @@ public class StreamHelper {
     }
   }
 
+  private String getContentType(Map<String, Object> properties, Resource resource, String alternativeStream, ServletContext servletContext) {
+    String contentType = (String) properties.get(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream));
+    if (contentType == null && servletContext != null) {
+      final String ct = servletContext.getMimeType(resource.getPath());
+      if (ct != null) {
+        contentType = ct;
+      }
+    }
+    return contentType;
+  }
+
   /**
    * Set the <code>Content-Length</code> header to the give value. If the length is larger
    * than <code>Integer.MAX_VALUE</code> it is converted to a string and the
@@ -128,8 +419,7 @@ public class StreamHelper {
    *          The content length to be set. If this value is equal to or less than zero,
    *          the header is not set.
    */
-  private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
-    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
@@ -0,0 +1,272 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads an upload once for everything that wants it. The stream from
+ * {@link #getInputStream()} is read by whatever stores the body, and every chunk read from
+ * it is copied into a bounded buffer for each branch, so branches can be read on other
+ * threads while the body is being stored.
+ *
+ * Branches only see the end of the stream once {@link #finish()} is called, which is done
+ * after the body has been stored. A branch that is closed early is dropped, as is one
+ * whose buffer stays full for longer than the timeout, rather than holding up the upload.
+ */
+class UploadPipeline {
+
+  private final InputStream source;
+  private final int bufferSize;
+  private final long timeout;
+  private final List<Branch> branches = new ArrayList<Branch>();
+
+  /**
+   * @param source
+   *          The upload.
+   * @param bufferSize
+   *          The number of bytes each branch may fall behind the upload.
+   * @param timeout
+   *          How long, in ms, the upload waits on a full branch before dropping it.
+   */
+  UploadPipeline(InputStream source, int bufferSize, long timeout) {
+    this.source = source;
+    this.bufferSize = bufferSize;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Adds a branch, this must be done before the upload is read.
+   *
+   * @return a stream with the same bytes as the upload.
+   */
+  InputStream addBranch() {
+    Branch branch = new Branch(bufferSize, timeout);
+    synchronized (branches) {
+      branches.add(branch);
+    }
+    return branch;
+  }
+
+  /**
+   * @return the stream to store the upload from.
+   */
+  InputStream getInputStream() {
+    return new TeeInputStream(source);
+  }
+
+  /**
+   * Ends the stream of each branch, once the upload is stored.
+   */
+  void finish() {
+    synchronized (branches) {
+      for (Branch branch : branches) {
+        branch.end();
+      }
+      branches.clear();
+    }
+  }
+
+  /**
+   * Fails the stream of each branch, when the upload could not be stored.
+   */
+  void abort(String message) {
+    synchronized (branches) {
+      for (Branch branch : branches) {
+        branch.fail(message);
+      }
+      branches.clear();
+    }
+  }
+
+  private void offer(byte[] b, int off, int len) throws InterruptedIOException {
+    synchronized (branches) {
+      for (Iterator<Branch> i = branches.iterator(); i.hasNext();) {
+        if (!i.next().offer(b, off, len)) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  private class TeeInputStream extends FilterInputStream {
+
+    private TeeInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int c = super.read();
+      if (c >= 0) {
+        offer(new byte[] { (byte) c }, 0, 1);
+      }
+      return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        offer(b, off, n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // the branches still need the skipped bytes
+      byte[] buffer = new byte[(int) Math.min(n, 4096)];
+      long skipped = 0;
+      while (skipped < n) {
+        int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+        if (read < 0) {
+          break;
+        }
+        skipped += read;
+      }
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /**
+   * A bounded buffer, written by the thread storing the upload and read by a branch.
+   */
+  static class Branch extends InputStream {
+
+    private final byte[] buffer;
+    private final long timeout;
+    private int head;
+    private int count;
+    private boolean ended;
+    private boolean closed;
+    private String failure;
+
+    Branch(int bufferSize, long timeout) {
+      this.buffer = new byte[bufferSize];
+      this.timeout = timeout;
+    }
+
+    /**
+     * @return false if the branch has been dropped.
+     */
+    synchronized boolean offer(byte[] b, int off, int len) throws InterruptedIOException {
+      long deadline = System.currentTimeMillis() + timeout;
+      while (len > 0) {
+        if (closed || failure != null) {
+          return false;
+        }
+        if (count == buffer.length) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            fail("Dropped after falling " + buffer.length + " bytes behind the upload");
+            return false;
+          }
+          try {
+            wait(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+          }
+          continue;
+        }
+        int tail = (head + count) % buffer.length;
+        int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+        System.arraycopy(b, off, buffer, tail, n);
+        count += n;
+        off += n;
+        len -= n;
+        deadline = System.currentTimeMillis() + timeout;
+        notifyAll();
+      }
+      return true;
+    }
+
+    synchronized void end() {
+      ended = true;
+      notifyAll();
+    }
+
+    synchronized void fail(String message) {
+      if (failure == null) {
+        failure = message;
+      }
+      notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return (n < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (count == 0 && !ended && failure == null && !closed) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(e.getMessage());
+        }
+      }
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (failure != null) {
+        throw new IOException(failure);
+      }
+      if (count == 0) {
+        return -1;
+      }
+      int n = Math.min(len, Math.min(count, buffer.length - head));
+      System.arraycopy(buffer, head, b, off, n);
+      head = (head + n) % buffer.length;
+      count -= n;
+      notifyAll();
+      return n;
+    }
+
+    @Override
+    public synchronized int available() {
+      return count;
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+      count = 0;
+      notifyAll();
+    }
+  }
+}
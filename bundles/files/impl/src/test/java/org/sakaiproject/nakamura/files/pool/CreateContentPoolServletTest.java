@@ -52,10 +52,13 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.RepositoryImpl;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -249,6 +252,12 @@ public class CreateContentPoolServletTest {
     cp.clusterTrackingService = clusterTrackingService;
     cp.sparseRepository = repository;
     cp.authorizableCountChanger = authorizableCountChanger;
+
+    ContentBlobStoreImpl contentBlobStore = new ContentBlobStoreImpl();
+    contentBlobStore.sparseRepository = repository;
+    contentBlobStore.activate(new HashMap<String, Object>());
+    cp.contentBlobStore = contentBlobStore;
+    cp.modified(new HashMap<String, Object>());
   }
 
 
@@ -279,6 +288,33 @@ public class CreateContentPoolServletTest {
     Assert.assertNotNull(jsonObject.getString("index.html"));
     Assert.assertNotNull(jsonObject.getString("testabspath.pdf")); // The servlet should scrub off the absolute path.
     Assert.assertEquals(3, jsonObject.length());
+
+    // The blob reference is never written out.
+    Assert.assertFalse(jsonObject.getJSONObject("testfilename.pdf").getJSONObject("item")
+        .has(ContentBlobUtils.BLOB_FIELD));
+
+    // All three uploads have the same body, which should only be stored once.
+    Session session = repository.loginAdministrative();
+    try {
+      ContentManager contentManager = session.getContentManager();
+      String blobId = null;
+      for (String name : new String[] { "testfilename.pdf", "index.html", "testabspath.pdf" }) {
+        String poolId = jsonObject.getJSONObject(name).getString("poolId");
+        Content content = contentManager.get(poolId);
+        if (blobId == null) {
+          blobId = ContentBlobUtils.getBlobId(content, null);
+          Assert.assertNotNull(blobId);
+        }
+        Assert.assertEquals(blobId, ContentBlobUtils.getBlobId(content, null));
+        InputStream in = ContentBlobUtils.getInputStream(
+            (ContentBlobStoreImpl) cp.contentBlobStore, contentManager, content, null);
+        Assert.assertNotNull(in);
+        in.close();
+      }
+      Assert.assertTrue(contentManager.hasBody(ContentBlobUtils.getBlobPath(blobId), null));
+    } finally {
+      session.logout();
+    }
   }
 
 
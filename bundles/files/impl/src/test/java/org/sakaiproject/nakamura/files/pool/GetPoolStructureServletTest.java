@@ -36,6 +36,8 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -123,8 +125,17 @@ public class GetPoolStructureServletTest {
     Mockito.when(resource.adaptTo(ContentManager.class)).thenReturn(contentManager);
     Assert.assertTrue(getPoolStructureServlet.safeToStream(request)); // safe because this has no body
 
+    Mockito.when(contentManager.get("23423423423/123456")).thenReturn(new Content("23423423423/123456", null));
     Mockito.when(contentManager.hasBody("23423423423/123456", null)).thenReturn(true);
     Assert.assertFalse(getPoolStructureServlet.safeToStream(request)); // safe because this has no body
+
+    Mockito.when(contentManager.hasBody("23423423423/123456", null)).thenReturn(false);
+    Mockito.when(contentManager.get("23423423423/123456")).thenReturn(new Content("23423423423/123456",
+        ImmutableMap.of(ContentBlobUtils.BLOB_FIELD, (Object) "da39a3ee5e6b4b0d3255bfef95601890afd80709")));
+    BlobAccess blobAccess = Mockito.mock(BlobAccess.class);
+    Mockito.when(blobAccess.hasBody("23423423423/123456", "da39a3ee5e6b4b0d3255bfef95601890afd80709")).thenReturn(true);
+    getPoolStructureServlet.blobAccess = blobAccess;
+    Assert.assertFalse(getPoolStructureServlet.safeToStream(request)); // not safe, the body is in the blob store
   }
   
   
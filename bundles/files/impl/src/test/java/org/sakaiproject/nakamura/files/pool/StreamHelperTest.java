@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class StreamHelperTest {
+
+  private static final String BODY = "0123456789abcdefghij";
+  private static final long MODIFIED = 1300000000000L;
+
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private ContentManager contentManager;
+  private Resource resource;
+  private Content content;
+  private ByteArrayOutputStream output;
+
+  @Before
+  public void before() throws Exception {
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    contentManager = Mockito.mock(ContentManager.class);
+    resource = Mockito.mock(Resource.class);
+    content = new Content("p/abc", ImmutableMap.of(Content.LENGTH_FIELD, (Object) BODY.length(),
+        Content.LASTMODIFIED_FIELD, MODIFIED, Content.MIMETYPE_FIELD, "text/plain"));
+    Mockito.when(request.getDateHeader(Mockito.anyString())).thenReturn(-1L);
+    Mockito.when(contentManager.getInputStream("p/abc", null)).thenReturn(
+        new ByteArrayInputStream(BODY.getBytes("UTF-8")));
+    output = new ByteArrayOutputStream();
+    Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        output.write(b);
+      }
+    });
+  }
+
+  private void stream() throws IOException, StorageClientException, AccessDeniedException {
+    new StreamHelper().stream(request, contentManager, null, content, null, response, resource,
+        null);
+  }
+
+  @Test
+  public void testFullBody() throws Exception {
+    stream();
+    Assert.assertEquals(BODY, output.toString("UTF-8"));
+    Mockito.verify(response).setContentLength(BODY.length());
+    Mockito.verify(response).setHeader("Accept-Ranges", "bytes");
+    Mockito.verify(response).setHeader("ETag", StreamHelper.getETag(MODIFIED, BODY.length()));
+    Mockito.verify(response, Mockito.never()).setStatus(Mockito.anyInt());
+  }
+
+  @Test
+  public void testNotModifiedDoesNotOpenBody() throws Exception {
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn(
+        StreamHelper.getETag(MODIFIED, BODY.length()));
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(contentManager, Mockito.never()).getInputStream("p/abc", null);
+
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn(null);
+    Mockito.when(request.getDateHeader("If-Modified-Since")).thenReturn(MODIFIED);
+    stream();
+    Mockito.verify(response, Mockito.times(2)).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(contentManager, Mockito.never()).getInputStream("p/abc", null);
+  }
+
+  @Test
+  public void testSingleRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=2-5");
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setHeader("Content-Range", "bytes 2-5/20");
+    Mockito.verify(response).setContentLength(4);
+    Assert.assertEquals("2345", output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=-2,0-1");
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setContentType(
+        Mockito.startsWith("multipart/byteranges; boundary="));
+    String body = output.toString("UTF-8");
+    Assert.assertTrue(body.contains("Content-Range: bytes 0-1/20\r\n\r\n01\r\n"));
+    Assert.assertTrue(body.contains("Content-Range: bytes 18-19/20\r\n\r\nij\r\n"));
+    Assert.assertTrue(body.indexOf("bytes 0-1") < body.indexOf("bytes 18-19"));
+    Mockito.verify(response).setContentLength(output.size());
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=20-");
+    stream();
+    Mockito.verify(response).setHeader("Content-Range", "bytes */20");
+    Mockito.verify(response).sendError(
+        HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+  }
+
+  @Test
+  public void testIfRangeChanged() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=2-5");
+    Mockito.when(request.getHeader("If-Range")).thenReturn("\"old\"");
+    stream();
+    Mockito.verify(response, Mockito.never()).setStatus(Mockito.anyInt());
+    Assert.assertEquals(BODY, output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testFileBackedRange() throws Exception {
+    File file = File.createTempFile("streamhelper", null);
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(BODY.getBytes("UTF-8"));
+      out.close();
+      Mockito.when(contentManager.getInputStream("p/abc", null)).thenReturn(
+          new FileInputStream(file));
+      Mockito.when(request.getHeader("Range")).thenReturn("bytes=1-2,10-");
+      stream();
+      String body = output.toString("UTF-8");
+      Assert.assertTrue(body.contains("\r\n\r\n12\r\n"));
+      Assert.assertTrue(body.contains("\r\n\r\nabcdefghij\r\n"));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testGetRanges() {
+    Assert.assertNull(StreamHelper.getRanges(null, 100));
+    Assert.assertNull(StreamHelper.getRanges("items=0-1", 100));
+    Assert.assertNull(StreamHelper.getRanges("bytes=5-1", 100));
+    Assert.assertNull(StreamHelper.getRanges("bytes=a-b", 100));
+    Assert.assertTrue(StreamHelper.getRanges("bytes=100-", 100).isEmpty());
+
+    List<long[]> ranges = StreamHelper.getRanges("bytes=50-60, 0-10,11-20,55-200", 100);
+    Assert.assertEquals(2, ranges.size());
+    Assert.assertEquals(0, ranges.get(0)[0]);
+    Assert.assertEquals(20, ranges.get(0)[1]);
+    Assert.assertEquals(50, ranges.get(1)[0]);
+    Assert.assertEquals(99, ranges.get(1)[1]);
+
+    StringBuilder many = new StringBuilder("bytes=");
+    for (int i = 0; i <= StreamHelper.MAX_RANGES; i++) {
+      many.append(i * 2).append('-').append(i * 2).append(',');
+    }
+    Assert.assertNull(StreamHelper.getRanges(many.toString(), 100));
+  }
+}
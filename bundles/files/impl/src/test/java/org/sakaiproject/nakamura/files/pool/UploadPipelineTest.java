@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class UploadPipelineTest {
+
+  private static byte[] body(int length) {
+    byte[] body = new byte[length];
+    new Random(42).nextBytes(body);
+    return body;
+  }
+
+  private static Callable<byte[]> reader(final InputStream in) {
+    return new Callable<byte[]>() {
+      public byte[] call() throws Exception {
+        return IOUtils.toByteArray(in);
+      }
+    };
+  }
+
+  @Test
+  public void testBranchesSeeTheWholeUpload() throws Exception {
+    byte[] body = body(100000);
+    UploadPipeline pipeline = new UploadPipeline(new ByteArrayInputStream(body), 1024, 5000);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<byte[]> first = executor.submit(reader(pipeline.addBranch()));
+      Future<byte[]> second = executor.submit(reader(pipeline.addBranch()));
+      ByteArrayOutputStream stored = new ByteArrayOutputStream();
+      IOUtils.copy(pipeline.getInputStream(), stored);
+      Assert.assertFalse(first.isDone());
+      pipeline.finish();
+      Assert.assertTrue(Arrays.equals(body, stored.toByteArray()));
+      Assert.assertTrue(Arrays.equals(body, first.get(5, TimeUnit.SECONDS)));
+      Assert.assertTrue(Arrays.equals(body, second.get(5, TimeUnit.SECONDS)));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testClosedBranchIsDropped() throws Exception {
+    byte[] body = body(100000);
+    UploadPipeline pipeline = new UploadPipeline(new ByteArrayInputStream(body), 1024, 60000);
+    pipeline.addBranch().close();
+    ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    IOUtils.copy(pipeline.getInputStream(), stored);
+    pipeline.finish();
+    Assert.assertEquals(body.length, stored.size());
+  }
+
+  @Test
+  public void testSlowBranchIsDropped() throws Exception {
+    byte[] body = body(100000);
+    UploadPipeline pipeline = new UploadPipeline(new ByteArrayInputStream(body), 1024, 50);
+    InputStream branch = pipeline.addBranch();
+    ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    IOUtils.copy(pipeline.getInputStream(), stored);
+    pipeline.finish();
+    Assert.assertEquals(body.length, stored.size());
+    try {
+      IOUtils.toByteArray(branch);
+      Assert.fail("A branch that fell behind should fail");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testAbort() throws Exception {
+    UploadPipeline pipeline = new UploadPipeline(new ByteArrayInputStream(body(10)), 1024, 5000);
+    InputStream branch = pipeline.addBranch();
+    IOUtils.copy(pipeline.getInputStream(), new ByteArrayOutputStream());
+    pipeline.abort("failed");
+    try {
+      IOUtils.toByteArray(branch);
+      Assert.fail("An aborted upload should fail its branches");
+    } catch (IOException e) {
+      Assert.assertEquals("failed", e.getMessage());
+    }
+  }
+}
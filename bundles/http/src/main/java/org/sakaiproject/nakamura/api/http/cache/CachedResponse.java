@@ -21,8 +21,11 @@ import org.sakaiproject.nakamura.api.http.cache.Operation;
 import org.sakaiproject.nakamura.http.cache.OperationResponseCapture;
 import org.sakaiproject.nakamura.http.cache.OperationResponseReplay;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -34,27 +37,157 @@ public class CachedResponse implements Serializable {
   /**
    *
    */
-  private static final long serialVersionUID = -533080549451000116L;
+  private static final long serialVersionUID = -533080549451000117L;
+  public static final String IDENTITY = "identity";
+  public static final String GZIP = "gzip";
+  /**
+   * Bodies smaller than this are not worth compressing.
+   */
+  private static final int MIN_GZIP_SIZE = 256;
   private long expires;
   private Operation[] operations;
   private byte[] byteContent;
   private String stringContent;
+  private String etag;
+  private long lastModified;
+  private int identityLength;
+  private byte[] gzipContent;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
     expires = System.currentTimeMillis() + cacheAge*1000L;
     responseOperation.setDateHeader("X-Nakamura-Cache", System.currentTimeMillis());
+    etag = responseOperation.getETag();
+    lastModified = responseOperation.getLastModified();
     operations = responseOperation.getRedoLog();
     byteContent = responseOperation.getByteContent();
     stringContent = responseOperation.getStringContent();
+    byte[] identity = byteContent;
+    if (identity == null && stringContent != null) {
+      try {
+        identity = stringContent.getBytes(responseOperation.getCharacterEncoding());
+      } catch (UnsupportedEncodingException e) {
+        identity = null;
+      }
+    }
+    if (identity != null) {
+      identityLength = identity.length;
+      gzipContent = gzip(identity);
+    }
+  }
+
+  /**
+   * Compress the body once, so that hits can be served without compressing again.
+   *
+   * @param identity
+   * @return the compressed body, or null if compressing would not save anything.
+   * @throws IOException
+   */
+  private byte[] gzip(byte[] identity) throws IOException {
+    if (identity.length < MIN_GZIP_SIZE) {
+      return null;
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(identity.length / 4);
+    GZIPOutputStream gzip = new GZIPOutputStream(baos);
+    gzip.write(identity);
+    gzip.close();
+    byte[] compressed = baos.toByteArray();
+    // already compressed content, images etc., doesn't shrink.
+    if (compressed.length > identity.length * 9 / 10) {
+      return null;
+    }
+    return compressed;
+  }
+
+  /**
+   * @return the quoted strong entity tag of the cached body.
+   */
+  public String getETag() {
+    return etag;
+  }
+
+  /**
+   * @param encoding
+   *          the content coding, {@link #GZIP} or {@link #IDENTITY}.
+   * @return the quoted strong entity tag of the body in that coding, each stored coding
+   *         has a different tag.
+   */
+  public String getETag(String encoding) {
+    if (GZIP.equals(encoding) && gzipContent != null) {
+      return etag.substring(0, etag.length() - 1) + "-gzip\"";
+    }
+    return etag;
+  }
+
+  /**
+   * @param encoding
+   * @return the encoding that will actually be used to replay the response.
+   */
+  public String getEncoding(String encoding) {
+    if (GZIP.equals(encoding) && gzipContent != null) {
+      return GZIP;
+    }
+    return IDENTITY;
+  }
+
+  /**
+   * @param encoding
+   * @return the number of body bytes not sent because the response was served in that
+   *         encoding.
+   */
+  public long getBytesSaved(String encoding) {
+    if (GZIP.equals(encoding) && gzipContent != null) {
+      return identityLength - gzipContent.length;
+    }
+    return 0;
+  }
+
+  /**
+   * @return the length of the uncompressed body.
+   */
+  public int getLength() {
+    return identityLength;
+  }
+
+  /**
+   * @return the Last-Modified date of the cached response, or -1 if it had none.
+   */
+  public long getLastModified() {
+    return lastModified;
   }
 
   public boolean isValid() {
     return expires > System.currentTimeMillis();
   }
 
+  /**
+   * @param staleAge
+   *          seconds past expiry to allow.
+   * @return true if the response has not been expired for longer than staleAge.
+   */
+  public boolean isValid(int staleAge) {
+    return expires + staleAge * 1000L > System.currentTimeMillis();
+  }
+
   public void replay(HttpServletResponse response) throws IOException {
+    replay(response, IDENTITY);
+  }
+
+  /**
+   * Replay the response, using a stored precompressed body if there is one for the
+   * encoding.
+   *
+   * @param response
+   * @param encoding
+   *          the preferred content coding, {@link #GZIP} or {@link #IDENTITY}.
+   * @throws IOException
+   */
+  public void replay(HttpServletResponse response, String encoding) throws IOException {
     OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
-    responseOperation.replay(response);
+    if (GZIP.equals(getEncoding(encoding))) {
+      responseOperation.replay(response, getETag(encoding), GZIP, gzipContent);
+    } else {
+      responseOperation.replay(response, etag, null, null);
+    }
   }
 
   @Override
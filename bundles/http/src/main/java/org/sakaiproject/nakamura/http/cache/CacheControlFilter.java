@@ -31,14 +31,19 @@ import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.regex.Pattern;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -56,24 +61,49 @@ import javax.servlet.http.HttpServletResponse;
  * 
  * When more than one pattern matches, the filter sets the lowest maxage of the collection
  * of matching patterns.
+ *
+ * Responses cached with .requestCache carry a strong ETag, and conditional requests
+ * (If-None-Match or If-Modified-Since) that match are answered with a 304, from the cache
+ * or, when the generated response has not been committed yet, on the way through. Each
+ * cached entry also holds a gzip copy of the body, sent to clients that accept gzip so
+ * that hits are not compressed again. Counters are registered with JMX as
+ * org.sakaiproject.nakamura.http:type=ResponseCache.
+ *
+ * When a cached entry is missing or expired only one request regenerates it. With
+ * .stale:&lt;seconds&gt; other requests are sent the expired copy for that long after it
+ * expires, and with .coalesce:&lt;ms&gt; requests that have no copy wait up to that long
+ * for the regenerated entry before running the request themselves.
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
     @Property(name = "service.description", value = "Nakamura Cache-Control Filter"),
     @Property(name = "sakai.cache.paths", value = { 
-        "dev;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding", 
-        "devwidgets;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding",
+        "dev;.lastmodified:unset;.cookies:unset;.requestCache:900;.coalesce:5000;.stale:300;.expires:180000;Vary: Accept-Encoding", 
+        "devwidgets;.lastmodified:unset;.cookies:unset;.requestCache:900;.coalesce:5000;.stale:300;.expires:180000;Vary: Accept-Encoding",
         "p;Cache-Control:no-cache" }, 
         description = "List of subpaths and max age for all content under subpath in seconds, setting to 0 makes it non cacheing"),
     @Property(name = "sakai.cache.patterns", value = { 
         "root;.*(js|css)$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding",
         "root;.*html$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding",
-        "var;^/var/search/public/.*$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:3600;Vary: Accept-Encoding",
-        "var;^/var/widgets.json$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding"}, 
+        "var;^/var/search/public/.*$;.lastmodified:unset;.cookies:unset;.requestCache:900;.coalesce:2000;.stale:60;.expires:3600;Vary: Accept-Encoding",
+        "var;^/var/widgets.json$;.lastmodified:unset;.cookies:unset;.requestCache:900;.coalesce:5000;.stale:300;.expires:180000;Vary: Accept-Encoding"}, 
         description = "List of path prefixes followed by a regex. If the prefix starts with a root: it means files in the root folder that match the pattern."),
     @Property(name = "service.vendor", value = "The Sakai Foundation")})
 public class CacheControlFilter implements Filter {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheControlFilter.class);
+
+  private static final String STATS_NAME = "org.sakaiproject.nakamura.http:type=ResponseCache";
+
+  /**
+   * the name of the configuration entry that matched, held in the headers map.
+   */
+  private static final String CACHE_PATH_NAME = ".name";
+
+  private ResponseCacheStats stats = new ResponseCacheStats();
+
+  private RequestCoalescer coalescer = new RequestCoalescer();
+
   /**
    * map of expiry times for whole subtrees
    */
@@ -130,6 +160,8 @@ public class CacheControlFilter implements Filter {
     boolean withLastModfied = true;
     boolean withCookies = true;
     int cacheAge = 0;
+    int staleAge = 0;
+    long coalesceWait = 0;
     CachedResponseManager cachedResponseManager = null;
     FilterResponseWrapper fresponse = null;
     if ("GET".equals(srequest.getMethod())) {
@@ -142,6 +174,14 @@ public class CacheControlFilter implements Filter {
         if ( cacheAgeValue != null ) {
           cacheAge = Integer.parseInt(cacheAgeValue);
         }
+        String staleAgeValue = headers.get(".stale");
+        if ( staleAgeValue != null ) {
+          staleAge = Integer.parseInt(staleAgeValue);
+        }
+        String coalesceWaitValue = headers.get(".coalesce");
+        if ( coalesceWaitValue != null ) {
+          coalesceWait = Long.parseLong(coalesceWaitValue);
+        }
         
         String expiresOffsetValue = headers.get(".expires");
         if ( expiresOffsetValue != null ) {
@@ -160,23 +200,49 @@ public class CacheControlFilter implements Filter {
       sresponse.setStatus(respCode);
       sresponse.flushBuffer();
     } else {
+      boolean leader = false;
       if ( cacheAge > 0 ) {
-        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache());
+        String cachePath = headers.get(CACHE_PATH_NAME);
+        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, staleAge, getCache());
         if ( cachedResponseManager.isValid() ) {
-          cachedResponseManager.send(sresponse);
+          stats.hit(cachePath, cachedResponseManager.send(sresponse));
           return;
         }
+        leader = coalescer.lead(cachedResponseManager.getKey());
+        if ( !leader ) {
+          // someone else is regenerating this entry.
+          if ( cachedResponseManager.isStale() ) {
+            stats.staleHit(cachePath, cachedResponseManager.sendStale(sresponse));
+            return;
+          }
+          if ( coalesceWait > 0 ) {
+            stats.coalesced(cachePath);
+            if ( coalescer.await(cachedResponseManager.getKey(), coalesceWait)
+                && cachedResponseManager.reload() ) {
+              stats.hit(cachePath, cachedResponseManager.send(sresponse));
+              return;
+            }
+          }
+        }
+        stats.miss(cachePath);
       }
-      if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
-        fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
-      }
-      if ( fresponse != null ) {
-        chain.doFilter(request, fresponse);
-        if ( cachedResponseManager != null ) {
-          cachedResponseManager.save(fresponse.getResponseOperation());
+      try {
+        if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
+          fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
+        }
+        if ( fresponse != null ) {
+          chain.doFilter(request, fresponse);
+          if ( cachedResponseManager != null ) {
+            cachedResponseManager.save(fresponse.getResponseOperation());
+            cachedResponseManager.sendValidators(sresponse);
+          }
+        } else {
+          chain.doFilter(request, response);
+        }
+      } finally {
+        if ( leader ) {
+          coalescer.done(cachedResponseManager.getKey());
         }
-      } else {
-        chain.doFilter(request, response);
       }
     }
   }
@@ -239,7 +305,9 @@ public class CacheControlFilter implements Filter {
     if (sakaiCachePaths != null) {
       for (String sakaiCachePath : sakaiCachePaths) {
         String[] cp = StringUtils.split(sakaiCachePath, ';');
-        subPaths.put(cp[0], toMap(1, cp));
+        Map<String, String> headers = toMap(1, cp);
+        headers.put(CACHE_PATH_NAME, cp[0]);
+        subPaths.put(cp[0], headers);
       }
     }
     String[] sakaiCachePatternPaths = PropertiesUtil.toStringArray(properties.get(SAKAI_CACHE_PATTERNS));
@@ -247,11 +315,13 @@ public class CacheControlFilter implements Filter {
     if (sakaiCachePatternPaths != null) {
       for (String sakaiCachePatternPath : sakaiCachePatternPaths) {
         String[] cp = StringUtils.split(sakaiCachePatternPath, ';');
+        Map<String, String> headers = toMap(2, cp);
+        headers.put(CACHE_PATH_NAME, cp[0] + ";" + cp[1]);
         if (subPathPatterns.containsKey(cp[0])) {
-          subPathPatterns.get(cp[0]).put(Pattern.compile(cp[1]), toMap(2, cp));
+          subPathPatterns.get(cp[0]).put(Pattern.compile(cp[1]), headers);
         } else {
           Map<Pattern, Map<String, String>> patternMap = new HashMap<Pattern, Map<String, String>>();
-          patternMap.put(Pattern.compile(cp[1]), toMap(2, cp));
+          patternMap.put(Pattern.compile(cp[1]), headers);
           subPathPatterns.put(cp[0], patternMap);
         }
       }
@@ -265,12 +335,35 @@ public class CacheControlFilter implements Filter {
 
     extHttpService.registerFilter(this, ".*", null, filterPriority, null);
 
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(STATS_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(stats, objectName);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register response cache statistics {} ", e.getMessage());
+    }
 
   }
 
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(STATS_NAME));
+    } catch (Exception e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
+  ResponseCacheStats getStats() {
+    return stats;
+  }
+
+  RequestCoalescer getCoalescer() {
+    return coalescer;
   }
 
   private Map<String, String> toMap(int starting, String[] cp) {
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.slf4j.Logger;
@@ -34,8 +35,28 @@ public class CachedResponseManager {
   private String key;
   private Cache<CachedResponse> cache;
   private CachedResponse cachedResponse;
+  private CachedResponse staleResponse;
+  private int staleAge;
+  private HttpServletRequest request;
+  private String encoding;
 
   public CachedResponseManager(HttpServletRequest request, int cacheAge, Cache<CachedResponse> cache) {
+    this(request, cacheAge, 0, cache);
+  }
+
+  /**
+   * @param request
+   * @param cacheAge
+   *          seconds a saved response is valid for.
+   * @param staleAge
+   *          seconds after expiry that a saved response may still be sent while it is
+   *          being regenerated.
+   * @param cache
+   */
+  public CachedResponseManager(HttpServletRequest request, int cacheAge, int staleAge, Cache<CachedResponse> cache) {
+    this.request = request;
+    this.staleAge = staleAge;
+    this.encoding = normalizeAcceptEncoding(request.getHeader("Accept-Encoding"));
     this.cacheAge = cacheAge;
     this.key = hashKey(request.getPathInfo()+"?"+request.getQueryString());
     this.cache = cache;
@@ -46,6 +67,44 @@ public class CachedResponseManager {
     return key;
   }
 
+  /**
+   * Reduce an Accept-Encoding header to the one stored variant that should be sent. All
+   * the variants of a response are held in the same cache entry.
+   *
+   * @param acceptEncoding
+   * @return {@link CachedResponse#GZIP} if gzip is acceptable, otherwise
+   *         {@link CachedResponse#IDENTITY}.
+   */
+  static String normalizeAcceptEncoding(String acceptEncoding) {
+    if ( acceptEncoding == null ) {
+      return CachedResponse.IDENTITY;
+    }
+    for ( String coding : StringUtils.split(acceptEncoding.toLowerCase(), ',') ) {
+      String[] parts = StringUtils.split(coding, ';');
+      if ( parts.length == 0 ) {
+        continue;
+      }
+      String name = parts[0].trim();
+      if ( "gzip".equals(name) || "x-gzip".equals(name) || "*".equals(name) ) {
+        boolean acceptable = true;
+        for ( int i = 1; i < parts.length; i++ ) {
+          String param = parts[i].trim();
+          if ( param.startsWith("q=") ) {
+            try {
+              acceptable = Float.parseFloat(param.substring(2)) > 0.0f;
+            } catch (NumberFormatException e) {
+              acceptable = false;
+            }
+          }
+        }
+        if ( acceptable ) {
+          return CachedResponse.GZIP;
+        }
+      }
+    }
+    return CachedResponse.IDENTITY;
+  }
+
   /**
    * @return true if the CacheResponse is current and valid.
    */
@@ -53,10 +112,32 @@ public class CachedResponseManager {
     return cachedResponse != null;
   }
 
+  /**
+   * @return true if there is an expired response that is still within the stale window.
+   */
+  public boolean isStale() {
+    return staleResponse != null;
+  }
+
+  /**
+   * Look in the cache again, after another request has regenerated the entry.
+   *
+   * @return true if there is now a valid response.
+   */
+  public boolean reload() {
+    cachedResponse = load();
+    return isValid();
+  }
+
+  public String getKey() {
+    return key;
+  }
+
   public void save(OperationResponseCapture responseOperation) {
     try {
       if ( responseOperation.canCache() ) {
-        cache.put(key, new CachedResponse(responseOperation, cacheAge));
+        cachedResponse = new CachedResponse(responseOperation, cacheAge);
+        cache.put(key, cachedResponse);
       }
     } catch (IOException e) {
       LOGGER.error("Failed to save response in cache ",e);
@@ -67,16 +148,121 @@ public class CachedResponseManager {
     CachedResponse cachedResponse = null;
     cachedResponse = cache.get(key);
     if ( cachedResponse != null && !cachedResponse.isValid() ) {
+      if ( cachedResponse.isValid(staleAge) ) {
+        staleResponse = cachedResponse;
+      } else {
+        cache.remove(key);
+      }
       cachedResponse = null;
-      cache.remove(key);
     }
     return cachedResponse;
   }
 
-  public void send(HttpServletResponse response) throws IOException {
-    cachedResponse.replay(response);
+  /**
+   * Send the cached response, precompressed if the client accepts it, or a 304 if the
+   * client's copy is current.
+   *
+   * @param response
+   * @return the number of body bytes that did not need to be sent.
+   * @throws IOException
+   */
+  public long send(HttpServletResponse response) throws IOException {
+    return send(response, cachedResponse);
+  }
+
+  /**
+   * Send the expired copy while another request regenerates the entry.
+   *
+   * @param response
+   * @return the number of body bytes that did not need to be sent.
+   * @throws IOException
+   */
+  public long sendStale(HttpServletResponse response) throws IOException {
+    response.setHeader("Warning", "110 - \"Response is Stale\"");
+    return send(response, staleResponse);
+  }
+
+  private long send(HttpServletResponse response, CachedResponse cachedResponse) throws IOException {
+    if ( isNotModified(cachedResponse) ) {
+      sendNotModified(response, cachedResponse);
+      return cachedResponse.getLength();
+    } else {
+      cachedResponse.replay(response, encoding);
+      return cachedResponse.getBytesSaved(encoding);
+    }
+  }
+
+  /**
+   * Complete a response that has been generated and captured, but not yet committed: add
+   * the entity tag, and if the request was conditional and matches, discard the body and
+   * send a 304.
+   *
+   * @param response
+   *          the underlying response.
+   */
+  public void sendValidators(HttpServletResponse response) {
+    if ( cachedResponse == null || response.isCommitted() ) {
+      return;
+    }
+    if ( CachedResponse.GZIP.equals(encoding) ) {
+      // the body may yet be compressed on its way out, so only a weak tag is safe.
+      response.setHeader("ETag", "W/" + cachedResponse.getETag());
+    } else {
+      response.setHeader("ETag", cachedResponse.getETag());
+    }
+    if ( isNotModified(cachedResponse) ) {
+      response.resetBuffer();
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+  }
+
+  private void sendNotModified(HttpServletResponse response, CachedResponse cachedResponse) {
+    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    response.setHeader("ETag", cachedResponse.getETag(encoding));
+  }
+
+  /**
+   * @return true if the request carries validators that match the cached response.
+   *         If-None-Match takes precedence over If-Modified-Since, and matches the tag of
+   *         any stored encoding of the same body.
+   */
+  boolean isNotModified(CachedResponse cachedResponse) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if ( ifNoneMatch != null ) {
+      String etag = cachedResponse.getETag();
+      String gzipEtag = cachedResponse.getETag(CachedResponse.GZIP);
+      for ( String tag : StringUtils.split(ifNoneMatch, ',') ) {
+        tag = tag.trim();
+        if ( tag.startsWith("W/") ) {
+          tag = tag.substring(2);
+        }
+        if ( "*".equals(tag) || tag.equals(etag) || tag.equals(gzipEtag) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long lastModified = cachedResponse.getLastModified();
+    if ( lastModified > 0 ) {
+      long ifModifiedSince = -1;
+      try {
+        ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      } catch (IllegalArgumentException e) {
+        LOGGER.debug("Ignoring invalid If-Modified-Since {} ", e.getMessage());
+      }
+      // http dates have a resolution of a second.
+      return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+    return false;
   }
   
+  /**
+   * @return the stored variant this request will be sent, if it is sent from the cache.
+   */
+  public String getEncoding() {
+    return encoding;
+  }
+
   @Override
   public String toString() {
     return key+"  "+cachedResponse.toString();
@@ -21,6 +21,8 @@ import org.sakaiproject.nakamura.api.http.cache.Operation;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -196,22 +198,93 @@ public class OperationResponseCapture {
     return operations.toArray(new Operation[operations.size()]);
   }
 
+  /**
+   * The captured content, the response itself is not flushed so that headers can still
+   * be added if it has not been committed.
+   *
+   * @return the bytes written to the output stream, or null if the writer was used.
+   */
   public byte[] getByteContent() throws IOException {
     if (outputStream != null) {
-      outputStream.flush();
       return outputStream.toByteArray();
     }
     return null;
   }
 
+  /**
+   * @return the characters written to the writer, or null if the output stream was used.
+   */
   public String getStringContent() {
     if (writer != null) {
-      writer.flush();
       return splitWriter.getStringContent();
     }
     return null;
   }
 
+  /**
+   * A strong entity tag for the captured content, the SHA-1 of the body bytes, or of the
+   * UTF-8 encoding when the writer was used.
+   *
+   * @return the quoted entity tag.
+   * @throws IOException
+   */
+  public String getETag() throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] byteContent = getByteContent();
+      if (byteContent != null) {
+        md.update(byteContent);
+      } else {
+        String stringContent = getStringContent();
+        if (stringContent != null) {
+          md.update(stringContent.getBytes("UTF-8"));
+        }
+      }
+      StringBuilder etag = new StringBuilder("\"");
+      for (byte b : md.digest()) {
+        etag.append(Character.forDigit((b >> 4) & 0xf, 16));
+        etag.append(Character.forDigit(b & 0xf, 16));
+      }
+      return etag.append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+   * @return the character encoding the writer output will be sent in, from the last
+   *         setCharacterEncoding or content type charset, ISO-8859-1 if neither was set.
+   */
+  public String getCharacterEncoding() {
+    String encoding = "ISO-8859-1";
+    for (Operation o : operations) {
+      if (o.getOperation() == SET_CHARACTER_ENCODING) {
+        encoding = o.get(0);
+      } else if (o.getOperation() == SET_CONTENT_TYPE && o.get(0) != null) {
+        String contentType = o.get(0);
+        int i = contentType.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+        if (i >= 0) {
+          encoding = contentType.substring(i + "charset=".length()).trim();
+        }
+      }
+    }
+    return encoding;
+  }
+
+  /**
+   * @return the last Last-Modified date set on the response, or -1 if none was set.
+   */
+  public long getLastModified() {
+    long lastModified = -1;
+    for (Operation o : operations) {
+      if ((o.getOperation() == SET_DATE_HEADER || o.getOperation() == ADD_DATE_HEADER)
+          && "Last-Modified".equalsIgnoreCase((String) o.get(0))) {
+        lastModified = (Long) o.get(1);
+      }
+    }
+    return lastModified;
+  }
+
   public boolean canCache() {
     return cacheable;
   }
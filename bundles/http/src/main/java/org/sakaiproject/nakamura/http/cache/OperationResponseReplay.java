@@ -37,7 +37,7 @@ public class OperationResponseReplay implements Serializable {
 
   public OperationResponseReplay(Operation[] operations, byte[] byteContent, String stringContent) {
     this.operations = operations.clone();
-    this.byteContent = byteContent.clone();
+    this.byteContent = byteContent == null ? null : byteContent.clone();
     this.stringContent = stringContent;
   }
 
@@ -46,10 +46,26 @@ public class OperationResponseReplay implements Serializable {
    * @param response
    * @throws IOException
    */
-  @SuppressWarnings("deprecation")
   public void replay(HttpServletResponse response) throws IOException {
+    replay(response, null, null, null);
+  }
+
+  /**
+   * Replay the cached request, optionally with an already encoded body.
+   * @param response
+   * @param etag the entity tag to send, or null for none.
+   * @param contentEncoding the content coding of encodedContent, or null to send the captured body.
+   * @param encodedContent the encoded body.
+   * @throws IOException
+   */
+  @SuppressWarnings("deprecation")
+  public void replay(HttpServletResponse response, String etag, String contentEncoding, byte[] encodedContent) throws IOException {
+    boolean encoded = contentEncoding != null && encodedContent != null;
     for ( Operation o : operations ) {
       int op = o.getOperation();
+      if ( encoded && op == OperationResponseCapture.SET_CONTENT_LENGTH ) {
+        continue;
+      }
       switch (op) {
       case OperationResponseCapture.ADD_DATE_HEADER:
         response.addDateHeader((String)o.get(0),(Long)o.get(1));
@@ -89,8 +105,14 @@ public class OperationResponseReplay implements Serializable {
         break;
       }
     }
-
-     if ( stringContent != null  ) {
+     if ( etag != null ) {
+       response.setHeader("ETag", etag);
+     }
+     if ( encoded ) {
+       response.setHeader("Content-Encoding", contentEncoding);
+       response.setContentLength(encodedContent.length);
+       response.getOutputStream().write(encodedContent);
+     } else if ( stringContent != null  ) {
        response.getWriter().write(stringContent);
      } else if ( byteContent != null ){
        response.getOutputStream().write(byteContent);
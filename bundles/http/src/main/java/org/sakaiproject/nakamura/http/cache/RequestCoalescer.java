@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single flight control for cache misses. The first request to miss a key becomes the
+ * leader and regenerates the response, other requests for the same key can wait for the
+ * leader to finish rather than all running the servlet chain at once.
+ */
+public class RequestCoalescer {
+
+  private final ConcurrentMap<String, CountDownLatch> inflight = new ConcurrentHashMap<String, CountDownLatch>();
+
+  /**
+   * Try to become the leader for a key. A leader must call {@link #done(String)} when it
+   * has finished, whether or not it succeeded.
+   *
+   * @param key
+   * @return true if the caller is the leader.
+   */
+  public boolean lead(String key) {
+    return inflight.putIfAbsent(key, new CountDownLatch(1)) == null;
+  }
+
+  /**
+   * Wait for the current leader of a key to finish.
+   *
+   * @param key
+   * @param timeout
+   *          the maximum wait in ms.
+   * @return true if there was no leader or the leader finished in time.
+   */
+  public boolean await(String key, long timeout) {
+    CountDownLatch latch = inflight.get(key);
+    if (latch == null) {
+      return true;
+    }
+    try {
+      return latch.await(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Release the waiters for a key.
+   *
+   * @param key
+   */
+  public void done(String key) {
+    CountDownLatch latch = inflight.remove(key);
+    if (latch != null) {
+      latch.countDown();
+    }
+  }
+
+  /**
+   * @return the number of keys currently being regenerated.
+   */
+  public int getInflight() {
+    return inflight.size();
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and bytes saved counters for the response cache, per configured
+ * sakai.cache.paths or sakai.cache.patterns entry.
+ */
+public class ResponseCacheStats implements ResponseCacheStatsMBean {
+
+  private static class Counters {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong bytesSaved = new AtomicLong();
+    final AtomicLong staleHits = new AtomicLong();
+    final AtomicLong coalesced = new AtomicLong();
+  }
+
+  private final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+
+  public void hit(String path, long bytesSaved) {
+    Counters c = getCounters(path);
+    c.hits.incrementAndGet();
+    c.bytesSaved.addAndGet(bytesSaved);
+  }
+
+  public void miss(String path) {
+    getCounters(path).misses.incrementAndGet();
+  }
+
+  public void staleHit(String path, long bytesSaved) {
+    getCounters(path).staleHits.incrementAndGet();
+    hit(path, bytesSaved);
+  }
+
+  public void coalesced(String path) {
+    getCounters(path).coalesced.incrementAndGet();
+  }
+
+  private Counters getCounters(String path) {
+    if (path == null) {
+      path = "";
+    }
+    Counters c = counters.get(path);
+    if (c == null) {
+      c = new Counters();
+      Counters existing = counters.putIfAbsent(path, c);
+      if (existing != null) {
+        c = existing;
+      }
+    }
+    return c;
+  }
+
+  public long getHits() {
+    long n = 0;
+    for (Counters c : counters.values()) {
+      n += c.hits.get();
+    }
+    return n;
+  }
+
+  public long getMisses() {
+    long n = 0;
+    for (Counters c : counters.values()) {
+      n += c.misses.get();
+    }
+    return n;
+  }
+
+  public long getStaleHits() {
+    long n = 0;
+    for (Counters c : counters.values()) {
+      n += c.staleHits.get();
+    }
+    return n;
+  }
+
+  public long getCoalesced() {
+    long n = 0;
+    for (Counters c : counters.values()) {
+      n += c.coalesced.get();
+    }
+    return n;
+  }
+
+  public long getBytesSaved() {
+    long n = 0;
+    for (Counters c : counters.values()) {
+      n += c.bytesSaved.get();
+    }
+    return n;
+  }
+
+  public String[] getPathStatistics() {
+    List<String> lines = new ArrayList<String>();
+    for (Entry<String, Counters> e : counters.entrySet()) {
+      Counters c = e.getValue();
+      lines.add(e.getKey() + " hits=" + c.hits.get() + " misses=" + c.misses.get()
+          + " staleHits=" + c.staleHits.get() + " coalesced=" + c.coalesced.get()
+          + " bytesSaved=" + c.bytesSaved.get());
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  /**
+   * @param path
+   * @return hits for one cache path, used in tests.
+   */
+  long getHits(String path) {
+    Counters c = counters.get(path);
+    return c == null ? 0 : c.hits.get();
+  }
+
+  public void reset() {
+    counters.clear();
+  }
+}
@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+/**
+ * JMX view of the response cache in the {@link CacheControlFilter}.
+ */
+public interface ResponseCacheStatsMBean {
+
+  long getHits();
+
+  long getMisses();
+
+  /**
+   * @return hits served from an expired entry while it was being regenerated.
+   */
+  long getStaleHits();
+
+  /**
+   * @return misses that waited for another request to regenerate the entry.
+   */
+  long getCoalesced();
+
+  /**
+   * @return body bytes not sent because a hit was served precompressed or as a 304.
+   */
+  long getBytesSaved();
+
+  /**
+   * @return one line per configured cache path or pattern with its counters.
+   */
+  String[] getPathStatistics();
+
+  void reset();
+}
@@ -19,24 +19,190 @@ package org.sakaiproject.nakamura.http.qos;
 
 import org.mortbay.util.ajax.Continuation;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletRequest;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
 
-public class QoSControl {
+/**
+ * The limits and queues for one category of request. By default the category has a fixed
+ * number of permits. In adaptive mode the number of permits is tuned from the observed
+ * latency, additive increase while requests complete inside the target latency and
+ * multiplicative decrease when they don't. In fair mode suspended requests are queued per
+ * user within each priority and resumed round robin, highest priority first, and a user
+ * may be limited to a share of the permits.
+ */
+public class QoSControl implements QoSControlMBean {
+
+  /**
+   * A Semaphore where permits can be taken away without acquiring them.
+   */
+  private static final class AdjustableSemaphore extends Semaphore {
+    private static final long serialVersionUID = -2887402211394576537L;
+
+    AdjustableSemaphore(int permits) {
+      super(permits, true);
+    }
+
+    void reduce(int n) {
+      reducePermits(n);
+    }
+  }
+
+  /**
+   * Factor applied to the limit when latency is over the target.
+   */
+  private static final double BACKOFF = 0.9;
 
-  private Semaphore semaphore;
+  private String name;
+  private AdjustableSemaphore semaphore;
   private int priority;
   private Queue<Continuation>[] priorityQueue;
   private long timeout;
 
+  private volatile int limit;
+  private boolean adaptive;
+  private int minLimit;
+  private int maxLimit;
+  private long targetLatency;
+  private int successes;
+  private long lastDecrease;
+
+  private boolean fair;
+  private int userShare = 100;
+  private volatile int userLimit;
+  private String[] userKeys = new String[0];
+  private Map<String, Queue<Continuation>>[] userQueues;
+  private ConcurrentMap<String, AtomicInteger> userInFlight = new ConcurrentHashMap<String, AtomicInteger>();
+
+  private AtomicInteger inFlight = new AtomicInteger();
+  private AtomicInteger queued = new AtomicInteger();
+  private AtomicLong accepted = new AtomicLong();
+  private AtomicLong suspended = new AtomicLong();
+  private AtomicLong rejected = new AtomicLong();
+  private AtomicLong totalWait = new AtomicLong();
+  private AtomicLong maxWait = new AtomicLong();
+  private AtomicLong totalLatency = new AtomicLong();
+  private AtomicLong completed = new AtomicLong();
+
   public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
       long timeout) {
-    semaphore = new Semaphore(nRequests, true);
+    this("default", priorityQueue, nRequests, priority, timeout);
+  }
+
+  public QoSControl(String name, Queue<Continuation>[] priorityQueue, int nRequests, int priority,
+      long timeout) {
+    this.name = name;
+    semaphore = new AdjustableSemaphore(nRequests);
+    limit = nRequests;
+    userLimit = nRequests;
     this.priority = priority;
     this.priorityQueue = priorityQueue.clone();
     this.timeout = timeout;
+    userQueues = newUserQueues(priorityQueue.length);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Queue<Continuation>>[] newUserQueues(int priorities) {
+    Map<String, Queue<Continuation>>[] queues = new Map[priorities];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new LinkedHashMap<String, Queue<Continuation>>();
+    }
+    return queues;
+  }
+
+  /**
+   * Tune the number of permits from latency.
+   *
+   * @param minLimit
+   *          the limit will not go below this.
+   * @param maxLimit
+   *          the limit will not go above this.
+   * @param targetLatency
+   *          requests taking longer than this (ms) reduce the limit.
+   */
+  public void setAdaptive(int minLimit, int maxLimit, long targetLatency) {
+    this.adaptive = true;
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.targetLatency = targetLatency;
+  }
+
+  /**
+   * Queue suspended requests per user and resume them round robin.
+   *
+   * @param userShare
+   *          the percentage of the permits one user may hold, 100 for no limit.
+   * @param userKeys
+   *          where the user is taken from, in order, each either cookie:name or
+   *          header:name. The client address is used if none of them are present.
+   */
+  public void setFair(int userShare, String[] userKeys) {
+    this.fair = true;
+    this.userShare = userShare;
+    this.userKeys = userKeys == null ? new String[0] : userKeys.clone();
+    updateUserLimit();
+  }
+
+  private void updateUserLimit() {
+    userLimit = Math.max(1, (limit * userShare + 99) / 100);
+  }
+
+  /**
+   * The filter runs before Sling authentication, so the remote user is only there for
+   * container authenticated requests. Otherwise the user is identified by the first of the
+   * configured cookies or headers present, or by the client address.
+   *
+   * @param request
+   * @return the key requests are counted and queued under in fair mode.
+   */
+  String getUser(ServletRequest request) {
+    if (request instanceof HttpServletRequest) {
+      HttpServletRequest hrequest = (HttpServletRequest) request;
+      if (hrequest.getRemoteUser() != null) {
+        return "user:" + hrequest.getRemoteUser();
+      }
+      for (String userKey : userKeys) {
+        String value = null;
+        if (userKey.startsWith("cookie:")) {
+          value = getCookie(hrequest, userKey.substring(7));
+        } else if (userKey.startsWith("header:")) {
+          value = hrequest.getHeader(userKey.substring(7));
+          if (value != null) {
+            // a forwarded for header lists the client first.
+            value = value.split(",")[0].trim();
+          }
+        }
+        if (value != null && value.length() > 0) {
+          return userKey + "=" + value;
+        }
+      }
+    }
+    return "addr:" + request.getRemoteAddr();
+  }
+
+  private String getCookie(HttpServletRequest request, String name) {
+    Cookie[] cookies = request.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (name.equals(cookie.getName())) {
+          return cookie.getValue();
+        }
+      }
+    }
+    return null;
   }
 
   public Semaphore getSemaphore() {
@@ -55,4 +221,255 @@ public class QoSControl {
     return timeout;
   }
 
+  public boolean isFair() {
+    return fair;
+  }
+
+  /**
+   * Try to take a permit for a user.
+   *
+   * @param user
+   * @param waitMs
+   * @return true if a permit was taken.
+   * @throws InterruptedException
+   */
+  boolean tryAcquire(String user, long waitMs) throws InterruptedException {
+    if (fair && getUserCount(user).get() >= userLimit) {
+      return false;
+    }
+    if (semaphore.tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+      acquired(user);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Take a permit for a user, waiting as long as it takes.
+   *
+   * @param user
+   * @throws InterruptedException
+   */
+  void acquire(String user) throws InterruptedException {
+    semaphore.acquire();
+    acquired(user);
+  }
+
+  private void acquired(String user) {
+    inFlight.incrementAndGet();
+    accepted.incrementAndGet();
+    if (fair) {
+      getUserCount(user).incrementAndGet();
+    }
+  }
+
+  /**
+   * Give back a permit, resume the next suspended request and adjust the limit.
+   *
+   * @param user
+   * @param latency
+   *          the time in ms the permit was held.
+   */
+  void release(String user, long latency) {
+    boolean saturated = inFlight.getAndDecrement() >= limit;
+    if (fair) {
+      AtomicInteger count = userInFlight.get(user);
+      if (count != null && count.decrementAndGet() <= 0) {
+        userInFlight.remove(user, count);
+      }
+    }
+    totalLatency.addAndGet(latency);
+    completed.incrementAndGet();
+    if (!fair || !resumeNextUser()) {
+      resumeNext();
+    }
+    semaphore.release();
+    if (adaptive) {
+      adjust(latency, saturated);
+    }
+  }
+
+  private void resumeNext() {
+    for (int p = priorityQueue.length; p-- > 0;) {
+      Continuation continutaion = priorityQueue[p].poll();
+      if (continutaion != null && continutaion.isResumed()) {
+        continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
+        break;
+      }
+    }
+  }
+
+  /**
+   * Resume the request at the head of the next user's queue in the highest priority with
+   * a request waiting, moving that user to the back. Users already holding their share
+   * keep their place, as their request could only be queued again.
+   *
+   * @return true if a request was resumed.
+   */
+  private boolean resumeNextUser() {
+    synchronized (userQueues) {
+      for (int p = userQueues.length; p-- > 0;) {
+        Map<String, Queue<Continuation>> queues = userQueues[p];
+        Iterator<Entry<String, Queue<Continuation>>> users = queues.entrySet().iterator();
+        while (users.hasNext()) {
+          Entry<String, Queue<Continuation>> e = users.next();
+          AtomicInteger count = userInFlight.get(e.getKey());
+          if (count != null && count.get() >= userLimit) {
+            continue;
+          }
+          users.remove();
+          Queue<Continuation> q = e.getValue();
+          Continuation continuation = q.poll();
+          while (continuation != null && !continuation.isPending()) {
+            continuation = q.poll();
+          }
+          if (!q.isEmpty()) {
+            queues.put(e.getKey(), q);
+          }
+          if (continuation != null) {
+            continuation.resume();
+            return true;
+          }
+          users = queues.entrySet().iterator();
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Queue a suspended request.
+   *
+   * @param user
+   * @param priority
+   * @param continuation
+   */
+  void queue(String user, int priority, Continuation continuation) {
+    queued.incrementAndGet();
+    suspended.incrementAndGet();
+    if (fair) {
+      synchronized (userQueues) {
+        Queue<Continuation> q = userQueues[priority].get(user);
+        if (q == null) {
+          q = new LinkedList<Continuation>();
+          userQueues[priority].put(user, q);
+        }
+        q.add(continuation);
+      }
+    } else {
+      priorityQueue[priority].add(continuation);
+    }
+  }
+
+  /**
+   * A suspended request has come back, resumed or timed out.
+   */
+  void dequeued() {
+    queued.decrementAndGet();
+  }
+
+  void waited(long waitTime) {
+    totalWait.addAndGet(waitTime);
+    long max = maxWait.get();
+    while (waitTime > max && !maxWait.compareAndSet(max, waitTime)) {
+      max = maxWait.get();
+    }
+  }
+
+  void rejected() {
+    rejected.incrementAndGet();
+  }
+
+  private synchronized void adjust(long latency, boolean saturated) {
+    if (latency > targetLatency) {
+      long now = System.currentTimeMillis();
+      // back off at most once per target latency so one slow burst does not collapse the limit.
+      if (now - lastDecrease > targetLatency) {
+        int newLimit = Math.max(minLimit, (int) (limit * BACKOFF));
+        if (newLimit < limit) {
+          semaphore.reduce(limit - newLimit);
+          limit = newLimit;
+          updateUserLimit();
+        }
+        lastDecrease = now;
+        successes = 0;
+      }
+    } else if (saturated && limit < maxLimit) {
+      if (++successes >= limit) {
+        successes = 0;
+        limit++;
+        updateUserLimit();
+        semaphore.release();
+      }
+    }
+  }
+
+  private AtomicInteger getUserCount(String user) {
+    AtomicInteger count = userInFlight.get(user);
+    if (count == null) {
+      count = new AtomicInteger();
+      AtomicInteger current = userInFlight.putIfAbsent(user, count);
+      if (current != null) {
+        count = current;
+      }
+    }
+    return count;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  public int getQueueDepth() {
+    return queued.get();
+  }
+
+  public long getAccepted() {
+    return accepted.get();
+  }
+
+  public long getSuspended() {
+    return suspended.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getAverageWaitTime() {
+    long n = accepted.get();
+    return n == 0 ? 0 : totalWait.get() / n;
+  }
+
+  public long getMaxWaitTime() {
+    return maxWait.get();
+  }
+
+  public long getAverageLatency() {
+    long n = completed.get();
+    return n == 0 ? 0 : totalLatency.get() / n;
+  }
+
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+
+  public void reset() {
+    accepted.set(0);
+    suspended.set(0);
+    rejected.set(0);
+    totalWait.set(0);
+    maxWait.set(0);
+    totalLatency.set(0);
+    completed.set(0);
+  }
+
 }
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * JMX view of one {@link QoSControl} category.
+ */
+public interface QoSControlMBean {
+
+  String getName();
+
+  /**
+   * @return the current number of permits, this moves in adaptive mode.
+   */
+  int getLimit();
+
+  int getInFlight();
+
+  /**
+   * @return the number of requests currently suspended waiting for a permit.
+   */
+  int getQueueDepth();
+
+  long getAccepted();
+
+  long getSuspended();
+
+  /**
+   * @return requests sent a 503 because no permit became available.
+   */
+  long getRejected();
+
+  /**
+   * @return the mean time in ms between a request arriving and getting a permit.
+   */
+  long getAverageWaitTime();
+
+  long getMaxWaitTime();
+
+  /**
+   * @return the mean time in ms that a permit was held.
+   */
+  long getAverageLatency();
+
+  boolean isAdaptive();
+
+  boolean isFair();
+
+  void reset();
+}
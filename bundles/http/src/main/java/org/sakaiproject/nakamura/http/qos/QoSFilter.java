@@ -34,12 +34,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -105,6 +110,45 @@ public class QoSFilter implements Filter {
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
+  /**
+   * If true the limit of each category is tuned from the observed latency, starting from
+   * the configured limit.
+   */
+  @Property(boolValue=false)
+  private static final String QOS_ADAPTIVE_CONF = "qos.adaptive";
+  /**
+   * The lowest limit an adaptive category will go down to.
+   */
+  @Property(intValue=1)
+  private static final String QOS_ADAPTIVE_MIN_LIMIT_CONF = "qos.adaptive.minLimit";
+  /**
+   * The highest limit an adaptive category will go up to.
+   */
+  @Property(intValue=100)
+  private static final String QOS_ADAPTIVE_MAX_LIMIT_CONF = "qos.adaptive.maxLimit";
+  /**
+   * Requests that hold a permit for longer than this (ms) reduce the limit.
+   */
+  @Property(longValue=1000)
+  private static final String QOS_ADAPTIVE_TARGET_LATENCY_CONF = "qos.adaptive.targetLatency";
+  /**
+   * If true suspended requests in a category are queued per user and resumed round robin.
+   */
+  @Property(boolValue=false)
+  private static final String QOS_FAIR_CONF = "qos.fair";
+  /**
+   * In fair mode, the percentage of a category's permits that one user may hold.
+   */
+  @Property(intValue=100)
+  private static final String QOS_FAIR_USER_SHARE_CONF = "qos.fair.userShare";
+  /**
+   * In fair mode, where the user is taken from when the container has not authenticated
+   * the request, in order. Each is cookie:name or header:name, eg header:X-Forwarded-For
+   * behind a proxy. The client address is used if none are present.
+   */
+  @Property(value={"cookie:sakai-trusted-authn", "cookie:JSESSIONID"})
+  private static final String QOS_FAIR_USER_KEYS_CONF = "qos.fair.userKeys";
+  private static final String MBEAN_NAME = "org.sakaiproject.nakamura.http:type=QoS,name=";
   private static final Logger LOGGER = LoggerFactory.getLogger(QoSFilter.class);
   private String suspendedAttributeName=this.getClass().getName()+this.hashCode();
 
@@ -135,11 +179,7 @@ public class QoSFilter implements Filter {
         if (accepted) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
         } else {
-          LOGGER.debug("Suspending request");
-          request.setAttribute(suspendedAttributeName, Boolean.TRUE);
-          Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
-          continuation.suspend(qoSToken.getSuspendTime());
-          qoSToken.queue(continuation);
+          suspend(request, qoSToken);
           return;
         }
       } else {
@@ -148,8 +188,13 @@ public class QoSFilter implements Filter {
         if (suspended.booleanValue()) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
           if (request.getAttribute("javax.servlet.resumed") == Boolean.TRUE) {
-            qoSToken.acquire();
-            accepted = true;
+            // a permit came free, but it is taken like any other so a user in fair mode
+            // stays within their share, and queued again if it cannot be.
+            accepted = qoSToken.acquire(waitMs);
+            if (!accepted) {
+              suspend(request, qoSToken);
+              return;
+            }
           } else {
             // Timeout! try 1 more time.
             accepted = qoSToken.acquire(waitMs);
@@ -164,11 +209,13 @@ public class QoSFilter implements Filter {
       if (accepted) {
         chain.doFilter(request, response);
       } else {
+        rejected(qoSToken);
         ((HttpServletResponse) response)
             .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
       }
     } catch (InterruptedException e) {
       LOGGER.warn("QoS", e);
+      rejected(qoSToken);
       ((HttpServletResponse) response)
           .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     } finally {
@@ -178,6 +225,20 @@ public class QoSFilter implements Filter {
     }
   }
 
+  private void suspend(ServletRequest request, QoSToken qoSToken) {
+    LOGGER.debug("Suspending request");
+    request.setAttribute(suspendedAttributeName, Boolean.TRUE);
+    Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
+    continuation.suspend(qoSToken.getSuspendTime());
+    qoSToken.queue(continuation);
+  }
+
+  private void rejected(QoSToken qoSToken) {
+    if (qoSToken instanceof QoSTokenImpl) {
+      ((QoSTokenImpl) qoSToken).rejected();
+    }
+  }
+
   private QoSToken getQoSControl(ServletRequest request) {
     QoSToken control = (QoSToken) request.getAttribute(QoSToken.CONTROL_ATTR);
     if  ( control != null ) {
@@ -223,6 +284,8 @@ public class QoSFilter implements Filter {
       priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
     }
 
+    unregisterControls();
+
     // path, max requests, priority, timeout
     qoSControMap.clear();
     String[] qosLocations = PropertiesUtil.toStringArray(properties.get(QOS_CATEGORIES_CONFIG));
@@ -231,11 +294,11 @@ public class QoSFilter implements Filter {
         String[] settings = StringUtils.split(qosLocation,";");
         if ( settings != null ) {
           if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
+            qoSControMap.put(settings[0], new QoSControl(settings[0], priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
           } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
+            qoSControMap.put(settings[0], new QoSControl(settings[0], priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
           } else if ( settings.length > 1 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
+            qoSControMap.put(settings[0], new QoSControl(settings[0], priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
           }
         }
       }
@@ -247,7 +310,27 @@ public class QoSFilter implements Filter {
     long qosDefaultTimeout = PropertiesUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
     waitMs = PropertiesUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = new QoSControl("default", priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+
+    boolean adaptive = PropertiesUtil.toBoolean(properties.get(QOS_ADAPTIVE_CONF), false);
+    int minLimit = PropertiesUtil.toInteger(properties.get(QOS_ADAPTIVE_MIN_LIMIT_CONF), 1);
+    int maxLimit = PropertiesUtil.toInteger(properties.get(QOS_ADAPTIVE_MAX_LIMIT_CONF), 100);
+    long targetLatency = PropertiesUtil.toLong(properties.get(QOS_ADAPTIVE_TARGET_LATENCY_CONF), 1000);
+    boolean fair = PropertiesUtil.toBoolean(properties.get(QOS_FAIR_CONF), false);
+    int userShare = PropertiesUtil.toInteger(properties.get(QOS_FAIR_USER_SHARE_CONF), 100);
+    String[] userKeys = PropertiesUtil.toStringArray(properties.get(QOS_FAIR_USER_KEYS_CONF),
+        new String[] { "cookie:sakai-trusted-authn", "cookie:JSESSIONID" });
+    List<QoSControl> controls = new ArrayList<QoSControl>(qoSControMap.values());
+    controls.add(defaultQoSControl);
+    for (QoSControl qoSControl : controls) {
+      if (adaptive) {
+        qoSControl.setAdaptive(minLimit, maxLimit, targetLatency);
+      }
+      if (fair) {
+        qoSControl.setFair(userShare, userKeys);
+      }
+      registerControl(qoSControl);
+    }
 
     int filterPriority = PropertiesUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -255,9 +338,45 @@ public class QoSFilter implements Filter {
 
   }
 
+  private void registerControl(QoSControl qoSControl) {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME + ObjectName.quote(qoSControl.getName()));
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(qoSControl, objectName);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register QoS statistics {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterControls() {
+    List<QoSControl> controls = new ArrayList<QoSControl>(qoSControMap.values());
+    if (defaultQoSControl != null) {
+      controls.add(defaultQoSControl);
+    }
+    for (QoSControl qoSControl : controls) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+            new ObjectName(MBEAN_NAME + ObjectName.quote(qoSControl.getName())));
+      } catch (Exception e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+  }
+
+  QoSControl getQoSControl(String name) {
+    if ("default".equals(name)) {
+      return defaultQoSControl;
+    }
+    return qoSControMap.get(name);
+  }
+
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    unregisterControls();
     // resume any continuations held by the filter
     for (int p = priorityQueue.length; p-- > 0;) {
       Continuation continutaion = priorityQueue[p].poll();
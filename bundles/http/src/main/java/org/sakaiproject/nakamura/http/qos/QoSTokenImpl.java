@@ -20,36 +20,33 @@ package org.sakaiproject.nakamura.http.qos;
 import org.mortbay.util.ajax.Continuation;
 import org.sakaiproject.nakamura.api.http.qos.QoSToken;
 
-import java.util.Queue;
-import java.util.concurrent.TimeUnit;
-
 import javax.servlet.ServletRequest;
 
 public class QoSTokenImpl implements QoSToken {
 
   private QoSControl qoSControl;
   private int priority;
+  private String user;
+  private long created;
+  private long acquired;
+  private boolean queued;
+  private boolean waited;
 
   public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
     this.qoSControl = qoSControl;
     priority = qoSControl.getPriority(request);
+    created = System.currentTimeMillis();
+    if (qoSControl.isFair()) {
+      user = qoSControl.getUser(request);
+    }
   }
 
-
   public Object getMutex() {
     return this;
   }
 
   public void release() {
-    Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
-        break;
-      }
-    }
-    qoSControl.getSemaphore().release();
+    qoSControl.release(user, System.currentTimeMillis() - acquired);
   }
 
   public long getSuspendTime() {
@@ -57,15 +54,45 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void queue(Continuation continuation) {
-    qoSControl.getPriorityQueue()[priority].add(continuation);
+    queued = true;
+    qoSControl.queue(user, priority, continuation);
   }
 
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    dequeued();
+    if (qoSControl.tryAcquire(user, waitMs)) {
+      acquired();
+      return true;
+    }
+    return false;
   }
 
   public void acquire() throws InterruptedException {
-    qoSControl.getSemaphore().acquire();
+    dequeued();
+    qoSControl.acquire(user);
+    acquired();
+  }
+
+  /**
+   * Record that the request was turned away.
+   */
+  public void rejected() {
+    qoSControl.rejected();
+  }
+
+  private void dequeued() {
+    if (queued) {
+      queued = false;
+      qoSControl.dequeued();
+    }
+  }
+
+  private void acquired() {
+    acquired = System.currentTimeMillis();
+    if (!waited) {
+      waited = true;
+      qoSControl.waited(acquired - created);
+    }
   }
 
 }
@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -39,6 +41,7 @@ import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -46,6 +49,7 @@ import java.io.StringWriter;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -95,6 +99,7 @@ public class CacheControlFilterTest {
         "dev;.expires:3456000;Cache-Control: max-age=432000 public;Vary:Accept-Encoding", 
         "devwidgets;.expires:3456000;Cache-Control:max-age=432000 public;Vary:Accept-Encoding",
         "cacheable;.expires:3456000;.requestCache:3600;Cache-Control:max-age=432000 public;Vary:Accept-Encoding",
+        "coalesced;.expires:3456000;.requestCache:3600;.stale:60;.coalesce:100;Vary:Accept-Encoding",
         "p;Cache-Control:no-cache" });
     when(componentContext.getProperties()).thenReturn(properties);
     cacheControlFilter.extHttpService = extHttpService;
@@ -192,9 +197,167 @@ public class CacheControlFilterTest {
     
     
     
+  }
+
+  @Test
+  public void checkRequestCachingNotModified() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + cachedResponse.getETag());
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setStatus(304);
+    verify(response).setHeader("ETag", cachedResponse.getETag());
+    verify(response, never()).getOutputStream();
+  }
+
+  @Test
+  public void checkRequestCachingNotModifiedPassThrough() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    String etag = populateResponseCapture(true).getETag();
+    when(request.getHeader("If-None-Match")).thenReturn(etag);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, new TFilter(true));
+
+    verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
+    verify(response).setHeader("ETag", etag);
+    verify(response).resetBuffer();
+    verify(response).setStatus(304);
+  }
+
+  @Test
+  public void checkRequestCachingGzipReplay() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip;q=0.8");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("ETag", cachedResponse.getETag(CachedResponse.GZIP));
+    GZIPInputStream body = new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    int length = 0;
+    while (body.read() >= 0) {
+      length++;
+    }
+    assertEquals(1024, length);
+    assertTrue(cacheControlFilter.getStats().getBytesSaved() > 0);
+    assertEquals(1, cacheControlFilter.getStats().getHits("cacheable"));
+  }
+
+  @Test
+  public void normalizeAcceptEncoding() {
+    assertEquals(CachedResponse.IDENTITY, CachedResponseManager.normalizeAcceptEncoding(null));
+    assertEquals(CachedResponse.GZIP, CachedResponseManager.normalizeAcceptEncoding("gzip,deflate"));
+    assertEquals(CachedResponse.GZIP, CachedResponseManager.normalizeAcceptEncoding("*"));
+    assertEquals(CachedResponse.IDENTITY, CachedResponseManager.normalizeAcceptEncoding("gzip;q=0, deflate"));
+  }
+
+  @Test
+  public void checkRequestCachingStaleWhileRevalidate() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/coalesced/config.json");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    CachedResponse cachedResponse  = populateResponseCapture(true, -10);
+    when(cache.get("/coalesced/config.json?null")).thenReturn(cachedResponse);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    // another request is regenerating the entry.
+    assertTrue(cacheControlFilter.getCoalescer().lead("/coalesced/config.json?null"));
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("Warning", "110 - \"Response is Stale\"");
+    verify(cache, never()).remove(anyString());
+    assertEquals(1024, baos.size());
+    assertEquals(1, cacheControlFilter.getStats().getStaleHits());
+  }
+
+  @Test
+  public void checkRequestCachingCoalescedTimeout() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/coalesced/config.json");
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+      }
+    });
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    assertTrue(cacheControlFilter.getCoalescer().lead("/coalesced/config.json?null"));
+    cacheControlFilter.doFilter(request, response, new TFilter(true));
+
+    // the leader never finished, so this request gave up waiting and did the work itself.
+    verify(cache).put(Mockito.eq("/coalesced/config.json?null"), Matchers.any(CachedResponse.class));
+    assertEquals(1, cacheControlFilter.getStats().getCoalesced());
+    assertEquals(1, cacheControlFilter.getCoalescer().getInflight());
+  }
+
+  @Test
+  public void checkRequestCachingLeaderReleases() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/coalesced/config.json");
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+      }
+    });
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, new TFilter(true));
+
+    verify(cache).put(Mockito.eq("/coalesced/config.json?null"), Matchers.any(CachedResponse.class));
+    assertEquals(0, cacheControlFilter.getCoalescer().getInflight());
   }
 
   private CachedResponse populateResponseCapture(boolean useOutputStream) throws IOException {
+    return populateResponseCapture(useOutputStream, 30);
+  }
+
+  private CachedResponse populateResponseCapture(boolean useOutputStream, int cacheAge) throws IOException {
     OperationResponseCapture sresponse = new OperationResponseCapture();
     sresponse.addDateHeader("Date", System.currentTimeMillis());
     sresponse.setDateHeader("Last-Modified", System.currentTimeMillis());
@@ -222,7 +385,7 @@ public class CacheControlFilterTest {
       StringWriter writer = new StringWriter();
       sresponse.getWriter(new PrintWriter(writer)).write("ABCDEF");        
     }  
-    return new CachedResponse(sresponse, 30);
+    return new CachedResponse(sresponse, cacheAge);
   }
 
   @Test
@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mortbay.util.ajax.Continuation;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+public class QoSControlTest {
+
+  private Queue<Continuation>[] priorityQueue;
+
+  @SuppressWarnings("unchecked")
+  @Before
+  public void setup() {
+    priorityQueue = new Queue[3];
+    for (int i = 0; i < priorityQueue.length; i++) {
+      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
+    }
+  }
+
+  @Test
+  public void adaptiveBacksOffOnSlowRequests() throws Exception {
+    QoSControl qoSControl = new QoSControl("get:slow", priorityQueue, 10, 1, 1000);
+    qoSControl.setAdaptive(2, 20, 100);
+    assertTrue(qoSControl.tryAcquire("ieb", 0));
+    qoSControl.release("ieb", 500);
+    assertEquals(9, qoSControl.getLimit());
+    assertEquals(9, qoSControl.getSemaphore().availablePermits());
+    // a second slow request in the same window does not back off again.
+    assertTrue(qoSControl.tryAcquire("ieb", 0));
+    qoSControl.release("ieb", 500);
+    assertEquals(9, qoSControl.getLimit());
+  }
+
+  @Test
+  public void adaptiveGrowsWhenSaturated() throws Exception {
+    QoSControl qoSControl = new QoSControl("get:fast", priorityQueue, 2, 1, 1000);
+    qoSControl.setAdaptive(1, 3, 100);
+    for (int i = 0; i < 2; i++) {
+      assertTrue(qoSControl.tryAcquire("ieb", 0));
+      assertTrue(qoSControl.tryAcquire("ieb", 0));
+      assertFalse(qoSControl.tryAcquire("ieb", 0));
+      qoSControl.release("ieb", 10);
+      qoSControl.release("ieb", 10);
+    }
+    assertEquals(3, qoSControl.getLimit());
+    assertEquals(3, qoSControl.getSemaphore().availablePermits());
+    assertEquals(4, qoSControl.getAccepted());
+    assertEquals(10, qoSControl.getAverageLatency());
+  }
+
+  @Test
+  public void fairLimitsUserShareAndResumesRoundRobin() throws Exception {
+    QoSControl qoSControl = new QoSControl("*:p", priorityQueue, 4, 1, 1000);
+    qoSControl.setFair(50, null);
+    assertTrue(qoSControl.tryAcquire("heavy", 0));
+    assertTrue(qoSControl.tryAcquire("heavy", 0));
+    assertFalse(qoSControl.tryAcquire("heavy", 0));
+    assertTrue(qoSControl.tryAcquire("light", 0));
+
+    Continuation heavy1 = pending();
+    Continuation heavy2 = pending();
+    Continuation light = pending();
+    qoSControl.queue("heavy", 1, heavy1);
+    qoSControl.queue("heavy", 1, heavy2);
+    qoSControl.queue("light", 1, light);
+    assertEquals(3, qoSControl.getQueueDepth());
+
+    qoSControl.release("heavy", 10);
+    verify(heavy1).resume();
+    qoSControl.release("heavy", 10);
+    verify(light).resume();
+    verify(heavy2, never()).resume();
+    assertTrue(priorityQueue[1].isEmpty());
+  }
+
+  @Test
+  public void fairSkipsUsersHoldingTheirShare() throws Exception {
+    QoSControl qoSControl = new QoSControl("*:p", priorityQueue, 4, 1, 1000);
+    qoSControl.setFair(50, null);
+    assertTrue(qoSControl.tryAcquire("heavy", 0));
+    assertTrue(qoSControl.tryAcquire("heavy", 0));
+    assertTrue(qoSControl.tryAcquire("light", 0));
+    assertTrue(qoSControl.tryAcquire("other", 0));
+
+    Continuation heavy = pending();
+    Continuation light = pending();
+    qoSControl.queue("heavy", 1, heavy);
+    qoSControl.queue("light", 1, light);
+
+    // heavy still holds two permits, so light goes first and heavy keeps its place.
+    qoSControl.release("other", 10);
+    verify(light).resume();
+    verify(heavy, never()).resume();
+    qoSControl.release("heavy", 10);
+    verify(heavy).resume();
+  }
+
+  @Test
+  public void fairUserLimitFollowsAdaptiveLimit() throws Exception {
+    QoSControl qoSControl = new QoSControl("*:p", priorityQueue, 10, 1, 1000);
+    qoSControl.setAdaptive(2, 20, 100);
+    qoSControl.setFair(50, null);
+    assertTrue(qoSControl.tryAcquire("ieb", 0));
+    qoSControl.release("ieb", 500);
+    assertEquals(9, qoSControl.getLimit());
+    // half of 9, rounded up
+    for (int i = 0; i < 5; i++) {
+      assertTrue(qoSControl.tryAcquire("ieb", 0));
+    }
+    assertFalse(qoSControl.tryAcquire("ieb", 0));
+  }
+
+  @Test
+  public void fairKeepsPriorityOrder() throws Exception {
+    QoSControl qoSControl = new QoSControl("*:p", priorityQueue, 1, 1, 1000);
+    qoSControl.setFair(100, null);
+    assertTrue(qoSControl.tryAcquire("a", 0));
+    Continuation low = pending();
+    Continuation high = pending();
+    Continuation normal = pending();
+    qoSControl.queue("b", 0, low);
+    qoSControl.queue("c", 2, high);
+    qoSControl.queue("d", 1, normal);
+
+    qoSControl.release("a", 10);
+    qoSControl.release("c", 10);
+    qoSControl.release("d", 10);
+    InOrder order = inOrder(high, normal, low);
+    order.verify(high).resume();
+    order.verify(normal).resume();
+    order.verify(low).resume();
+  }
+
+  @Test
+  public void fairUserFromCookieHeaderOrAddress() {
+    QoSControl qoSControl = new QoSControl("*:p", priorityQueue, 1, 1, 1000);
+    qoSControl.setFair(100, new String[] { "cookie:sakai-trusted-authn",
+        "header:X-Forwarded-For" });
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRemoteAddr()).thenReturn("10.0.0.1");
+    assertEquals("addr:10.0.0.1", qoSControl.getUser(request));
+
+    when(request.getHeader("X-Forwarded-For")).thenReturn("192.168.1.5, 10.0.0.1");
+    assertEquals("header:X-Forwarded-For=192.168.1.5", qoSControl.getUser(request));
+
+    when(request.getCookies()).thenReturn(
+        new Cookie[] { new Cookie("sakai-trusted-authn", "token") });
+    assertEquals("cookie:sakai-trusted-authn=token", qoSControl.getUser(request));
+
+    when(request.getRemoteUser()).thenReturn("ieb");
+    assertEquals("user:ieb", qoSControl.getUser(request));
+  }
+
+  private Continuation pending() {
+    Continuation continuation = mock(Continuation.class);
+    when(continuation.isPending()).thenReturn(true);
+    return continuation;
+  }
+}
@@ -35,20 +35,34 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.List;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -80,18 +94,21 @@ public class CropItProcessor {
    *          The location of the image to scale.
    * @param save
    *          The location where to save all the scaled instances.
+   * @param blobAccess
+   *          The blob store the image body may be held in, or null if it is not available.
    * @return returns an array with all the location of the scaled instances.
    * @throws ImageException
    * @throws AccessDeniedException
    * @throws StorageClientException
    */
   public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
-      List<Dimension> dimensions, String img, String save) throws ImageException, StorageClientException, AccessDeniedException {
+      List<Dimension> dimensions, String img, String save, BlobAccess blobAccess) throws ImageException, StorageClientException, AccessDeniedException {
 
     Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
     ContentManager contentManager = session.getContentManager();
 
     InputStream in = null;
+    ImageInputStream iis = null;
 
     // The array that will contain all the cropped and resized images.
     String[] arrFiles = new String[dimensions.size()];
@@ -109,10 +126,11 @@ public class CropItProcessor {
         String imgPath = imgContent.getPath();
         imgName = imgPath.substring(imgPath.lastIndexOf("/") + 1);
         // nt:file
-        if (!imgContent.hasProperty("_bodyLocation")) {
+        if (!imgContent.hasProperty("_bodyLocation")
+            && ContentBlobUtils.getBlobId(imgContent, null) == null) {
           throw new ImageException(500, "Invalid image");
         }
-        in = contentManager.getInputStream(imgPath);
+        in = ContentBlobUtils.getInputStream(blobAccess, contentManager, imgContent, null);
       } else {
         Node imgNode = imgResource.adaptTo(Node.class);
         if (imgNode.hasProperty("jcr:mimeType")) {
@@ -130,30 +148,22 @@ public class CropItProcessor {
         }
         try {
 
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
-
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
+          // Decode straight from the stream whenever ImageIO has a reader for the format,
+          // that way only the area we crop out is ever held in memory.
+          iis = ImageIO.createImageInputStream(in);
+          DecodedRegion region = null;
+          if (iis != null) {
+            region = readRegion(iis, x, y, width, height, dimensions);
           }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
+          if (region == null) {
+            // Sanselan needs the complete image in memory, so this is only used for
+            // the formats (or variants) ImageIO can't handle.
+            byte[] bytes = (iis == null) ? IOUtils.getInputStreamBytes(in) : readFully(iis);
+            region = readRegion(bytes, x, y, width, height);
           }
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
           // Loop the dimensions and create and save an image for each
-          // one.
+          // one, they all get scaled from the same decoded region.
           for (int i = 0; i < dimensions.size(); i++) {
 
             Dimension d = dimensions.get(i);
@@ -162,18 +172,11 @@ public class CropItProcessor {
             int iWidth = d.width;
             int iHeight = d.height;
 
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
-
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
-
-            if ( image != null ) {
-
-              String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
-              // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
+            iWidth = (iWidth <= 0) ? region.sourceWidth : iWidth;
+            iHeight = (iHeight <= 0) ? region.sourceHeight : iHeight;
 
+            String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
+            if (scaleAndSave(iWidth, iHeight, region, sPath, session)) {
               arrFiles[i] = sPath;
             } else {
               LOGGER.warn("Failed to scale image "+img+" to "+iWidth+" by "+iHeight+" defaulting to full size");
@@ -185,10 +188,6 @@ public class CropItProcessor {
           LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
           LOGGER.debug("Cause: ", e);
           throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't crop this Image "+img+", mime Type "+mimeType);
         }
 
     } catch (IOException e) {
@@ -205,6 +204,13 @@ public class CropItProcessor {
       throw new ImageException(500, "Unable to read image in order to crop it.");
     } finally {
       // close the streams
+      if (iis != null) {
+        try {
+          iis.close();
+        } catch (IOException e) {
+          LOGGER.debug("Exception closing image inputstream.");
+        }
+      }
       if (in != null) {
         try {
           in.close();
@@ -216,6 +222,188 @@ public class CropItProcessor {
     return arrFiles;
   }
 
+  /**
+   * Decodes the part of the image that will be cropped out, reading it directly from the
+   * stream with ImageIO. The region is subsampled while decoding so that it is never
+   * read at more than twice the largest requested dimension, the final scaling pass
+   * still has enough pixels to average but a large photo never has to be fully
+   * decoded.
+   *
+   * @param iis
+   *          The stream to read the image from.
+   * @param x
+   *          Where to start cutting on the x-axis.
+   * @param y
+   *          Where to start cutting on the y-axis.
+   * @param width
+   *          The width of the image to cut out.
+   * @param height
+   *          The height of the image to cut out.
+   * @param dimensions
+   *          The dimensions the region will be scaled into.
+   * @return The decoded region or null if ImageIO can't decode this image. In that case
+   *         the stream will have been rewound to the start of the image.
+   * @throws IOException
+   * @throws ImageException
+   *           The area to crop lies outside of the image.
+   */
+  protected static DecodedRegion readRegion(ImageInputStream iis, int x, int y,
+      int width, int height, List<Dimension> dimensions) throws IOException,
+      ImageException {
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+    if (!readers.hasNext()) {
+      return null;
+    }
+    ImageReader reader = readers.next();
+    try {
+      ImageFormat format = getImageFormat(reader.getFormatName());
+      if (format == ImageFormat.IMAGE_FORMAT_UNKNOWN) {
+        return null;
+      }
+      // Don't seek forward only, we might need to rewind for Sanselan.
+      reader.setInput(iis, false, true);
+      int sourceWidth = reader.getWidth(0);
+      int sourceHeight = reader.getHeight(0);
+      Rectangle area = getCropArea(x, y, width, height, sourceWidth, sourceHeight);
+      int subsampling = getSubsampling(area, dimensions, sourceWidth, sourceHeight);
+
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceRegion(area);
+      param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+      BufferedImage image = reader.read(0, param);
+      return new DecodedRegion(image, format, getMimeType(reader, format), sourceWidth,
+          sourceHeight);
+    } catch (IIOException e) {
+      LOGGER.debug("ImageIO can't decode this image, trying Sanselan: {}", e.getMessage());
+      iis.seek(0);
+      return null;
+    } finally {
+      reader.dispose();
+    }
+  }
+
+  /**
+   * Decodes the entire image with Sanselan and cuts the region out of it.
+   *
+   * @param bytes
+   *          The bytes of the image.
+   * @param x
+   *          Where to start cutting on the x-axis.
+   * @param y
+   *          Where to start cutting on the y-axis.
+   * @param width
+   *          The width of the image to cut out.
+   * @param height
+   *          The height of the image to cut out.
+   * @return The decoded region.
+   * @throws ImageReadException
+   * @throws IOException
+   * @throws ImageException
+   */
+  protected static DecodedRegion readRegion(byte[] bytes, int x, int y, int width,
+      int height) throws ImageReadException, IOException, ImageException {
+    ImageInfo info = Sanselan.getImageInfo(bytes);
+    BufferedImage imgBuf = getBufferedImage(bytes, info);
+    Rectangle area = getCropArea(x, y, width, height, info.getWidth(), info.getHeight());
+
+    // Cut the desired piece out of the image.
+    BufferedImage subImage = imgBuf.getSubimage(area.x, area.y, area.width, area.height);
+    return new DecodedRegion(subImage, info.getFormat(), info.getMimeType(),
+        info.getWidth(), info.getHeight());
+  }
+
+  /**
+   * @param x
+   * @param y
+   * @param width
+   *          The width to cut out, if <=0 the entire image width will be used.
+   * @param height
+   *          The height to cut out, if <=0 the entire image height will be used.
+   * @param sourceWidth
+   * @param sourceHeight
+   * @return The area to cut out, clipped to the bounds of the image.
+   * @throws ImageException
+   *           The area lies completely outside of the image.
+   */
+  protected static Rectangle getCropArea(int x, int y, int width, int height,
+      int sourceWidth, int sourceHeight) throws ImageException {
+    // Set the correct width & height.
+    width = (width <= 0) ? sourceWidth : width;
+    height = (height <= 0) ? sourceHeight : height;
+
+    if (x + width > sourceWidth) {
+      width = sourceWidth - x;
+    }
+    if (y + height > sourceHeight) {
+      height = sourceHeight - y;
+    }
+    if (width <= 0 || height <= 0) {
+      throw new ImageException(400, "The area to crop lies outside of the image.");
+    }
+    return new Rectangle(x, y, width, height);
+  }
+
+  /**
+   * @param area
+   *          The area that will be cut out.
+   * @param dimensions
+   *          The dimensions the area will be scaled into.
+   * @param sourceWidth
+   * @param sourceHeight
+   * @return The number of pixels that can be skipped in both directions when decoding
+   *         the area, while keeping it at least twice as large as the largest dimension.
+   */
+  protected static int getSubsampling(Rectangle area, List<Dimension> dimensions,
+      int sourceWidth, int sourceHeight) {
+    int targetWidth = 1;
+    int targetHeight = 1;
+    for (Dimension d : dimensions) {
+      targetWidth = Math.max(targetWidth, (d.width <= 0) ? sourceWidth : d.width);
+      targetHeight = Math.max(targetHeight, (d.height <= 0) ? sourceHeight : d.height);
+    }
+    int subsampling = Math.min(area.width / (2 * targetWidth), area.height
+        / (2 * targetHeight));
+    return Math.max(subsampling, 1);
+  }
+
+  /**
+   * @param formatName
+   *          The name ImageIO uses for a format.
+   * @return The matching Sanselan format, or {@link ImageFormat#IMAGE_FORMAT_UNKNOWN}.
+   */
+  protected static ImageFormat getImageFormat(String formatName) {
+    if ("jpg".equalsIgnoreCase(formatName)) {
+      formatName = "jpeg";
+    } else if ("tif".equalsIgnoreCase(formatName)) {
+      formatName = "tiff";
+    }
+    for (ImageFormat format : ImageFormat.getAllFormats()) {
+      if (format.actual && format.name.equalsIgnoreCase(formatName)) {
+        return format;
+      }
+    }
+    return ImageFormat.IMAGE_FORMAT_UNKNOWN;
+  }
+
+  private static String getMimeType(ImageReader reader, ImageFormat format) {
+    ImageReaderSpi provider = reader.getOriginatingProvider();
+    if (provider != null && provider.getMIMETypes() != null
+        && provider.getMIMETypes().length > 0) {
+      return provider.getMIMETypes()[0];
+    }
+    return "image/" + format.extension.toLowerCase();
+  }
+
+  private static byte[] readFully(ImageInputStream iis) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = iis.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
   /**
    * @param bytes
    * @param info
@@ -247,6 +435,65 @@ public class CropItProcessor {
     return imgBuf;
   }
 
+  /**
+   * Scales the region and saves it in the content store. The scaled image is encoded to
+   * a temporary file which is then streamed into the store, rather than being held in
+   * memory.
+   *
+   * @param width
+   *          The desired width of the scaled image.
+   * @param height
+   *          The desired height of the scaled image.
+   * @param region
+   *          The region to scale.
+   * @param path
+   *          The path to save the image in.
+   * @param session
+   * @return false if the image could not be scaled.
+   * @throws ImageException
+   *           The image could not be saved.
+   */
+  protected static boolean scaleAndSave(int width, int height, DecodedRegion region,
+      String path, Session session) throws ImageException {
+    File file = null;
+    try {
+      file = File.createTempFile("cropit", null);
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+      try {
+        scaleAndWrite(width, height, region.image, region.format, out);
+      } finally {
+        out.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error("Failed to process image "+e.getMessage(), e);
+      if (file != null && !file.delete()) {
+        LOGGER.warn("Unable to delete {}", file);
+      }
+      return false;
+    }
+
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      saveImageToContentStore(path, region.mimeType, in, session);
+      return true;
+    } catch (IOException e) {
+      LOGGER.warn("Unable to read scaled image: " + e.getMessage());
+      throw new ImageException(500, "Unable to save image to JCR.");
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOGGER.warn("Unable to close inputstream.");
+        }
+      }
+      if (!file.delete()) {
+        LOGGER.warn("Unable to delete {}", file);
+      }
+    }
+  }
+
   /**
    * Will save a stream of an image to the JCR.
    *
@@ -254,17 +501,14 @@ public class CropItProcessor {
    *          The JCR path to save the image in.
    * @param mimetype
    *          The Mime type of the node that will be saved.
-   * @param out
+   * @param in
    *          The stream you wish to save.
    * @throws ImageException
-   * @throws StorageClientException
    */
   protected static void saveImageToContentStore(String path, String mimetype,
-      byte[] image, Session session) throws ImageException, StorageClientException {
-    ContentManager contentManager = session.getContentManager();
-
-    ByteArrayInputStream bais = null;
+      InputStream in, Session session) throws ImageException {
     try {
+      ContentManager contentManager = session.getContentManager();
       Content node = contentManager.get(path);
       if (node != null) {
         node.setProperty("mimeType", mimetype);
@@ -272,21 +516,11 @@ public class CropItProcessor {
       } else {
         contentManager.update(new Content(path, ImmutableMap.of("mimeType", (Object)mimetype)));
       }
-      // convert stream to inputstream
-      bais = new ByteArrayInputStream(image);
-      contentManager.writeBody(path, bais);
+      contentManager.writeBody(path, in);
 
     } catch (Exception e) {
       LOGGER.warn("Repository exception: " + e.getMessage());
       throw new ImageException(500, "Unable to save image to JCR.");
-    } finally {
-      if (bais != null) {
-        try {
-          bais.close();
-        } catch (IOException e) {
-          LOGGER.warn("Unable to close inputstream.");
-        }
-      }
     }
   }
 
@@ -314,20 +548,9 @@ public class CropItProcessor {
       BufferedImage img, String imgName, ImageInfo info) throws IOException,
       ImageWriteException {
     try {
-      // Get a scaled image.
-      BufferedImage imgScaled = getScaledInstance(img, width, height);
-
       // Convert image to a stream
       ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-      // Write to stream.
-      if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
-        ImageIO.write(imgScaled, "jpg", out);
-      } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
-        ImageIO.write(imgScaled, "png", out);
-      } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
-      }
+      scaleAndWrite(width, height, img, info.getFormat(), out);
       out.close();
       return out.toByteArray();
     } catch (Exception e) {
@@ -336,6 +559,57 @@ public class CropItProcessor {
     return null;
   }
 
+  /**
+   * Scales an image and writes it to a stream.
+   *
+   * @param width
+   *          The desired width of the scaled image.
+   * @param height
+   *          The desired height of the scaled image.
+   * @param img
+   *          The image that you want to scale
+   * @param format
+   *          The format to write the scaled image in.
+   * @param out
+   *          The stream to write to.
+   * @throws IOException
+   * @throws ImageWriteException
+   *           Failed to write the scaled image to the stream.
+   */
+  protected static void scaleAndWrite(int width, int height, BufferedImage img,
+      ImageFormat format, OutputStream out) throws IOException, ImageWriteException {
+    // Get a scaled image.
+    BufferedImage imgScaled = getScaledInstance(img, width, height);
+
+    // Write to stream.
+    if (format == ImageFormat.IMAGE_FORMAT_JPEG) {
+      ImageIO.write(imgScaled, "jpg", out);
+    } else if (format == ImageFormat.IMAGE_FORMAT_PNG) {
+      ImageIO.write(imgScaled, "png", out);
+    } else {
+      Sanselan.writeImage(imgScaled, out, format, null);
+    }
+  }
+
+  /**
+   * The region read for a crop.
+   */
+  protected static class DecodedRegion {
+    protected final BufferedImage image;
+    protected final ImageFormat format;
+    protected final String mimeType;
+    protected final int sourceWidth;
+    protected final int sourceHeight;
+
+    protected DecodedRegion(BufferedImage image, ImageFormat format, String mimeType,
+        int sourceWidth, int sourceHeight) {
+      this.image = image;
+      this.format = format;
+      this.mimeType = mimeType;
+      this.sourceWidth = sourceWidth;
+      this.sourceHeight = sourceHeight;
+    }
+  }
 
   /**
    * Image scaling routine as prescribed by
@@ -358,6 +632,15 @@ public class CropItProcessor {
     int w = img.getWidth();
     int h = img.getHeight();
 
+    // Indexed and custom images can't be drawn into a new image of the same type without
+    // losing colours, so those get scaled in RGB.
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED
+        || type == BufferedImage.TYPE_BYTE_BINARY) {
+      type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+          : BufferedImage.TYPE_INT_RGB;
+    }
+
     while (w > targetWidth || h > targetHeight) {
       // Bit shifting by one is faster than dividing by 2.
       w >>= 1;
@@ -371,7 +654,7 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
+      BufferedImage tmp = new BufferedImage(w, h, type);
       Graphics2D g2 = tmp.createGraphics();
       g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
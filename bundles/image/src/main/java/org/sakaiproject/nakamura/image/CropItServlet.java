@@ -17,8 +17,13 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -27,6 +32,7 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -38,6 +44,7 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.BlobAccess;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
@@ -47,6 +54,9 @@ import java.awt.Dimension;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -71,12 +81,40 @@ import javax.servlet.http.HttpServletResponse;
         + "Example: {\"files\":[\"/test/16x16_gateway.png\",\"/test/32x32_gateway.png\"]}"),
     @ServiceResponse(code = 400, description = "There is a missing (or invalid) parameter."),
     @ServiceResponse(code = 406, description = "The provided image is not a valid imagetype."),
+    @ServiceResponse(code = 503, description = "Too many images are being cropped at the moment, try again later."),
     @ServiceResponse(code = 500, description = "Failure, explanation is in the HTML.") }))
 public class CropItServlet extends SlingAllMethodsServlet {
 
   private static final Logger logger = LoggerFactory.getLogger(CropItServlet.class);
   private static final long serialVersionUID = 7893384805719426200L;
 
+  /**
+   * The number of images that can be cropped at the same time. Every crop holds a decoded
+   * region of the image in memory, so this bounds the heap used by cropping.
+   */
+  @Property(intValue = 4)
+  static final String MAX_CONCURRENT_CROPS = "crop.maxConcurrent";
+
+  /**
+   * How long (ms) a request waits for one of the crops to finish before giving up.
+   */
+  @Property(longValue = 30000)
+  static final String CROP_WAIT_TIME = "crop.waitTime";
+
+  private Semaphore cropPermits = new Semaphore(4, true);
+  private long cropWaitTime = 30000;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
+
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    int maxConcurrent = Math.max(1, PropertiesUtil.toInteger(props.get(MAX_CONCURRENT_CROPS), 4));
+    cropPermits = new Semaphore(maxConcurrent, true);
+    cropWaitTime = PropertiesUtil.toLong(props.get(CROP_WAIT_TIME), 30000);
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -148,8 +186,19 @@ public class CropItServlet extends SlingAllMethodsServlet {
 //      save = PathUtils.normalizePath(save) + "/";
 //      requestSave = PathUtils.normalizePath(requestSave) + "/";
 
-      String[] crop = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, requestImg,
-          save);
+      String[] crop;
+      Semaphore permits = cropPermits;
+      if (!permits.tryAcquire(cropWaitTime, TimeUnit.MILLISECONDS)) {
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+            "Too many images are being cropped at the moment, try again later.");
+        return;
+      }
+      try {
+        crop = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions,
+            requestImg, save, blobAccess);
+      } finally {
+        permits.release();
+      }
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -188,6 +237,10 @@ public class CropItServlet extends SlingAllMethodsServlet {
       response.sendError(e.getCode(), e.getMessage());
     } catch (JSONException e) {
       response.sendError(500, "Unable to output JSON.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "Interrupted while waiting to crop the image.");
     } catch (StorageClientException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
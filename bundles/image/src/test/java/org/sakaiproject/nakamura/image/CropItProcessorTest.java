@@ -38,18 +38,22 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.image.CropItProcessor.DecodedRegion;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.RepositoryException;
 
 /**
@@ -103,7 +107,7 @@ public class CropItProcessorTest {
     when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jrSession);
     when(resourceResolver.getResource(anyString())).thenReturn(someResource);
     try {
-      CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, img, save);
+      CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, img, save, null);
       fail("The processor should not handle non-images.");
     } catch (ImageException e) {
       assertEquals(500, e.getCode());
@@ -126,7 +130,7 @@ public class CropItProcessorTest {
     when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jrSession);
     when(resourceResolver.getResource(anyString())).thenReturn(someResource);
     try {
-      CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, img, save);
+      CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, img, save, null);
       fail("The processor should not handle non-images.");
     } catch (ImageException e) {
       assertEquals(406, e.getCode());
@@ -149,4 +153,53 @@ public class CropItProcessorTest {
     assertEquals(scaledImage.getHeight(), 50);
   }
 
+  @Test
+  public void testReadRegionSubsampled() throws IOException, ImageException,
+      ImageWriteException {
+    ImageInputStream iis = ImageIO.createImageInputStream(getClass().getResourceAsStream(
+        "people.png"));
+    try {
+      List<Dimension> small = new ArrayList<Dimension>();
+      small.add(new Dimension(25, 25));
+      small.add(new Dimension(10, 10));
+      DecodedRegion region = CropItProcessor.readRegion(iis, 0, 0, 100, 100, small);
+      // Never decoded at more than twice the largest requested size.
+      assertEquals(50, region.image.getWidth());
+      assertEquals(50, region.image.getHeight());
+      assertEquals(256, region.sourceWidth);
+      assertEquals(ImageFormat.IMAGE_FORMAT_PNG, region.format);
+      assertEquals("image/png", region.mimeType);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      CropItProcessor.scaleAndWrite(25, 25, region.image, region.format, out);
+      BufferedImage scaledImage = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+      assertEquals(25, scaledImage.getWidth());
+      assertEquals(25, scaledImage.getHeight());
+    } finally {
+      iis.close();
+    }
+  }
+
+  @Test
+  public void testGetSubsampling() {
+    List<Dimension> sizes = new ArrayList<Dimension>();
+    sizes.add(new Dimension(100, 50));
+    assertEquals(10, CropItProcessor.getSubsampling(new Rectangle(0, 0, 2000, 2000), sizes,
+        4000, 3000));
+    // A dimension of 0 means the full image size, so nothing can be skipped.
+    sizes.add(new Dimension(0, 0));
+    assertEquals(1, CropItProcessor.getSubsampling(new Rectangle(0, 0, 2000, 2000), sizes,
+        4000, 3000));
+  }
+
+  @Test
+  public void testCropAreaOutsideImage() {
+    try {
+      CropItProcessor.getCropArea(300, 0, 100, 100, 256, 256);
+      fail("The crop area lies outside of the image.");
+    } catch (ImageException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
 }
@@ -55,6 +55,10 @@ public class LockImpl implements Lock, ThreadBound {
    * The ID of the lock instance.
    */
   private long lockId;
+  /**
+   * The time (ms) after which the lock is considered abandoned, 0 for never.
+   */
+  private long expires;
 
   /**
    * Create a new lock on the item id, with owner ownerId for the lockmanage instanceId
@@ -74,6 +78,23 @@ public class LockImpl implements Lock, ThreadBound {
     this.lockId = lockId;
   }
 
+  /**
+   * Create a new lock with a lease, after which the lock may be taken by someone else.
+   *
+   * @param id
+   *          the object being locked.
+   * @param ownerId
+   *          the owner of the lock.
+   * @param instanceId
+   *          the instance of the lock manager creating the lock.
+   * @param expires
+   *          the time in ms when the lease ends, 0 for no lease.
+   */
+  public LockImpl(String id, long lockId, long ownerId, long instanceId, long expires) {
+    this(id, lockId, ownerId, instanceId);
+    this.expires = expires;
+  }
+
   /**
    * Bind this lock to a lock manager, this must be performed whenever the lock is taken
    * from the cache.
@@ -144,6 +165,13 @@ public class LockImpl implements Lock, ThreadBound {
     return locked;
   }
 
+  /**
+   * @return true if the lock has a lease that has run out.
+   */
+  public boolean isExpired() {
+    return expires > 0 && expires < System.currentTimeMillis();
+  }
+
   /**
    * {@inheritDoc}
    * unbind this lock, performing an unlock in the process.
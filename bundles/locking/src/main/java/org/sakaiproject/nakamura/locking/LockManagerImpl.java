@@ -20,10 +20,13 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
@@ -34,11 +37,19 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that uses a cluster replicated cache to manage the locks. Locally, threads
+ * waiting for a lock are queued in a {@link LockTable} and woken in order as soon as the
+ * lock is released. Locks held on other nodes are checked again every lock.recheck ms.
  */
 @Component(immediate = true)
 @Service
@@ -70,6 +81,34 @@ public class LockManagerImpl implements LockManager {
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  /**
+   * The time (ms) waitForLock will wait before throwing a LockTimeoutException.
+   */
+  @Property(longValue = 30000)
+  static final String LOCK_TIMEOUT = "lock.timeout";
+
+  /**
+   * The time (ms) after which a lock that has not been released may be taken by another
+   * thread, 0 means locks are held until released.
+   */
+  @Property(longValue = 0)
+  static final String LOCK_LEASE = "lock.lease";
+
+  /**
+   * The longest time (ms) a waiting thread sleeps before checking the lock again, this
+   * only matters for locks held on another node or whose lease runs out.
+   */
+  @Property(longValue = 100)
+  static final String LOCK_RECHECK = "lock.recheck";
+
+  /**
+   * The number of stripes in the local lock table.
+   */
+  @Property(intValue = 64)
+  static final String LOCK_STRIPES = "lock.stripes";
+
+  private static final String STATS_NAME = "org.sakaiproject.nakamura.locking:type=LockManager";
+
   /**
    * Service dependency, the Cache Manager
    */
@@ -101,7 +140,11 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  private LockTable lockTable = new LockTable(64);
+  private LockStats stats = new LockStats(lockTable);
+  private long timeout = 30000;
+  private long lease = 0;
+  private long recheck = 100;
 
   /**
    * @throws NoSuchAlgorithmException
@@ -118,21 +161,22 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
+   * A free lock is not taken while other threads are queued for it in
+   * {@link #waitForLock(String)}.
+   *
    * @param id
    * @return
    */
   public Lock getLock(String id, boolean create) {
     LockImpl lock = lockMap.get(id);
     if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
-          }
+      if (!isHeld(lock)) {
+        ReentrantLock stripe = lockTable.getStripe(id);
+        stripe.lock();
+        try {
+          lock = tryLock(id, null);
+        } finally {
+          stripe.unlock();
         }
       }
     }
@@ -142,6 +186,53 @@ public class LockManagerImpl implements LockManager {
     return lock;
   }
 
+  /**
+   * Take the lock if the current thread holds it already, or if it is free and no thread
+   * ahead of the current one is queued for it. Must be called holding the stripe for the
+   * id.
+   *
+   * @param id
+   * @param waiter
+   *          the current thread's place in the queue, null if it is not queued.
+   * @return the current lock, which may belong to someone else.
+   */
+  private LockImpl tryLock(String id, LockTable.Waiter waiter) {
+    LockImpl lock = lockMap.get(id);
+    if (lock != null) {
+      lock.bind(this);
+    }
+    boolean reentrant = isHeld(lock) && lock.isOwner();
+    // first come first served, only the head of the queue may take a free lock.
+    if (reentrant
+        || (waiter == null ? !lockTable.hasWaiters(id) : lockTable.isHead(id, waiter))) {
+      lock = createLock(id);
+    }
+    return lock;
+  }
+
+  /**
+   * Take the lock if it is free, must be called holding the stripe for the id.
+   *
+   * @param id
+   * @return the current lock, which may belong to someone else.
+   */
+  private LockImpl createLock(String id) {
+    LockImpl lock = lockMap.get(id);
+    if (!isHeld(lock)) {
+      Cache<LockImpl> requestLocks = getRequestLocks();
+      long expires = lease > 0 ? System.currentTimeMillis() + lease : 0;
+      lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId, expires);
+      lockMap.put(id, lock);
+      requestLocks.put(id, lock);
+    }
+    lock.bind(this);
+    return lock;
+  }
+
+  private boolean isHeld(LockImpl lock) {
+    return lock != null && lock.isLocked() && !lock.isExpired();
+  }
+
   /**
    * @return
    */
@@ -160,8 +251,18 @@ public class LockManagerImpl implements LockManager {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      String id = lock.getLocked();
+      ReentrantLock stripe = lockTable.getStripe(id);
+      stripe.lock();
+      try {
+        LockImpl current = lockMap.get(id);
+        // after a lease has expired the lock may already belong to someone else.
+        if (current == null || current.getLockId() == lock.getLockId()) {
+          lockMap.remove(id);
+        }
+        lockTable.signal(id);
+      } finally {
+        stripe.unlock();
       }
     }
   }
@@ -186,36 +287,49 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    long start = System.currentTimeMillis();
+    long deadline = start + timeout;
+    LockTable.Waiter waiter = null;
+    ReentrantLock stripe = lockTable.getStripe(id);
+    stripe.lock();
+    try {
+      while (true) {
+        LockImpl lock = tryLock(id, waiter);
+        if (isHeld(lock) && lock.isOwner()) {
+          if (waiter != null) {
+            lockTable.remove(id, waiter);
+          }
+          stats.acquired(id, System.currentTimeMillis() - start, waiter != null);
+          if (debug) {
+            LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+          }
+          return lock;
         }
-        return lock;
-      }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
-      }
-      try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
+        if (waiter == null) {
+          waiter = lockTable.enqueue(id);
         }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          lockTable.remove(id, waiter);
+          stats.timeout(id);
+          LOGGER.warn(Thread.currentThread() + " Timed out after " + timeout
+              + " ms waiting for " + id);
+          throw new LockTimeoutException("Failed to lock node " + id);
+        }
+        try {
+          lockTable.await(waiter, Math.min(remaining, recheck));
+        } catch (InterruptedException e) {
+          lockTable.remove(id, waiter);
+          Thread.currentThread().interrupt();
+          throw new LockTimeoutException("Interrupted waiting to lock node " + id, e);
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
       }
+    } finally {
+      stripe.unlock();
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
   }
 
   /**
@@ -230,6 +344,39 @@ public class LockManagerImpl implements LockManager {
   }
 
  
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    timeout = PropertiesUtil.toLong(properties.get(LOCK_TIMEOUT), 30000);
+    lease = PropertiesUtil.toLong(properties.get(LOCK_LEASE), 0);
+    recheck = Math.max(1, PropertiesUtil.toLong(properties.get(LOCK_RECHECK), 100));
+    int stripes = PropertiesUtil.toInteger(properties.get(LOCK_STRIPES), 64);
+    lockTable = new LockTable(stripes);
+    stats = new LockStats(lockTable);
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(STATS_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(stats, objectName);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register lock statistics {} ", e.getMessage());
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(STATS_NAME));
+    } catch (Exception e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
+  LockStats getStats() {
+    return stats;
+  }
+
   /**
    * @param cacheManagerService
    */
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Contention counters for the {@link LockManagerImpl}.
+ */
+public class LockStats implements LockStatsMBean {
+
+  /**
+   * Upper bounds (ms, exclusive) of the wait time buckets, the last bucket is unbounded.
+   */
+  private static final long[] BUCKETS = { 1, 10, 100, 1000, 10000 };
+  private static final int MAX_TRACKED = 10000;
+  private static final int HOTTEST = 10;
+
+  private LockTable lockTable;
+  private AtomicLong acquired = new AtomicLong();
+  private AtomicLong contended = new AtomicLong();
+  private AtomicLong timeouts = new AtomicLong();
+  private AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+  private ConcurrentMap<String, AtomicLong> contention = new ConcurrentHashMap<String, AtomicLong>();
+
+  LockStats(LockTable lockTable) {
+    this.lockTable = lockTable;
+  }
+
+  void acquired(String id, long waitTime, boolean waited) {
+    acquired.incrementAndGet();
+    int i = 0;
+    while (i < BUCKETS.length && waitTime >= BUCKETS[i]) {
+      i++;
+    }
+    histogram.incrementAndGet(i);
+    if (waited) {
+      contended.incrementAndGet();
+      contended(id);
+    }
+  }
+
+  void timeout(String id) {
+    timeouts.incrementAndGet();
+    contended(id);
+  }
+
+  private void contended(String id) {
+    AtomicLong count = contention.get(id);
+    if (count == null) {
+      if (contention.size() > MAX_TRACKED) {
+        // keep the tracked set bounded, the hot ids soon come back.
+        contention.clear();
+      }
+      count = new AtomicLong();
+      AtomicLong current = contention.putIfAbsent(id, count);
+      if (current != null) {
+        count = current;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  public long getAcquired() {
+    return acquired.get();
+  }
+
+  public long getContended() {
+    return contended.get();
+  }
+
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  public int getWaiting() {
+    return lockTable.getWaiting();
+  }
+
+  public String[] getWaitHistogram() {
+    String[] result = new String[BUCKETS.length + 1];
+    for (int i = 0; i < BUCKETS.length; i++) {
+      result[i] = "<" + BUCKETS[i] + "ms " + histogram.get(i);
+    }
+    result[BUCKETS.length] = ">=" + BUCKETS[BUCKETS.length - 1] + "ms "
+        + histogram.get(BUCKETS.length);
+    return result;
+  }
+
+  public String[] getHottestLocks() {
+    List<Entry<String, AtomicLong>> entries = new ArrayList<Entry<String, AtomicLong>>(
+        contention.entrySet());
+    Collections.sort(entries, new Comparator<Entry<String, AtomicLong>>() {
+      public int compare(Entry<String, AtomicLong> o1, Entry<String, AtomicLong> o2) {
+        long c1 = o1.getValue().get();
+        long c2 = o2.getValue().get();
+        return c1 < c2 ? 1 : (c1 == c2 ? 0 : -1);
+      }
+    });
+    int n = Math.min(HOTTEST, entries.size());
+    String[] result = new String[n];
+    for (int i = 0; i < n; i++) {
+      result[i] = entries.get(i).getKey() + " " + entries.get(i).getValue().get();
+    }
+    return result;
+  }
+
+  public void reset() {
+    acquired.set(0);
+    contended.set(0);
+    timeouts.set(0);
+    for (int i = 0; i < histogram.length(); i++) {
+      histogram.set(i, 0);
+    }
+    contention.clear();
+  }
+}
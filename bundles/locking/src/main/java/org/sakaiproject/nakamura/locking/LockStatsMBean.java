@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+/**
+ * JMX view of lock contention in the {@link LockManagerImpl}.
+ */
+public interface LockStatsMBean {
+
+  /**
+   * @return locks granted by waitForLock.
+   */
+  long getAcquired();
+
+  /**
+   * @return locks granted by waitForLock that had to wait.
+   */
+  long getContended();
+
+  /**
+   * @return waitForLock calls that gave up.
+   */
+  long getTimeouts();
+
+  /**
+   * @return the number of threads waiting for a lock now.
+   */
+  int getWaiting();
+
+  /**
+   * @return counts of waitForLock wait times, one line per bucket.
+   */
+  String[] getWaitHistogram();
+
+  /**
+   * @return the most contended lock ids with their contention counts.
+   */
+  String[] getHottestLocks();
+
+  void reset();
+}
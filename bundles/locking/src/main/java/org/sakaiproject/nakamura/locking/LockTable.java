@@ -0,0 +1,180 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The local side of the lock manager. Lock ids are spread over a fixed number of stripes,
+ * each guarded by its own ReentrantLock, so unrelated ids do not contend on one monitor.
+ * Threads waiting for an id queue on a Condition of that id's stripe and are woken in FIFO
+ * order when the id is unlocked.
+ */
+class LockTable {
+
+  /**
+   * A thread waiting for an id.
+   */
+  static final class Waiter {
+    private final Condition condition;
+
+    private Waiter(Condition condition) {
+      this.condition = condition;
+    }
+  }
+
+  private final ReentrantLock[] stripes;
+  private final Map<String, LinkedList<Waiter>>[] waiters;
+
+  /**
+   * @param nstripes
+   *          rounded up to a power of 2.
+   */
+  @SuppressWarnings("unchecked")
+  LockTable(int nstripes) {
+    int n = 1;
+    while (n < nstripes) {
+      n = n << 1;
+    }
+    stripes = new ReentrantLock[n];
+    waiters = new Map[n];
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new ReentrantLock();
+      waiters[i] = new HashMap<String, LinkedList<Waiter>>();
+    }
+  }
+
+  private int index(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return h & (stripes.length - 1);
+  }
+
+  /**
+   * @param id
+   * @return the lock guarding the id. All other methods must be called holding it.
+   */
+  ReentrantLock getStripe(String id) {
+    return stripes[index(id)];
+  }
+
+  /**
+   * @param id
+   * @return true if there are threads waiting for the id.
+   */
+  boolean hasWaiters(String id) {
+    return waiters[index(id)].containsKey(id);
+  }
+
+  /**
+   * @param id
+   * @param waiter
+   * @return true if the waiter is at the head of the queue for the id.
+   */
+  boolean isHead(String id, Waiter waiter) {
+    LinkedList<Waiter> queue = waiters[index(id)].get(id);
+    return queue != null && queue.getFirst() == waiter;
+  }
+
+  /**
+   * Add a waiter to the end of the queue for the id.
+   *
+   * @param id
+   * @return the new waiter.
+   */
+  Waiter enqueue(String id) {
+    int i = index(id);
+    LinkedList<Waiter> queue = waiters[i].get(id);
+    if (queue == null) {
+      queue = new LinkedList<Waiter>();
+      waiters[i].put(id, queue);
+    }
+    Waiter waiter = new Waiter(stripes[i].newCondition());
+    queue.add(waiter);
+    return waiter;
+  }
+
+  /**
+   * Wait to be signalled, releasing the stripe while waiting.
+   *
+   * @param waiter
+   * @param timeout
+   *          in ms.
+   * @throws InterruptedException
+   */
+  void await(Waiter waiter, long timeout) throws InterruptedException {
+    waiter.condition.await(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Remove a waiter, waking the next one if the waiter was at the head.
+   *
+   * @param id
+   * @param waiter
+   */
+  void remove(String id, Waiter waiter) {
+    int i = index(id);
+    LinkedList<Waiter> queue = waiters[i].get(id);
+    if (queue != null) {
+      boolean head = queue.getFirst() == waiter;
+      queue.remove(waiter);
+      if (queue.isEmpty()) {
+        waiters[i].remove(id);
+      } else if (head) {
+        queue.getFirst().condition.signal();
+      }
+    }
+  }
+
+  /**
+   * Wake the first waiter for the id.
+   *
+   * @param id
+   */
+  void signal(String id) {
+    LinkedList<Waiter> queue = waiters[index(id)].get(id);
+    if (queue != null) {
+      queue.getFirst().condition.signal();
+    }
+  }
+
+  /**
+   * @return the number of threads waiting across all ids, approximate as the stripes are
+   *         counted one at a time.
+   */
+  int getWaiting() {
+    int n = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i].lock();
+      try {
+        for (LinkedList<Waiter> queue : waiters[i].values()) {
+          n += queue.size();
+        }
+      } finally {
+        stripes[i].unlock();
+      }
+    }
+    return n;
+  }
+}
@@ -22,17 +22,26 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.locking.cache.LockImpl;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  *
  */
@@ -99,4 +108,125 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testWaitForLockWakesOnUnlock() throws Exception {
+    final Lock held = lockManager.waitForLock("foo");
+    final CountDownLatch waiting = new CountDownLatch(1);
+    final AtomicLong granted = new AtomicLong();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          waiting.countDown();
+          Lock lock = lockManager.waitForLock("foo");
+          granted.set(System.currentTimeMillis());
+          lock.unlock();
+        } catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    };
+    t.start();
+    waiting.await();
+    Thread.sleep(50);
+    long released = System.currentTimeMillis();
+    held.unlock();
+    t.join(5000);
+    assertEquals(null, failure.get());
+    assertTrue(granted.get() >= released);
+    assertEquals(2, lockManager.getStats().getAcquired());
+    assertEquals(1, lockManager.getStats().getContended());
+    assertEquals("foo 1", lockManager.getStats().getHottestLocks()[0]);
+  }
+
+  @Test
+  public void testWaitForLockReentrant() throws Exception {
+    Lock l = lockManager.waitForLock("foo");
+    assertEquals(l.getLockId(), lockManager.waitForLock("foo").getLockId());
+  }
+
+  @Test
+  public void testWaitForLockTimeout() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.LOCK_TIMEOUT, 100L);
+    lockManager.activate(properties);
+    lockManager.waitForLock("foo");
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          lockManager.waitForLock("foo");
+          fail();
+        } catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    };
+    t.start();
+    t.join(5000);
+    lockManager.deactivate();
+    assertTrue(failure.get() instanceof LockTimeoutException);
+    assertEquals(1, lockManager.getStats().getTimeouts());
+    assertEquals(0, lockManager.getStats().getWaiting());
+  }
+
+  @Test
+  public void testGetLockLeavesAFreeLockToWaiters() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.LOCK_LEASE, 50L);
+    properties.put(LockManagerImpl.LOCK_RECHECK, 500L);
+    lockManager.activate(properties);
+    lockManager.waitForLock("foo");
+    final AtomicReference<Lock> taken = new AtomicReference<Lock>();
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          taken.set(lockManager.waitForLock("foo"));
+        } catch (LockTimeoutException e) {
+        }
+      }
+    };
+    waiter.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (lockManager.getStats().getWaiting() == 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    // the lease has run out, but the waiter has not been woken to take it.
+    Thread.sleep(100);
+    final AtomicReference<Boolean> barged = new AtomicReference<Boolean>();
+    Thread other = new Thread() {
+      public void run() {
+        barged.set(lockManager.getLock("foo", true).isOwner());
+      }
+    };
+    other.start();
+    other.join(5000);
+    waiter.join(5000);
+    lockManager.deactivate();
+    assertEquals(Boolean.FALSE, barged.get());
+    assertTrue(taken.get() != null);
+  }
+
+  @Test
+  public void testLeaseExpiry() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.LOCK_LEASE, 50L);
+    lockManager.activate(properties);
+    lockManager.waitForLock("foo");
+    final AtomicReference<Lock> taken = new AtomicReference<Lock>();
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          taken.set(lockManager.waitForLock("foo"));
+        } catch (LockTimeoutException e) {
+        }
+      }
+    };
+    t.start();
+    t.join(5000);
+    lockManager.deactivate();
+    assertTrue(taken.get() != null);
+  }
+
 }
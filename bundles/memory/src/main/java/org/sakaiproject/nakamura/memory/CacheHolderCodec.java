@@ -0,0 +1,247 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+
+/**
+ * A compact binary encoding of the property maps in {@link CacheHolder}s. Each value is
+ * written with a one byte type tag, only the types the sparse storage layer returns are
+ * supported. A holder containing anything else, or a holder without a map, is not
+ * encoded and so never leaves the heap.
+ */
+public class CacheHolderCodec implements CacheValueCodec<CacheHolder> {
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte LONG = 2;
+  private static final byte INTEGER = 3;
+  private static final byte BOOLEAN = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte BIGDECIMAL = 6;
+  private static final byte CALENDAR = 7;
+  private static final byte ARRAY = 8;
+
+  private static final String UTF8 = "UTF-8";
+
+  /**
+   * Thrown internally when a value can not be encoded.
+   */
+  private static class UnsupportedValueException extends IOException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  public byte[] encode(CacheHolder holder) {
+    Map<String, Object> map = holder.get();
+    if (map == null) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(baos);
+      out.writeInt(map.size());
+      for (Entry<String, Object> e : map.entrySet()) {
+        writeString(out, e.getKey());
+        writeValue(out, e.getValue());
+      }
+      out.flush();
+      return baos.toByteArray();
+    } catch (UnsupportedValueException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  public CacheHolder decode(byte[] data) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    int size = in.readInt();
+    Map<String, Object> map = new HashMap<String, Object>(size * 2);
+    for (int i = 0; i < size; i++) {
+      String key = readString(in);
+      map.put(key, readValue(in, in.readByte()));
+    }
+    return new CacheHolder(map);
+  }
+
+  private void writeValue(DataOutputStream out, Object value) throws IOException {
+    byte tag = tagOf(value == null ? null : value.getClass());
+    out.writeByte(tag);
+    if (tag == ARRAY) {
+      Object[] array = (Object[]) value;
+      byte componentTag = tagOf(value.getClass().getComponentType());
+      if (componentTag == ARRAY || componentTag == NULL) {
+        throw new UnsupportedValueException();
+      }
+      out.writeByte(componentTag);
+      out.writeInt(array.length);
+      for (Object o : array) {
+        out.writeBoolean(o != null);
+        if (o != null) {
+          writeScalar(out, componentTag, o);
+        }
+      }
+    } else if (tag != NULL) {
+      writeScalar(out, tag, value);
+    }
+  }
+
+  private byte tagOf(Class<?> c) throws UnsupportedValueException {
+    if (c == null) {
+      return NULL;
+    } else if (c == String.class) {
+      return STRING;
+    } else if (c == Long.class) {
+      return LONG;
+    } else if (c == Integer.class) {
+      return INTEGER;
+    } else if (c == Boolean.class) {
+      return BOOLEAN;
+    } else if (c == Double.class) {
+      return DOUBLE;
+    } else if (c == BigDecimal.class) {
+      return BIGDECIMAL;
+    } else if (Calendar.class.isAssignableFrom(c)) {
+      return CALENDAR;
+    } else if (c.isArray() && !c.getComponentType().isPrimitive()) {
+      return ARRAY;
+    }
+    throw new UnsupportedValueException();
+  }
+
+  private void writeScalar(DataOutputStream out, byte tag, Object value) throws IOException {
+    switch (tag) {
+    case STRING:
+      writeString(out, (String) value);
+      break;
+    case LONG:
+      out.writeLong((Long) value);
+      break;
+    case INTEGER:
+      out.writeInt((Integer) value);
+      break;
+    case BOOLEAN:
+      out.writeBoolean((Boolean) value);
+      break;
+    case DOUBLE:
+      out.writeDouble((Double) value);
+      break;
+    case BIGDECIMAL:
+      writeString(out, value.toString());
+      break;
+    case CALENDAR:
+      Calendar calendar = (Calendar) value;
+      out.writeLong(calendar.getTimeInMillis());
+      writeString(out, calendar.getTimeZone().getID());
+      break;
+    default:
+      throw new UnsupportedValueException();
+    }
+  }
+
+  private Object readValue(DataInputStream in, byte tag) throws IOException {
+    if (tag == NULL) {
+      return null;
+    } else if (tag != ARRAY) {
+      return readScalar(in, tag);
+    }
+    byte componentTag = in.readByte();
+    int length = in.readInt();
+    Object[] array;
+    switch (componentTag) {
+    case STRING:
+      array = new String[length];
+      break;
+    case LONG:
+      array = new Long[length];
+      break;
+    case INTEGER:
+      array = new Integer[length];
+      break;
+    case BOOLEAN:
+      array = new Boolean[length];
+      break;
+    case DOUBLE:
+      array = new Double[length];
+      break;
+    case BIGDECIMAL:
+      array = new BigDecimal[length];
+      break;
+    case CALENDAR:
+      array = new Calendar[length];
+      break;
+    default:
+      throw new IOException("Unknown array type " + componentTag);
+    }
+    for (int i = 0; i < length; i++) {
+      if (in.readBoolean()) {
+        array[i] = readScalar(in, componentTag);
+      }
+    }
+    return array;
+  }
+
+  private Object readScalar(DataInputStream in, byte tag) throws IOException {
+    switch (tag) {
+    case STRING:
+      return readString(in);
+    case LONG:
+      return in.readLong();
+    case INTEGER:
+      return in.readInt();
+    case BOOLEAN:
+      return in.readBoolean();
+    case DOUBLE:
+      return in.readDouble();
+    case BIGDECIMAL:
+      return new BigDecimal(readString(in));
+    case CALENDAR:
+      long millis = in.readLong();
+      Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone(readString(in)));
+      calendar.setTimeInMillis(millis);
+      return calendar;
+    default:
+      throw new IOException("Unknown value type " + tag);
+    }
+  }
+
+  private void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes(UTF8);
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private String readString(DataInputStream in) throws IOException {
+    byte[] b = new byte[in.readInt()];
+    in.readFully(b);
+    return new String(b, UTF8);
+  }
+}
@@ -18,9 +18,13 @@
 package org.sakaiproject.nakamura.memory;
 
 import com.google.common.collect.Sets;
+import net.sf.ehcache.CacheException;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.event.NotificationScope;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -35,6 +39,8 @@ import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  *
@@ -47,6 +53,18 @@ public class CacheImpl<V> implements Cache<V> {
   private CacheScope scope;
   private boolean checkPayloadClasses;
   private Set<String> loadedClasses = Sets.newHashSet();
+  private volatile CacheTier<V> tier;
+  private CacheEventListener spillListener;
+  /**
+   * A value moved from the tier back into the ehcache holds the stripe of its key, so that
+   * a put or remove of the same key can't be overwritten by the older value.
+   */
+  private final Object[] stripes = new Object[64];
+  /**
+   * Promotions hold the read lock, removals that cover more than one key hold the write
+   * lock, so neither can bring back a value they removed.
+   */
+  private final ReadWriteLock promoteLock = new ReentrantReadWriteLock();
 
   /**
    * @param cacheManager
@@ -70,6 +88,9 @@ public class CacheImpl<V> implements Cache<V> {
         }
       }
     }
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Object();
+    }
     checkPayloadClasses = false;
     CacheConfiguration cacheConfiguration = cache.getCacheConfiguration();
     if ( CacheScope.CLUSTERREPLICATED.equals(scope) || cacheConfiguration.isDiskPersistent() || cacheConfiguration.isEternal() || cacheConfiguration.isOverflowToDisk()) {
@@ -85,7 +106,20 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
    */
   public void clear() {
-    cache.removeAll();
+    promoteLock.writeLock().lock();
+    try {
+      cache.removeAll();
+      CacheTier<V> t = tier;
+      if (t != null) {
+        t.clear();
+      }
+    } finally {
+      promoteLock.writeLock().unlock();
+    }
+  }
+
+  private Object stripe(String key) {
+    return stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
   }
 
   /**
@@ -94,7 +128,11 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
    */
   public boolean containsKey(String key) {
-    return cache.isKeyInCache(key);
+    if (cache.isKeyInCache(key)) {
+      return true;
+    }
+    CacheTier<V> t = tier;
+    return t != null && t.containsKey(key);
   }
 
   /**
@@ -106,11 +144,46 @@ public class CacheImpl<V> implements Cache<V> {
   public V get(String key) {
     Element e = cache.get(key);
     if (e == null) {
+      CacheTier<V> t = tier;
+      if (t != null) {
+        return promote(t, key);
+      }
       return null;
     }
     return (V) e.getObjectValue();
   }
 
+  /**
+   * Move a value from the tier back into the heap, which may spill something else. The
+   * value keeps the expiry it had before it was spilled.
+   */
+  @SuppressWarnings("unchecked")
+  private V promote(CacheTier<V> t, String key) {
+    promoteLock.readLock().lock();
+    try {
+      synchronized (stripe(key)) {
+        // put or promoted while waiting for the stripe.
+        Element e = cache.get(key);
+        if (e != null) {
+          return (V) e.getObjectValue();
+        }
+        CacheTier.Spilled<V> spilled = t.take(key);
+        if (spilled == null) {
+          return null;
+        }
+        Element promoted = new Element(key, spilled.getValue());
+        if (spilled.getExpires() != Long.MAX_VALUE) {
+          long ttl = spilled.getExpires() - System.currentTimeMillis();
+          promoted.setTimeToLive((int) Math.max(1L, (ttl + 999L) / 1000L));
+        }
+        cache.put(promoted);
+        return spilled.getValue();
+      }
+    } finally {
+      promoteLock.readLock().unlock();
+    }
+  }
+
   /**
    * {@inherit-doc}
    * 
@@ -118,13 +191,6 @@ public class CacheImpl<V> implements Cache<V> {
    */
   @SuppressWarnings("unchecked")
   public V put(String key, V payload) {
-    V previous = null;
-    if (cache.isKeyInCache(key)) {
-      Element e = cache.get(key);
-      if (e != null) {
-        previous = (V) e.getObjectValue();
-      }
-    }
 		if (checkPayloadClasses
 				&& !loadedClasses.contains(payload.getClass().getName())) {
 			ClassLoader cl = Thread.currentThread().getContextClassLoader();
@@ -161,8 +227,24 @@ public class CacheImpl<V> implements Cache<V> {
 				Thread.currentThread().setContextClassLoader(cl);
 			}
 		}
-		cache.put(new Element(key, payload));
-		return previous;
+    synchronized (stripe(key)) {
+      V previous = null;
+      if (cache.isKeyInCache(key)) {
+        Element e = cache.get(key);
+        if (e != null) {
+          previous = (V) e.getObjectValue();
+        }
+      }
+      CacheTier<V> t = tier;
+      if (t != null) {
+        V spilled = t.remove(key);
+        if (previous == null) {
+          previous = spilled;
+        }
+      }
+      cache.put(new Element(key, payload));
+      return previous;
+    }
   }
 
   /**
@@ -171,7 +253,13 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
-    cache.remove(key);
+    synchronized (stripe(key)) {
+      cache.remove(key);
+      CacheTier<V> t = tier;
+      if (t != null) {
+        t.remove(key);
+      }
+    }
   }
 
   /**
@@ -180,15 +268,24 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
-    cache.remove(key);
-    if (!key.endsWith("/")) {
-      key = key + "/";
-    }
-    List<?> keys = cache.getKeys();
-    for (Object k : keys) {
-      if (((String) k).startsWith(key)) {
-        cache.remove(k);
+    promoteLock.writeLock().lock();
+    try {
+      CacheTier<V> t = tier;
+      if (t != null) {
+        t.removeChildren(key);
       }
+      cache.remove(key);
+      if (!key.endsWith("/")) {
+        key = key + "/";
+      }
+      List<?> keys = cache.getKeys();
+      for (Object k : keys) {
+        if (((String) k).startsWith(key)) {
+          cache.remove(k);
+        }
+      }
+    } finally {
+      promoteLock.writeLock().unlock();
     }
   }
 
@@ -210,6 +307,75 @@ public class CacheImpl<V> implements Cache<V> {
     return values;
   }
 
+  /**
+   * Put a second level behind this cache, values evicted from the ehcache will be spilled
+   * into it. Replaces and closes any existing tier.
+   *
+   * @param newTier
+   *          the tier, or null to remove the current one.
+   */
+  public synchronized void setTier(CacheTier<V> newTier) {
+    if (spillListener != null) {
+      cache.getCacheEventNotificationService().unregisterListener(spillListener);
+      spillListener = null;
+    }
+    if (tier != null) {
+      tier.close();
+    }
+    tier = newTier;
+    if (newTier != null) {
+      spillListener = new SpillListener();
+      cache.getCacheEventNotificationService().registerListener(spillListener,
+          NotificationScope.LOCAL);
+    }
+  }
+
+  /**
+   * Moves elements evicted from the ehcache into the tier, with the time they expire.
+   * Expired elements are dropped.
+   */
+  private class SpillListener implements CacheEventListener {
+
+    @SuppressWarnings("unchecked")
+    public void notifyElementEvicted(Ehcache ehcache, Element element) {
+      CacheTier<V> t = tier;
+      if (t != null && element != null && element.getObjectValue() != null) {
+        t.put((String) element.getObjectKey(), (V) element.getObjectValue(),
+            element.getExpirationTime());
+      }
+    }
+
+    public void notifyElementRemoved(Ehcache ehcache, Element element) throws CacheException {
+    }
+
+    public void notifyElementPut(Ehcache ehcache, Element element) throws CacheException {
+    }
+
+    public void notifyElementUpdated(Ehcache ehcache, Element element) throws CacheException {
+    }
+
+    public void notifyElementExpired(Ehcache ehcache, Element element) {
+    }
+
+    public void notifyRemoveAll(Ehcache ehcache) {
+    }
+
+    public void dispose() {
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      throw new CloneNotSupportedException();
+    }
+  }
+
+  /**
+   * @return the name of the underlying ehcache.
+   */
+  public String getName() {
+    return cacheName;
+  }
+
   public void checkCompatableScope(CacheScope scope) {
 		if (!scope.equals(this.scope)) {
 			throw new IllegalStateException("The cache called " + cacheName
@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the cluster invalidations of a single cache.
+ */
+public class CacheInvalidationStats implements CacheInvalidationStatsMBean {
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong sendLag = new AtomicLong();
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong receiveLag = new AtomicLong();
+  private final AtomicLong maxReceiveLag = new AtomicLong();
+  private final AtomicLong overflows = new AtomicLong();
+
+  void sent(long lag) {
+    sent.incrementAndGet();
+    sendLag.addAndGet(lag);
+  }
+
+  void received(long lag) {
+    received.incrementAndGet();
+    receiveLag.addAndGet(lag);
+    long max = maxReceiveLag.get();
+    while (lag > max && !maxReceiveLag.compareAndSet(max, lag)) {
+      max = maxReceiveLag.get();
+    }
+  }
+
+  void overflowed() {
+    overflows.incrementAndGet();
+  }
+
+  public long getInvalidationsSent() {
+    return sent.get();
+  }
+
+  public long getInvalidationsReceived() {
+    return received.get();
+  }
+
+  public long getOverflows() {
+    return overflows.get();
+  }
+
+  public long getAverageSendLag() {
+    long n = sent.get();
+    return n == 0 ? 0 : sendLag.get() / n;
+  }
+
+  public long getAverageReceiveLag() {
+    long n = received.get();
+    return n == 0 ? 0 : receiveLag.get() / n;
+  }
+
+  public long getMaxReceiveLag() {
+    return maxReceiveLag.get();
+  }
+
+  public void reset() {
+    sent.set(0);
+    sendLag.set(0);
+    received.set(0);
+    receiveLag.set(0);
+    maxReceiveLag.set(0);
+    overflows.set(0);
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * JMX view of the cluster invalidation traffic for one
+ * {@link org.sakaiproject.nakamura.api.memory.CacheScope#CLUSTERINVALIDATED} cache.
+ */
+public interface CacheInvalidationStatsMBean {
+
+  /**
+   * @return the number of invalidations this server has published for the cache.
+   */
+  long getInvalidationsSent();
+
+  /**
+   * @return the number of invalidations received from other servers and applied.
+   */
+  long getInvalidationsReceived();
+
+  /**
+   * @return the number of times the outbound queue was full and the whole cache had to be
+   *         invalidated on the other servers instead.
+   */
+  long getOverflows();
+
+  /**
+   * @return the mean time in ms an invalidation waited in the local queue before it was
+   *         published.
+   */
+  long getAverageSendLag();
+
+  /**
+   * @return the mean time in ms between an invalidation being queued on the remote server
+   *         and it being applied here.
+   */
+  long getAverageReceiveLag();
+
+  /**
+   * @return the largest receive lag seen, in ms.
+   */
+  long getMaxReceiveLag();
+
+  /**
+   * Reset all the counters.
+   */
+  void reset();
+}
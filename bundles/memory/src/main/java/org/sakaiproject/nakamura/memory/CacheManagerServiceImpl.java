@@ -24,9 +24,14 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -46,6 +51,7 @@ import java.util.Scanner;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.jms.JMSException;
 import javax.management.MBeanServer;
 
 /**
@@ -68,6 +74,15 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @Property( value = DEFAULT_CACHE_STORE)
   public static final String CACHE_STORE = "cache-store";
 
+  @Property(intValue = 10000)
+  public static final String INVALIDATION_QUEUE_SIZE = "invalidation-queue-size";
+
+  @Property(intValue = 500)
+  public static final String INVALIDATION_BATCH_SIZE = "invalidation-batch-size";
+
+  @Property(longValue = 50L)
+  public static final String INVALIDATION_FLUSH_INTERVAL = "invalidation-flush-interval";
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
@@ -80,6 +95,11 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private final ClusterCacheInvalidator invalidator = new ClusterCacheInvalidator();
+  private boolean active;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private ConnectionFactoryService connectionFactoryService;
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -152,8 +172,52 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 		  Thread.currentThread().setContextClassLoader(cl);
 		  LOGGER.info("Context Classloader reset was {} now {} ",this.getClass().getClassLoader(),cl);
 	  }
+	  invalidator.configure(
+	      PropertiesUtil.toInteger(properties.get(INVALIDATION_QUEUE_SIZE), 10000),
+	      PropertiesUtil.toInteger(properties.get(INVALIDATION_BATCH_SIZE), 500),
+	      PropertiesUtil.toLong(properties.get(INVALIDATION_FLUSH_INTERVAL), 50L));
+	  synchronized (this) {
+	    active = true;
+	    startInvalidator();
+	  }
    }
 
+  @Deactivate
+  protected synchronized void deactivate(Map<String, Object> properties) {
+    active = false;
+    invalidator.stop();
+    invalidator.unregister();
+  }
+
+  protected synchronized void bindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    this.connectionFactoryService = connectionFactoryService;
+    if (active) {
+      startInvalidator();
+    }
+  }
+
+  protected synchronized void unbindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    if (this.connectionFactoryService == connectionFactoryService) {
+      invalidator.stop();
+      this.connectionFactoryService = null;
+    }
+  }
+
+  /**
+   * Start sending and receiving cluster invalidations, if JMS is available.
+   */
+  private void startInvalidator() {
+    if (connectionFactoryService != null) {
+      try {
+        invalidator.start(connectionFactoryService.getDefaultConnectionFactory());
+      } catch (JMSException e) {
+        LOGGER.error("Unable to start cluster cache invalidation, "
+            + CacheScope.CLUSTERINVALIDATED + " caches will only be invalidated locally "
+            + e.getMessage(), e);
+      }
+    }
+  }
+
   protected InputStream processConfig(InputStream configFile, Map<String,Object> properties) {
     StringBuilder config = new StringBuilder();
     Pattern p = Pattern.compile("\\$\\{([\\S]+)}");
@@ -197,7 +261,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name, scope);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name, scope);
+      return getInvalidatedCache(name, scope);
     case CLUSTERREPLICATED:
       return getInstanceCache(name, scope);
     case REQUEST:
@@ -261,6 +325,28 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * @param name
+   * @return a cache that is local to the instance, but that sends and receives
+   *         invalidations over the cluster.
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getInvalidatedCache(String name, CacheScope scope) {
+    if (name == null) {
+      return getInstanceCache(name, scope);
+    }
+    synchronized (caches) {
+      Cache<V> c = (Cache<V>) caches.get(name);
+      if (c == null) {
+        InvalidatingCacheImpl<V> ic = new InvalidatingCacheImpl<V>(cacheManager, name, scope, invalidator);
+        invalidator.register(ic);
+        c = ic;
+        caches.put(name, c);
+      }
+      return c;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
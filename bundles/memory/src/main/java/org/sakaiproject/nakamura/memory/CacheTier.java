@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * A second level behind a {@link CacheImpl}. Values evicted from the ehcache are spilled
+ * into the tier and moved back into the ehcache when they are next read, so a value is
+ * only ever held by one of the two. A spilled value keeps the expiry it had in the
+ * ehcache and is dropped once that has passed.
+ */
+public interface CacheTier<V> {
+
+  /**
+   * A value taken out of the tier, with the time it expires.
+   */
+  final class Spilled<V> {
+    private final V value;
+    private final long expires;
+
+    public Spilled(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+
+    public V getValue() {
+      return value;
+    }
+
+    /**
+     * @return when the value expires in ms since the epoch, {@link Long#MAX_VALUE} if it
+     *         does not.
+     */
+    public long getExpires() {
+      return expires;
+    }
+  }
+
+  /**
+   * Store a value evicted from the first level.
+   *
+   * @param key
+   * @param value
+   * @param expires
+   *          when the value expires in ms since the epoch, {@link Long#MAX_VALUE} if it
+   *          does not.
+   */
+  void put(String key, V value, long expires);
+
+  /**
+   * Read a value and take it out of the tier, so it can move back to the first level.
+   *
+   * @param key
+   * @return the value, or null if the tier does not hold the key or the value has expired.
+   */
+  Spilled<V> take(String key);
+
+  /**
+   * Discard a value, because the first level now holds a newer one or it was invalidated.
+   *
+   * @param key
+   * @return the value that was discarded, or null if the tier did not hold the key or the
+   *         value had expired.
+   */
+  V remove(String key);
+
+  boolean containsKey(String key);
+
+  /**
+   * Remove the key and all keys below it in the path hierarchy.
+   *
+   * @param key
+   */
+  void removeChildren(String key);
+
+  void clear();
+
+  /**
+   * Release any resources held by the tier.
+   */
+  void close();
+}
@@ -0,0 +1,458 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the invalidations of {@link InvalidatingCacheImpl} caches to the other app
+ * servers, and applies the invalidations they publish to the local caches.
+ * <p>
+ * Invalidations are queued by the thread that modified the cache and sent by a single
+ * background thread, which waits up to the flush interval to collect a batch, removes
+ * duplicates and publishes the batch as one non persistent {@link BytesMessage}. If the
+ * queue fills, or a batch can't be published, the affected caches are cleared on the
+ * other servers with the next batch rather than blocking the writer or losing the
+ * invalidation. Until a JMS connection factory is
+ * available (a single server) invalidations are discarded.
+ */
+public class ClusterCacheInvalidator implements MessageListener, Runnable {
+
+  public static final String TOPIC = "org/sakaiproject/nakamura/memory/invalidation";
+
+  static final byte REMOVE = 0;
+  static final byte REMOVE_CHILDREN = 1;
+  static final byte CLEAR = 2;
+
+  static final String SENDER = "sender";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCacheInvalidator.class);
+
+  private final String serverId = UUID.randomUUID().toString();
+  private final Map<String, InvalidatingCacheImpl<?>> caches = new ConcurrentHashMap<String, InvalidatingCacheImpl<?>>();
+  private final Map<String, CacheInvalidationStats> stats = new ConcurrentHashMap<String, CacheInvalidationStats>();
+  private final Set<String> overflowed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private volatile BlockingQueue<Invalidation> queue;
+  private int batchSize;
+  private long flushInterval;
+  private Connection connection;
+  private MessageProducer producer;
+  private Session producerSession;
+  private Thread sender;
+  private volatile boolean running;
+
+  /**
+   * A single queued invalidation.
+   */
+  static class Invalidation {
+    final String cacheName;
+    final byte operation;
+    final String key;
+    final long queued;
+
+    Invalidation(String cacheName, byte operation, String key, long queued) {
+      this.cacheName = cacheName;
+      this.operation = operation;
+      this.key = key;
+      this.queued = queued;
+    }
+  }
+
+  public ClusterCacheInvalidator() {
+    this(10000, 500, 50L);
+  }
+
+  public ClusterCacheInvalidator(int queueSize, int batchSize, long flushInterval) {
+    configure(queueSize, batchSize, flushInterval);
+  }
+
+  /**
+   * Change the queue and batch settings, only takes effect while stopped.
+   *
+   * @param queueSize
+   *          the maximum number of invalidations waiting to be sent.
+   * @param batchSize
+   *          the maximum number of invalidations in one message.
+   * @param flushInterval
+   *          the maximum time in ms an invalidation waits for a batch to fill.
+   */
+  public synchronized void configure(int queueSize, int batchSize, long flushInterval) {
+    if (running) {
+      return;
+    }
+    this.queue = new LinkedBlockingQueue<Invalidation>(queueSize);
+    this.batchSize = batchSize;
+    this.flushInterval = flushInterval;
+  }
+
+  /**
+   * Register a cache so that invalidations for it from other servers can be applied.
+   *
+   * @param cache
+   */
+  public void register(InvalidatingCacheImpl<?> cache) {
+    String name = cache.getName();
+    caches.put(name, cache);
+    if (!stats.containsKey(name)) {
+      CacheInvalidationStats cacheStats = new CacheInvalidationStats();
+      stats.put(name, cacheStats);
+      try {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = getObjectName(name);
+        if (!mBeanServer.isRegistered(objectName)) {
+          mBeanServer.registerMBean(cacheStats, objectName);
+        }
+      } catch (Exception e) {
+        LOGGER.warn("Unable to register invalidation stats for {}: {} ", name, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param cacheName
+   * @return the invalidation counters for the cache, or null if the cache is not
+   *         registered.
+   */
+  public CacheInvalidationStats getStats(String cacheName) {
+    return stats.get(cacheName);
+  }
+
+  /**
+   * Queue an invalidation for the other servers. Never blocks.
+   *
+   * @param cacheName
+   * @param operation
+   * @param key
+   */
+  public void invalidate(String cacheName, byte operation, String key) {
+    if (!running) {
+      return;
+    }
+    if (!queue.offer(new Invalidation(cacheName, operation, key, System.currentTimeMillis()))) {
+      if (overflowed.add(cacheName)) {
+        CacheInvalidationStats cacheStats = stats.get(cacheName);
+        if (cacheStats != null) {
+          cacheStats.overflowed();
+        }
+        LOGGER.warn("Invalidation queue full, cache {} will be cleared on the other servers ",
+            cacheName);
+      }
+    }
+  }
+
+  /**
+   * Connect to the invalidation topic and start publishing.
+   *
+   * @param connectionFactory
+   * @throws JMSException
+   */
+  public synchronized void start(ConnectionFactory connectionFactory) throws JMSException {
+    if (running) {
+      return;
+    }
+    try {
+      connection = connectionFactory.createConnection();
+      Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic topic = consumerSession.createTopic(TOPIC);
+      MessageConsumer consumer = consumerSession.createConsumer(topic);
+      consumer.setMessageListener(this);
+      // sessions are not thread safe, this one is only used by the sender thread.
+      producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      producer = producerSession.createProducer(producerSession.createTopic(TOPIC));
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      connection.start();
+    } catch (JMSException e) {
+      closeConnection();
+      throw e;
+    }
+    running = true;
+    sender = new Thread(this, "Cache Invalidation Sender");
+    sender.setDaemon(true);
+    sender.start();
+    LOGGER.info("Cluster cache invalidation started as {} on {} ", serverId, TOPIC);
+  }
+
+  /**
+   * Stop publishing and disconnect from the invalidation topic.
+   */
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    sender.interrupt();
+    try {
+      sender.join(flushInterval * 10);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sender = null;
+    queue.clear();
+    overflowed.clear();
+    closeConnection();
+  }
+
+  /**
+   * Unregister the JMX beans for all the caches.
+   */
+  public void unregister() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (String name : stats.keySet()) {
+      try {
+        mBeanServer.unregisterMBean(getObjectName(name));
+      } catch (Exception e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+    connection = null;
+    producerSession = null;
+    producer = null;
+  }
+
+  /**
+   * {@inheritDoc} Collects batches from the queue and publishes them.
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    List<Invalidation> batch = new ArrayList<Invalidation>();
+    while (running) {
+      try {
+        Invalidation first = queue.poll(1, TimeUnit.SECONDS);
+        if (first != null) {
+          batch.add(first);
+          long deadline = first.queued + flushInterval;
+          while (batch.size() < batchSize) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+              break;
+            }
+            Invalidation next = queue.poll(wait, TimeUnit.MILLISECONDS);
+            if (next == null) {
+              break;
+            }
+            batch.add(next);
+          }
+          queue.drainTo(batch, batchSize - batch.size());
+        }
+        addOverflows(batch);
+        if (batch.size() > 0) {
+          send(batch);
+        }
+      } catch (InterruptedException e) {
+        if (running) {
+          LOGGER.debug("Sender interrupted while still running ");
+        }
+      } catch (JMSException e) {
+        LOGGER.warn("Failed to publish {} cache invalidations, the caches will be cleared "
+            + "on the other servers: {} ", batch.size(), e.getMessage());
+        overflow(batch);
+      } catch (IOException e) {
+        LOGGER.error(e.getMessage(), e);
+        overflow(batch);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Have the next batch clear every cache in a batch that could not be sent.
+   */
+  void overflow(List<Invalidation> batch) {
+    for (Invalidation invalidation : batch) {
+      overflowed.add(invalidation.cacheName);
+    }
+  }
+
+  void addOverflows(List<Invalidation> batch) {
+    if (overflowed.isEmpty()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (String cacheName : overflowed.toArray(new String[0])) {
+      overflowed.remove(cacheName);
+      batch.add(new Invalidation(cacheName, CLEAR, "", now));
+    }
+  }
+
+  private void send(List<Invalidation> batch) throws JMSException, IOException {
+    byte[] data = encode(batch);
+    BytesMessage message = producerSession.createBytesMessage();
+    message.setStringProperty(SENDER, serverId);
+    message.writeBytes(data);
+    producer.send(message);
+    long now = System.currentTimeMillis();
+    for (Invalidation invalidation : batch) {
+      CacheInvalidationStats cacheStats = stats.get(invalidation.cacheName);
+      if (cacheStats != null) {
+        cacheStats.sent(now - invalidation.queued);
+      }
+    }
+    LOGGER.debug("Published {} cache invalidations in {} bytes ", batch.size(), data.length);
+  }
+
+  /**
+   * {@inheritDoc} Applies a batch of invalidations from another server.
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    try {
+      if (!(message instanceof BytesMessage)
+          || serverId.equals(message.getStringProperty(SENDER))) {
+        return;
+      }
+      BytesMessage bytesMessage = (BytesMessage) message;
+      byte[] data = new byte[(int) bytesMessage.getBodyLength()];
+      bytesMessage.readBytes(data);
+      apply(decode(data));
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (IOException e) {
+      LOGGER.error("Invalid cache invalidation message " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Apply invalidations to the registered caches.
+   *
+   * @param invalidations
+   */
+  void apply(List<Invalidation> invalidations) {
+    long now = System.currentTimeMillis();
+    for (Invalidation invalidation : invalidations) {
+      InvalidatingCacheImpl<?> cache = caches.get(invalidation.cacheName);
+      if (cache != null) {
+        cache.applyRemoteInvalidation(invalidation.operation, invalidation.key);
+        stats.get(invalidation.cacheName).received(Math.max(0, now - invalidation.queued));
+      }
+    }
+  }
+
+  /**
+   * Encode a batch, grouped by cache with duplicate invalidations removed. Per cache the
+   * format is the cache name, the number of entries, then for each entry the operation,
+   * the key and the time it was queued.
+   *
+   * @param batch
+   * @return the encoded batch.
+   * @throws IOException
+   */
+  static byte[] encode(List<Invalidation> batch) throws IOException {
+    Map<String, Map<String, Invalidation>> byCache = new LinkedHashMap<String, Map<String, Invalidation>>();
+    for (Invalidation invalidation : batch) {
+      Map<String, Invalidation> entries = byCache.get(invalidation.cacheName);
+      if (entries == null) {
+        entries = new LinkedHashMap<String, Invalidation>();
+        byCache.put(invalidation.cacheName, entries);
+      }
+      String id = invalidation.operation + invalidation.key;
+      if (!entries.containsKey(id)) {
+        entries.put(id, invalidation);
+      }
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeInt(byCache.size());
+    for (Entry<String, Map<String, Invalidation>> e : byCache.entrySet()) {
+      out.writeUTF(e.getKey());
+      out.writeInt(e.getValue().size());
+      for (Invalidation invalidation : e.getValue().values()) {
+        out.writeByte(invalidation.operation);
+        out.writeUTF(invalidation.key);
+        out.writeLong(invalidation.queued);
+      }
+    }
+    out.flush();
+    return baos.toByteArray();
+  }
+
+  /**
+   * @param data
+   *          a batch produced by {@link #encode(List)}
+   * @return the invalidations in the batch.
+   * @throws IOException
+   */
+  static List<Invalidation> decode(byte[] data) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    List<Invalidation> invalidations = new ArrayList<Invalidation>();
+    int ncaches = in.readInt();
+    for (int i = 0; i < ncaches; i++) {
+      String cacheName = in.readUTF();
+      int nentries = in.readInt();
+      for (int j = 0; j < nentries; j++) {
+        byte operation = in.readByte();
+        String key = in.readUTF();
+        long queued = in.readLong();
+        invalidations.add(new Invalidation(cacheName, operation, key, queued));
+      }
+    }
+    return invalidations;
+  }
+
+  private ObjectName getObjectName(String cacheName) throws Exception {
+    return new ObjectName("org.sakaiproject.nakamura.memory:type=CacheInvalidation,name="
+        + ObjectName.quote(cacheName));
+  }
+}
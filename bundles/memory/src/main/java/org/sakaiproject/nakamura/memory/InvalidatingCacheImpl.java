@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheManager;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+/**
+ * A {@link CacheImpl} for {@link CacheScope#CLUSTERINVALIDATED} caches. Values stay local
+ * to this JVM, but every put and every removal is handed to the
+ * {@link ClusterCacheInvalidator} so that the other app servers drop their copy of the
+ * key. A put can't tell whether it overwrites a value another server holds, so all of them
+ * are sent.
+ */
+public class InvalidatingCacheImpl<V> extends CacheImpl<V> {
+
+  private ClusterCacheInvalidator invalidator;
+
+  public InvalidatingCacheImpl(CacheManager cacheManager, String name, CacheScope scope,
+      ClusterCacheInvalidator invalidator) {
+    super(cacheManager, name, scope);
+    this.invalidator = invalidator;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#put(java.lang.String, java.lang.Object)
+   */
+  @Override
+  public V put(String key, V payload) {
+    V previous = super.put(key, payload);
+    invalidator.invalidate(getName(), ClusterCacheInvalidator.REMOVE, key);
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#remove(java.lang.String)
+   */
+  @Override
+  public void remove(String key) {
+    super.remove(key);
+    invalidator.invalidate(getName(), ClusterCacheInvalidator.REMOVE, key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#removeChildren(java.lang.String)
+   */
+  @Override
+  public void removeChildren(String key) {
+    super.removeChildren(key);
+    invalidator.invalidate(getName(), ClusterCacheInvalidator.REMOVE_CHILDREN, key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#clear()
+   */
+  @Override
+  public void clear() {
+    super.clear();
+    invalidator.invalidate(getName(), ClusterCacheInvalidator.CLEAR, "");
+  }
+
+  /**
+   * Apply an invalidation received from another server, without sending it on again.
+   *
+   * @param operation
+   *          one of the operation codes in {@link ClusterCacheInvalidator}.
+   * @param key
+   *          the key the operation applies to.
+   */
+  void applyRemoteInvalidation(byte operation, String key) {
+    switch (operation) {
+    case ClusterCacheInvalidator.REMOVE:
+      super.remove(key);
+      break;
+    case ClusterCacheInvalidator.REMOVE_CHILDREN:
+      super.removeChildren(key);
+      break;
+    case ClusterCacheInvalidator.CLEAR:
+      super.clear();
+      break;
+    }
+  }
+}
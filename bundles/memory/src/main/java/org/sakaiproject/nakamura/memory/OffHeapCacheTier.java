@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A {@link CacheTier} that keeps encoded values in an {@link OffHeapStore}, registered
+ * with JMX as org.sakaiproject.nakamura.memory:type=OffHeapCache,name=&lt;cache&gt;. Each
+ * entry is the expiry time followed by the encoded value.
+ */
+public class OffHeapCacheTier<V> implements CacheTier<V> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapCacheTier.class);
+  private final OffHeapStore store;
+  private final CacheValueCodec<V> codec;
+  private ObjectName objectName;
+
+  public OffHeapCacheTier(String name, OffHeapStore store, CacheValueCodec<V> codec) {
+    this.store = store;
+    this.codec = codec;
+    try {
+      objectName = new ObjectName("org.sakaiproject.nakamura.memory:type=OffHeapCache,name="
+          + ObjectName.quote(name));
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(store, objectName);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register off heap cache stats for {}: {} ", name, e.getMessage());
+      objectName = null;
+    }
+  }
+
+  public void put(String key, V value, long expires) {
+    byte[] data = codec.encode(value);
+    if (data != null) {
+      store.put(key, ByteBuffer.allocate(8 + data.length).putLong(expires).put(data)
+          .array());
+    }
+  }
+
+  public Spilled<V> take(String key) {
+    byte[] data = store.take(key);
+    V value = decode(key, data);
+    return value == null ? null : new Spilled<V>(value, ByteBuffer.wrap(data).getLong());
+  }
+
+  public V remove(String key) {
+    return decode(key, store.remove(key));
+  }
+
+  /**
+   * @return the value, or null if there is none or it has expired.
+   */
+  private V decode(String key, byte[] data) {
+    if (data == null || ByteBuffer.wrap(data).getLong() <= System.currentTimeMillis()) {
+      return null;
+    }
+    try {
+      return codec.decode(Arrays.copyOfRange(data, 8, data.length));
+    } catch (IOException e) {
+      LOGGER.warn("Discarding corrupt off heap entry {}: {} ", key, e.getMessage());
+      return null;
+    }
+  }
+
+  public boolean containsKey(String key) {
+    return store.containsKey(key);
+  }
+
+  public void removeChildren(String key) {
+    store.removeChildren(key);
+  }
+
+  public void clear() {
+    store.clear();
+  }
+
+  public void close() {
+    store.clear();
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (Exception e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * @return the underlying store.
+   */
+  public OffHeapStore getStore() {
+    return store;
+  }
+}
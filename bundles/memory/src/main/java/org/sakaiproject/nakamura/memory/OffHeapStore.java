@@ -0,0 +1,253 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A least recently used store of byte arrays held outside the java heap in a single direct
+ * {@link ByteBuffer}, bounded in bytes rather than entries. The buffer is divided into
+ * fixed size blocks and each value is written into as many free blocks as it needs, so
+ * the memory never fragments and is never copied. When there are not enough free blocks
+ * the least recently used entries are evicted. Only the key index lives on the heap.
+ */
+public class OffHeapStore implements OffHeapStoreMBean {
+
+  /**
+   * The blocks holding one value.
+   */
+  private static class Slot {
+    final int[] blocks;
+    final int length;
+
+    Slot(int[] blocks, int length) {
+      this.blocks = blocks;
+      this.length = length;
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final int blockSize;
+  private final int[] freeBlocks;
+  private int nfree;
+  private final LinkedHashMap<String, Slot> index = new LinkedHashMap<String, Slot>(1024, 0.75f, true);
+
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long resetTime = System.currentTimeMillis();
+
+  /**
+   * @param maxBytes
+   *          the off heap memory to reserve, at most 2GB.
+   * @param blockSize
+   *          the allocation unit in bytes, values are rounded up to a multiple of this.
+   */
+  public OffHeapStore(long maxBytes, int blockSize) {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Block size must be positive " + blockSize);
+    }
+    int nblocks = (int) Math.min(maxBytes / blockSize, Integer.MAX_VALUE / blockSize);
+    if (nblocks <= 0) {
+      throw new IllegalArgumentException("Off heap store must hold at least one block "
+          + maxBytes);
+    }
+    this.blockSize = blockSize;
+    this.buffer = ByteBuffer.allocateDirect(nblocks * blockSize);
+    this.freeBlocks = new int[nblocks];
+    for (int i = 0; i < nblocks; i++) {
+      freeBlocks[i] = nblocks - 1 - i;
+    }
+    this.nfree = nblocks;
+  }
+
+  /**
+   * Store a value, evicting least recently used entries to make space.
+   *
+   * @param key
+   * @param value
+   * @return false if the value is larger than the whole store and was not stored.
+   */
+  public synchronized boolean put(String key, byte[] value) {
+    int needed = Math.max(1, (value.length + blockSize - 1) / blockSize);
+    free(index.remove(key));
+    if (needed > freeBlocks.length) {
+      return false;
+    }
+    Iterator<Slot> lru = index.values().iterator();
+    while (nfree < needed && lru.hasNext()) {
+      Slot eldest = lru.next();
+      lru.remove();
+      free(eldest);
+      evictions++;
+    }
+    int[] blocks = new int[needed];
+    for (int i = 0; i < needed; i++) {
+      int block = freeBlocks[--nfree];
+      blocks[i] = block;
+      int offset = i * blockSize;
+      buffer.position(block * blockSize);
+      buffer.put(value, offset, Math.min(blockSize, value.length - offset));
+    }
+    index.put(key, new Slot(blocks, value.length));
+    return true;
+  }
+
+  /**
+   * @param key
+   * @return a copy of the value, or null if not stored.
+   */
+  public synchronized byte[] get(String key) {
+    Slot slot = index.get(key);
+    if (slot == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return read(slot);
+  }
+
+  /**
+   * Read and remove a value, counted as a hit or a miss.
+   *
+   * @param key
+   * @return the value, or null if not stored.
+   */
+  public synchronized byte[] take(String key) {
+    Slot slot = index.remove(key);
+    if (slot == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    byte[] value = read(slot);
+    free(slot);
+    return value;
+  }
+
+  /**
+   * Remove a value, without counting it as a read.
+   *
+   * @param key
+   * @return the value that was removed, or null if not stored.
+   */
+  public synchronized byte[] remove(String key) {
+    Slot slot = index.remove(key);
+    if (slot == null) {
+      return null;
+    }
+    byte[] value = read(slot);
+    free(slot);
+    return value;
+  }
+
+  public synchronized boolean containsKey(String key) {
+    return index.containsKey(key);
+  }
+
+  /**
+   * Remove the key and all keys below it in the path hierarchy.
+   *
+   * @param key
+   */
+  public synchronized void removeChildren(String key) {
+    free(index.remove(key));
+    if (!key.endsWith("/")) {
+      key = key + "/";
+    }
+    List<String> children = new ArrayList<String>();
+    for (String k : index.keySet()) {
+      if (k.startsWith(key)) {
+        children.add(k);
+      }
+    }
+    for (String k : children) {
+      free(index.remove(k));
+    }
+  }
+
+  public synchronized void clear() {
+    for (Slot slot : index.values()) {
+      free(slot);
+    }
+    index.clear();
+  }
+
+  private byte[] read(Slot slot) {
+    byte[] value = new byte[slot.length];
+    for (int i = 0; i < slot.blocks.length; i++) {
+      int offset = i * blockSize;
+      buffer.position(slot.blocks[i] * blockSize);
+      buffer.get(value, offset, Math.min(blockSize, slot.length - offset));
+    }
+    return value;
+  }
+
+  private void free(Slot slot) {
+    if (slot != null) {
+      for (int block : slot.blocks) {
+        freeBlocks[nfree++] = block;
+      }
+    }
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  public synchronized double getHitRate() {
+    long reads = hits + misses;
+    return reads == 0 ? 0.0 : (double) hits / reads;
+  }
+
+  public synchronized long getBytesUsed() {
+    return (long) (freeBlocks.length - nfree) * blockSize;
+  }
+
+  public long getMaxBytes() {
+    return (long) freeBlocks.length * blockSize;
+  }
+
+  public synchronized int getEntryCount() {
+    return index.size();
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  public synchronized double getEvictionRate() {
+    long elapsed = System.currentTimeMillis() - resetTime;
+    return elapsed <= 0 ? 0.0 : evictions * 1000.0 / elapsed;
+  }
+
+  public synchronized void reset() {
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+    resetTime = System.currentTimeMillis();
+  }
+}
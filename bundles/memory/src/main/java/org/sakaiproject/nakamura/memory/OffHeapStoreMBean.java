@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * JMX view of an {@link OffHeapStore}.
+ */
+public interface OffHeapStoreMBean {
+
+  long getHitCount();
+
+  long getMissCount();
+
+  /**
+   * @return hits / (hits + misses) since the last reset, 0 if there have been no reads.
+   */
+  double getHitRate();
+
+  /**
+   * @return the bytes of off heap memory occupied by entries, rounded up to whole blocks.
+   */
+  long getBytesUsed();
+
+  /**
+   * @return the bytes of off heap memory reserved for the store.
+   */
+  long getMaxBytes();
+
+  int getEntryCount();
+
+  long getEvictionCount();
+
+  /**
+   * @return evictions per second since the last reset.
+   */
+  double getEvictionRate();
+
+  /**
+   * Reset the hit, miss and eviction counters.
+   */
+  void reset();
+}
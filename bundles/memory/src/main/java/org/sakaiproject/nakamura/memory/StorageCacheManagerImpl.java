@@ -20,13 +20,17 @@ package org.sakaiproject.nakamura.memory;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Map;
 
@@ -34,6 +38,26 @@ import java.util.Map;
 @Service(value=StorageCacheManager.class)
 public class StorageCacheManagerImpl implements StorageCacheManager {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(StorageCacheManagerImpl.class);
+
+  /**
+   * Off heap memory, in MB, behind the access control cache. 0 disables the off heap tier.
+   */
+  @Property(intValue = 0)
+  public static final String OFFHEAP_ACCESS_CONTROL_SIZE = "offheap.accessControlCache.size";
+
+  @Property(intValue = 0)
+  public static final String OFFHEAP_AUTHORIZABLE_SIZE = "offheap.authorizableCache.size";
+
+  @Property(intValue = 0)
+  public static final String OFFHEAP_CONTENT_SIZE = "offheap.contentCache.size";
+
+  /**
+   * The off heap allocation unit in bytes.
+   */
+  @Property(intValue = 512)
+  public static final String OFFHEAP_BLOCK_SIZE = "offheap.blockSize";
+
   private Map<String, CacheHolder> accessControlCache;
   private Map<String, CacheHolder> authorizableCache;
   private Map<String, CacheHolder> contentCache;
@@ -46,6 +70,10 @@ public class StorageCacheManagerImpl implements StorageCacheManager {
     Cache<CacheHolder> accesssControlCacheCache = cacheManagerService.getCache("accessControlCache", CacheScope.CLUSTERINVALIDATED);
     Cache<CacheHolder> authorizableCacheCache = cacheManagerService.getCache("authorizableCache", CacheScope.CLUSTERINVALIDATED);
     Cache<CacheHolder> contentCacheCache = cacheManagerService.getCache("contentCache", CacheScope.CLUSTERINVALIDATED);
+    int blockSize = PropertiesUtil.toInteger(props.get(OFFHEAP_BLOCK_SIZE), 512);
+    addOffHeapTier(accesssControlCacheCache, PropertiesUtil.toInteger(props.get(OFFHEAP_ACCESS_CONTROL_SIZE), 0), blockSize);
+    addOffHeapTier(authorizableCacheCache, PropertiesUtil.toInteger(props.get(OFFHEAP_AUTHORIZABLE_SIZE), 0), blockSize);
+    addOffHeapTier(contentCacheCache, PropertiesUtil.toInteger(props.get(OFFHEAP_CONTENT_SIZE), 0), blockSize);
     accessControlCache = new MapDeligate<String, CacheHolder>(accesssControlCacheCache);
     authorizableCache = new MapDeligate<String, CacheHolder>(authorizableCacheCache);
     contentCache = new MapDeligate<String, CacheHolder>(contentCacheCache);
@@ -53,7 +81,30 @@ public class StorageCacheManagerImpl implements StorageCacheManager {
   
   @Deactivate
   public void deactivate(Map<String, Object> props) {
-    
+    for (String name : new String[] { "accessControlCache", "authorizableCache", "contentCache" }) {
+      Cache<CacheHolder> cache = cacheManagerService.getCache(name, CacheScope.CLUSTERINVALIDATED);
+      if (cache instanceof CacheImpl) {
+        ((CacheImpl<CacheHolder>) cache).setTier(null);
+      }
+    }
+  }
+
+  /**
+   * Put a size bounded off heap tier behind the cache.
+   *
+   * @param cache
+   * @param sizeMB
+   *          the off heap memory to use, 0 to use the heap only.
+   * @param blockSize
+   */
+  private void addOffHeapTier(Cache<CacheHolder> cache, int sizeMB, int blockSize) {
+    if (sizeMB <= 0 || !(cache instanceof CacheImpl)) {
+      return;
+    }
+    CacheImpl<CacheHolder> cacheImpl = (CacheImpl<CacheHolder>) cache;
+    OffHeapStore store = new OffHeapStore(sizeMB * 1024L * 1024L, blockSize);
+    cacheImpl.setTier(new OffHeapCacheTier<CacheHolder>(cacheImpl.getName(), store, new CacheHolderCodec()));
+    LOGGER.info("Added {} MB off heap tier to {} ", sizeMB, cacheImpl.getName());
   }
   
   
@@ -0,0 +1,88 @@
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.ClusterCacheInvalidator.Invalidation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ClusterCacheInvalidatorTest {
+
+  @Test
+  public void encodeRemovesDuplicates() throws Exception {
+    List<Invalidation> batch = new ArrayList<Invalidation>();
+    batch.add(new Invalidation("a", ClusterCacheInvalidator.REMOVE, "/x", 1L));
+    batch.add(new Invalidation("b", ClusterCacheInvalidator.REMOVE, "/x", 2L));
+    batch.add(new Invalidation("a", ClusterCacheInvalidator.REMOVE, "/x", 3L));
+    batch.add(new Invalidation("a", ClusterCacheInvalidator.REMOVE_CHILDREN, "/x", 4L));
+
+    List<Invalidation> decoded = ClusterCacheInvalidator.decode(ClusterCacheInvalidator
+        .encode(batch));
+    assertEquals(3, decoded.size());
+    assertEquals("a", decoded.get(0).cacheName);
+    assertEquals(ClusterCacheInvalidator.REMOVE, decoded.get(0).operation);
+    assertEquals("/x", decoded.get(0).key);
+    assertEquals(1L, decoded.get(0).queued);
+    assertEquals(ClusterCacheInvalidator.REMOVE_CHILDREN, decoded.get(1).operation);
+    assertEquals("b", decoded.get(2).cacheName);
+  }
+
+  @Test
+  public void failedBatchClearsItsCaches() throws Exception {
+    ClusterCacheInvalidator invalidator = new ClusterCacheInvalidator();
+    List<Invalidation> failed = new ArrayList<Invalidation>();
+    failed.add(new Invalidation("a", ClusterCacheInvalidator.REMOVE, "/x", 1L));
+    failed.add(new Invalidation("b", ClusterCacheInvalidator.REMOVE, "/y", 2L));
+    failed.add(new Invalidation("a", ClusterCacheInvalidator.REMOVE, "/z", 3L));
+    invalidator.overflow(failed);
+
+    List<Invalidation> next = new ArrayList<Invalidation>();
+    invalidator.addOverflows(next);
+    assertEquals(2, next.size());
+    for (Invalidation invalidation : next) {
+      assertEquals(ClusterCacheInvalidator.CLEAR, invalidation.operation);
+    }
+    // only once
+    next.clear();
+    invalidator.addOverflows(next);
+    assertEquals(0, next.size());
+  }
+
+  @Test
+  public void applyRemoteInvalidations() throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    Cache<String> cache = cacheManagerService.getCache("invalidationTest",
+        CacheScope.CLUSTERINVALIDATED);
+    assertTrue(cache instanceof InvalidatingCacheImpl<?>);
+    cache.put("/a", "a");
+    cache.put("/b", "b");
+    cache.put("/b/c", "c");
+
+    List<Invalidation> remote = new ArrayList<Invalidation>();
+    remote.add(new Invalidation("invalidationTest", ClusterCacheInvalidator.REMOVE, "/a",
+        System.currentTimeMillis()));
+    remote.add(new Invalidation("notACache", ClusterCacheInvalidator.CLEAR, "",
+        System.currentTimeMillis()));
+    remote.add(new Invalidation("invalidationTest",
+        ClusterCacheInvalidator.REMOVE_CHILDREN, "/b", System.currentTimeMillis()));
+    ClusterCacheInvalidator invalidator = new ClusterCacheInvalidator();
+    invalidator.register((InvalidatingCacheImpl<?>) cache);
+    invalidator.apply(remote);
+
+    assertFalse(cache.containsKey("/a"));
+    assertFalse(cache.containsKey("/b"));
+    assertFalse(cache.containsKey("/b/c"));
+    CacheInvalidationStats stats = invalidator.getStats("invalidationTest");
+    assertNotNull(stats);
+    assertEquals(2, stats.getInvalidationsReceived());
+    assertEquals(0, stats.getInvalidationsSent());
+    invalidator.unregister();
+  }
+}
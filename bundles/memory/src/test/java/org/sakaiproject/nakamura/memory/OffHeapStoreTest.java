@@ -0,0 +1,114 @@
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.io.IOException;
+
+public class OffHeapStoreTest {
+
+  @Test
+  public void storesAcrossBlocks() {
+    OffHeapStore store = new OffHeapStore(1024, 16);
+    byte[] value = new byte[100];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (byte) i;
+    }
+    assertTrue(store.put("/a", value));
+    assertArrayEquals(value, store.get("/a"));
+    assertEquals(112, store.getBytesUsed());
+    assertArrayEquals(value, store.take("/a"));
+    assertNull(store.get("/a"));
+    assertEquals(0, store.getBytesUsed());
+    assertEquals(1, store.getMissCount());
+    assertEquals(2, store.getHitCount());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedByBytes() {
+    OffHeapStore store = new OffHeapStore(64, 16);
+    store.put("/a", new byte[32]);
+    store.put("/b", new byte[16]);
+    store.put("/c", new byte[16]);
+    store.get("/a");
+    // needs two blocks, /b and /c are the least recently used.
+    store.put("/d", new byte[20]);
+    assertTrue(store.containsKey("/a"));
+    assertFalse(store.containsKey("/b"));
+    assertFalse(store.containsKey("/c"));
+    assertTrue(store.containsKey("/d"));
+    assertEquals(2, store.getEvictionCount());
+    assertEquals(64, store.getBytesUsed());
+    assertFalse(store.put("/e", new byte[65]));
+  }
+
+  @Test
+  public void removeChildren() {
+    OffHeapStore store = new OffHeapStore(1024, 16);
+    store.put("/a", new byte[1]);
+    store.put("/a/b", new byte[1]);
+    store.put("/ab", new byte[1]);
+    store.removeChildren("/a");
+    assertFalse(store.containsKey("/a"));
+    assertFalse(store.containsKey("/a/b"));
+    assertTrue(store.containsKey("/ab"));
+  }
+
+  @Test
+  public void spillsEvictedElements() throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    CacheImpl<String> cache = (CacheImpl<String>) cacheManagerService
+        .<String> getCache("offHeapTest", CacheScope.INSTANCE);
+    OffHeapCacheTier<String> tier = new OffHeapCacheTier<String>("offHeapTest",
+        new OffHeapStore(1024 * 1024, 64), new CacheValueCodec<String>() {
+          public byte[] encode(String value) {
+            return value.getBytes();
+          }
+
+          public String decode(byte[] data) throws IOException {
+            return new String(data);
+          }
+        });
+    cache.setTier(tier);
+    // the default cache holds 10000 elements in memory.
+    for (int i = 0; i < 10100; i++) {
+      cache.put("/" + i, "value" + i);
+    }
+    assertTrue(tier.getStore().getEntryCount() >= 100);
+    for (int i = 0; i < 10100; i++) {
+      assertEquals("value" + i, cache.get("/" + i));
+    }
+    cache.clear();
+    assertFalse(cache.containsKey("/0"));
+    assertEquals(0, tier.getStore().getEntryCount());
+    cache.setTier(null);
+  }
+
+  @Test
+  public void spilledValuesKeepTheirExpiry() throws Exception {
+    OffHeapCacheTier<String> tier = new OffHeapCacheTier<String>("offHeapExpiryTest",
+        new OffHeapStore(1024, 16), new CacheValueCodec<String>() {
+          public byte[] encode(String value) {
+            return value.getBytes();
+          }
+
+          public String decode(byte[] data) throws IOException {
+            return new String(data);
+          }
+        });
+    long later = System.currentTimeMillis() + 60000L;
+    tier.put("/a", "a", later);
+    tier.put("/b", "b", System.currentTimeMillis() - 1L);
+    CacheTier.Spilled<String> spilled = tier.take("/a");
+    assertEquals("a", spilled.getValue());
+    assertEquals(later, spilled.getExpires());
+    assertNull(tier.take("/b"));
+    tier.close();
+  }
+}
@@ -33,6 +33,7 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -46,7 +47,9 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.message.LiteMessageCounter;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
@@ -59,6 +62,8 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.AuthorizableUtil;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.meservice.MeSnapshotCache.Section;
+import org.sakaiproject.nakamura.meservice.MeSnapshotCache.SectionBuilder;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
@@ -67,10 +72,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -133,12 +142,18 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   @Reference
   protected transient LiteMessagingService messagingService;
 
+  @Reference
+  protected transient LiteMessageCounter messageCounter;
+
   @Reference
   protected transient ConnectionManager connectionManager;
 
   @Reference
   protected transient ProfileService profileService;
 
+  @Reference
+  protected transient MeSnapshotCache snapshotCache;
+
   @Reference
   private MessageBucketService messageBucketService;
 
@@ -147,6 +162,19 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   @Reference
   BasicUserInfoService basicUserInfoService;
 
+  /**
+   * The user section of the feed.
+   */
+  static final class UserInfo {
+    private final Set<String> subjects;
+    private final Map<String, Object> properties;
+
+    UserInfo(Set<String> subjects, Map<String, Object> properties) {
+      this.subjects = Collections.unmodifiableSet(subjects);
+      this.properties = Collections.unmodifiableMap(properties);
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -179,12 +207,14 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST,"User "+userId+" not found.");
         return;
       }
+      Map<Section, Object> sections = getSections(session, au, request);
+
       PrintWriter w = response.getWriter();
       ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
       writer.object();
       // User info
       writer.key("user");
-      writeUserJSON(writer, session, au, request);
+      writeUserJSON(writer, session, (UserInfo) sections.get(Section.USER), au, request);
 
       try {
         String messageBucketUrl = messageBucketService.getBucketUrl(request, "default");
@@ -198,22 +228,26 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
       }
 
-      // Dump this user his info
+      // Dump this user his info, profiles may come from external providers so this is
+      // never kept.
       writer.key("profile");
       ValueMap profile = profileService.getProfileMap(au,jcrSession);
       writer.valueMap(profile);
 
       // Dump this user his number of unread messages.
       writer.key("messages");
-      writeMessageCounts(writer, session, au, request);
+      writer.object();
+      writer.key("unread");
+      writer.value(sections.get(Section.MESSAGES));
+      writer.endObject();
 
       // Dump this user his number of contacts.
       writer.key("contacts");
-      writeContactCounts(writer, session, au, request);
+      writeContactCounts(writer, (Map<?, ?>) sections.get(Section.CONTACTS));
 
       // Dump the groups for this user.
       writer.key("groups");
-      writeGroups(writer, session, au, jcrSession);
+      writeGroups(writer, (List<?>) sections.get(Section.GROUPS));
 
       writer.endObject();
     } catch (JSONException e) {
@@ -232,32 +266,99 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       LOG.error("Failed to get a user his profile node in /system/me", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
           "Sparse storage client error.");
-    } catch (MessagingException e) {
-      LOG.error("Failed to get a user his message counts in /system/me", e);
+    } catch (IllegalStateException e) {
+      LOG.error("Failed to get the sections of /system/me", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Messaging error.");
-    } catch (SolrSearchException e) {
-      LOG.error("Failed to execute a Solr search in /system/me", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Solr search error.");
+          "Failed to get user information.");
     }
 
   }
 
   /**
-   * @param writer
+   * Get the sections of the feed. The feed of the user making the request is kept by the
+   * {@link MeSnapshotCache}, the feed of anyone else is built for each request with the
+   * caller's access.
+   *
    * @param session
    * @param au
-   * @param jcrSession
-   * @throws JSONException
+   * @param request
+   * @return the sections of the feed.
+   * @throws IllegalStateException
+   *           if a section could not be built.
+   */
+  protected Map<Section, Object> getSections(final Session session, final Authorizable au,
+      final SlingHttpServletRequest request) {
+    final boolean own = au.getId().equals(session.getUserId())
+        && !UserConstants.ANON_USERID.equals(au.getId());
+    SectionBuilder builder = new SectionBuilder() {
+      public Object build(Section section, Set<String> dependencies) {
+        try {
+          switch (section) {
+          case USER:
+            return getUserInfo(session, au, dependencies);
+          case GROUPS:
+            return getGroups(session, au, dependencies);
+          case MESSAGES:
+            return own ? countUnreadMessages(session, au) : searchUnreadMessages(session,
+                au, request);
+          case CONTACTS:
+            return own ? countContacts(session, au) : searchContacts(au, request);
+          default:
+            throw new IllegalArgumentException("Unknown section " + section);
+          }
+        } catch (StorageClientException e) {
+          throw new IllegalStateException(e.getMessage(), e);
+        } catch (AccessDeniedException e) {
+          throw new IllegalStateException(e.getMessage(), e);
+        } catch (MessagingException e) {
+          throw new IllegalStateException(e.getMessage(), e);
+        } catch (SolrSearchException e) {
+          throw new IllegalStateException(e.getMessage(), e);
+        }
+      }
+    };
+    if (own) {
+      return snapshotCache.getSections(au.getId(), builder);
+    }
+    Map<Section, Object> sections = new EnumMap<Section, Object>(Section.class);
+    for (Section section : Section.values()) {
+      sections.put(section, builder.build(section, new HashSet<String>()));
+    }
+    return sections;
+  }
+
+  /**
+   * @param session
+   * @param au
+   * @param dependencies
+   *          the authorizables the section is built from.
+   * @return the subjects and properties of the user.
+   */
+  protected UserInfo getUserInfo(Session session, Authorizable au, Set<String> dependencies)
+      throws StorageClientException {
+    dependencies.add(au.getId());
+    if (UserConstants.ANON_USERID.equals(session.getUserId())) {
+      return new UserInfo(new HashSet<String>(), new HashMap<String, Object>());
+    }
+    Set<String> subjects = getSubjects(au, session.getAuthorizableManager());
+    dependencies.addAll(subjects);
+    return new UserInfo(subjects, getProperties(au));
+  }
+
+  /**
+   * @param session
+   * @param au
+   * @param dependencies
+   *          the authorizables the section is built from.
+   * @return the basic profiles of the groups the user is a member of.
    * @throws StorageClientException
    * @throws AccessDeniedException
-   * @throws RepositoryException
    */
-  protected void writeGroups(ExtendedJSONWriter writer, Session session, Authorizable au, javax.jcr.Session jcrSession)
-      throws JSONException, StorageClientException, AccessDeniedException {
+  protected List<Map<String, Object>> getGroups(Session session, Authorizable au,
+      Set<String> dependencies) throws StorageClientException, AccessDeniedException {
     AuthorizableManager authorizableManager = session.getAuthorizableManager();
-    writer.array();
+    List<Map<String, Object>> groups = new ArrayList<Map<String, Object>>();
+    dependencies.add(au.getId());
     if (!UserConstants.ANON_USERID.equals(au.getId())) {
       // KERN-1831 changed from getPrincipals to memberOf to drill down list
       for (Iterator<Group> memberOf = au.memberOf(authorizableManager); memberOf.hasNext(); ) {
@@ -266,6 +367,7 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 //      for(String principal : principals) {
 //        Authorizable group = authorizableManager.findAuthorizable(principal);
         Authorizable group = memberOf.next();
+        dependencies.add(group.getId());
         if (AuthorizableUtil.isContactGroup(group)
             || Group.EVERYONE.equals(group.getId())) {
           // we don't want the "everyone" group or contact groups in this feed
@@ -273,136 +375,180 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
         }
         if (group.hasProperty(UserConstants.PROP_MANAGED_GROUP)) {
           // fetch the group that the manager group manages
-          group = authorizableManager.findAuthorizable((String) group.getProperty(UserConstants.PROP_MANAGED_GROUP));
+          String managedGroup = (String) group.getProperty(UserConstants.PROP_MANAGED_GROUP);
+          dependencies.add(managedGroup);
+          group = authorizableManager.findAuthorizable(managedGroup);
           if (group == null || !(group instanceof Group)) {
             continue;
           }
         }
-        ValueMap groupProfile = new ValueMapDecorator(basicUserInfoService.getProperties(group));
+        Map<String, Object> groupProfile = basicUserInfoService.getProperties(group);
         if (groupProfile != null) {
-          writer.valueMap(groupProfile);
+          groups.add(Collections.unmodifiableMap(groupProfile));
         }
       }
     }
+    return Collections.unmodifiableList(groups);
+  }
+
+  /**
+   * @param writer
+   * @param groups
+   *          the basic profiles of the groups.
+   * @throws JSONException
+   */
+  @SuppressWarnings("unchecked")
+  protected void writeGroups(ExtendedJSONWriter writer, List<?> groups)
+      throws JSONException {
+    writer.array();
+    for (Object groupProfile : groups) {
+      writer.valueMap(new ValueMapDecorator((Map<String, Object>) groupProfile));
+    }
     writer.endArray();
   }
 
   /**
-   * Writes a JSON Object that contains the number of contacts for a user split up in
-   * PENDING, ACCEPTED.
+   * Count the contacts of the user making the request, from the connection manager.
    *
-   * @param writer
    * @param session
    * @param au
-   * @throws JSONException
+   * @return the number of contacts by state.
+   */
+  protected Map<String, Integer> countContacts(Session session, Authorizable au) {
+    Map<String, Integer> contacts = new HashMap<String, Integer>();
+    for (ConnectionState state : new ConnectionState[] { ACCEPTED, INVITED, PENDING }) {
+      contacts.put(state.toString().toLowerCase(), connectionManager.getConnectedUsers(
+          session, au.getId(), state).size());
+    }
+    return Collections.unmodifiableMap(contacts);
+  }
+
+  /**
+   * Search for the number of contacts for a user split up in PENDING, ACCEPTED.
+   *
+   * @param au
+   * @param request
+   * @return the number of contacts by state.
    * @throws SolrSearchException
-   * @throws RepositoryException
    */
-  protected void writeContactCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au, SlingHttpServletRequest request) throws JSONException, SolrSearchException {
-    writer.object();
+  protected Map<String, Integer> searchContacts(Authorizable au,
+      SlingHttpServletRequest request) throws SolrSearchException {
+    // Get the path to the store for this user.
+    Map<String, Integer> contacts = new HashMap<String, Integer>();
 
     // We don't do queries for anonymous users. (Possible ddos hole).
     String userID = au.getId();
     if (UserConstants.ANON_USERID.equals(userID)) {
-      writer.endObject();
-      return;
+      return contacts;
     }
 
-    // Get the path to the store for this user.
-    Map<String, Integer> contacts = new HashMap<String, Integer>();
     contacts.put(ACCEPTED.toString().toLowerCase(), 0);
     contacts.put(INVITED.toString().toLowerCase(), 0);
     contacts.put(PENDING.toString().toLowerCase(), 0);
-    try {
-      // This could just use ConnectionUtils.getConnectionPathBase, but that util class is
-      // in the private package unfortunately.
-      String store = LitePersonalUtils.getHomePath(userID) + "/"
-          + ConnectionConstants.CONTACT_STORE_NAME;
-      store = ISO9075.encodePath(store);
-      String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/contact AND state:(ACCEPTED OR INVITED OR PENDING)";
-      Query query = new Query(queryString);
-      LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
-      while (resultIterator.hasNext()) {
-        Result contact = resultIterator.next();
-        if (contact.getProperties().containsKey("state")) {
-          String state = ((String) contact.getProperties().get("state").iterator().next()).toLowerCase();
-          int count = 0;
-          if (contacts.containsKey(state)) {
-            count = contacts.get(state);
-          }
-          contacts.put(state, count + 1);
+    // This could just use ConnectionUtils.getConnectionPathBase, but that util class is
+    // in the private package unfortunately.
+    String store = LitePersonalUtils.getHomePath(userID) + "/"
+        + ConnectionConstants.CONTACT_STORE_NAME;
+    store = ISO9075.encodePath(store);
+    String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/contact AND state:(ACCEPTED OR INVITED OR PENDING)";
+    Query query = new Query(queryString);
+    LOG.debug("Submitting Query {} ", query);
+    SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
+        request, query, false);
+    Iterator<Result> resultIterator = resultSet.getResultSetIterator();
+    while (resultIterator.hasNext()) {
+      Result contact = resultIterator.next();
+      if (contact.getProperties().containsKey("state")) {
+        String state = ((String) contact.getProperties().get("state").iterator().next()).toLowerCase();
+        int count = 0;
+        if (contacts.containsKey(state)) {
+          count = contacts.get(state);
         }
-      }
-    } finally {
-      for (Entry<String, Integer> entry : contacts.entrySet()) {
-        writer.key(entry.getKey());
-        writer.value(entry.getValue());
+        contacts.put(state, count + 1);
       }
     }
-    writer.endObject();
+    return contacts;
   }
 
   /**
-   * Writes a JSON Object that contains the unread messages for a user.
+   * Writes a JSON Object that contains the number of contacts for a user split up in
+   * PENDING, ACCEPTED.
    *
    * @param writer
-   *          The writer
+   * @param contacts
+   *          the number of contacts by state.
+   * @throws JSONException
+   */
+  protected void writeContactCounts(ExtendedJSONWriter writer, Map<?, ?> contacts)
+      throws JSONException {
+    writer.object();
+    for (Entry<?, ?> entry : contacts.entrySet()) {
+      writer.key((String) entry.getKey());
+      writer.value(entry.getValue());
+    }
+    writer.endObject();
+  }
+
+  /**
+   * Count the unread messages of the user making the request, from the message counter.
+   *
+   * @param session
+   * @param au
+   * @return the number of unread messages in the inbox.
+   * @throws MessagingException
+   */
+  protected Long countUnreadMessages(Session session, Authorizable au)
+      throws MessagingException {
+    Map<String, String> filters = new HashMap<String, String>();
+    filters.put("messagebox", MessageConstants.BOX_INBOX);
+    filters.put("read", "false");
+    return messageCounter.count(messagingService.getFullPathToStore(au.getId(), session),
+        filters);
+  }
+
+  /**
+   * Search for the unread messages of a user.
+   *
    * @param session
-   *          A JCR session to perform queries with. This session needs read access on the
+   *          A session to perform queries with. This session needs read access on the
    *          authorizable's message box.
    * @param au
    *          An authorizable to look up the messages for.
-   * @throws JSONException
-   * @throws RepositoryException
+   * @param request
+   * @return the number of unread messages in the inbox.
    * @throws MessagingException
    * @throws SolrSearchException
    */
-  protected void writeMessageCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au, SlingHttpServletRequest request) throws JSONException, MessagingException, SolrSearchException {
-    writer.object();
-    writer.key("unread");
-
+  protected Long searchUnreadMessages(Session session, Authorizable au,
+      SlingHttpServletRequest request) throws MessagingException, SolrSearchException {
     // We don't do queries for anonymous users. (Possible ddos hole).
     String userID = au.getId();
     if (UserConstants.ANON_USERID.equals(userID)) {
-      writer.value(0);
-      writer.endObject();
-      return;
+      return 0L;
     }
 
-    long count = 0;
-    try {
-      String store = messagingService.getFullPathToStore(au.getId(), session);
-      store = ISO9075.encodePath(store);
-      store = store.substring(0, store.length() - 1);
-      String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/message AND type:internal AND messagebox:inbox AND read:false";
-      Query query = new Query(queryString);
-      LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      count = resultSet.getSize();
-    } finally {
-      writer.value(count);
-    }
-    writer.endObject();
+    String store = messagingService.getFullPathToStore(au.getId(), session);
+    store = ISO9075.encodePath(store);
+    store = store.substring(0, store.length() - 1);
+    String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/message AND type:internal AND messagebox:inbox AND read:false";
+    Query query = new Query(queryString);
+    LOG.debug("Submitting Query {} ", query);
+    SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
+        request, query, false);
+    return resultSet.getSize();
   }
 
   /**
    *
    * @param write
    * @param session
+   * @param userInfo
    * @param authorizable
-   * @throws RepositoryException
    * @throws JSONException
-   * @throws StorageClientException
    */
   protected void writeUserJSON(ExtendedJSONWriter write, Session session,
-      Authorizable authorizable, SlingHttpServletRequest request)
-      throws JSONException, StorageClientException {
+      UserInfo userInfo, Authorizable authorizable, SlingHttpServletRequest request)
+      throws JSONException {
 
     String user = session.getUserId();
     boolean isAnonymous = (UserConstants.ANON_USERID.equals(user));
@@ -417,12 +563,9 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       write.value(false);
       write.endObject();
     } else {
-      Set<String> subjects = getSubjects(authorizable, session.getAuthorizableManager());
-      Map<String, Object> properties = getProperties(authorizable);
-
       write.object();
-      writeGeneralInfo(write, authorizable, subjects, properties);
-      writeLocale(write, properties, request);
+      writeGeneralInfo(write, authorizable, userInfo.subjects, userInfo.properties);
+      writeLocale(write, userInfo.properties, request);
       write.endObject();
     }
 
@@ -0,0 +1,488 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the sections of the /system/me feed of recently seen users. Each {@link Section}
+ * is built on its own the first time it is needed and dropped when an event shows it may
+ * have changed: the message and contact sections by content events under the user's
+ * home, the user and group sections by authorizable events for any authorizable they
+ * were built from, found through an index of the users that depend on each authorizable.
+ * The message counter and the connection index may handle a content event after this
+ * does, so a section built in between could miss the change, they post their own event
+ * once they have applied it and the section is dropped again then.
+ * Sections that are missing are built at the same time, those that don't need the
+ * caller's session on a small pool. Sections are built again after a time to live, which
+ * covers changes made on other servers.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { MeSnapshotCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE",
+        "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE",
+        MessageConstants.COUNTS_CHANGED_EVENT,
+        ConnectionConstants.EVENT_TOPIC_INDEX_CHANGED }) })
+public class MeSnapshotCache implements EventHandler {
+
+  /**
+   * The parts of the feed that are kept.
+   */
+  public enum Section {
+    /**
+     * The user's properties and the groups they are a member of.
+     */
+    USER(false),
+    /**
+     * The profiles of the groups listed in the feed.
+     */
+    GROUPS(false),
+    /**
+     * The number of unread messages.
+     */
+    MESSAGES(true),
+    /**
+     * The number of contacts in each state.
+     */
+    CONTACTS(true);
+
+    private final boolean shared;
+
+    private Section(boolean shared) {
+      this.shared = shared;
+    }
+
+    /**
+     * @return true if the section can be built without the caller's session, and so on
+     *         another thread.
+     */
+    public boolean isShared() {
+      return shared;
+    }
+  }
+
+  /**
+   * Builds a section of the feed of one user.
+   */
+  public interface SectionBuilder {
+    /**
+     * @param section
+     * @param dependencies
+     *          the ids of the authorizables the section is built from should be added
+     *          here, it is dropped when any of them change.
+     * @return the section, which must not be changed after it is returned.
+     * @throws IllegalStateException
+     *           if the section could not be built.
+     */
+    Object build(Section section, Set<String> dependencies);
+  }
+
+  /**
+   * The number of users whose feed is kept.
+   */
+  @Property(intValue = 5000)
+  static final String MAX_USERS = "me.cache.users";
+  /**
+   * How long in seconds a section is used before it is built again.
+   */
+  @Property(longValue = 300)
+  static final String TIME_TO_LIVE = "me.cache.ttl";
+  /**
+   * The number of threads building shared sections, 0 to build them all on the request
+   * thread.
+   */
+  @Property(intValue = 4)
+  static final String THREADS = "me.cache.threads";
+
+  private static final String AUTHORIZABLE_TOPIC = "org/sakaiproject/nakamura/lite/authorizables/";
+
+  private static final int SECTIONS = Section.values().length;
+
+  private int maxUsers = 5000;
+  private long timeToLive = 300000L;
+  private ExecutorService executor;
+
+  private final Map<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, Snapshot> eldest) {
+      if (size() > maxUsers) {
+        unindex(eldest.getKey(), eldest.getValue());
+        return true;
+      }
+      return false;
+    }
+  };
+
+  /**
+   * The ids of the users whose snapshots were built from each authorizable, guarded by
+   * the lock on snapshots.
+   */
+  private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+  /**
+   * The sections of one user's feed. Each section has a stamp that changes every time it
+   * is dropped, a section built from an older stamp is not kept.
+   */
+  static final class Snapshot {
+    private final Object[] values = new Object[SECTIONS];
+    private final Object[] dependencies = new Object[SECTIONS];
+    private final long[] stamps = new long[SECTIONS];
+    private final long[] built = new long[SECTIONS];
+    /**
+     * The authorizables this snapshot is listed under in the dependents index, guarded by
+     * the lock on snapshots.
+     */
+    private Set<String> indexed = Collections.emptySet();
+    private boolean evicted;
+
+    synchronized Object get(Section section, long since) {
+      int i = section.ordinal();
+      return built[i] >= since ? values[i] : null;
+    }
+
+    synchronized long stamp(Section section) {
+      return stamps[section.ordinal()];
+    }
+
+    synchronized void put(Section section, long stamp, Object value,
+        Set<String> sectionDependencies, long now) {
+      int i = section.ordinal();
+      if (value != null && stamps[i] == stamp) {
+        values[i] = value;
+        dependencies[i] = sectionDependencies;
+        built[i] = now;
+      }
+    }
+
+    synchronized void drop(Section section) {
+      int i = section.ordinal();
+      stamps[i]++;
+      values[i] = null;
+      dependencies[i] = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized void dropDependents(String authorizableId) {
+      for (Section section : Section.values()) {
+        Set<String> d = (Set<String>) dependencies[section.ordinal()];
+        if (d != null && d.contains(authorizableId)) {
+          drop(section);
+        }
+      }
+    }
+
+    /**
+     * @return the authorizables the kept sections were built from.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized Set<String> getDependencies() {
+      Set<String> all = new HashSet<String>();
+      for (Object d : dependencies) {
+        if (d != null) {
+          all.addAll((Set<String>) d);
+        }
+      }
+      return all;
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> properties) {
+    maxUsers = PropertiesUtil.toInteger(properties.get(MAX_USERS), 5000);
+    timeToLive = PropertiesUtil.toLong(properties.get(TIME_TO_LIVE), 300) * 1000L;
+    int threads = PropertiesUtil.toInteger(properties.get(THREADS), 4);
+    deactivate();
+    if (threads > 0) {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      // No queue, a section that can't get a thread is built on the request thread.
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L,
+          TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "me-section-builder-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+    synchronized (snapshots) {
+      for (Snapshot snapshot : snapshots.values()) {
+        snapshot.evicted = true;
+      }
+      snapshots.clear();
+      dependents.clear();
+    }
+  }
+
+  /**
+   * Get every section of a user's feed, building the ones that are not kept.
+   *
+   * @param userId
+   * @param builder
+   *          builds the missing sections, shared sections may be built on other threads.
+   * @return the sections.
+   * @throws IllegalStateException
+   *           if a section could not be built.
+   */
+  public Map<Section, Object> getSections(final String userId, final SectionBuilder builder) {
+    final Snapshot snapshot = getSnapshot(userId);
+    long since = System.currentTimeMillis() - timeToLive;
+    Map<Section, Object> sections = new EnumMap<Section, Object>(Section.class);
+    Map<Section, Future<Object>> pending = new EnumMap<Section, Future<Object>>(
+        Section.class);
+    Map<Section, Long> local = new EnumMap<Section, Long>(Section.class);
+    ExecutorService pool = executor;
+    for (final Section section : Section.values()) {
+      Object value = snapshot.get(section, since);
+      if (value != null) {
+        sections.put(section, value);
+        continue;
+      }
+      final long stamp = snapshot.stamp(section);
+      if (section.isShared() && pool != null) {
+        try {
+          pending.put(section, pool.submit(new Callable<Object>() {
+            public Object call() {
+              return build(userId, snapshot, section, stamp, builder);
+            }
+          }));
+          continue;
+        } catch (RejectedExecutionException e) {
+          // built below
+        }
+      }
+      local.put(section, stamp);
+    }
+    for (Entry<Section, Long> e : local.entrySet()) {
+      sections.put(e.getKey(), build(userId, snapshot, e.getKey(), e.getValue(), builder));
+    }
+    for (Entry<Section, Future<Object>> e : pending.entrySet()) {
+      try {
+        sections.put(e.getKey(), e.getValue().get());
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(ex.getMessage(), ex);
+      } catch (ExecutionException ex) {
+        if (ex.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) ex.getCause();
+        }
+        throw new IllegalStateException(ex.getCause().getMessage(), ex.getCause());
+      }
+    }
+    return sections;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    if (event.getTopic().startsWith(AUTHORIZABLE_TOPIC)) {
+      // the user, or a group that a user section was built from.
+      List<String> users;
+      synchronized (snapshots) {
+        Set<String> d = dependents.get(path);
+        if (d == null) {
+          return;
+        }
+        users = new ArrayList<String>(d);
+      }
+      for (String user : users) {
+        Snapshot snapshot;
+        synchronized (snapshots) {
+          snapshot = snapshots.get(user);
+        }
+        if (snapshot != null) {
+          snapshot.dropDependents(path);
+          reindex(user, snapshot);
+        }
+      }
+      return;
+    }
+    if (!path.startsWith(LitePersonalUtils.PATH_AUTHORIZABLE)) {
+      return;
+    }
+    int slash = path.indexOf('/');
+    String userId = path.substring(LitePersonalUtils.PATH_AUTHORIZABLE.length(),
+        slash < 0 ? path.length() : slash);
+    Snapshot snapshot;
+    synchronized (snapshots) {
+      snapshot = snapshots.get(userId);
+    }
+    if (snapshot == null) {
+      return;
+    }
+    String rest = slash < 0 ? "" : path.substring(slash + 1);
+    if (rest.length() == 0) {
+      if (event.getTopic().endsWith("/DELETE")) {
+        for (Section section : Section.values()) {
+          snapshot.drop(section);
+        }
+        reindex(userId, snapshot);
+      }
+    } else if (isUnder(rest, MessageConstants.FOLDER_MESSAGES)) {
+      snapshot.drop(Section.MESSAGES);
+    } else if (isUnder(rest, ConnectionConstants.CONTACT_STORE_NAME)) {
+      snapshot.drop(Section.CONTACTS);
+    }
+  }
+
+  private Object build(String userId, Snapshot snapshot, Section section, long stamp,
+      SectionBuilder builder) {
+    Set<String> dependencies = new HashSet<String>();
+    Object value = builder.build(section, dependencies);
+    snapshot.put(section, stamp, value, dependencies, System.currentTimeMillis());
+    if (!dependencies.isEmpty()) {
+      reindex(userId, snapshot);
+    }
+    return value;
+  }
+
+  /**
+   * List the user under the authorizables its snapshot now depends on, and no others.
+   */
+  private void reindex(String userId, Snapshot snapshot) {
+    synchronized (snapshots) {
+      if (snapshot.evicted) {
+        return;
+      }
+      // read under the same lock so that an older read can't be applied last.
+      Set<String> current = snapshot.getDependencies();
+      for (String id : snapshot.indexed) {
+        if (!current.contains(id)) {
+          removeDependent(id, userId);
+        }
+      }
+      for (String id : current) {
+        if (!snapshot.indexed.contains(id)) {
+          Set<String> users = dependents.get(id);
+          if (users == null) {
+            users = new HashSet<String>();
+            dependents.put(id, users);
+          }
+          users.add(userId);
+        }
+      }
+      snapshot.indexed = current;
+    }
+  }
+
+  /**
+   * Take an evicted snapshot out of the dependents index, called with the lock on
+   * snapshots held.
+   */
+  private void unindex(String userId, Snapshot snapshot) {
+    snapshot.evicted = true;
+    for (String id : snapshot.indexed) {
+      removeDependent(id, userId);
+    }
+    snapshot.indexed = Collections.emptySet();
+  }
+
+  private void removeDependent(String authorizableId, String userId) {
+    Set<String> users = dependents.get(authorizableId);
+    if (users != null) {
+      users.remove(userId);
+      if (users.isEmpty()) {
+        dependents.remove(authorizableId);
+      }
+    }
+  }
+
+  /**
+   * @return the number of authorizables in the dependents index, used in tests.
+   */
+  int getIndexSize() {
+    synchronized (snapshots) {
+      return dependents.size();
+    }
+  }
+
+  private Snapshot getSnapshot(String userId) {
+    synchronized (snapshots) {
+      Snapshot snapshot = snapshots.get(userId);
+      if (snapshot == null) {
+        snapshot = new Snapshot();
+        snapshots.put(userId, snapshot);
+      }
+      return snapshot;
+    }
+  }
+
+  private boolean isUnder(String path, String folder) {
+    return path.equals(folder) || path.startsWith(folder + "/");
+  }
+}
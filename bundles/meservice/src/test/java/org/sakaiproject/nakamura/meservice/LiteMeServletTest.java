@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.meservice.MeSnapshotCache.Section;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class LiteMeServletTest {
+
+  private LiteMeServlet servlet;
+  private List<String> calls;
+  private SlingHttpServletRequest request;
+
+  @Before
+  public void setUp() {
+    calls = new ArrayList<String>();
+    servlet = new LiteMeServlet() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected UserInfo getUserInfo(Session session, Authorizable au,
+          Set<String> dependencies) {
+        calls.add("getUserInfo");
+        dependencies.add(au.getId());
+        return new UserInfo(new HashSet<String>(), new HashMap<String, Object>());
+      }
+
+      @Override
+      protected List<Map<String, Object>> getGroups(Session session, Authorizable au,
+          Set<String> dependencies) {
+        calls.add("getGroups");
+        dependencies.add(au.getId());
+        return new ArrayList<Map<String, Object>>();
+      }
+
+      @Override
+      protected Long countUnreadMessages(Session session, Authorizable au) {
+        calls.add("countUnreadMessages");
+        return 1L;
+      }
+
+      @Override
+      protected Long searchUnreadMessages(Session session, Authorizable au,
+          SlingHttpServletRequest request) {
+        calls.add("searchUnreadMessages");
+        return 2L;
+      }
+
+      @Override
+      protected Map<String, Integer> countContacts(Session session, Authorizable au) {
+        calls.add("countContacts");
+        return new HashMap<String, Integer>();
+      }
+
+      @Override
+      protected Map<String, Integer> searchContacts(Authorizable au,
+          SlingHttpServletRequest request) {
+        calls.add("searchContacts");
+        return new HashMap<String, Integer>();
+      }
+    };
+    MeSnapshotCache snapshotCache = new MeSnapshotCache();
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(MeSnapshotCache.THREADS, 0);
+    snapshotCache.modified(properties);
+    servlet.snapshotCache = snapshotCache;
+    request = createNiceMock(SlingHttpServletRequest.class);
+    replay(request);
+  }
+
+  @After
+  public void tearDown() {
+    servlet.snapshotCache.deactivate();
+  }
+
+  private Session session(String userId) {
+    Session session = createNiceMock(Session.class);
+    expect(session.getUserId()).andReturn(userId).anyTimes();
+    replay(session);
+    return session;
+  }
+
+  private Authorizable authorizable(String id) {
+    Authorizable au = createNiceMock(Authorizable.class);
+    expect(au.getId()).andReturn(id).anyTimes();
+    replay(au);
+    return au;
+  }
+
+  @Test
+  public void testOwnFeedIsCountedAndKept() {
+    Session session = session("alice");
+    Authorizable alice = authorizable("alice");
+    Map<Section, Object> sections = servlet.getSections(session, alice, request);
+    assertEquals(1L, sections.get(Section.MESSAGES));
+    assertEquals(4, calls.size());
+    assertTrue(calls.contains("countUnreadMessages"));
+    assertTrue(calls.contains("countContacts"));
+
+    calls.clear();
+    sections = servlet.getSections(session, alice, request);
+    assertEquals(1L, sections.get(Section.MESSAGES));
+    assertEquals(0, calls.size());
+  }
+
+  @Test
+  public void testOtherFeedIsSearchedEachTime() {
+    Session session = session("alice");
+    Authorizable bob = authorizable("bob");
+    for (int i = 0; i < 2; i++) {
+      calls.clear();
+      Map<Section, Object> sections = servlet.getSections(session, bob, request);
+      assertEquals(2L, sections.get(Section.MESSAGES));
+      assertEquals(4, calls.size());
+      assertTrue(calls.contains("searchUnreadMessages"));
+      assertTrue(calls.contains("searchContacts"));
+    }
+  }
+
+  @Test
+  public void testAnonymousFeedIsNotKept() {
+    Session session = session(UserConstants.ANON_USERID);
+    Authorizable anonymous = authorizable(UserConstants.ANON_USERID);
+    servlet.getSections(session, anonymous, request);
+    calls.clear();
+    servlet.getSections(session, anonymous, request);
+    assertEquals(4, calls.size());
+    assertTrue(calls.contains("searchUnreadMessages"));
+  }
+}
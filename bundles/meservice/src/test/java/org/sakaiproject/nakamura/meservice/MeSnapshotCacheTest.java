@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.meservice.MeSnapshotCache.Section;
+import org.sakaiproject.nakamura.meservice.MeSnapshotCache.SectionBuilder;
+import org.sakaiproject.nakamura.meservice.MeSnapshotCache.Snapshot;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+
+public class MeSnapshotCacheTest {
+
+  private MeSnapshotCache cache;
+
+  /**
+   * Builds each section as the number of times it was built, the user section from the
+   * groups given.
+   */
+  private static class CountingBuilder implements SectionBuilder {
+    private final Map<Section, Integer> builds = new EnumMap<Section, Integer>(
+        Section.class);
+    private final String[] groups;
+
+    CountingBuilder(String... groups) {
+      this.groups = groups;
+    }
+
+    public synchronized Object build(Section section, Set<String> dependencies) {
+      if (section == Section.USER || section == Section.GROUPS) {
+        Collections.addAll(dependencies, groups);
+      }
+      Integer n = builds.get(section);
+      n = n == null ? 1 : n + 1;
+      builds.put(section, n);
+      return n;
+    }
+
+    synchronized int builds(Section section) {
+      Integer n = builds.get(section);
+      return n == null ? 0 : n;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    cache = new MeSnapshotCache();
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(MeSnapshotCache.THREADS, 0);
+    cache.modified(properties);
+  }
+
+  @After
+  public void tearDown() {
+    cache.deactivate();
+  }
+
+  private Event event(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    return new Event(topic, (Dictionary<String, Object>) properties);
+  }
+
+  @Test
+  public void testSectionsAreKept() {
+    CountingBuilder builder = new CountingBuilder();
+    cache.getSections("alice", builder);
+    Map<Section, Object> sections = cache.getSections("alice", builder);
+    for (Section section : Section.values()) {
+      assertEquals(1, builder.builds(section));
+      assertEquals(1, sections.get(section));
+    }
+  }
+
+  @Test
+  public void testMessageEventDropsMessages() {
+    CountingBuilder builder = new CountingBuilder();
+    cache.getSections("alice", builder);
+    cache.handleEvent(event("org/sakaiproject/nakamura/lite/content/ADDED",
+        "a:alice/message/inbox/xyz"));
+    Map<Section, Object> sections = cache.getSections("alice", builder);
+    assertEquals(2, sections.get(Section.MESSAGES));
+    assertEquals(1, builder.builds(Section.CONTACTS));
+    assertEquals(1, builder.builds(Section.USER));
+
+    // someone else's messages
+    cache.handleEvent(event("org/sakaiproject/nakamura/lite/content/ADDED",
+        "a:bob/message/inbox/xyz"));
+    cache.getSections("alice", builder);
+    assertEquals(2, builder.builds(Section.MESSAGES));
+  }
+
+  @Test
+  public void testContactEventDropsContacts() {
+    CountingBuilder builder = new CountingBuilder();
+    cache.getSections("alice", builder);
+    cache.handleEvent(event("org/sakaiproject/nakamura/lite/content/UPDATED",
+        "a:alice/contacts/bob"));
+    cache.getSections("alice", builder);
+    assertEquals(2, builder.builds(Section.CONTACTS));
+    assertEquals(1, builder.builds(Section.MESSAGES));
+  }
+
+  @Test
+  public void testAppliedChangeDropsAgain() {
+    CountingBuilder builder = new CountingBuilder();
+    cache.getSections("alice", builder);
+    cache.handleEvent(event("org/sakaiproject/nakamura/lite/content/ADDED",
+        "a:alice/message/inbox/xyz"));
+    // built before the counter has seen the message
+    cache.getSections("alice", builder);
+    cache.handleEvent(event(MessageConstants.COUNTS_CHANGED_EVENT, "a:alice/message/"));
+    cache.handleEvent(event(ConnectionConstants.EVENT_TOPIC_INDEX_CHANGED,
+        "a:alice/contacts"));
+    cache.getSections("alice", builder);
+    cache.getSections("alice", builder);
+    assertEquals(3, builder.builds(Section.MESSAGES));
+    assertEquals(2, builder.builds(Section.CONTACTS));
+    assertEquals(1, builder.builds(Section.USER));
+  }
+
+  @Test
+  public void testDropStamp() {
+    Snapshot snapshot = new Snapshot();
+    Set<String> none = Collections.emptySet();
+    long stamp = snapshot.stamp(Section.MESSAGES);
+    snapshot.put(Section.MESSAGES, stamp, 1L, none, 1000L);
+    assertEquals(1L, snapshot.get(Section.MESSAGES, 0L));
+
+    // a build that started before the drop is not kept
+    snapshot.drop(Section.MESSAGES);
+    assertNull(snapshot.get(Section.MESSAGES, 0L));
+    snapshot.put(Section.MESSAGES, stamp, 2L, none, 2500L);
+    assertNull(snapshot.get(Section.MESSAGES, 0L));
+
+    // one that started after it is
+    stamp = snapshot.stamp(Section.MESSAGES);
+    snapshot.put(Section.MESSAGES, stamp, 3L, none, 2100L);
+    assertEquals(3L, snapshot.get(Section.MESSAGES, 0L));
+
+    // and used until it is older than asked for
+    assertNull(snapshot.get(Section.MESSAGES, 2101L));
+  }
+
+  @Test
+  public void testAuthorizableEventDropsDependents() {
+    CountingBuilder aliceBuilder = new CountingBuilder("alice", "g1");
+    CountingBuilder bobBuilder = new CountingBuilder("bob", "g2");
+    cache.getSections("alice", aliceBuilder);
+    cache.getSections("bob", bobBuilder);
+    assertEquals(4, cache.getIndexSize());
+
+    cache.handleEvent(event("org/sakaiproject/nakamura/lite/authorizables/UPDATED", "g1"));
+    cache.getSections("alice", aliceBuilder);
+    cache.getSections("bob", bobBuilder);
+    assertEquals(2, aliceBuilder.builds(Section.USER));
+    assertEquals(2, aliceBuilder.builds(Section.GROUPS));
+    assertEquals(1, aliceBuilder.builds(Section.MESSAGES));
+    assertEquals(1, bobBuilder.builds(Section.USER));
+    assertEquals(1, bobBuilder.builds(Section.GROUPS));
+  }
+
+  @Test
+  public void testIndexFollowsDependencies() {
+    cache.getSections("alice", new CountingBuilder("alice", "g1"));
+    cache.handleEvent(event("org/sakaiproject/nakamura/lite/authorizables/UPDATED", "g1"));
+    // no longer a member of g1
+    CountingBuilder builder = new CountingBuilder("alice");
+    cache.getSections("alice", builder);
+    assertEquals(1, cache.getIndexSize());
+
+    cache.handleEvent(event("org/sakaiproject/nakamura/lite/authorizables/UPDATED", "g1"));
+    cache.getSections("alice", builder);
+    assertEquals(1, builder.builds(Section.USER));
+  }
+
+  @Test
+  public void testEvictedUsersLeaveTheIndex() {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(MeSnapshotCache.THREADS, 0);
+    properties.put(MeSnapshotCache.MAX_USERS, 1);
+    cache.modified(properties);
+    cache.getSections("alice", new CountingBuilder("alice", "g1"));
+    cache.getSections("bob", new CountingBuilder("bob"));
+    assertEquals(1, cache.getIndexSize());
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.message;
+
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Keeps counts of the internal messages in each message store so that count requests do
+ * not need a search. Properties are named as they are in the search index, ie without the
+ * sakai: prefix, and only some of them can be counted.
+ */
+public interface LiteMessageCounter {
+
+  /**
+   * @param properties
+   *          the properties that would be filtered or grouped on.
+   * @return true if all of the properties can be counted.
+   */
+  boolean canCount(Collection<String> properties);
+
+  /**
+   * @param messageStorePath
+   *          the path of the message store, as given by
+   *          {@link LiteMessagingService#getFullPathToStore(String, org.sakaiproject.nakamura.api.lite.Session)}
+   * @param filters
+   *          property values the messages must have.
+   * @return the number of internal messages in the store matching the filters.
+   * @throws MessagingException
+   *           if the store could not be counted.
+   */
+  long count(String messageStorePath, Map<String, String> filters);
+
+  /**
+   * @param messageStorePath
+   * @param filters
+   *          property values the messages must have.
+   * @param groupedBy
+   *          the property to group on, messages without it are not counted.
+   * @return the number of internal messages matching the filters for each value of the
+   *         group property.
+   * @throws MessagingException
+   *           if the store could not be counted.
+   */
+  Map<String, Long> countGroupedBy(String messageStorePath, Map<String, String> filters,
+      String groupedBy);
+
+  /**
+   * Record a message that has been created or changed.
+   *
+   * @param message
+   */
+  void update(Content message);
+
+  /**
+   * Forget a message, or all the messages under a path that has been deleted.
+   *
+   * @param path
+   */
+  void remove(String path);
+}
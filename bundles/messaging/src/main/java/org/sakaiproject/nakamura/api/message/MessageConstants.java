@@ -58,6 +58,10 @@ public interface MessageConstants {
    * email, ..
    */
   public static final String PROP_SAKAI_TYPE = "sakai:type";
+  /**
+   * The category of the message, eg message, invitation.
+   */
+  public static final String PROP_SAKAI_CATEGORY = "sakai:category";
   /**
    * This property will hold the value to send the message to.
    */
@@ -126,6 +130,12 @@ public interface MessageConstants {
    *
    */
   public static final String PENDINGMESSAGE_EVENT = "org/sakaiproject/nakamura/message/pending";
+  /**
+   * Posted by the message counter once it has applied a change to a message store it
+   * counts, with the path of the store as the path property. Counts asked for after this
+   * event include the change.
+   */
+  public static final String COUNTS_CHANGED_EVENT = "org/sakaiproject/nakamura/message/counts/CHANGED";
   /**
    *
    */
@@ -41,19 +41,21 @@ import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.message.LiteMessageCounter;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -68,6 +70,11 @@ import javax.servlet.http.HttpServletResponse;
  *  - filters: only nodes with the properties in filters and the values in values
  *    get traversed
  *  - groupedby: group the results by the values of this parameter.
+ *
+ * Counts that only filter and group on sakai:messagebox, sakai:category and sakai:read
+ * are answered by the {@link LiteMessageCounter} without a search, other groups are
+ * counted by a Solr facet. Grouping only works on properties that are indexed in Solr,
+ * grouping by any other property returns no groups.
  */
 @SlingServlet(methods = {"GET"}, resourceTypes = {"sakai/messagestore"}, selectors = {"count"}, generateComponent = true, generateService = true)
 @Properties(value = {
@@ -92,7 +99,7 @@ import javax.servlet.http.HttpServletResponse;
         parameters = {
           @ServiceParameter(name = "filters", description = "Optional. Comma separated list of properties that should be matched"),
           @ServiceParameter(name = "values", description = "Optional. Comma separated list of values for each property."),
-          @ServiceParameter(name = "groupedby", description = "Optional. A property name on what to group by, e.g. sakai:category will return separate counts for each message category.") }))
+          @ServiceParameter(name = "groupedby", description = "Optional. A property name on what to group by, e.g. sakai:category will return separate counts for each message category. Only properties indexed in Solr can be grouped on.") }))
 
 public class LiteCountServlet extends SlingSafeMethodsServlet {
 
@@ -102,14 +109,15 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
   private static final long serialVersionUID = -5714446506015596037L;
   private static final Logger LOGGER = LoggerFactory.getLogger(LiteCountServlet.class);
 
-  private static long MAX_RESULTS_COUNTED = 500;
-
   @Reference
   protected transient LiteMessagingService messagingService;
   
   @Reference
   SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  protected transient LiteMessageCounter messageCounter;
+
   @Override
   protected void doGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
@@ -118,110 +126,84 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
     Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
 
     try {
-      // Do the query
-      // We do the query on the user his messageStore's path.
-      String messageStorePath = ClientUtils.escapeQueryChars(messagingService.getFullPathToStore(request.getRemoteUser(), session));
-      //path:a\:zach/contacts AND resourceType:sakai/contact AND state:("ACCEPTED" -NONE) (name:"*" OR firstName:"*" OR lastName:"*" OR email:"*")) AND readers:(zach OR everyone)&start=0&rows=25&sort=score desc
-      StringBuilder queryString = new StringBuilder("(path:"
-          + messageStorePath + "* AND resourceType:sakai/message"
-          + " AND type:internal");
+      String messageStorePath = messagingService.getFullPathToStore(request.getRemoteUser(), session);
 
       // Get the filters
+      Map<String, String> filters = new LinkedHashMap<String, String>();
       if (request.getRequestParameter("filters") != null
           && request.getRequestParameter("values") != null) {
         // The user wants to filter some things.
-        String[] filters = request.getRequestParameter("filters").getString()
+        String[] filterNames = request.getRequestParameter("filters").getString()
             .split(",");
         String[] values = request.getRequestParameter("values").getString()
             .split(",");
-        if (filters.length != values.length) {
+        if (filterNames.length != values.length) {
           response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
               "The amount of values doesn't match the amount of keys.");
+          return;
         }
 
-        for (int i = 0; i < filters.length; i++) {
-          String filterName = filters[i].replaceFirst("sakai:", "");
-          queryString.append(" AND " + filterName + ":\"" + values[i] + "\"");
+        for (int i = 0; i < filterNames.length; i++) {
+          filters.put(filterNames[i].replaceFirst("sakai:", ""), values[i]);
         }
       }
-
-      queryString.append(")");
-
-      // The "groupedby" clause forces us to inspect every message. If not
-      // specified, all we need is the count.
-      final long itemCount;
-      if (request.getRequestParameter("groupedby") == null) {
-        itemCount = 0;
-      } else {
-        itemCount = MAX_RESULTS_COUNTED;
-      }
-      Map<String, Object> queryOptions = ImmutableMap.of(
-          PARAMS_ITEMS_PER_PAGE, (Object) Long.toString(itemCount),
-          CommonParams.START, "0",
-          CommonParams.SORT, "_created desc"
-      );
-
-      Query query = new Query(queryString.toString(), queryOptions);
-      LOGGER.info("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
-
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-
-      JSONWriter write = new JSONWriter(response.getWriter());
-
-      if (request.getRequestParameter("groupedby") == null) {
-        write.object();
-        write.key("count");
-        write.value(resultSet.getSize());
-        write.endObject();
-      } else {
-        // The user want to group the count by a specified set.
-        // We will have to traverse each node, get that property and count each
-        // value for it.
-        String groupedby = request.getRequestParameter("groupedby").getString();
+      String groupedby = null;
+      if (request.getRequestParameter("groupedby") != null) {
+        groupedby = request.getRequestParameter("groupedby").getString();
         if (groupedby.startsWith("sakai:")) {
           groupedby = groupedby.substring(6);
         }
+      }
 
-        long count = 0;
-        Map<String, Integer> mapCount = new HashMap<String, Integer>();
-        while (resultIterator.hasNext()) {
-          Result n = resultIterator.next();
-
-          if (count >= MAX_RESULTS_COUNTED) {
-            break;
-          }
-          count++;
-
-          if (n.getProperties().containsKey(groupedby)) {
-            String key = (String) n.getFirstValue(groupedby);
-            int val = 1;
-            if (mapCount.containsKey(key)) {
-              val = mapCount.get(key) + 1;
-            }
-            mapCount.put(key, val);
-          }
+      // Counts on the message box, category and read state are kept up to date by the
+      // counter, anything else needs a search.
+      Set<String> counted = new HashSet<String>(filters.keySet());
+      if (groupedby != null) {
+        counted.add(groupedby);
+      }
+      if (messageCounter.canCount(counted)) {
+        if (groupedby == null) {
+          writeCount(response, messageCounter.count(messageStorePath, filters));
+        } else {
+          writeGroups(response, messageCounter.countGroupedBy(messageStorePath, filters,
+              groupedby));
         }
+        return;
+      }
 
-        write.object();
-        write.key("count");
-        write.array();
-        for (Entry<String, Integer> e : mapCount.entrySet()) {
-          write.object();
+      // Do the query
+      // We do the query on the user his messageStore's path.
+      //path:a\:zach/contacts AND resourceType:sakai/contact AND state:("ACCEPTED" -NONE) (name:"*" OR firstName:"*" OR lastName:"*" OR email:"*")) AND readers:(zach OR everyone)&start=0&rows=25&sort=score desc
+      StringBuilder queryString = new StringBuilder("(path:"
+          + ClientUtils.escapeQueryChars(messageStorePath) + "* AND resourceType:sakai/message"
+          + " AND type:internal");
 
-          write.key("group");
-          write.value(e.getKey());
-          write.key("count");
-          write.value(e.getValue());
+      for (Entry<String, String> filter : filters.entrySet()) {
+        queryString.append(" AND " + filter.getKey() + ":\"" + filter.getValue() + "\"");
+      }
 
-          write.endObject();
-        }
-        write.endArray();
-        write.endObject();
+      queryString.append(")");
 
+      if (groupedby == null) {
+        // all we need is the count.
+        Map<String, Object> queryOptions = ImmutableMap.of(
+            PARAMS_ITEMS_PER_PAGE, (Object) "0",
+            CommonParams.START, "0"
+        );
+        Query query = new Query(queryString.toString(), queryOptions);
+        LOGGER.info("Submitting Query {} ", query);
+        SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
+            request, query, false);
+        writeCount(response, resultSet.getSize());
+      } else {
+        // The user want to group the count by a specified set, Solr counts each value of
+        // the property for us.
+        Query query = new Query(queryString.toString());
+        LOGGER.info("Submitting facet Query {} on {} ", query, groupedby);
+        Map<String, Long> groups = searchServiceFactory.getFacetCounts(request, query,
+            false, groupedby).get(groupedby);
+        writeGroups(response, groups == null ? Collections.<String, Long> emptyMap()
+            : groups);
       }
 
     } catch (JSONException e) {
@@ -233,4 +215,37 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
     }
 
   }
+
+  private void writeCount(SlingHttpServletResponse response, long count)
+      throws IOException, JSONException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JSONWriter write = new JSONWriter(response.getWriter());
+    write.object();
+    write.key("count");
+    write.value(count);
+    write.endObject();
+  }
+
+  private void writeGroups(SlingHttpServletResponse response, Map<String, Long> groups)
+      throws IOException, JSONException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JSONWriter write = new JSONWriter(response.getWriter());
+    write.object();
+    write.key("count");
+    write.array();
+    for (Entry<String, Long> e : groups.entrySet()) {
+      write.object();
+
+      write.key("group");
+      write.value(e.getKey());
+      write.key("count");
+      write.value(e.getValue());
+
+      write.endObject();
+    }
+    write.endArray();
+    write.endObject();
+  }
 }
@@ -0,0 +1,709 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.LiteMessageCounter;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Keeps the number of internal messages in each recently used message store, by message
+ * box, category and read state. A store is counted from storage the first time it is
+ * asked for, and the key each message was counted under is kept so that a change moves
+ * one message from its old key to its new one. Messages saved by the messaging service
+ * are applied straight away. Content events, which carry no values, mark the message as
+ * changed and only that message is read again the next time the store is asked for, so
+ * reads and deletes made through the generic sparse endpoints are counted too. Once an
+ * event has been applied to a counted store a {@link MessageConstants#COUNTS_CHANGED_EVENT}
+ * is posted, so that anything keeping a count knows when to ask again. A periodic job counts every store in use again from storage, which picks up changes made
+ * on other servers, and drops stores that have not been used.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { LiteMessageCounter.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }) })
+public class LiteMessageCounterImpl implements LiteMessageCounter, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LiteMessageCounterImpl.class);
+
+  /**
+   * The number of message stores whose counts are kept.
+   */
+  @Property(intValue = 5000)
+  static final String MAX_STORES = "message.count.stores";
+  /**
+   * How often in seconds the stores in use are counted again from storage, stores that
+   * have not been used for two intervals are dropped.
+   */
+  @Property(longValue = 300)
+  static final String RECONCILE_INTERVAL = "message.count.reconcile";
+  /**
+   * Age in seconds after which the counts of a store are counted again from storage the
+   * next time they are asked for, in case the reconcile job is behind.
+   */
+  @Property(longValue = 300)
+  static final String MAX_AGE = "message.count.maxAge";
+
+  /**
+   * More changed messages than this in a store and it is counted again from storage
+   * rather than reading each one.
+   */
+  static final int MAX_CHANGED = 100;
+
+  static final String JOB_NAME = "messageCountReconcileJob";
+
+  static final String FIELD_BOX = "messagebox";
+  static final String FIELD_CATEGORY = "category";
+  static final String FIELD_READ = "read";
+  static final Set<String> COUNTED_FIELDS = ImmutableSet.of(FIELD_BOX, FIELD_CATEGORY,
+      FIELD_READ);
+
+  @Reference
+  protected Repository sparseRepository;
+
+  @Reference
+  protected Scheduler scheduler;
+
+  @Reference
+  protected EventAdmin eventAdmin;
+
+  private int maxStores = 5000;
+  private long reconcileInterval = 300000L;
+  private long maxAge = 300000L;
+
+  private final Map<String, StoreCounts> stores = new LinkedHashMap<String, StoreCounts>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, StoreCounts> eldest) {
+      return size() > maxStores;
+    }
+  };
+
+  /**
+   * The values a message is counted under.
+   */
+  static final class MessageKey {
+    private final String box;
+    private final String category;
+    private final String read;
+
+    MessageKey(String box, String category, String read) {
+      this.box = box;
+      this.category = category;
+      this.read = read;
+    }
+
+    String get(String field) {
+      if (FIELD_BOX.equals(field)) {
+        return box;
+      } else if (FIELD_CATEGORY.equals(field)) {
+        return category;
+      } else if (FIELD_READ.equals(field)) {
+        return read;
+      }
+      return null;
+    }
+
+    boolean matches(Map<String, String> filters) {
+      if (filters != null) {
+        for (Entry<String, String> filter : filters.entrySet()) {
+          if (!filter.getValue().equals(get(filter.getKey()))) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof MessageKey)) {
+        return false;
+      }
+      MessageKey other = (MessageKey) obj;
+      return eq(box, other.box) && eq(category, other.category) && eq(read, other.read);
+    }
+
+    @Override
+    public int hashCode() {
+      int h = box == null ? 0 : box.hashCode();
+      h = h * 31 + (category == null ? 0 : category.hashCode());
+      return h * 31 + (read == null ? 0 : read.hashCode());
+    }
+
+    private static boolean eq(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+
+  /**
+   * The number of messages under each key in one store, and the key each message is
+   * counted under. There are only a handful of distinct keys so counting is a walk over a
+   * small map. The store is put in the map of stores before it is first counted, so that
+   * changes made while it is being counted are seen.
+   */
+  static final class StoreCounts {
+    /**
+     * Held while the store is read from storage, so that only one thread reads it.
+     */
+    final Object loadLock = new Object();
+    /**
+     * The path of the store, ending with a slash.
+     */
+    final String path;
+    private Map<MessageKey, long[]> counts;
+    /**
+     * The key of each message by its path within the store.
+     */
+    private Map<String, MessageKey> keys;
+    /**
+     * The paths within the store of the messages changed since they were read, with the
+     * change they were last marked at.
+     */
+    private final Map<String, Long> changed = new HashMap<String, Long>();
+    private long changes;
+    private long loaded;
+    volatile long lastUsed;
+
+    StoreCounts(String path, long now) {
+      this.path = path;
+      this.lastUsed = now;
+    }
+
+    String relative(String messagePath) {
+      return messagePath.substring(path.length());
+    }
+
+    synchronized void changed(String relativePath) {
+      changed.put(relativePath, ++changes);
+    }
+
+    /**
+     * @return true if the store has been counted, nothing has changed since and the
+     *         counts are younger than maxAge.
+     */
+    synchronized boolean isCurrent(long now, long maxAge) {
+      return counts != null && changed.isEmpty() && loaded >= now - maxAge;
+    }
+
+    /**
+     * @return true if the whole store should be counted from storage rather than just the
+     *         changed messages read.
+     */
+    synchronized boolean needsCount(long now, long maxAge) {
+      return counts == null || loaded < now - maxAge || changed.size() > MAX_CHANGED;
+    }
+
+    synchronized boolean isCounted() {
+      return counts != null;
+    }
+
+    synchronized long getChanges() {
+      return changes;
+    }
+
+    synchronized Map<String, Long> getChanged() {
+      return new HashMap<String, Long>(changed);
+    }
+
+    /**
+     * @param counts
+     *          the counts read from storage.
+     * @param keys
+     *          the key of each message read.
+     * @param seenChanges
+     *          the changes there had been when the count was started, messages changed
+     *          after that are read again.
+     * @param now
+     */
+    synchronized void setCounts(Map<MessageKey, long[]> counts, Map<String, MessageKey> keys,
+        long seenChanges, long now) {
+      this.counts = counts;
+      this.keys = keys;
+      this.loaded = now;
+      for (Iterator<Long> i = changed.values().iterator(); i.hasNext();) {
+        if (i.next() <= seenChanges) {
+          i.remove();
+        }
+      }
+    }
+
+    /**
+     * Count a message under its new key instead of its old one.
+     *
+     * @param relativePath
+     * @param key
+     *          the new key, or null if it is no longer a message.
+     */
+    synchronized void set(String relativePath, MessageKey key) {
+      if (counts == null) {
+        return;
+      }
+      MessageKey old = (key == null) ? keys.remove(relativePath) : keys.put(relativePath,
+          key);
+      add(old, -1);
+      add(key, 1);
+    }
+
+    /**
+     * Stop counting a message, or every message under a folder.
+     */
+    synchronized void removeUnder(String relativePath) {
+      if (counts == null) {
+        return;
+      }
+      add(keys.remove(relativePath), -1);
+      String prefix = relativePath + "/";
+      for (Iterator<Entry<String, MessageKey>> i = keys.entrySet().iterator(); i.hasNext();) {
+        Entry<String, MessageKey> e = i.next();
+        if (e.getKey().startsWith(prefix)) {
+          add(e.getValue(), -1);
+          i.remove();
+        }
+      }
+    }
+
+    /**
+     * Apply a changed message that has been read again.
+     *
+     * @param relativePath
+     * @param content
+     *          the message as read, or null if it has gone.
+     * @param change
+     *          the change the message was marked at when it was read, it stays marked if
+     *          it has changed again since.
+     */
+    synchronized void refreshed(String relativePath, Content content, long change) {
+      if (content == null) {
+        removeUnder(relativePath);
+      } else {
+        set(relativePath, toKey(content));
+      }
+      Long marked = changed.get(relativePath);
+      if (marked != null && marked.longValue() == change) {
+        changed.remove(relativePath);
+      }
+    }
+
+    private void add(MessageKey key, int delta) {
+      if (key == null) {
+        return;
+      }
+      long[] n = counts.get(key);
+      if (n == null) {
+        n = new long[1];
+        counts.put(key, n);
+      }
+      n[0] += delta;
+      if (n[0] <= 0) {
+        counts.remove(key);
+      }
+    }
+
+    synchronized long count(Map<String, String> filters) {
+      long total = 0;
+      for (Entry<MessageKey, long[]> e : counts.entrySet()) {
+        if (e.getKey().matches(filters)) {
+          total += e.getValue()[0];
+        }
+      }
+      return total;
+    }
+
+    synchronized Map<String, Long> countGroupedBy(Map<String, String> filters,
+        String groupedBy) {
+      Map<String, Long> groups = new HashMap<String, Long>();
+      for (Entry<MessageKey, long[]> e : counts.entrySet()) {
+        String group = e.getKey().get(groupedBy);
+        if (group != null && e.getKey().matches(filters)) {
+          Long n = groups.get(group);
+          groups.put(group, (n == null ? 0 : n) + e.getValue()[0]);
+        }
+      }
+      return groups;
+    }
+  }
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    maxStores = OsgiUtil.toInteger(properties.get(MAX_STORES), 5000);
+    reconcileInterval = OsgiUtil.toLong(properties.get(RECONCILE_INTERVAL), 300) * 1000L;
+    maxAge = OsgiUtil.toLong(properties.get(MAX_AGE), reconcileInterval / 1000L) * 1000L;
+    try {
+      scheduler.addPeriodicJob(JOB_NAME, new Runnable() {
+        public void run() {
+          reconcile(System.currentTimeMillis());
+        }
+      }, null, Math.max(1, reconcileInterval / 1000L), false);
+    } catch (Exception e) {
+      LOGGER.error("Failed to add periodic job for message count reconciliation", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    scheduler.removeJob(JOB_NAME);
+    synchronized (stores) {
+      stores.clear();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.LiteMessageCounter#canCount(java.util.Collection)
+   */
+  public boolean canCount(Collection<String> properties) {
+    return COUNTED_FIELDS.containsAll(properties);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.LiteMessageCounter#count(java.lang.String,
+   *      java.util.Map)
+   */
+  public long count(String messageStorePath, Map<String, String> filters) {
+    return getStore(messageStorePath).count(filters);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.LiteMessageCounter#countGroupedBy(java.lang.String,
+   *      java.util.Map, java.lang.String)
+   */
+  public Map<String, Long> countGroupedBy(String messageStorePath,
+      Map<String, String> filters, String groupedBy) {
+    return getStore(messageStorePath).countGroupedBy(filters, groupedBy);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.LiteMessageCounter#update(org.sakaiproject.nakamura.api.lite.content.Content)
+   */
+  public void update(Content message) {
+    StoreCounts store = findStore(message.getPath());
+    if (store != null) {
+      store.set(store.relative(message.getPath()), toKey(message));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.LiteMessageCounter#remove(java.lang.String)
+   */
+  public void remove(String path) {
+    removeMessages(path);
+  }
+
+  /**
+   * @return the store the messages were removed from, or null if it is not counted.
+   */
+  private StoreCounts removeMessages(String path) {
+    synchronized (stores) {
+      // the whole store has gone.
+      StoreCounts store = stores.remove(path.endsWith("/") ? path : path + "/");
+      if (store != null) {
+        return store;
+      }
+    }
+    StoreCounts store = findStore(path);
+    if (store != null) {
+      String relativePath = store.relative(path);
+      store.removeUnder(relativePath);
+      // in case a count that started before the delete has already read it.
+      store.changed(relativePath);
+    }
+    return store;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    StoreCounts store;
+    if (event.getTopic().endsWith("/DELETE")) {
+      store = removeMessages(path);
+    } else {
+      store = findStore(path);
+      if (store != null) {
+        store.changed(store.relative(path));
+      }
+    }
+    if (store != null) {
+      Dictionary<String, Object> properties = new Hashtable<String, Object>();
+      properties.put("path", store.path);
+      eventAdmin.postEvent(new Event(MessageConstants.COUNTS_CHANGED_EVENT, properties));
+    }
+  }
+
+  /**
+   * Count the stores that are in use again from storage, and drop the ones that have not
+   * been used for two intervals.
+   *
+   * @param now
+   */
+  void reconcile(long now) {
+    List<StoreCounts> live = new ArrayList<StoreCounts>();
+    int dropped = 0;
+    synchronized (stores) {
+      for (Iterator<StoreCounts> i = stores.values().iterator(); i.hasNext();) {
+        StoreCounts store = i.next();
+        if (store.lastUsed < now - 2 * reconcileInterval) {
+          i.remove();
+          dropped++;
+        } else if (store.isCounted()) {
+          live.add(store);
+        }
+      }
+    }
+    if (live.isEmpty()) {
+      LOGGER.debug("Dropped {} unused message stores ", dropped);
+      return;
+    }
+    Session session = null;
+    int counted = 0;
+    try {
+      session = sparseRepository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      for (StoreCounts store : live) {
+        synchronized (store.loadLock) {
+          try {
+            count(store, contentManager, now);
+            counted++;
+          } catch (StorageClientException e) {
+            LOGGER.warn("Unable to count messages in {} {} ", store.path, e.getMessage());
+          } catch (AccessDeniedException e) {
+            LOGGER.warn("Unable to count messages in {} {} ", store.path, e.getMessage());
+          }
+        }
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to reconcile message counts {} ", e.getMessage());
+    } finally {
+      logout(session);
+    }
+    LOGGER.debug("Counted {} message stores, dropped {} unused ", counted, dropped);
+  }
+
+  /**
+   * @return the store, counted from storage if it has not been counted or is too old, or
+   *         with its changed messages read again.
+   * @throws MessagingException
+   *           if the store has never been counted and could not be counted now.
+   */
+  private StoreCounts getStore(String storePath) {
+    long now = System.currentTimeMillis();
+    StoreCounts store;
+    synchronized (stores) {
+      store = stores.get(storePath);
+      if (store == null) {
+        store = new StoreCounts(storePath, now);
+        stores.put(storePath, store);
+      }
+    }
+    store.lastUsed = now;
+    if (store.isCurrent(now, maxAge)) {
+      return store;
+    }
+    synchronized (store.loadLock) {
+      if (store.isCurrent(now, maxAge)) {
+        return store;
+      }
+      Session session = null;
+      try {
+        session = sparseRepository.loginAdministrative();
+        ContentManager contentManager = session.getContentManager();
+        if (store.needsCount(now, maxAge)) {
+          count(store, contentManager, now);
+        } else {
+          for (Entry<String, Long> e : store.getChanged().entrySet()) {
+            store.refreshed(e.getKey(), contentManager.get(store.path + e.getKey()),
+                e.getValue());
+          }
+        }
+      } catch (StorageClientException e) {
+        countFailed(store, storePath, e);
+      } catch (AccessDeniedException e) {
+        countFailed(store, storePath, e);
+      } finally {
+        logout(session);
+      }
+    }
+    return store;
+  }
+
+  /**
+   * A store that has been counted before keeps its last counts, one that has not cannot be
+   * counted.
+   */
+  private void countFailed(StoreCounts store, String storePath, Exception e) {
+    if (store.isCounted()) {
+      LOGGER.warn("Unable to count messages in {}, using the last counts {} ", storePath,
+          e.getMessage());
+      return;
+    }
+    LOGGER.warn("Unable to count messages in {} {} ", storePath, e.getMessage());
+    throw new MessagingException("Unable to count messages in " + storePath, e);
+  }
+
+  /**
+   * Count a whole store from storage, called holding the store's load lock.
+   */
+  private void count(StoreCounts store, ContentManager contentManager, long now)
+      throws StorageClientException, AccessDeniedException {
+    long seenChanges = store.getChanges();
+    Map<MessageKey, long[]> counts = new HashMap<MessageKey, long[]>();
+    Map<String, MessageKey> keys = new HashMap<String, MessageKey>();
+    load(contentManager, store.path, counts, keys);
+    store.setCounts(counts, keys, seenChanges, now);
+  }
+
+  /**
+   * Read every message in a store.
+   *
+   * @param contentManager
+   * @param storePath
+   *          the path of the store, ending with a slash.
+   * @param counts
+   *          filled with the number of messages under each key.
+   * @param keys
+   *          filled with the key of each message by its path within the store.
+   */
+  void load(ContentManager contentManager, String storePath,
+      Map<MessageKey, long[]> counts, Map<String, MessageKey> keys)
+      throws StorageClientException, AccessDeniedException {
+    String root = storePath.substring(0, storePath.length() - 1);
+    List<String> folders = new ArrayList<String>();
+    folders.add(root);
+    while (!folders.isEmpty()) {
+      Iterator<Content> children = contentManager.listChildren(folders.remove(folders
+          .size() - 1));
+      while (children.hasNext()) {
+        Content child = children.next();
+        MessageKey key = toKey(child);
+        if (key != null) {
+          long[] n = counts.get(key);
+          if (n == null) {
+            n = new long[1];
+            counts.put(key, n);
+          }
+          n[0]++;
+          keys.put(child.getPath().substring(storePath.length()), key);
+        } else {
+          folders.add(child.getPath());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the counts of the kept store the path is in, or null.
+   */
+  private StoreCounts findStore(String path) {
+    synchronized (stores) {
+      for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+        StoreCounts store = stores.get(path.substring(0, i + 1));
+        if (store != null) {
+          return store;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the key for an internal message, or null if the content is not one.
+   */
+  static MessageKey toKey(Content content) {
+    if (!MessageConstants.SAKAI_MESSAGE_RT.equals(content
+        .getProperty(SLING_RESOURCE_TYPE_PROPERTY))
+        || !MessageConstants.TYPE_INTERNAL.equals(content
+            .getProperty(MessageConstants.PROP_SAKAI_TYPE))) {
+      return null;
+    }
+    return new MessageKey(toString(content.getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)),
+        toString(content.getProperty(MessageConstants.PROP_SAKAI_CATEGORY)),
+        toString(content.getProperty(MessageConstants.PROP_SAKAI_READ)));
+  }
+
+  private static String toString(Object value) {
+    return value == null ? null : String.valueOf(value);
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (Exception e) {
+        LOGGER.warn("Failed to logout of administrative session {} ", e.getMessage());
+      }
+    }
+  }
+}
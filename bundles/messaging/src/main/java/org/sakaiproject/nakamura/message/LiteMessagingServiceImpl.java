@@ -49,6 +49,7 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.message.LiteMessageCounter;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingException;
@@ -81,6 +82,9 @@ public class LiteMessagingServiceImpl implements LiteMessagingService {
   @Reference
   protected transient EventAdmin eventAdmin;
 
+  @Reference
+  protected transient LiteMessageCounter messageCounter;
+
   private static final Logger LOGGER = LoggerFactory
       .getLogger(LiteMessagingServiceImpl.class);
 
@@ -148,6 +152,7 @@ public class LiteMessagingServiceImpl implements LiteMessagingService {
         // TODO: perhaps we should check that we have permission to deliver the message, especially if routing is internal:/ 
         ContentManager contentManager = session.getContentManager();
         contentManager.update(msg);
+        messageCounter.update(msg);
         ActivityUtils.postActivity(eventAdmin, session.getUserId(), msg.getPath(), "content", "default", "message", "SENT_MESSAGE", null);
         raisePendingMessageEvent(session, msg);
       } catch (StorageClientException e) {
@@ -181,6 +186,7 @@ public class LiteMessagingServiceImpl implements LiteMessagingService {
     ContentManager contentManager = session.getContentManager();
     contentManager.copy(sourcePath, targetNodePath, true);
     Content msg = contentManager.get(targetNodePath);
+    messageCounter.update(msg);
     raisePendingMessageEvent(session, msg);
   }
 
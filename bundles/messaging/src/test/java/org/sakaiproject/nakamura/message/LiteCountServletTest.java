@@ -18,10 +18,12 @@
 package org.sakaiproject.nakamura.message;
 
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 
@@ -38,19 +40,16 @@ import org.junit.Test;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.message.LiteMessageCounter;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -61,15 +60,18 @@ public class LiteCountServletTest {
   private LiteCountServlet servlet;
   private LiteMessagingService messagingService;
   private SolrSearchServiceFactory searchFactory;
+  private LiteMessageCounter messageCounter;
 
   @Before
   public void setUp() {
     servlet = new LiteCountServlet();
     messagingService = mock(LiteMessagingService.class);
     searchFactory = mock(SolrSearchServiceFactory.class);
+    messageCounter = mock(LiteMessageCounter.class);
 
     servlet.messagingService = messagingService;
     servlet.searchServiceFactory = searchFactory;
+    servlet.messageCounter = messageCounter;
   }
 
   @After
@@ -91,12 +93,6 @@ public class LiteCountServletTest {
     when(request.getRemoteUser()).thenReturn("admin");
     when(request.getRequestParameter("groupedby")).thenReturn(groupParam);
 
-    // Results
-    Map<String, Collection<Object>> props = new HashMap<String, Collection<Object>>();
-    props.put("foo", (Collection<Object>) Lists.newArrayList((Object) "a"));
-    Map<String, Collection<Object>> propsC = new HashMap<String, Collection<Object>>();
-    propsC.put("foo", (Collection<Object>) Lists.newArrayList((Object) "c"));
-
     // Session & search
     ResourceResolver rr = mock(ResourceResolver.class);
     when(request.getResourceResolver()).thenReturn(rr);
@@ -114,20 +110,11 @@ public class LiteCountServletTest {
     when(messagingService.getFullPathToStore("admin", session)).thenReturn(
         "/path/to/store");
 
-    Result r1 = mock(Result.class);
-    when(r1.getPath()).thenReturn("/path/to/msgA");
-    when(r1.getProperties()).thenReturn(props);
-    Result r2 = mock(Result.class);
-    when(r2.getPath()).thenReturn("/path/to/msgB");
-    when(r2.getProperties()).thenReturn(props);
-    Result r3 = mock(Result.class);
-    when(r3.getPath()).thenReturn("/path/to/msgC");
-    when(r3.getProperties()).thenReturn(propsC);
-    Iterator<Result> results = Lists.newArrayList(r1, r2, r3).iterator();
-
-    SolrSearchResultSet resultSet = mock(SolrSearchResultSet.class);
-    when(searchFactory.getSearchResultSet(isA(SlingHttpServletRequest.class), isA(Query.class), anyBoolean())).thenReturn(resultSet);
-    when(resultSet.getResultSetIterator()).thenReturn(results);
+    // grouped by a property the counter does not keep, so counted by a facet.
+    Map<String, Long> groups = ImmutableMap.of("a", 2L, "c", 1L);
+    when(searchFactory.getFacetCounts(isA(SlingHttpServletRequest.class), isA(Query.class),
+        anyBoolean(), eq("foo"))).thenReturn(
+        ImmutableMap.<String, Map<String, Long>> of("foo", groups));
     servlet.doGet(request, response);
 
     write.flush();
@@ -135,9 +122,54 @@ public class LiteCountServletTest {
     JSONObject o = new JSONObject(s);
 
     JSONArray arr = o.getJSONArray("count");
-    assertEquals(1, arr.length());
-    assertEquals("null", arr.getJSONObject(0).getString("group"));
-    assertEquals("3", arr.getJSONObject(0).getString("count"));
+    assertEquals(2, arr.length());
+    assertEquals("a", arr.getJSONObject(0).getString("group"));
+    assertEquals("2", arr.getJSONObject(0).getString("count"));
+    assertEquals("c", arr.getJSONObject(1).getString("group"));
+    assertEquals("1", arr.getJSONObject(1).getString("count"));
+
+  }
+
+  @Test
+  public void testCountedWithoutSearch() throws Exception {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter write = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(write);
+
+    RequestParameter filtersParam = mock(RequestParameter.class);
+    when(filtersParam.getString()).thenReturn("sakai:messagebox,sakai:read");
+    RequestParameter valuesParam = mock(RequestParameter.class);
+    when(valuesParam.getString()).thenReturn("inbox,false");
+    RequestParameter groupParam = mock(RequestParameter.class);
+    when(groupParam.getString()).thenReturn("sakai:category");
+    when(request.getRemoteUser()).thenReturn("zach");
+    when(request.getRequestParameter("filters")).thenReturn(filtersParam);
+    when(request.getRequestParameter("values")).thenReturn(valuesParam);
+    when(request.getRequestParameter("groupedby")).thenReturn(groupParam);
 
+    ResourceResolver rr = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(rr);
+    javax.jcr.Session jcrSession = mock(javax.jcr.Session.class, withSettings().extraInterfaces(SessionAdaptable.class));
+    when(rr.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
+    Session session = mock(Session.class);
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(session);
+    when(messagingService.getFullPathToStore("zach", session)).thenReturn("a:zach/message/");
+
+    Map<String, String> filters = ImmutableMap.of("messagebox", "inbox", "read", "false");
+    when(messageCounter.canCount(ImmutableSet.of("messagebox", "read", "category"))).thenReturn(true);
+    when(messageCounter.countGroupedBy("a:zach/message/", filters, "category")).thenReturn(
+        ImmutableMap.of("message", 4L));
+
+    servlet.doGet(request, response);
+
+    write.flush();
+    JSONObject o = new JSONObject(baos.toString("UTF-8"));
+    JSONArray arr = o.getJSONArray("count");
+    assertEquals(1, arr.length());
+    assertEquals("message", arr.getJSONObject(0).getString("group"));
+    assertEquals(4, arr.getJSONObject(0).getInt("count"));
+    verifyZeroInteractions(searchFactory);
   }
 }
@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessagingException;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class LiteMessageCounterImplTest {
+
+  private static final String STORE = "a:zach/message/";
+
+  private LiteMessageCounterImpl counter;
+  private Repository repository;
+  private ContentManager contentManager;
+  private MockEventAdmin eventAdmin;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = mock(Repository.class);
+    Session session = mock(Session.class);
+    contentManager = mock(ContentManager.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+    counter = new LiteMessageCounterImpl();
+    counter.sparseRepository = repository;
+    eventAdmin = new MockEventAdmin();
+    counter.eventAdmin = eventAdmin;
+
+    Content inbox = new Content("a:zach/message/inbox", null);
+    children("a:zach/message", inbox, message("a:zach/message/outbox/3", "outbox",
+        "message", true));
+    children("a:zach/message/inbox", message("a:zach/message/inbox/1", "inbox", "message",
+        false), message("a:zach/message/inbox/2", "inbox", "invitation", false));
+  }
+
+  private void children(String path, Content... children) throws Exception {
+    final List<Content> list = Lists.newArrayList(children);
+    when(contentManager.listChildren(path)).thenAnswer(new Answer<Iterator<Content>>() {
+      public Iterator<Content> answer(InvocationOnMock invocation) throws Throwable {
+        return list.iterator();
+      }
+    });
+  }
+
+  private Content message(String path, String box, String category, boolean read) {
+    return new Content(path, ImmutableMap.<String, Object> of(
+        JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, MessageConstants.SAKAI_MESSAGE_RT,
+        MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL,
+        MessageConstants.PROP_SAKAI_MESSAGEBOX, box,
+        MessageConstants.PROP_SAKAI_CATEGORY, category,
+        MessageConstants.PROP_SAKAI_READ, read));
+  }
+
+  private Event event(String type, String path) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    return new Event("org/sakaiproject/nakamura/lite/content/" + type, properties);
+  }
+
+  @Test
+  public void testCanCount() {
+    assertTrue(counter.canCount(ImmutableSet.of("messagebox", "read", "category")));
+    assertTrue(counter.canCount(Collections.<String> emptySet()));
+    assertFalse(counter.canCount(ImmutableSet.of("messagebox", "from")));
+  }
+
+  @Test
+  public void testCountsKeptUpToDate() throws Exception {
+    Map<String, String> unreadInbox = ImmutableMap.of("messagebox", "inbox", "read", "false");
+    assertEquals(3, counter.count(STORE, null));
+    assertEquals(2, counter.count(STORE, unreadInbox));
+    assertEquals(ImmutableMap.of("message", 1L, "invitation", 1L),
+        counter.countGroupedBy(STORE, unreadInbox, "category"));
+    // nothing changed, so only counted from storage once
+    verify(contentManager, times(1)).listChildren("a:zach/message");
+
+    // a new message is applied as it is, the one being read is read again
+    counter.update(message("a:zach/message/inbox/4", "inbox", "message", false));
+    when(contentManager.get("a:zach/message/inbox/1")).thenReturn(
+        message("a:zach/message/inbox/1", "inbox", "message", true));
+    counter.handleEvent(event("UPDATED", "a:zach/message/inbox/1"));
+    assertEquals(ImmutableMap.of("message", 1L, "invitation", 1L),
+        counter.countGroupedBy(STORE, unreadInbox, "category"));
+    assertEquals(4, counter.count(STORE, null));
+    verify(contentManager, times(1)).get("a:zach/message/inbox/1");
+
+    // deleting the inbox removes everything in it
+    counter.handleEvent(event("DELETE", "a:zach/message/inbox"));
+    assertEquals(1, counter.count(STORE, null));
+    assertEquals(0, counter.count(STORE, unreadInbox));
+
+    // changes to other stores are ignored
+    counter.handleEvent(event("UPDATED", "a:alice/message/inbox/1"));
+    assertEquals(1, counter.count(STORE, null));
+    verify(contentManager, times(1)).listChildren("a:zach/message");
+  }
+
+  @Test
+  public void testAppliedChangesArePosted() throws Exception {
+    // not counted yet, nothing to apply
+    counter.handleEvent(event("UPDATED", "a:zach/message/inbox/1"));
+    assertTrue(eventAdmin.getEvents().isEmpty());
+
+    counter.count(STORE, null);
+    counter.handleEvent(event("UPDATED", "a:zach/message/inbox/1"));
+    counter.handleEvent(event("UPDATED", "a:alice/message/inbox/1"));
+    counter.handleEvent(event("DELETE", "a:zach/message"));
+    assertEquals(2, eventAdmin.getEvents().size());
+    for (Event posted : eventAdmin.getEvents()) {
+      assertEquals(MessageConstants.COUNTS_CHANGED_EVENT, posted.getTopic());
+      assertEquals(STORE, posted.getProperty("path"));
+    }
+  }
+
+  @Test
+  public void testManyChangesAreCountedAgain() throws Exception {
+    assertEquals(3, counter.count(STORE, null));
+    for (int i = 0; i <= LiteMessageCounterImpl.MAX_CHANGED; i++) {
+      counter.handleEvent(event("ADDED", "a:zach/message/inbox/x" + i));
+    }
+    assertEquals(3, counter.count(STORE, null));
+    verify(contentManager, times(2)).listChildren("a:zach/message");
+  }
+
+  @Test
+  public void testChangeDuringFirstCountIsKept() throws Exception {
+    final Content inbox = new Content("a:zach/message/inbox", null);
+    when(contentManager.listChildren("a:zach/message")).thenAnswer(
+        new Answer<Iterator<Content>>() {
+          public Iterator<Content> answer(InvocationOnMock invocation) throws Throwable {
+            // a message is marked as read while the store is being counted
+            counter.handleEvent(event("UPDATED", "a:zach/message/inbox/1"));
+            return Lists.newArrayList(inbox).iterator();
+          }
+        });
+    assertEquals(2, counter.count(STORE, null));
+
+    when(contentManager.get("a:zach/message/inbox/1")).thenReturn(
+        message("a:zach/message/inbox/1", "inbox", "message", true));
+    assertEquals(1, counter.count(STORE, ImmutableMap.of("read", "false")));
+    verify(contentManager, times(1)).listChildren("a:zach/message");
+  }
+
+  @Test(expected = MessagingException.class)
+  public void testFirstCountFailureIsReported() throws Exception {
+    when(contentManager.listChildren("a:zach/message")).thenThrow(
+        new StorageClientException("down"));
+    counter.count(STORE, null);
+  }
+
+  @Test
+  public void testLaterCountFailureKeepsLastCounts() throws Exception {
+    assertEquals(3, counter.count(STORE, null));
+    counter.handleEvent(event("UPDATED", "a:zach/message/inbox/1"));
+    when(contentManager.get("a:zach/message/inbox/1")).thenThrow(
+        new StorageClientException("down"));
+    assertEquals(3, counter.count(STORE, null));
+  }
+
+  @Test
+  public void testReconcile() throws Exception {
+    assertEquals(3, counter.count(STORE, null));
+    // changed on another server, so there is no event
+    children("a:zach/message", message("a:zach/message/outbox/3", "outbox", "message", true));
+
+    // still in use, so counted again
+    counter.reconcile(System.currentTimeMillis() + 301000L);
+    assertEquals(1, counter.count(STORE, null));
+    verify(contentManager, times(2)).listChildren("a:zach/message");
+
+    // not used for two intervals, so dropped and counted again on the next request
+    counter.reconcile(System.currentTimeMillis() + 601000L);
+    assertEquals(1, counter.count(STORE, null));
+    verify(contentManager, times(3)).listChildren("a:zach/message");
+  }
+}
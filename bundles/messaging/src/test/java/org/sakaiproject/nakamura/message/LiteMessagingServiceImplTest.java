@@ -44,6 +44,7 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.message.LiteMessageCounter;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 
@@ -66,6 +67,8 @@ public class LiteMessagingServiceImplTest {
   private LockManager lockManager;
   @Mock
   private EventAdmin eventAdmin;
+  @Mock
+  private LiteMessageCounter messageCounter;
 
   private String userName = "joe";
   private String groupName = "g-physics-101-viewers";
@@ -80,6 +83,7 @@ public class LiteMessagingServiceImplTest {
     messagingServiceImpl = new LiteMessagingServiceImpl();
     messagingServiceImpl.lockManager = lockManager;
     messagingServiceImpl.eventAdmin = eventAdmin;
+    messagingServiceImpl.messageCounter = messageCounter;
   }
 
   @After
@@ -122,6 +126,7 @@ public class LiteMessagingServiceImplTest {
     assertEquals("foobar", result.getProperty("s"));
     assertEquals(STATE_NOTIFIED, result.getProperty(PROP_SAKAI_SENDSTATE));
     verify(eventAdmin, times(2)).postEvent(Matchers.<Event>any());
+    verify(messageCounter).update(result);
   }
 
   @Test
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.api.presence;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -99,4 +100,14 @@ public interface PresenceService {
   Map<String, String> online(String location);
 
   String[] getCurrentStatus(String uuid);
+
+  /**
+   * Look up the presence of many users at once.
+   * 
+   * @param uuids
+   *          the user ids.
+   * @return a map of userid to current status, as returned by
+   *         {@link #getCurrentStatus(String)}, for those users that are present.
+   */
+  Map<String, String[]> getCurrentStatus(Collection<String> uuids);
 }
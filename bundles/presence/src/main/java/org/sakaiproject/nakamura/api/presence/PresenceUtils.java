@@ -81,4 +81,35 @@ public class PresenceUtils {
     }
   }
 
+  /**
+   * Method to generate the JSON related to the presence of a single user from a status
+   * already looked up with {@link PresenceService#getCurrentStatus(java.util.Collection)}
+   *
+   * @param output
+   *          the writer to output the JSON into
+   * @param userId
+   *          the user to output presence data for
+   * @param currentStatus
+   *          the current status of the user, null if the user is not present
+   * @param partialObject
+   *          if true then only output the keys and values but do not open or close the
+   *          object
+   * @throws JSONException
+   */
+  public static void makePresenceJSON(JSONWriter output, String userId,
+      String[] currentStatus, boolean partialObject) throws JSONException {
+    if (!partialObject) {
+      output.object();
+    }
+    output.key("user");
+    output.value(userId);
+    output.key(PresenceService.PRESENCE_STATUS_PROP);
+    output.value(currentStatus == null ? PresenceStatus.offline.name() : currentStatus[3]);
+    output.key(PresenceService.PRESENCE_LOCATION_PROP);
+    output.value(currentStatus == null ? "none" : currentStatus[2]);
+    if (!partialObject) {
+      output.endObject();
+    }
+  }
+
 }
@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import org.sakaiproject.nakamura.api.presence.PresenceStatus;
+
+import java.io.Serializable;
+
+/**
+ * The presence of one user as held in the replicated status cache. Preset statuses are
+ * held as a code, only custom statuses carry a string.
+ */
+public class PresenceRecord implements Serializable {
+
+  private static final long serialVersionUID = 4937722311528413251L;
+
+  private static final byte CUSTOM = -1;
+  private static final PresenceStatus[] PRESET = PresenceStatus.values();
+
+  private final long lastSeen;
+  private final String location;
+  private final byte statusCode;
+  private final String customStatus;
+
+  PresenceRecord(long lastSeen, String location, String status) {
+    this.lastSeen = lastSeen;
+    this.location = location;
+    byte code = CUSTOM;
+    for (PresenceStatus p : PRESET) {
+      if (p.name().equals(status)) {
+        code = (byte) p.ordinal();
+      }
+    }
+    this.statusCode = code;
+    this.customStatus = code == CUSTOM ? status : null;
+  }
+
+  /**
+   * @return the time in ms the user was last seen.
+   */
+  public long getLastSeen() {
+    return lastSeen;
+  }
+
+  public String getLocation() {
+    return location;
+  }
+
+  public String getStatus() {
+    return statusCode == CUSTOM ? customStatus : PRESET[statusCode].name();
+  }
+
+  boolean sameAs(PresenceRecord other) {
+    return location.equals(other.location) && statusCode == other.statusCode
+        && (customStatus == null ? other.customStatus == null : customStatus
+            .equals(other.customStatus));
+  }
+}
@@ -18,6 +18,9 @@
 package org.sakaiproject.nakamura.presence;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.apache.commons.lang.StringUtils;
@@ -34,9 +37,11 @@ import org.sakaiproject.nakamura.api.presence.PresenceStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Component(immediate = true,label = "Sakai Presence Service", description = "Service for getting info about the presence status and locations of current users", name = "org.sakaiproject.nakamura.api.presence.PresenceService")
@@ -51,15 +56,43 @@ public class PresenceServiceImpl implements PresenceService {
   private static final String LOCATION_CACHE = "presence.location";
   private static final String USER_STATUS_CACHE = "presence.status";
   private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
+  /**
+   * A ping that changes nothing is only replicated once the last replicated ping is this
+   * old.
+   */
+  private static final long REPLICATE_INTERVAL = 20000L;
+  private static final long EXPIRY_TICK = 1000L;
+  private static final String NONE = "none";
   // private static final int USER_ELEMENT = 0;
   private static final int TIMESTAMP_ELEMENT = 1;
   private static final int LOCATION_ELEMENT = 2;
   private static final int STATUS_ELEMENT = 3;
   private static final int STATUS_SIZE = 4;
 
-  private Cache<String> userStatusCache;
+  /**
+   * Values are {@link PresenceRecord}s, anything else (eg a string from an older server
+   * in the cluster) is treated as no presence.
+   */
+  private Cache<Object> userStatusCache;
   private Cache<Map<String, String>> locationCache;
 
+  /**
+   * Locations come from the request, longer ones are cut to this length.
+   */
+  static final int MAX_LOCATION_LENGTH = 255;
+
+  /**
+   * Location names in use on this server, so that records share a single instance of
+   * each. Names no record refers to any more are collected.
+   */
+  private final Interner<String> locations = Interners.newWeakInterner();
+  /**
+   * Users this server has a pending expiry for.
+   */
+  private final Set<String> scheduled = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final TimerWheel expiry = new TimerWheel(EXPIRY_TICK, System.currentTimeMillis());
+
   @Reference
   protected transient CacheManagerService cacheManagerService;
 
@@ -87,7 +120,7 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    update(uuid, null, status, System.currentTimeMillis());
   }
 
   /**
@@ -95,30 +128,14 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#clear(java.lang.String)
    */
   public void clear(String uuid) {
+    long now = System.currentTimeMillis();
+    expire(now);
     // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (userStatusCache != null) {
-        // clear the user from the status cache
-        if (userStatusCache.containsKey(uuid)) {
-          userStatusCache.remove(uuid);
-        }
-      }
-      // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
-          }
-        }
-      }
+    PresenceRecord record = getRecord(uuid, now);
+    if (record != null) {
+      // clear the user from the status cache
+      userStatusCache.remove(uuid);
+      removeFromLocation(uuid, record.getLocation());
     }
   }
 
@@ -128,16 +145,11 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public String getStatus(String uuid) {
     // TODO should the default status really be offline if not set? -AZ
-    String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
+    PresenceRecord record = getRecord(uuid, System.currentTimeMillis());
+    if (record != null) {
+      return record.getStatus();
     }
-    return result;
+    return PresenceStatus.offline.name();
   }
 
   /**
@@ -145,38 +157,36 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#getLocation(java.lang.String)
    */
   public String getLocation(String uuid) {
-    String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
+    PresenceRecord record = getRecord(uuid, System.currentTimeMillis());
+    if (record != null) {
+      return record.getLocation();
     }
-    return location;
+    return NONE;
   }
-  
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.presence.PresenceService#getCurrentStatus(java.lang.String)
+   */
   public String[] getCurrentStatus(String uuid) {
-    String[] result = null;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
-        }
+    return toStatus(uuid, getRecord(uuid, System.currentTimeMillis()));
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.presence.PresenceService#getCurrentStatus(java.util.Collection)
+   */
+  public Map<String, String[]> getCurrentStatus(Collection<String> uuids) {
+    long now = System.currentTimeMillis();
+    expire(now);
+    Map<String, String[]> statuses = Maps.newHashMap();
+    for (String uuid : uuids) {
+      String[] status = toStatus(uuid, getRecord(uuid, now));
+      if (status != null) {
+        statuses.put(uuid, status);
       }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
     }
-    return result;
+    return statuses;
   }
 
   /**
@@ -186,9 +196,12 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.util.List)
    */
   public Map<String, String> online(List<String> connections) {
+    Map<String, String[]> statuses = getCurrentStatus(connections);
     Map<String, String> online = Maps.newHashMap();
     for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
+      String[] status = statuses.get(uuid);
+      online.put(uuid, status == null ? PresenceStatus.offline.name()
+          : status[STATUS_ELEMENT]);
     }
     return online;
   }
@@ -203,11 +216,10 @@ public class PresenceServiceImpl implements PresenceService {
       Map<String, String> locationInstanceCache = locationCache.get(location);
       if (locationInstanceCache != null) {
         Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
+        for (Map.Entry<String, String[]> e : getCurrentStatus(
+            Lists.newArrayList(locationInstanceCache.keySet())).entrySet()) {
+          if (location.equals(e.getValue()[LOCATION_ELEMENT])) {
+            onlineMap.put(e.getKey(), e.getValue()[STATUS_ELEMENT]);
           }
         }
         return onlineMap;
@@ -225,98 +237,160 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void ping(String uuid, String location) {
-    long now = getTimeStamp();
     if (StringUtils.isEmpty(location)) {
-      location = "none";
+      location = NONE;
+    } else if (location.length() > MAX_LOCATION_LENGTH) {
+      location = location.substring(0, MAX_LOCATION_LENGTH);
     }
     if (StringUtils.isEmpty(uuid)) {
-      uuid = "none";
+      uuid = NONE;
     }
-    if (updateLocationCache(uuid, now, location, null)) {
-      // need to update
-      if (!"none".equals(location) && locationCache != null) {
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
-          }
-        }
+    update(uuid, location, null, System.currentTimeMillis());
+  }
 
-        String userKey = getLocationKey(uuid, location);
-        if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
-        }
-      }
+  private String[] toStatus(String uuid, PresenceRecord record) {
+    if (record == null) {
+      return null;
     }
+    String[] status = new String[STATUS_SIZE];
+    status[0] = uuid;
+    status[TIMESTAMP_ELEMENT] = String.valueOf(record.getLastSeen());
+    status[LOCATION_ELEMENT] = record.getLocation();
+    status[STATUS_ELEMENT] = record.getStatus();
+    return status;
   }
 
   /**
-   * @return
+   * @param uuid
+   * @param now
+   * @return the live presence record for the user, or null if there is none.
    */
-  private long getTimeStamp() {
-    long now = System.currentTimeMillis();
-    // make now slow changing, 20s resolution
-    return now / 20000;
+  private PresenceRecord getRecord(String uuid, long now) {
+    if (userStatusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return null;
+    }
+    Object o = userStatusCache.get(uuid);
+    if (o instanceof PresenceRecord) {
+      PresenceRecord record = (PresenceRecord) o;
+      // expiry is driven by the server that wrote the record, if that server has gone
+      // away the record can outlive its ttl.
+      if (record.getLastSeen() + PRESENCE_TTL > now) {
+        return record;
+      }
+    }
+    return null;
   }
 
   /**
-   * Update the users location cache.
+   * Update the users presence record.
    * 
    * @param uuid
    *          the user id
-   * @param now
-   *          the timestamp
    * @param location
    *          the location, null if not provided in this update
    * @param status
    *          the status, null if not provided in this update
-   * @return true if an update was performed.
+   * @param now
+   *          the current time in ms
    */
-  private boolean updateLocationCache(String uuid, long now, String location,
-      String status) {
-    boolean update = false;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
+  private void update(String uuid, String location, String status, long now) {
+    expire(now);
+    if (userStatusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return;
+    }
+    PresenceRecord current = getRecord(uuid, now);
+    String currentLocation = current == null ? NONE : current.getLocation();
+    PresenceRecord next = new PresenceRecord(now, intern(location == null ? currentLocation
+        : location), status != null ? status : current == null ? PresenceStatus.online
+        .name() : current.getStatus());
+    if (current != null && next.sameAs(current)
+        && now - current.getLastSeen() < REPLICATE_INTERVAL) {
+      return;
+    }
+    userStatusCache.put(uuid, next);
+    if (scheduled.add(uuid)) {
+      expiry.schedule(uuid, now + PRESENCE_TTL);
+    }
+    if (!currentLocation.equals(next.getLocation())) {
+      removeFromLocation(uuid, currentLocation);
+    }
+    addToLocation(uuid, next.getLocation());
+  }
 
+  /**
+   * Drop presence records whose ttl has passed since they were last seen. Records that
+   * have been seen since they were scheduled are scheduled again for the remainder of
+   * their ttl.
+   * 
+   * @param now
+   */
+  void expire(long now) {
+    Cache<Object> cache = userStatusCache;
+    for (String uuid : expiry.advance(now)) {
+      scheduled.remove(uuid);
+      if (cache == null) {
+        continue;
       }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
-
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
+      Object o = cache.get(uuid);
+      if (o instanceof PresenceRecord) {
+        PresenceRecord record = (PresenceRecord) o;
+        long deadline = record.getLastSeen() + PRESENCE_TTL;
+        if (deadline > now) {
+          if (scheduled.add(uuid)) {
+            expiry.schedule(uuid, deadline);
           }
+          continue;
         }
+        removeFromLocation(uuid, record.getLocation());
       }
+      if (o != null) {
+        cache.remove(uuid);
+      }
+    }
+  }
 
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
+  private String intern(String location) {
+    return locations.intern(location);
+  }
+
+  private void addToLocation(String uuid, String location) {
+    if (NONE.equals(location) || locationCache == null) {
+      return;
+    }
+    Map<String, String> locationInstanceCache = locationCache.get(location);
+    if (locationInstanceCache == null) {
+      synchronized (locationCache) {
+        locationInstanceCache = locationCache.get(location);
+        if (locationInstanceCache == null) {
+          locationInstanceCache = new ConcurrentHashMap<String, String>();
+          locationCache.put(location, locationInstanceCache);
         }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
+      }
+    }
+    if (!locationInstanceCache.containsKey(uuid)) {
+      locationInstanceCache.put(uuid, getLocationKey(uuid, location));
+      // put the map back so that the change is replicated.
+      locationCache.put(location, locationInstanceCache);
+    }
+  }
+
+  private void removeFromLocation(String uuid, String location) {
+    if (NONE.equals(location) || locationCache == null) {
+      return;
+    }
+    Map<String, String> locationInstanceCache = locationCache.get(location);
+    if (locationInstanceCache != null && locationInstanceCache.remove(uuid) != null) {
+      synchronized (locationCache) {
+        // locations come from the request, don't keep the ones nobody is at.
+        if (locationInstanceCache.isEmpty()) {
+          locationCache.remove(location);
         } else {
-          update = false;
+          locationCache.put(location, locationInstanceCache);
         }
       }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
     }
-    return update;
   }
 
   /**
@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hierarchical timer wheel of keys. Three levels of 64 slots cover 64, 4096 and 262144
+ * ticks, deadlines further out wait in an overflow list. Scheduling is O(1), and advancing
+ * one tick touches one slot plus, every 64 ticks, the entries cascading down from the
+ * level above.
+ */
+class TimerWheel {
+
+  private static final int BITS = 6;
+  private static final int SLOTS = 1 << BITS;
+  private static final int MASK = SLOTS - 1;
+  private static final int LEVELS = 3;
+
+  private static final class Entry {
+    private final String key;
+    private final long tick;
+
+    private Entry(String key, long tick) {
+      this.key = key;
+      this.tick = tick;
+    }
+  }
+
+  private final long tickMs;
+  private final List<Entry>[][] wheel;
+  private final List<Entry> overflow = new ArrayList<Entry>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private volatile long currentTick;
+
+  /**
+   * @param tickMs
+   *          the resolution of the wheel in ms.
+   * @param now
+   *          the current time in ms.
+   */
+  @SuppressWarnings("unchecked")
+  TimerWheel(long tickMs, long now) {
+    this.tickMs = tickMs;
+    this.currentTick = now / tickMs;
+    wheel = new List[LEVELS][SLOTS];
+    for (int l = 0; l < LEVELS; l++) {
+      for (int s = 0; s < SLOTS; s++) {
+        wheel[l][s] = new ArrayList<Entry>();
+      }
+    }
+  }
+
+  /**
+   * @param key
+   * @param deadline
+   *          the time in ms when the key should expire.
+   */
+  void schedule(String key, long deadline) {
+    lock.lock();
+    try {
+      add(new Entry(key, Math.max(deadline / tickMs, currentTick + 1)));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void add(Entry e) {
+    long delta = e.tick - currentTick;
+    for (int l = 0; l < LEVELS; l++) {
+      if (delta < (1L << (BITS * (l + 1)))) {
+        wheel[l][(int) ((e.tick >> (BITS * l)) & MASK)].add(e);
+        return;
+      }
+    }
+    overflow.add(e);
+  }
+
+  /**
+   * Move the wheel on to now. If another thread is already doing that, return straight
+   * away rather than wait.
+   *
+   * @param now
+   *          the current time in ms.
+   * @return the keys whose deadline has passed.
+   */
+  List<String> advance(long now) {
+    long target = now / tickMs;
+    if (target <= currentTick || !lock.tryLock()) {
+      return Collections.emptyList();
+    }
+    try {
+      List<String> expired = new ArrayList<String>();
+      while (currentTick < target) {
+        long tick = ++currentTick;
+        if ((tick & MASK) == 0) {
+          if (((tick >> BITS) & MASK) == 0) {
+            if (((tick >> (2 * BITS)) & MASK) == 0) {
+              cascade(overflow);
+            }
+            cascade(wheel[2][(int) ((tick >> (2 * BITS)) & MASK)]);
+          }
+          cascade(wheel[1][(int) ((tick >> BITS) & MASK)]);
+        }
+        List<Entry> slot = wheel[0][(int) (tick & MASK)];
+        for (Entry e : slot) {
+          expired.add(e.key);
+        }
+        slot.clear();
+      }
+      return expired;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void cascade(List<Entry> slot) {
+    if (slot.isEmpty()) {
+      return;
+    }
+    List<Entry> entries = new ArrayList<Entry>(slot);
+    slot.clear();
+    for (Entry e : entries) {
+      add(e);
+    }
+  }
+}
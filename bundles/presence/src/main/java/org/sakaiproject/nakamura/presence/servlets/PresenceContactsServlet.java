@@ -49,6 +49,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -167,10 +168,11 @@ public class PresenceContactsServlet extends SlingSafeMethodsServlet {
       output.key("contacts");
       UserManager um = AccessControlUtil.getUserManager(session);
       output.array();
+      Map<String, String[]> statuses = presenceService.getCurrentStatus(userIds);
       for (String userId : userIds) {
         output.object();
         // put in the basics
-        PresenceUtils.makePresenceJSON(output, userId, presenceService, true);
+        PresenceUtils.makePresenceJSON(output, userId, statuses.get(userId), true);
         // add in the profile
         Authorizable au = um.getAuthorizable(userId);
         ValueMap map = profileService.getProfileMap(au, session);
@@ -27,6 +27,7 @@ import com.google.common.collect.Lists;
 
 import junit.framework.Assert;
 
+import org.apache.commons.lang.StringUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -168,6 +169,53 @@ public class PresenceServiceImplTest {
     }
   }
   
+  @Test
+  public void testLongLocationIsCut() {
+    String location = StringUtils.repeat("x", PresenceServiceImpl.MAX_LOCATION_LENGTH + 10);
+    presenceService.ping("jack", location);
+    assertEquals(location.substring(0, PresenceServiceImpl.MAX_LOCATION_LENGTH),
+        presenceService.getLocation("jack"));
+  }
+
+  @Test
+  public void testEmptyLocationIsDropped() {
+    presenceService.ping("jack", "locationA");
+    Assert.assertTrue(presenceLocationCache.containsKey("locationA"));
+    presenceService.ping("jack", "locationB");
+    Assert.assertFalse(presenceLocationCache.containsKey("locationA"));
+    Assert.assertEquals(1, presenceService.online("locationB").size());
+  }
+
+  @Test
+  public void testExpiry() {
+    long now = System.currentTimeMillis();
+    presenceService.ping("jack", "locationA");
+    presenceService.setStatus("jack", "busy");
+    Assert.assertTrue(presenceStatusCache.containsKey("jack"));
+    Assert.assertEquals(1, presenceService.online("locationA").size());
+
+    presenceService.expire(now + 60000L);
+    Assert.assertEquals("busy", presenceService.getStatus("jack"));
+
+    presenceService.expire(now + 6L * 60L * 1000L);
+    Assert.assertFalse(presenceStatusCache.containsKey("jack"));
+    Assert.assertEquals(0, presenceService.online("locationA").size());
+    Assert.assertEquals(PresenceStatus.offline.name(), presenceService.getStatus("jack"));
+  }
+
+  @Test
+  public void testBulkStatus() {
+    presenceService.ping("jack", "locationA");
+    presenceService.setStatus("jill", "away");
+    Map<String, String[]> statuses = presenceService.getCurrentStatus(Lists
+        .newArrayList("jack", "jill", "john"));
+    assertEquals(2, statuses.size());
+    assertEquals("online", statuses.get("jack")[3]);
+    assertEquals("locationA", statuses.get("jack")[2]);
+    assertEquals("away", statuses.get("jill")[3]);
+    assertEquals("none", statuses.get("jill")[2]);
+  }
+
   public PresenceService getPresenceService() {
     return this.presenceService;
   }
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ *
+ */
+public class TimerWheelTest {
+
+  @Test
+  public void testExpiresOnTime() {
+    TimerWheel wheel = new TimerWheel(1000L, 0L);
+    wheel.schedule("a", 5000L);
+    wheel.schedule("b", 300000L);
+    wheel.schedule("c", 5000000L);
+    wheel.schedule("d", 400000000L);
+
+    assertTrue(wheel.advance(4999L).isEmpty());
+    assertEquals("a", wheel.advance(5000L).get(0));
+    assertTrue(wheel.advance(299999L).isEmpty());
+    List<String> expired = wheel.advance(300000L);
+    assertEquals(1, expired.size());
+    assertEquals("b", expired.get(0));
+    assertTrue(wheel.advance(4999999L).isEmpty());
+    assertEquals("c", wheel.advance(5000000L).get(0));
+    assertTrue(wheel.advance(399999999L).isEmpty());
+    assertEquals("d", wheel.advance(400000000L).get(0));
+  }
+
+  @Test
+  public void testPastDeadlineExpiresOnNextTick() {
+    TimerWheel wheel = new TimerWheel(1000L, 10000L);
+    wheel.schedule("a", 0L);
+    assertTrue(wheel.advance(10999L).isEmpty());
+    assertEquals("a", wheel.advance(11000L).get(0));
+  }
+
+  @Test
+  public void testAdvanceSkipsManyTicks() {
+    TimerWheel wheel = new TimerWheel(1000L, 0L);
+    for (int i = 1; i <= 1000; i++) {
+      wheel.schedule("k" + i, i * 7000L);
+    }
+    assertEquals(1000, wheel.advance(7000000L).size());
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.ProxyResponseCache.CacheEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A ProxyResponse served from the {@link ProxyResponseCache}, or read into memory so it
+ * could be cached.
+ */
+public class CachedProxyResponse implements ProxyResponse {
+
+  private final ProxyResponseCache cache;
+  private final String key;
+  private final CacheEntry entry;
+
+  /**
+   * @param cache
+   *          the cache holding the entry, null if the entry was not stored.
+   * @param key
+   * @param entry
+   */
+  CachedProxyResponse(ProxyResponseCache cache, String key, CacheEntry entry) {
+    this.cache = cache;
+    this.key = key;
+    this.entry = entry;
+  }
+
+  public int getResultCode() {
+    return 200;
+  }
+
+  public Map<String, String[]> getResponseHeaders() {
+    return entry.getHeaders();
+  }
+
+  public byte[] getResponseBody() throws IOException {
+    return entry.getBody();
+  }
+
+  public InputStream getResponseBodyAsInputStream() throws IOException {
+    return new ByteArrayInputStream(entry.getBody());
+  }
+
+  public String getResponseBodyAsString() throws IOException {
+    String charset = "ISO-8859-1";
+    String contentType = ProxyResponseCache.getHeader(entry.getHeaders(), "Content-Type");
+    if (contentType != null) {
+      int i = contentType.toLowerCase().indexOf("charset=");
+      if (i >= 0) {
+        charset = contentType.substring(i + 8).split(";")[0].replace("\"", "").trim();
+      }
+    }
+    return new String(entry.getBody(), charset);
+  }
+
+  public void close() {
+  }
+
+  /**
+   * @return true if the response is held in the cache, and post processor output can be
+   *         kept with it.
+   */
+  public boolean isCached() {
+    return cache != null;
+  }
+
+  /**
+   * @param postProcessor
+   * @return the output of the named post processor for this response, or null.
+   */
+  public ProcessedOutput getProcessed(String postProcessor) {
+    return entry.getProcessed(postProcessor);
+  }
+
+  public void setProcessed(String postProcessor, ProcessedOutput output) {
+    if (cache != null) {
+      cache.addProcessed(key, entry, postProcessor, output);
+    }
+  }
+}
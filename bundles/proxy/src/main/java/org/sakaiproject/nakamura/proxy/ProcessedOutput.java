@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * What a post processor sent to the client for a cached remote response, replayed for
+ * later requests of the same feed.
+ */
+public class ProcessedOutput {
+
+  private final int status;
+  private final String contentType;
+  private final String characterEncoding;
+  private final Map<String, List<String>> headers;
+  private final byte[] body;
+
+  ProcessedOutput(int status, String contentType, String characterEncoding,
+      Map<String, List<String>> headers, byte[] body) {
+    this.status = status;
+    this.contentType = contentType;
+    this.characterEncoding = characterEncoding;
+    this.headers = headers;
+    this.body = body;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  public void replay(SlingHttpServletResponse response) throws IOException {
+    response.setStatus(status);
+    if (contentType != null) {
+      response.setContentType(contentType);
+    }
+    if (characterEncoding != null) {
+      response.setCharacterEncoding(characterEncoding);
+    }
+    for (Entry<String, List<String>> h : headers.entrySet()) {
+      boolean first = true;
+      for (String v : h.getValue()) {
+        if (first) {
+          response.setHeader(h.getKey(), v);
+          first = false;
+        } else {
+          response.addHeader(h.getKey(), v);
+        }
+      }
+    }
+    response.getOutputStream().write(body);
+  }
+}
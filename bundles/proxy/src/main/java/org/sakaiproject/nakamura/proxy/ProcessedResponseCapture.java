@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.util.DateUtil;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+
+/**
+ * Buffers everything a post processor sends so it can be kept as a
+ * {@link ProcessedOutput}. Errors are sent straight to the client and are not kept.
+ */
+public class ProcessedResponseCapture extends SlingHttpServletResponseWrapper {
+
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+  private int status = SC_OK;
+  private String contentType;
+  private String characterEncoding;
+  private boolean error;
+  private ServletOutputStream outputStream;
+  private PrintWriter writer;
+
+  public ProcessedResponseCapture(SlingHttpServletResponse response) {
+    super(response);
+  }
+
+  /**
+   * @return what was sent, or null if the post processor sent an error.
+   */
+  public ProcessedOutput getOutput() {
+    if (error) {
+      return null;
+    }
+    if (writer != null) {
+      writer.flush();
+    }
+    return new ProcessedOutput(status, contentType, characterEncoding, headers,
+        buffer.toByteArray());
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() {
+    if (outputStream == null) {
+      outputStream = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          buffer.write(b, off, len);
+        }
+      };
+    }
+    return outputStream;
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (writer == null) {
+      writer = new PrintWriter(new OutputStreamWriter(getOutputStream(),
+          getCharacterEncoding()));
+    }
+    return writer;
+  }
+
+  @Override
+  public void sendError(int sc) throws IOException {
+    error = true;
+    super.sendError(sc);
+  }
+
+  @Override
+  public void sendError(int sc, String msg) throws IOException {
+    error = true;
+    super.sendError(sc, msg);
+  }
+
+  @Override
+  public void setStatus(int sc) {
+    status = sc;
+  }
+
+  @Override
+  public void setContentType(String type) {
+    contentType = type;
+  }
+
+  @Override
+  public String getContentType() {
+    return contentType;
+  }
+
+  @Override
+  public void setCharacterEncoding(String charset) {
+    characterEncoding = charset;
+  }
+
+  @Override
+  public String getCharacterEncoding() {
+    return characterEncoding == null ? "ISO-8859-1" : characterEncoding;
+  }
+
+  @Override
+  public void setContentLength(int len) {
+    setHeader("Content-Length", Integer.toString(len));
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    List<String> values = new ArrayList<String>();
+    values.add(value);
+    headers.put(name, values);
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    List<String> values = headers.get(name);
+    if (values == null) {
+      setHeader(name, value);
+    } else {
+      values.add(value);
+    }
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+    setHeader(name, Integer.toString(value));
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
+    addHeader(name, Integer.toString(value));
+  }
+
+  @Override
+  public void setDateHeader(String name, long date) {
+    setHeader(name, DateUtil.formatDate(new Date(date)));
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+    addHeader(name, DateUtil.formatDate(new Date(date)));
+  }
+
+  @Override
+  public boolean containsHeader(String name) {
+    return headers.containsKey(name);
+  }
+}
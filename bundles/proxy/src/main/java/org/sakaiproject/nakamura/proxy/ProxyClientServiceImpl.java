@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.proxy;
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpMethod;
@@ -45,6 +46,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -57,7 +59,9 @@ import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyMethod;
 import org.sakaiproject.nakamura.api.proxy.ProxyNodeSource;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
+import org.sakaiproject.nakamura.api.proxy.ProxyPreProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.ProxyResponseCache.CacheEntry;
 import org.sakaiproject.nakamura.proxy.velocity.JcrResourceLoader;
 import org.sakaiproject.nakamura.proxy.velocity.VelocityLogger;
 import org.sakaiproject.nakamura.util.JcrUtils;
@@ -70,6 +74,7 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -80,17 +85,20 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  *
  */
 @Service
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSource {
 
   /**
@@ -116,6 +124,105 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "iCal", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  /**
+   * The maximum number of pooled connections to any one host.
+   */
+  @Property(intValue = 20)
+  static final String MAX_CONNECTIONS_PER_HOST = "proxy.maxConnectionsPerHost";
+
+  /**
+   * Per host overrides of proxy.maxConnectionsPerHost, formatted as scheme://host[:port]=n
+   */
+  @Property(value = {})
+  static final String HOST_CONNECTIONS = "proxy.hostConnections";
+
+  /**
+   * The maximum number of pooled connections over all hosts.
+   */
+  @Property(intValue = 200)
+  static final String MAX_TOTAL_CONNECTIONS = "proxy.maxTotalConnections";
+
+  /**
+   * Time (ms) to wait for a connection to be established.
+   */
+  @Property(intValue = 10000)
+  static final String CONNECTION_TIMEOUT = "proxy.connectionTimeout";
+
+  /**
+   * Time (ms) to wait for data from the remote end.
+   */
+  @Property(intValue = 30000)
+  static final String READ_TIMEOUT = "proxy.readTimeout";
+
+  /**
+   * Time (ms) to wait for a free connection from the pool.
+   */
+  @Property(longValue = 10000)
+  static final String POOL_TIMEOUT = "proxy.poolTimeout";
+
+  /**
+   * Consecutive failures (IO errors or 5xx responses) after which an endpoint is no
+   * longer called, 0 disables circuit breaking.
+   */
+  @Property(intValue = 5)
+  static final String CIRCUIT_FAILURES = "proxy.circuit.failures";
+
+  /**
+   * Time (ms) an endpoint is left alone before it is tried again.
+   */
+  @Property(longValue = 30000)
+  static final String CIRCUIT_OPEN_TIME = "proxy.circuit.openTime";
+
+  /**
+   * The most endpoints statistics and circuits are kept for, least recently used are
+   * discarded first.
+   */
+  @Property(intValue = 1000)
+  static final String MAX_ENDPOINTS = "proxy.endpoints.max";
+
+  /**
+   * Bytes of remote responses and post processor output held in the shared response
+   * cache, 0 disables the cache.
+   */
+  @Property(intValue = 20971520)
+  static final String CACHE_MAX_BYTES = "proxy.cache.maxBytes";
+
+  /**
+   * The largest remote response that will be cached.
+   */
+  @Property(intValue = 1048576)
+  static final String CACHE_MAX_ENTRY_BYTES = "proxy.cache.maxEntryBytes";
+
+  /**
+   * Time (ms) a cached response is fresh for if it has no Cache-Control or Expires.
+   */
+  @Property(longValue = 300000)
+  static final String CACHE_DEFAULT_TTL = "proxy.cache.defaultTtl";
+
+  /**
+   * GET requests of templates using these post processors are answered from the shared
+   * cache. Their output must depend on the remote response only.
+   */
+  @Property(value = { "rss", "iCal" })
+  static final String CACHE_POSTPROCESSORS = "proxy.cache.postprocessors";
+
+  /**
+   * The request headers passed on, and made part of the cache key, for cached requests.
+   * Other headers are specific to a user and are not sent.
+   */
+  @Property(value = { "Accept", "Accept-Language" })
+  static final String CACHE_HEADERS = "proxy.cache.headers";
+
+  /**
+   * Templates using these pre processors can still be cached. They must only set headers
+   * that are the same for every user, the servlet has run them before the cache key is
+   * made.
+   */
+  @Property(value = { "rss" })
+  static final String CACHE_PREPROCESSORS = "proxy.cache.preprocessors";
+
+  private static final String MBEAN_NAME = "org.sakaiproject.nakamura.proxy:type=ProxyEndpoints";
+
   /**
    * The shared velocity engine, which should cache all the templates. (need to sort out
    * how to invalidate).
@@ -150,6 +257,47 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   private boolean externalAuthenticatingProxy;
 
+  private ProxyEndpointStats endpointStats;
+
+  /**
+   * Remote responses shared between users, null if caching is disabled.
+   */
+  private ProxyResponseCache responseCache;
+
+  private long maxCachedEntryBytes;
+
+  private Set<String> cachedPostProcessors = new HashSet<String>();
+
+  private Set<String> cachedHeaders = new HashSet<String>();
+
+  private Set<String> cachedPreProcessors = new HashSet<String>();
+
+  /**
+   * A request built from a proxy node, ready to be sent.
+   */
+  private static class PreparedCall {
+    final String endpoint;
+    final HttpMethod method;
+    /**
+     * A HEAD request made first to check the size of the response, or null.
+     */
+    final HttpMethod sizeCheck;
+    final long maxSize;
+    /**
+     * The key of the response in the shared cache, null if the response is not shared.
+     */
+    final String cacheKey;
+
+    PreparedCall(String endpoint, HttpMethod method, HttpMethod sizeCheck, long maxSize,
+        String cacheKey) {
+      this.endpoint = endpoint;
+      this.method = method;
+      this.sizeCheck = sizeCheck;
+      this.maxSize = maxSize;
+      this.cacheKey = cacheKey;
+    }
+  }
+
   /**
    * Create resources used by this component.
    *
@@ -192,10 +340,62 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
     httpClientConnectionManager = new MultiThreadedHttpConnectionManager();
     HttpConnectionManagerParams params = new HttpConnectionManagerParams();
-    // could set a whole load of connection properties
+    params.setDefaultMaxConnectionsPerHost(PropertiesUtil.toInteger(
+        configProperties.get(MAX_CONNECTIONS_PER_HOST), 20));
+    params.setMaxTotalConnections(PropertiesUtil.toInteger(
+        configProperties.get(MAX_TOTAL_CONNECTIONS), 200));
+    for (String hostConnections : PropertiesUtil.toStringArray(
+        configProperties.get(HOST_CONNECTIONS), new String[0])) {
+      int i = hostConnections.lastIndexOf('=');
+      try {
+        URL u = new URL(hostConnections.substring(0, i).trim());
+        HostConfiguration host = new HostConfiguration();
+        host.setHost(u.getHost(), u.getPort(), u.getProtocol());
+        params.setMaxConnectionsPerHost(host,
+            Integer.parseInt(hostConnections.substring(i + 1).trim()));
+      } catch (Exception e) {
+        logger.warn("Ignoring invalid {} entry {} ", HOST_CONNECTIONS, hostConnections);
+      }
+    }
+    params.setConnectionTimeout(PropertiesUtil.toInteger(
+        configProperties.get(CONNECTION_TIMEOUT), 10000));
+    params.setSoTimeout(PropertiesUtil.toInteger(configProperties.get(READ_TIMEOUT),
+        30000));
     httpClientConnectionManager.setParams(params);
 
     httpClient = new HttpClient(httpClientConnectionManager);
+    httpClient.getParams().setConnectionManagerTimeout(
+        PropertiesUtil.toLong(configProperties.get(POOL_TIMEOUT), 10000));
+
+    endpointStats = new ProxyEndpointStats(PropertiesUtil.toInteger(
+        configProperties.get(CIRCUIT_FAILURES), 5), PropertiesUtil.toLong(
+        configProperties.get(CIRCUIT_OPEN_TIME), 30000), PropertiesUtil.toInteger(
+        configProperties.get(MAX_ENDPOINTS), 1000));
+    registerStats();
+
+    long cacheBytes = PropertiesUtil.toLong(configProperties.get(CACHE_MAX_BYTES), 20971520);
+    responseCache = null;
+    if (cacheBytes > 0) {
+      responseCache = new ProxyResponseCache(cacheBytes, PropertiesUtil.toLong(
+          configProperties.get(CACHE_DEFAULT_TTL), 300000));
+    }
+    maxCachedEntryBytes = PropertiesUtil.toLong(
+        configProperties.get(CACHE_MAX_ENTRY_BYTES), 1048576);
+    cachedPostProcessors.clear();
+    for (String pp : PropertiesUtil.toStringArray(
+        configProperties.get(CACHE_POSTPROCESSORS), new String[] { "rss", "iCal" })) {
+      cachedPostProcessors.add(pp);
+    }
+    cachedPreProcessors.clear();
+    for (String pp : PropertiesUtil.toStringArray(
+        configProperties.get(CACHE_PREPROCESSORS), new String[] { "rss" })) {
+      cachedPreProcessors.add(pp);
+    }
+    cachedHeaders.clear();
+    for (String header : PropertiesUtil.toStringArray(
+        configProperties.get(CACHE_HEADERS), new String[] { "Accept", "Accept-Language" })) {
+      cachedHeaders.add(header.toLowerCase());
+    }
 
     // allow communications via a proxy server if command line
     // java parameters http.proxyHost,http.proxyPort,http.proxyUser,
@@ -227,6 +427,28 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
     httpClientConnectionManager.shutdown();
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+    } catch (Exception e) {
+      logger.debug(e.getMessage(), e);
+    }
+  }
+
+  private void registerStats() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(endpointStats, objectName);
+    } catch (Exception e) {
+      logger.warn("Unable to register proxy endpoint statistics {} ", e.getMessage());
+    }
+  }
+
+  ProxyEndpointStats getEndpointStats() {
+    return endpointStats;
   }
 
   /**
@@ -270,6 +492,17 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   public ProxyResponse executeCall(Node node, Map<String, String> headers,
       Map<String, Object> input, InputStream requestInputStream,
       long requestContentLength, String requestContentType) throws ProxyClientException {
+    return execute(prepareCall(node, headers, input, requestInputStream,
+        requestContentLength, requestContentType));
+  }
+
+  /**
+   * Builds the request from the node specification, everything that needs the node or
+   * the request parameters is done here, so {@link #execute(PreparedCall)} only does HTTP.
+   */
+  private PreparedCall prepareCall(Node node, Map<String, String> headers,
+      Map<String, Object> input, InputStream requestInputStream,
+      long requestContentLength, String requestContentType) throws ProxyClientException {
     try {
       bindNode(node);
 
@@ -277,7 +510,12 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         // setup the post request
         String endpointURL = JcrUtils.getMultiValueString(node
             .getProperty(SAKAI_REQUEST_PROXY_ENDPOINT));
-        if ( isUnsafeProxyDefinition(node)) {
+        String postProcessorName = null;
+        if (node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)) {
+          postProcessorName = node.getProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)
+              .getString();
+        }
+        if ( isUnsafeProxyDefinition(postProcessorName)) {
           try {
             URL u = new URL(endpointURL);
             String host = u.getHost();
@@ -335,38 +573,27 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           + " failed, cause follows:", e);
           }
         }
+        String cacheKey = null;
+        if (requestInputStream == null
+            && isShared(node, postProcessorName, proxyMethod, headers)) {
+          headers = sharedHeaders(headers);
+          cacheKey = endpointURL + " " + headers;
+        }
+
         HttpMethod method = null;
+        HttpMethod sizeCheck = null;
+        long maxSize = -1;
         switch (proxyMethod) {
         case GET:
           if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
-            long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
-            method = new HeadMethod(endpointURL);
-            HttpMethodParams params = new HttpMethodParams(method.getParams());
+            maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+            sizeCheck = new HeadMethod(endpointURL);
+            HttpMethodParams params = new HttpMethodParams(sizeCheck.getParams());
             // make certain we reject the body of a head
             params.setBooleanParameter("http.protocol.reject-head-body", true);
-            method.setParams(params);
-            method.setFollowRedirects(true);
-            populateMethod(method, node, headers);
-            int result = httpClient.executeMethod(method);
-            if (externalAuthenticatingProxy && result == 407) {
-              method.releaseConnection();
-              method.setDoAuthentication(true);
-              result = httpClient.executeMethod(method);
-            }
-            if (result == 200) {
-              // Check if the content-length is smaller than the maximum (if any).
-              Header contentLengthHeader = method.getResponseHeader("Content-Length");
-              if (contentLengthHeader != null) {
-                long length = Long.parseLong(contentLengthHeader.getValue());
-                if (length > maxSize) {
-                  return new ProxyResponseImpl(
-                      HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
-                      method);
-                }
-              }
-            } else {
-              return new ProxyResponseImpl(result, method);
-            }
+            sizeCheck.setParams(params);
+            sizeCheck.setFollowRedirects(true);
+            populateMethod(sizeCheck, node, headers);
           }
           method = new GetMethod(endpointURL);
           // redirects work automatically for get, options and head, but not for put and
@@ -459,48 +686,233 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
 
-        int result = httpClient.executeMethod(method);
+        return new PreparedCall(endpointKey(endpointURL), method, sizeCheck, maxSize,
+            cacheKey);
+      }
+
+    } catch ( ProxyClientException e ) {
+      throw e;
+    } catch (Exception e) {
+      throw new ProxyClientException("The Proxy request specified by  " + node
+          + " failed, cause follows:", e);
+    } finally {
+      unbindNode();
+    }
+    throw new ProxyClientException("The Proxy request specified by " + node
+        + " does not contain a valid endpoint specification ");
+  }
+
+  /**
+   * Sends a prepared request, this only talks to the remote endpoint and may run on a
+   * worker thread.
+   */
+  private ProxyResponse execute(PreparedCall call) throws ProxyClientException {
+    try {
+      CacheEntry cached = null;
+      if (call.cacheKey != null) {
+        cached = responseCache.get(call.cacheKey);
+        if (cached != null) {
+          if (cached.isFresh(System.currentTimeMillis())) {
+            return new CachedProxyResponse(responseCache, call.cacheKey, cached);
+          }
+          // revalidate, the size was checked when the entry was stored.
+          if (cached.getETag() != null) {
+            call.method.setRequestHeader("If-None-Match", cached.getETag());
+          }
+          if (cached.getLastModified() != null) {
+            call.method.setRequestHeader("If-Modified-Since", cached.getLastModified());
+          }
+        }
+      }
+
+      if (call.sizeCheck != null && cached == null) {
+        HttpMethod method = call.sizeCheck;
+        int result = executeMethod(call.endpoint, method);
         if (externalAuthenticatingProxy && result == 407) {
           method.releaseConnection();
           method.setDoAuthentication(true);
-          result = httpClient.executeMethod(method);
+          result = executeMethod(call.endpoint, method);
         }
-        if (result == 302 && method instanceof EntityEnclosingMethod) {
-          // handle redirects on post and put
-          String url = method.getResponseHeader("Location").getValue();
-          method = new GetMethod(url);
-          method.setFollowRedirects(true);
-          method.setDoAuthentication(false);
-          result = httpClient.executeMethod(method);
-          if (externalAuthenticatingProxy && result == 407) {
-            method.releaseConnection();
-            method.setDoAuthentication(true);
-            result = httpClient.executeMethod(method);
+        if (result == 200) {
+          // Check if the content-length is smaller than the maximum (if any).
+          Header contentLengthHeader = method.getResponseHeader("Content-Length");
+          if (contentLengthHeader != null) {
+            long length = Long.parseLong(contentLengthHeader.getValue());
+            if (length > call.maxSize) {
+              return new ProxyResponseImpl(
+                  HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
+                  method);
+            }
           }
+          method.releaseConnection();
+        } else {
+          return new ProxyResponseImpl(result, method);
         }
+      }
 
-        return new ProxyResponseImpl(result, method);
+      HttpMethod method = call.method;
+      int result = executeMethod(call.endpoint, method);
+      if (externalAuthenticatingProxy && result == 407) {
+        method.releaseConnection();
+        method.setDoAuthentication(true);
+        result = executeMethod(call.endpoint, method);
+      }
+      if (result == 302 && method instanceof EntityEnclosingMethod) {
+        // handle redirects on post and put
+        String url = method.getResponseHeader("Location").getValue();
+        method.releaseConnection();
+        method = new GetMethod(url);
+        method.setFollowRedirects(true);
+        method.setDoAuthentication(false);
+        String endpoint = endpointKey(url);
+        result = executeMethod(endpoint, method);
+        if (externalAuthenticatingProxy && result == 407) {
+          method.releaseConnection();
+          method.setDoAuthentication(true);
+          result = executeMethod(endpoint, method);
+        }
       }
 
+      if (call.cacheKey != null) {
+        if (result == 304 && cached != null) {
+          Map<String, String[]> headers = new ProxyResponseImpl(result, method)
+              .getResponseHeaders();
+          method.releaseConnection();
+          return new CachedProxyResponse(responseCache, call.cacheKey,
+              responseCache.revalidated(cached, headers, System.currentTimeMillis()));
+        } else if (result == 200) {
+          return cacheResponse(call.cacheKey, method);
+        }
+      }
+      return new ProxyResponseImpl(result, method);
     } catch ( ProxyClientException e ) {
       throw e;
     } catch (Exception e) {
-      throw new ProxyClientException("The Proxy request specified by  " + node
+      throw new ProxyClientException("The Proxy request to " + call.endpoint
           + " failed, cause follows:", e);
+    }
+  }
+
+  /**
+   * Reads a 200 response for a shared request into memory and stores it, unless it is too
+   * large or its headers forbid it.
+   */
+  private ProxyResponse cacheResponse(String cacheKey, HttpMethod method) throws IOException {
+    ProxyResponseImpl response = new ProxyResponseImpl(200, method);
+    Header contentLength = method.getResponseHeader("Content-Length");
+    if (contentLength != null && Long.parseLong(contentLength.getValue()) > maxCachedEntryBytes) {
+      return response;
+    }
+    byte[] body;
+    try {
+      body = method.getResponseBody();
     } finally {
-      unbindNode();
+      method.releaseConnection();
     }
-    throw new ProxyClientException("The Proxy request specified by " + node
-        + " does not contain a valid endpoint specification ");
+    if (body == null) {
+      body = new byte[0];
+    }
+    CacheEntry entry = null;
+    if (body.length <= maxCachedEntryBytes) {
+      entry = responseCache.put(cacheKey, body, response.getResponseHeaders(),
+          System.currentTimeMillis());
+    }
+    if (entry == null) {
+      return new CachedProxyResponse(null, cacheKey, new CacheEntry(body,
+          response.getResponseHeaders(), 0));
+    }
+    return new CachedProxyResponse(responseCache, cacheKey, entry);
+  }
+
+  ProxyResponseCache getResponseCache() {
+    return responseCache;
   }
 
-  private boolean isUnsafeProxyDefinition(Node node) throws RepositoryException {
-    if (node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)) {
-      String postProcessorName = node.getProperty(
-          ProxyPostProcessor.SAKAI_POSTPROCESSOR).getString();
-      return !safeOpenProcessors.contains(postProcessorName);
+  /**
+   * Executes the method unless the circuit of the endpoint is open, recording the time
+   * taken and whether the endpoint failed. Server errors count as failures.
+   */
+  private int executeMethod(String endpoint, HttpMethod method) throws IOException,
+      ProxyClientException {
+    long start = System.currentTimeMillis();
+    if (!endpointStats.allow(endpoint, start)) {
+      throw new ProxyClientException("The endpoint " + endpoint
+          + " is not being called after repeated failures");
+    }
+    boolean recorded = false;
+    try {
+      int result = httpClient.executeMethod(method);
+      long now = System.currentTimeMillis();
+      if (result >= 500) {
+        endpointStats.failure(endpoint, now - start, now);
+      } else {
+        endpointStats.success(endpoint, now - start);
+      }
+      recorded = true;
+      return result;
+    } catch (IOException e) {
+      long now = System.currentTimeMillis();
+      endpointStats.failure(endpoint, now - start, now);
+      recorded = true;
+      throw e;
+    } finally {
+      if (!recorded) {
+        endpointStats.abandon(endpoint);
+      }
+    }
+  }
+
+  /**
+   * @param url
+   * @return scheme://host:port of the url, the key used for statistics and circuit
+   *         breaking.
+   */
+  static String endpointKey(String url) {
+    try {
+      URL u = new URL(url);
+      int port = u.getPort() == -1 ? u.getDefaultPort() : u.getPort();
+      return u.getProtocol() + "://" + u.getHost() + ":" + port;
+    } catch (MalformedURLException e) {
+      return url;
+    }
+  }
+
+  private boolean isUnsafeProxyDefinition(String postProcessorName) {
+    return postProcessorName == null || !safeOpenProcessors.contains(postProcessorName);
+  }
+
+  /**
+   * A response can be shared between users if it is fetched with GET for a post processor
+   * that only looks at the response, and nothing about the user is added to the request,
+   * either by the caller or by a pre processor.
+   */
+  private boolean isShared(Node node, String postProcessorName, ProxyMethod proxyMethod,
+      Map<String, String> headers) throws RepositoryException {
+    if (responseCache == null || proxyMethod != ProxyMethod.GET
+        || !cachedPostProcessors.contains(postProcessorName)) {
+      return false;
+    }
+    for (String name : headers.keySet()) {
+      if ("authorization".equalsIgnoreCase(name)) {
+        return false;
+      }
+    }
+    return !node.hasProperty(ProxyPreProcessor.SAKAI_PREPROCESSOR)
+        || cachedPreProcessors.contains(node.getProperty(
+            ProxyPreProcessor.SAKAI_PREPROCESSOR).getString());
+  }
+
+  /**
+   * @return the headers that may be sent with a shared request, sorted by name.
+   */
+  private Map<String, String> sharedHeaders(Map<String, String> headers) {
+    Map<String, String> shared = new TreeMap<String, String>();
+    for (Entry<String, String> header : headers.entrySet()) {
+      if (cachedHeaders.contains(header.getKey().toLowerCase())) {
+        shared.put(header.getKey(), header.getValue());
+      }
     }
-    return true;
+    return shared;
   }
 
   private String processUrlTemplate(String endpointURL, VelocityContext context) throws ParseErrorException, MethodInvocationException, ResourceNotFoundException, IOException {
@@ -0,0 +1,229 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and error counters per remote endpoint (scheme://host:port), and a circuit
+ * breaker per endpoint. After failureThreshold consecutive failures the circuit opens and
+ * calls are refused for openTime ms, after which a single trial call is let through. If
+ * the trial succeeds the circuit closes, otherwise it stays open for another openTime.
+ * Endpoint urls can come from the request, so only the maxEndpoints most recently used
+ * endpoints are kept.
+ */
+public class ProxyEndpointStats implements ProxyEndpointStatsMBean {
+
+  private static class Endpoint {
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong totalTime = new AtomicLong();
+    final AtomicLong maxTime = new AtomicLong();
+    int consecutiveFailures;
+    long openUntil;
+    boolean trial;
+  }
+
+  private final Map<String, Endpoint> endpoints;
+  private final int failureThreshold;
+  private final long openTime;
+
+  /**
+   * @param failureThreshold
+   *          consecutive failures that open the circuit, 0 or less never opens it.
+   * @param openTime
+   *          ms the circuit stays open before a trial call is allowed.
+   * @param maxEndpoints
+   *          the most endpoints kept, least recently used are discarded first.
+   */
+  public ProxyEndpointStats(int failureThreshold, long openTime, final int maxEndpoints) {
+    this.failureThreshold = failureThreshold;
+    this.openTime = openTime;
+    this.endpoints = new LinkedHashMap<String, Endpoint>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Endpoint> eldest) {
+        return size() > maxEndpoints;
+      }
+    };
+  }
+
+  /**
+   * @param endpoint
+   * @param now
+   * @return true if a call to the endpoint may go ahead, false if the circuit is open.
+   */
+  public boolean allow(String endpoint, long now) {
+    Endpoint e = getEndpoint(endpoint);
+    synchronized (e) {
+      if (e.openUntil == 0) {
+        return true;
+      }
+      if (now >= e.openUntil && !e.trial) {
+        e.trial = true;
+        return true;
+      }
+    }
+    e.rejected.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Ends a call that was allowed but neither succeeded nor failed, so that a trial call
+   * that ended that way does not leave the circuit open for good.
+   *
+   * @param endpoint
+   */
+  public void abandon(String endpoint) {
+    Endpoint e = getEndpoint(endpoint);
+    synchronized (e) {
+      e.trial = false;
+    }
+  }
+
+  public void success(String endpoint, long time) {
+    Endpoint e = record(endpoint, time);
+    synchronized (e) {
+      e.consecutiveFailures = 0;
+      e.openUntil = 0;
+      e.trial = false;
+    }
+  }
+
+  public void failure(String endpoint, long time, long now) {
+    Endpoint e = record(endpoint, time);
+    e.errors.incrementAndGet();
+    synchronized (e) {
+      e.consecutiveFailures++;
+      if (e.trial
+          || (failureThreshold > 0 && e.consecutiveFailures >= failureThreshold)) {
+        e.openUntil = now + openTime;
+        e.trial = false;
+      }
+    }
+  }
+
+  private Endpoint record(String endpoint, long time) {
+    Endpoint e = getEndpoint(endpoint);
+    e.calls.incrementAndGet();
+    e.totalTime.addAndGet(time);
+    long max = e.maxTime.get();
+    while (time > max && !e.maxTime.compareAndSet(max, time)) {
+      max = e.maxTime.get();
+    }
+    return e;
+  }
+
+  private Endpoint getEndpoint(String endpoint) {
+    synchronized (endpoints) {
+      Endpoint e = endpoints.get(endpoint);
+      if (e == null) {
+        e = new Endpoint();
+        endpoints.put(endpoint, e);
+      }
+      return e;
+    }
+  }
+
+  /**
+   * @return a copy of the endpoints, so they can be read without holding the lock.
+   */
+  private List<Entry<String, Endpoint>> getEndpoints() {
+    synchronized (endpoints) {
+      return new ArrayList<Entry<String, Endpoint>>(endpoints.entrySet());
+    }
+  }
+
+  public long getCalls() {
+    long n = 0;
+    for (Entry<String, Endpoint> e : getEndpoints()) {
+      n += e.getValue().calls.get();
+    }
+    return n;
+  }
+
+  public long getErrors() {
+    long n = 0;
+    for (Entry<String, Endpoint> e : getEndpoints()) {
+      n += e.getValue().errors.get();
+    }
+    return n;
+  }
+
+  public long getRejected() {
+    long n = 0;
+    for (Entry<String, Endpoint> e : getEndpoints()) {
+      n += e.getValue().rejected.get();
+    }
+    return n;
+  }
+
+  public String[] getOpenEndpoints() {
+    List<String> open = new ArrayList<String>();
+    for (Entry<String, Endpoint> e : getEndpoints()) {
+      if (isOpen(e.getValue())) {
+        open.add(e.getKey());
+      }
+    }
+    return open.toArray(new String[open.size()]);
+  }
+
+  public String[] getEndpointStatistics() {
+    List<String> lines = new ArrayList<String>();
+    for (Entry<String, Endpoint> e : getEndpoints()) {
+      Endpoint c = e.getValue();
+      long calls = c.calls.get();
+      lines.add(e.getKey() + " calls=" + calls + " errors=" + c.errors.get()
+          + " rejected=" + c.rejected.get() + " avgTime="
+          + (calls == 0 ? 0 : c.totalTime.get() / calls) + " maxTime=" + c.maxTime.get()
+          + " open=" + isOpen(c));
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  private boolean isOpen(Endpoint e) {
+    synchronized (e) {
+      return e.openUntil != 0;
+    }
+  }
+
+  /**
+   * @param endpoint
+   * @return true if the circuit of the endpoint is open, used in tests.
+   */
+  boolean isOpen(String endpoint) {
+    Endpoint e;
+    synchronized (endpoints) {
+      e = endpoints.get(endpoint);
+    }
+    return e != null && isOpen(e);
+  }
+
+  public void reset() {
+    synchronized (endpoints) {
+      endpoints.clear();
+    }
+  }
+}
@@ -0,0 +1,260 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.sakaiproject.nakamura.util.StringUtils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A cache of remote responses shared by all users of a proxy endpoint, bounded by the
+ * number of bytes held. Each entry also holds the output of the post processors that
+ * have been run over it, so a feed is fetched and processed once while it is fresh.
+ * Freshness follows Cache-Control and Expires, falling back to a default ttl, and stale
+ * entries are revalidated with their ETag or Last-Modified.
+ */
+public class ProxyResponseCache {
+
+  /**
+   * A cached remote response.
+   */
+  public static class CacheEntry {
+    private final byte[] body;
+    private volatile Map<String, String[]> headers;
+    private volatile long freshUntil;
+    private final ConcurrentMap<String, ProcessedOutput> processed = new ConcurrentHashMap<String, ProcessedOutput>();
+
+    CacheEntry(byte[] body, Map<String, String[]> headers, long freshUntil) {
+      this.body = body;
+      this.headers = headers;
+      this.freshUntil = freshUntil;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    public Map<String, String[]> getHeaders() {
+      return headers;
+    }
+
+    public boolean isFresh(long now) {
+      return now < freshUntil;
+    }
+
+    public String getETag() {
+      return getHeader(headers, "ETag");
+    }
+
+    public String getLastModified() {
+      return getHeader(headers, "Last-Modified");
+    }
+
+    public ProcessedOutput getProcessed(String postProcessor) {
+      return processed.get(postProcessor);
+    }
+
+    long size() {
+      long size = body.length;
+      for (ProcessedOutput output : processed.values()) {
+        size += output.getBody().length;
+      }
+      return size;
+    }
+  }
+
+  private final Map<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16,
+      0.75f, true);
+  private final long maxBytes;
+  private final long defaultTtl;
+  private long bytes;
+
+  /**
+   * @param maxBytes
+   *          the number of body bytes held over all entries.
+   * @param defaultTtl
+   *          ms a response is fresh for when it carries no expiry information.
+   */
+  public ProxyResponseCache(long maxBytes, long defaultTtl) {
+    this.maxBytes = maxBytes;
+    this.defaultTtl = defaultTtl;
+  }
+
+  public synchronized CacheEntry get(String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * Stores a 200 response, replacing any previous entry for the key.
+   *
+   * @return the new entry, or null if the response may not be stored or is too large.
+   */
+  public CacheEntry put(String key, byte[] body, Map<String, String[]> headers, long now) {
+    long freshUntil = freshUntil(headers, now);
+    if (freshUntil < 0 || body.length > maxBytes) {
+      remove(key);
+      return null;
+    }
+    CacheEntry entry = new CacheEntry(body, withoutCookies(headers), freshUntil);
+    synchronized (this) {
+      CacheEntry previous = entries.put(key, entry);
+      if (previous != null) {
+        bytes -= previous.size();
+      }
+      bytes += entry.size();
+      evict();
+    }
+    return entry;
+  }
+
+  /**
+   * Marks an entry fresh again after the endpoint answered 304 Not Modified, taking the
+   * new expiry and validators from the 304 response.
+   */
+  public CacheEntry revalidated(CacheEntry entry, Map<String, String[]> notModifiedHeaders,
+      long now) {
+    Map<String, String[]> headers = new HashMap<String, String[]>(entry.headers);
+    headers.putAll(withoutCookies(notModifiedHeaders));
+    long freshUntil = freshUntil(headers, now);
+    entry.headers = headers;
+    entry.freshUntil = Math.max(freshUntil, now);
+    return entry;
+  }
+
+  /**
+   * Keeps the output of a post processor with the entry, if it is still cached.
+   */
+  public synchronized void addProcessed(String key, CacheEntry entry, String postProcessor,
+      ProcessedOutput output) {
+    if (entries.get(key) != entry) {
+      return;
+    }
+    ProcessedOutput previous = entry.processed.put(postProcessor, output);
+    if (previous != null) {
+      bytes -= previous.getBody().length;
+    }
+    bytes += output.getBody().length;
+    evict();
+  }
+
+  public synchronized void remove(String key) {
+    CacheEntry previous = entries.remove(key);
+    if (previous != null) {
+      bytes -= previous.size();
+    }
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private void evict() {
+    Iterator<CacheEntry> i = entries.values().iterator();
+    while (bytes > maxBytes && i.hasNext()) {
+      bytes -= i.next().size();
+      i.remove();
+    }
+  }
+
+  /**
+   * @return the time until which a response with these headers is fresh, or -1 if it
+   *         must not be stored.
+   */
+  long freshUntil(Map<String, String[]> headers, long now) {
+    String cacheControl = null;
+    for (Entry<String, String[]> e : headers.entrySet()) {
+      if ("Cache-Control".equalsIgnoreCase(e.getKey())) {
+        cacheControl = StringUtils.join(e.getValue(), 0, ',');
+      }
+    }
+    if (cacheControl != null) {
+      long maxAge = -1;
+      for (String directive : cacheControl.toLowerCase().split(",")) {
+        directive = directive.trim();
+        if (directive.equals("no-store") || directive.equals("private")) {
+          return -1;
+        } else if (directive.equals("no-cache")) {
+          return now;
+        } else if (directive.startsWith("s-maxage=")) {
+          maxAge = seconds(directive.substring(9));
+        } else if (directive.startsWith("max-age=") && maxAge < 0) {
+          maxAge = seconds(directive.substring(8));
+        }
+      }
+      if (maxAge >= 0) {
+        return now + maxAge * 1000L;
+      }
+    }
+    String expires = getHeader(headers, "Expires");
+    if (expires != null) {
+      try {
+        long expiresAt = DateUtil.parseDate(expires).getTime();
+        String date = getHeader(headers, "Date");
+        long serverNow = date == null ? now : DateUtil.parseDate(date).getTime();
+        return now + Math.max(0, expiresAt - serverNow);
+      } catch (DateParseException e) {
+        // an invalid Expires means already expired.
+        return now;
+      }
+    }
+    return now + defaultTtl;
+  }
+
+  private static long seconds(String value) {
+    try {
+      return Long.parseLong(value.replace("\"", "").trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Cookies set by the endpoint belong to whoever fetched the response, and are never
+   * handed to other users.
+   */
+  private static Map<String, String[]> withoutCookies(Map<String, String[]> headers) {
+    Map<String, String[]> filtered = new HashMap<String, String[]>();
+    for (Entry<String, String[]> e : headers.entrySet()) {
+      if (!"set-cookie".equalsIgnoreCase(e.getKey())) {
+        filtered.put(e.getKey(), e.getValue());
+      }
+    }
+    return filtered;
+  }
+
+  static String getHeader(Map<String, String[]> headers, String name) {
+    for (Entry<String, String[]> e : headers.entrySet()) {
+      if (name.equalsIgnoreCase(e.getKey()) && e.getValue().length > 0) {
+        return e.getValue()[0];
+      }
+    }
+    return null;
+  }
+}
@@ -316,7 +316,7 @@ public class ResourceProxyServlet extends SlingAllMethodsServlet implements Opti
       ProxyResponse proxyResponse = proxyClientService.executeCall(node, headers,
           templateParams, null, -1, null);
       try {
-        postProcessor.process(templateParams, response, proxyResponse);
+        postProcess(postProcessor, templateParams, response, proxyResponse);
       } finally {
         proxyResponse.close();
       }
@@ -329,6 +329,35 @@ public class ResourceProxyServlet extends SlingAllMethodsServlet implements Opti
     }
   }
 
+  /**
+   * Runs the post processor, unless its output for a cached response is already held by
+   * the cache, in which case that is sent instead.
+   */
+  private void postProcess(ProxyPostProcessor postProcessor,
+      Map<String, Object> templateParams, SlingHttpServletResponse response,
+      ProxyResponse proxyResponse) throws IOException {
+    if (proxyResponse instanceof CachedProxyResponse
+        && ((CachedProxyResponse) proxyResponse).isCached()) {
+      CachedProxyResponse cached = (CachedProxyResponse) proxyResponse;
+      ProcessedOutput output = cached.getProcessed(postProcessor.getName());
+      if (output == null) {
+        ProcessedResponseCapture capture = new ProcessedResponseCapture(response);
+        postProcessor.process(templateParams, capture, proxyResponse);
+        output = capture.getOutput();
+        if (output == null) {
+          // the error has been sent.
+          return;
+        }
+        if (output.getStatus() == HttpServletResponse.SC_OK) {
+          cached.setProcessed(postProcessor.getName(), output);
+        }
+      }
+      output.replay(response);
+    } else {
+      postProcessor.process(templateParams, response, proxyResponse);
+    }
+  }
+
   protected void bindPreProcessor(ProxyPreProcessor proxyPreProcessor) {
     preProcessors.put(proxyPreProcessor.getName(), proxyPreProcessor);
   }
@@ -20,17 +20,25 @@ package org.sakaiproject.nakamura.proxy;
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
+import org.sakaiproject.nakamura.api.proxy.ProxyPreProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.sakaiproject.nakamura.testutils.http.CapturedRequest;
@@ -38,8 +46,11 @@ import org.sakaiproject.nakamura.testutils.http.DummyServer;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.Map;
 
 import javax.jcr.Binary;
@@ -373,6 +384,165 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     testRequest(null, "GET", RESPONSE_BODY, -1);
   }
 
+  @Test
+  public void testSharedFeedIsCached() throws Exception {
+    Node node = createMock(Node.class);
+    Property endpointProperty = createMock(Property.class);
+    Property postProcessorProperty = createMock(Property.class);
+    PropertyDefinition propertyDefinition = createMock(PropertyDefinition.class);
+    Value value = createMock(Value.class);
+
+    expect(node.getPath()).andReturn("/testing").anyTimes();
+    expect(node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)).andReturn(true)
+        .anyTimes();
+    expect(node.getProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)).andReturn(
+        postProcessorProperty).anyTimes();
+    expect(postProcessorProperty.getString()).andReturn("rss").anyTimes();
+    expect(node.hasProperty(ProxyPreProcessor.SAKAI_PREPROCESSOR)).andReturn(false)
+        .anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE)).andReturn(
+        false).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        true).anyTimes();
+    expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        endpointProperty).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).andReturn(false)
+        .anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(false)
+        .anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
+        false).anyTimes();
+    expect(endpointProperty.getDefinition()).andReturn(propertyDefinition).anyTimes();
+    expect(propertyDefinition.isMultiple()).andReturn(false).anyTimes();
+    expect(endpointProperty.getValue()).andReturn(value).anyTimes();
+    expect(value.getString()).andReturn(dummyServer.getUrl()).anyTimes();
+
+    dummyServer.setContentType(APPLICATION_SOAP_XML_CHARSET_UTF_8);
+    dummyServer.setResponseBody(RESPONSE_BODY);
+
+    replay();
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Accept", "application/rss+xml");
+    headers.put("Cookie", "SAKAI-TRACKING=abc");
+    ProxyResponse response = proxyClientServiceImpl.executeCall(node, headers,
+        new HashMap<String, Object>(), null, 0, null);
+    assertEquals(RESPONSE_BODY, response.getResponseBodyAsString());
+    response.close();
+
+    CapturedRequest request = dummyServer.getRequest();
+    assertEquals("application/rss+xml", request.getHeader("Accept"));
+    assertEquals("User headers are not sent for shared feeds", null,
+        request.getHeader("Cookie"));
+
+    // the second user gets the cached copy without a remote call.
+    dummyServer.setResponseBody("changed");
+    headers.put("Cookie", "SAKAI-TRACKING=def");
+    response = proxyClientServiceImpl.executeCall(node, headers,
+        new HashMap<String, Object>(), null, 0, null);
+    assertEquals(RESPONSE_BODY, response.getResponseBodyAsString());
+    assertTrue(((CachedProxyResponse) response).isCached());
+    response.close();
+    assertSame(request, dummyServer.getRequest());
+    assertEquals(1, proxyClientServiceImpl.getResponseCache().size());
+
+    verify();
+  }
+
+  @Test
+  public void testRssTemplateIsCached() throws Exception {
+    // activated with the default configuration, which lets rss open any endpoint.
+    proxyClientServiceImpl.deactivate(null);
+    proxyClientServiceImpl = new ProxyClientServiceImpl();
+    ComponentContext componentContext = Mockito.mock(ComponentContext.class);
+    Mockito.when(componentContext.getProperties()).thenReturn(
+        new Hashtable<String, Object>());
+    proxyClientServiceImpl.activate(componentContext);
+
+    Node node = templateNode("rss.json");
+    dummyServer.setContentType("application/rss+xml");
+    dummyServer.setResponseBody(RESPONSE_BODY);
+    Map<String, Object> input = new HashMap<String, Object>();
+    input.put("rss", dummyServer.getUrl());
+
+    // the servlet runs the pre processor of the template before the call.
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Cookie", "SAKAI-TRACKING=abc");
+    new RSSProxyPreProcessor().preProcessRequest(null, headers, input);
+    ProxyResponse response = proxyClientServiceImpl.executeCall(node, headers, input,
+        null, 0, null);
+    assertEquals(RESPONSE_BODY, response.getResponseBodyAsString());
+    response.close();
+    CapturedRequest request = dummyServer.getRequest();
+    assertEquals("*/*", request.getHeader("Accept"));
+
+    dummyServer.setResponseBody("changed");
+    headers = new HashMap<String, String>();
+    headers.put("Cookie", "SAKAI-TRACKING=def");
+    new RSSProxyPreProcessor().preProcessRequest(null, headers, input);
+    response = proxyClientServiceImpl.executeCall(node, headers, input, null, 0, null);
+    assertEquals(RESPONSE_BODY, response.getResponseBodyAsString());
+    assertTrue(((CachedProxyResponse) response).isCached());
+    response.close();
+    assertSame(request, dummyServer.getRequest());
+  }
+
+  @Test
+  public void testEndpointKey() {
+    assertEquals("http://example.com:80",
+        ProxyClientServiceImpl.endpointKey("http://example.com/feed?q=1"));
+    assertEquals("https://example.com:443",
+        ProxyClientServiceImpl.endpointKey("https://example.com/cal.ics"));
+    assertEquals("http://localhost:8080",
+        ProxyClientServiceImpl.endpointKey("http://localhost:8080/"));
+  }
+
+  /**
+   * @return a node with the properties of a proxy template shipped with the bundle.
+   */
+  private Node templateNode(String name) throws Exception {
+    InputStream in = getClass().getResourceAsStream("/SLING-INF/content/var/proxy/" + name);
+    JSONObject template;
+    try {
+      template = new JSONObject(IOUtils.toString(in, "UTF-8"));
+    } finally {
+      in.close();
+    }
+    Node node = Mockito.mock(Node.class);
+    Mockito.when(node.getPath()).thenReturn("/var/proxy/" + name);
+    for (Iterator<?> keys = template.keys(); keys.hasNext();) {
+      String key = (String) keys.next();
+      Property property = Mockito.mock(Property.class);
+      PropertyDefinition definition = Mockito.mock(PropertyDefinition.class);
+      Mockito.when(property.getDefinition()).thenReturn(definition);
+      JSONArray array = template.optJSONArray(key);
+      if (array != null) {
+        Value[] values = new Value[array.length()];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = templateValue(array.getString(i));
+        }
+        Mockito.when(definition.isMultiple()).thenReturn(true);
+        Mockito.when(property.getValues()).thenReturn(values);
+      } else {
+        String string = template.getString(key);
+        Value value = templateValue(string);
+        Mockito.when(property.getValue()).thenReturn(value);
+        Mockito.when(property.getString()).thenReturn(string);
+        if (string.matches("[0-9]+")) {
+          Mockito.when(property.getLong()).thenReturn(Long.parseLong(string));
+        }
+      }
+      Mockito.when(node.hasProperty(key)).thenReturn(true);
+      Mockito.when(node.getProperty(key)).thenReturn(property);
+    }
+    return node;
+  }
+
+  private Value templateValue(String string) throws RepositoryException {
+    Value value = Mockito.mock(Value.class);
+    Mockito.when(value.getString()).thenReturn(string);
+    return value;
+  }
+
   private void testRequest(String type, String expectedMethod, String body, long limit)
       throws ProxyClientException, RepositoryException, IOException {
     Node node = createMock(Node.class);
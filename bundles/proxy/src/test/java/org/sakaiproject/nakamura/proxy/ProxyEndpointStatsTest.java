@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ProxyEndpointStatsTest {
+
+  private static final String ENDPOINT = "http://example.com:80";
+
+  @Test
+  public void testCircuitOpensAfterConsecutiveFailures() {
+    ProxyEndpointStats stats = new ProxyEndpointStats(3, 1000, 10);
+    stats.failure(ENDPOINT, 10, 0);
+    stats.failure(ENDPOINT, 10, 0);
+    stats.success(ENDPOINT, 10);
+    stats.failure(ENDPOINT, 10, 0);
+    stats.failure(ENDPOINT, 10, 0);
+    assertTrue(stats.allow(ENDPOINT, 0));
+
+    stats.failure(ENDPOINT, 30, 100);
+    assertFalse(stats.allow(ENDPOINT, 500));
+    assertArrayEquals(new String[] { ENDPOINT }, stats.getOpenEndpoints());
+    assertEquals(6, stats.getCalls());
+    assertEquals(5, stats.getErrors());
+    assertEquals(1, stats.getRejected());
+  }
+
+  @Test
+  public void testTrialCallAfterOpenTime() {
+    ProxyEndpointStats stats = new ProxyEndpointStats(1, 1000, 10);
+    stats.failure(ENDPOINT, 10, 0);
+    assertFalse(stats.allow(ENDPOINT, 999));
+
+    // one trial call is let through, others wait for its outcome.
+    assertTrue(stats.allow(ENDPOINT, 1000));
+    assertFalse(stats.allow(ENDPOINT, 1001));
+
+    // a failed trial keeps the circuit open for another period.
+    stats.failure(ENDPOINT, 10, 1100);
+    assertFalse(stats.allow(ENDPOINT, 2000));
+    assertTrue(stats.allow(ENDPOINT, 2100));
+
+    stats.success(ENDPOINT, 10);
+    assertFalse(stats.isOpen(ENDPOINT));
+    assertTrue(stats.allow(ENDPOINT, 2101));
+    assertTrue(stats.allow(ENDPOINT, 2102));
+  }
+
+  @Test
+  public void testDisabledCircuitNeverOpens() {
+    ProxyEndpointStats stats = new ProxyEndpointStats(0, 1000, 10);
+    for (int i = 0; i < 100; i++) {
+      stats.failure(ENDPOINT, 10, i);
+    }
+    assertTrue(stats.allow(ENDPOINT, 100));
+    assertEquals(0, stats.getOpenEndpoints().length);
+  }
+
+  @Test
+  public void testAbandonedTrialAllowsAnotherTrial() {
+    ProxyEndpointStats stats = new ProxyEndpointStats(1, 1000, 10);
+    stats.failure(ENDPOINT, 10, 0);
+    assertTrue(stats.allow(ENDPOINT, 1000));
+    assertFalse(stats.allow(ENDPOINT, 1001));
+
+    stats.abandon(ENDPOINT);
+    assertTrue(stats.allow(ENDPOINT, 1002));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEndpointsAreDiscarded() {
+    ProxyEndpointStats stats = new ProxyEndpointStats(1, 1000, 2);
+    stats.failure(ENDPOINT, 10, 0);
+    stats.success("http://a.example.com:80", 10);
+    assertFalse(stats.allow(ENDPOINT, 1));
+    stats.success("http://b.example.com:80", 10);
+
+    assertEquals(2, stats.getEndpointStatistics().length);
+    assertTrue(stats.isOpen(ENDPOINT));
+    assertFalse(stats.isOpen("http://a.example.com:80"));
+    assertEquals(2, stats.getCalls());
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.proxy.ProxyResponseCache.CacheEntry;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ProxyResponseCacheTest {
+
+  private static final long NOW = 1000000L;
+
+  @Test
+  public void testFreshness() {
+    ProxyResponseCache cache = new ProxyResponseCache(1000, 60000);
+    assertEquals(NOW + 60000, cache.freshUntil(headers(), NOW));
+    assertEquals(NOW + 120000,
+        cache.freshUntil(headers("Cache-Control", "public, max-age=120"), NOW));
+    assertEquals(NOW + 10000,
+        cache.freshUntil(headers("Cache-Control", "max-age=120, s-maxage=10"), NOW));
+    assertEquals(NOW, cache.freshUntil(headers("Cache-Control", "no-cache"), NOW));
+    assertEquals(-1, cache.freshUntil(headers("Cache-Control", "no-store"), NOW));
+    assertEquals(-1, cache.freshUntil(headers("cache-control", "private, max-age=60"), NOW));
+    assertEquals(NOW + 3600000, cache.freshUntil(headers("Date",
+        "Sun, 06 Nov 1994 08:49:37 GMT", "Expires", "Sun, 06 Nov 1994 09:49:37 GMT"), NOW));
+    assertEquals(NOW, cache.freshUntil(headers("Expires", "0"), NOW));
+  }
+
+  @Test
+  public void testNotStored() {
+    ProxyResponseCache cache = new ProxyResponseCache(1000, 60000);
+    assertNull(cache.put("a", new byte[10], headers("Cache-Control", "no-store"), NOW));
+    assertNull(cache.put("b", new byte[1001], headers(), NOW));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getBytes());
+  }
+
+  @Test
+  public void testCookiesAreNotShared() {
+    ProxyResponseCache cache = new ProxyResponseCache(1000, 60000);
+    CacheEntry entry = cache.put("a", new byte[10], headers("Set-Cookie", "JSESSIONID=1",
+        "ETag", "\"v1\""), NOW);
+    assertFalse(entry.getHeaders().containsKey("Set-Cookie"));
+    assertEquals("\"v1\"", entry.getETag());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedByBytes() {
+    ProxyResponseCache cache = new ProxyResponseCache(1000, 60000);
+    cache.put("a", new byte[400], headers(), NOW);
+    cache.put("b", new byte[400], headers(), NOW);
+    assertNotNull(cache.get("a"));
+    cache.put("c", new byte[400], headers(), NOW);
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("c"));
+    assertEquals(800, cache.getBytes());
+
+    // processed output counts towards the bound too.
+    CacheEntry c = cache.get("c");
+    cache.addProcessed("c", c, "rss", output(300));
+    assertNull(cache.get("a"));
+    assertEquals(700, cache.getBytes());
+    assertNotNull(c.getProcessed("rss"));
+
+    // replacing an entry drops its processed output.
+    CacheEntry replaced = cache.put("c", new byte[100], headers(), NOW);
+    assertNull(replaced.getProcessed("rss"));
+    assertEquals(100, cache.getBytes());
+
+    // output for an entry that has since been replaced is not kept.
+    cache.addProcessed("c", c, "rss", output(10));
+    assertNull(cache.get("c").getProcessed("rss"));
+    assertEquals(100, cache.getBytes());
+  }
+
+  @Test
+  public void testRevalidation() {
+    ProxyResponseCache cache = new ProxyResponseCache(1000, 60000);
+    CacheEntry entry = cache.put("a", new byte[10], headers("Cache-Control", "max-age=10",
+        "ETag", "\"v1\""), NOW);
+    cache.addProcessed("a", entry, "iCal", output(5));
+    assertTrue(entry.isFresh(NOW + 9999));
+    assertFalse(entry.isFresh(NOW + 10000));
+
+    CacheEntry revalidated = cache.revalidated(entry, headers("Cache-Control",
+        "max-age=100"), NOW + 20000);
+    assertSame(entry, revalidated);
+    assertTrue(entry.isFresh(NOW + 119999));
+    assertEquals("\"v1\"", entry.getETag());
+    assertNotNull(entry.getProcessed("iCal"));
+  }
+
+  private ProcessedOutput output(int size) {
+    return new ProcessedOutput(200, "application/json", "UTF-8",
+        new HashMap<String, List<String>>(), new byte[size]);
+  }
+
+  private Map<String, String[]> headers(String... nameValues) {
+    Map<String, String[]> headers = new HashMap<String, String[]>();
+    for (int i = 0; i < nameValues.length; i += 2) {
+      headers.put(nameValues[i], new String[] { nameValues[i + 1] });
+    }
+    return headers;
+  }
+}
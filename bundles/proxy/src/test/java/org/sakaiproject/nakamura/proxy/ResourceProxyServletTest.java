@@ -23,6 +23,8 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -34,11 +36,14 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyPreProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.ProxyResponseCache.CacheEntry;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
@@ -306,6 +311,52 @@ public class ResourceProxyServletTest {
     verify(proxyPostProcessor).process(map, response, proxyResponse);
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void reusesPostProcessorOutputForCachedResponses() throws Exception {
+    // given
+    requestReturnsAResource();
+    resourceWithLegitimatePath();
+    resourceReturnsANode();
+    requestReturnsHeaderNames();
+    requestReturnsParameterNames();
+    requestReturnsParameterMap();
+    nodeHasSakaiPostprocessorProperty();
+    slingResponseHasOutputStream();
+    ProxyResponseCache cache = new ProxyResponseCache(10000, 60000);
+    CacheEntry entry = cache.put("feed", "<rss/>".getBytes("UTF-8"),
+        new HashMap<String, String[]>(), System.currentTimeMillis());
+    when(
+        proxyClientService.executeCall((Node) any(), (Map<String, String>) any(),
+            (Map<String, Object>) any(), (InputStream) any(), anyLong(), anyString()))
+        .thenReturn(new CachedProxyResponse(cache, "feed", entry));
+    when(proxyPostProcessor.getName()).thenReturn("rss");
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        SlingHttpServletResponse captured = (SlingHttpServletResponse) invocation
+            .getArguments()[1];
+        captured.setContentType("application/rss+xml");
+        captured.getOutputStream().write("processed".getBytes("UTF-8"));
+        return null;
+      }
+    }).when(proxyPostProcessor).process((Map<String, Object>) any(),
+        (SlingHttpServletResponse) any(), (ProxyResponse) any());
+    servlet.postProcessors = proxyPostProcessors;
+    servlet.proxyClientService = proxyClientService;
+
+    // when
+    servlet.doGet(request, response);
+    requestReturnsHeaderNames();
+    requestReturnsParameterNames();
+    servlet.doGet(request, response);
+
+    // then
+    verify(proxyPostProcessor, times(1)).process((Map<String, Object>) any(),
+        (SlingHttpServletResponse) any(), (ProxyResponse) any());
+    verify(response, times(2)).setContentType("application/rss+xml");
+    verify(responseOutputStream, times(2)).write("processed".getBytes("UTF-8"));
+  }
+
   private void nodeHasSakaiPostprocessorProperty() throws Exception {
     when(node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)).thenReturn(Boolean.TRUE);
     when(node.getProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)).thenReturn(jcrProperty);
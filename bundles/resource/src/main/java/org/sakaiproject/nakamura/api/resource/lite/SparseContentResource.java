@@ -30,6 +30,8 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -67,6 +69,7 @@ public class SparseContentResource extends AbstractResource {
   private String resourcePath;
 
   private ContentManager contentManager;
+  private BlobAccess blobAccess;
 
   public SparseContentResource(Content content, Session session, ResourceResolver resourceResolver) throws StorageClientException {
     this(content, session, resourceResolver, null);
@@ -74,6 +77,18 @@ public class SparseContentResource extends AbstractResource {
 
   public SparseContentResource(Content content, Session session, ResourceResolver resourceResolver, String resourcePath)
       throws StorageClientException {
+    this(content, session, resourceResolver, resourcePath, null);
+  }
+
+  /**
+   * @param blobAccess
+   *          The blob store, needed to adapt to an {@link InputStream} when the body is
+   *          kept there. May be null for resources whose body is never read.
+   */
+  public SparseContentResource(Content content, Session session,
+      ResourceResolver resourceResolver, String resourcePath, BlobAccess blobAccess)
+      throws StorageClientException {
+    this.blobAccess = blobAccess;
     this.content = content;
     this.session = session;
     this.contentManager = session.getContentManager();
@@ -118,7 +133,8 @@ public class SparseContentResource extends AbstractResource {
       retval = (Type) session;
     } else if (type == InputStream.class) {
       try {
-        retval = (Type) contentManager.getInputStream(content.getPath());
+        retval = (Type) ContentBlobUtils.getInputStream(blobAccess, contentManager, content,
+            null);
       } catch (IOException e) {
         logger.error(e.getMessage(), e);
       } catch (AccessDeniedException e) {
@@ -206,7 +222,7 @@ public class SparseContentResource extends AbstractResource {
    */
   @Override
   public Iterator<Resource> listChildren() {
-    return new SparseContentResourceIterator(content.listChildren().iterator(), session, resourceResolver, this);
+    return new SparseContentResourceIterator(content.listChildren().iterator(), session, resourceResolver, this, blobAccess);
   }
 
   @Override
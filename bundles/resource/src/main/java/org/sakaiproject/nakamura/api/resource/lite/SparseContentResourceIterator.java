@@ -24,6 +24,7 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+import org.sakaiproject.nakamura.util.BlobAccess;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,12 +37,19 @@ public class SparseContentResourceIterator extends PreemptiveIterator<Resource>
   final private ResourceResolver resourceResolver;
   private SparseContentResource nextResource;
   private String parentPath;
+  private BlobAccess blobAccess;
 
   public SparseContentResourceIterator(Iterator<Content> contentIterator, Session session, ResourceResolver resourceResolver, Resource parent) {
+    this(contentIterator, session, resourceResolver, parent, null);
+  }
+
+  public SparseContentResourceIterator(Iterator<Content> contentIterator, Session session,
+      ResourceResolver resourceResolver, Resource parent, BlobAccess blobAccess) {
     this.contentIterator = contentIterator;
     this.session = session;
     this.resourceResolver = resourceResolver;
     this.parentPath = parent.getPath();
+    this.blobAccess = blobAccess;
   }
 
   @Override
@@ -52,7 +60,7 @@ public class SparseContentResourceIterator extends PreemptiveIterator<Resource>
       if (content != null) {
         try {
           String childPath = StorageClientUtils.newPath(parentPath, StorageClientUtils.getObjectName(content.getPath()));
-          nextResource = new SparseContentResource(content, session, resourceResolver, childPath);
+          nextResource = new SparseContentResource(content, session, resourceResolver, childPath, blobAccess);
         } catch (StorageClientException e) {
           logger.debug("Unable to convert content {} to resource; cause {}", new Object[] {
               content, e.getMessage() }, e);
@@ -20,6 +20,9 @@ package org.sakaiproject.nakamura.resource.lite;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
@@ -33,6 +36,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.util.BlobAccess;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,6 +56,9 @@ public class HomeResourceProvider implements ResourceProvider {
   public static final String HOME_RESOURCE_PROVIDER = HomeResourceProvider.class
       .getName();
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
+
   public Resource getResource(ResourceResolver resourceResolver,
       HttpServletRequest request, String path) {
     LOGGER.info("Got Resource URI [{}]  Path [{}] ", request.getRequestURI(), path);
@@ -112,7 +119,7 @@ public class HomeResourceProvider implements ResourceProvider {
           LOGGER.debug("Resolving [{}] to [{}] ", userPath, content);
           if (content != null) {
             SparseContentResource cpr = new SparseContentResource(content, session,
-                resourceResolver, path);
+                resourceResolver, path, blobAccess);
             cpr.getResourceMetadata().put(HOME_RESOURCE_PROVIDER, this);
             return cpr;
           }
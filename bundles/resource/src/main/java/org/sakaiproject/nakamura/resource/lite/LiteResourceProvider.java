@@ -21,6 +21,9 @@ import com.google.common.collect.ImmutableMap;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
@@ -34,6 +37,7 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.lite.jackrabbit.JackrabbitSparseUtils;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.util.BlobAccess;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,6 +57,9 @@ public class LiteResourceProvider implements ResourceProvider {
   private static final Logger logger = LoggerFactory
       .getLogger(LiteResourceProvider.class);
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
+
   // ---------- ResourceProvider interface ----------
   /**
    * {@inheritDoc}
@@ -70,8 +77,8 @@ public class LiteResourceProvider implements ResourceProvider {
       if (content != null) {
         String userId = jcrSession.getUserID();
         Map<String, Object> props = ImmutableMap.of(ResourceResolverFactory.USER, (Object) userId);
-        ResourceResolver rr = new LiteResourceResolver(session, userId, props);
-        retRes = new SparseContentResource(content, session, rr);
+        ResourceResolver rr = new LiteResourceResolver(session, userId, props, blobAccess);
+        retRes = new SparseContentResource(content, session, rr, null, blobAccess);
       }
     } catch (RepositoryException e) {
       logger.error(e.getMessage(), e);
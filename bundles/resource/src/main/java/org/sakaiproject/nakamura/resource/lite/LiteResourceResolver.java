@@ -32,6 +32,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.util.BlobAccess;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,12 +51,17 @@ public class LiteResourceResolver implements ResourceResolver {
   private Session session;
   private String userId;
   private Map<String, Object> authnInfo;
+  private BlobAccess blobAccess;
 
   /**
-   *
+   * @param blobAccess
+   *          The blob store the bodies of resources are read from, or null if it is not
+   *          available.
    */
-  public LiteResourceResolver(Session session, String userId, Map<String, Object> authnInfo) {
+  public LiteResourceResolver(Session session, String userId, Map<String, Object> authnInfo,
+      BlobAccess blobAccess) {
     this.session = session;
+    this.blobAccess = blobAccess;
     this.userId = userId;
     if (authnInfo == null) {
       this.authnInfo = Collections.emptyMap();
@@ -152,7 +158,7 @@ public class LiteResourceResolver implements ResourceResolver {
       ContentManager cm = session.getContentManager();
       Content content = cm.get(path);
       if (content != null) {
-        resource = new SparseContentResource(content, session, this);
+        resource = new SparseContentResource(content, session, this, null, blobAccess);
       }
     } catch (ClientPoolException e) {
       logger.error(e.getMessage(), e);
@@ -243,11 +249,11 @@ public class LiteResourceResolver implements ResourceResolver {
       LiteResourceResolver lrr = null;
       String userId = (String) authnInfo.get(ResourceResolverFactory.USER);
       if (StringUtils.equals(userId, this.userId)) {
-        lrr = new LiteResourceResolver(session, userId, authnInfo);
+        lrr = new LiteResourceResolver(session, userId, authnInfo, blobAccess);
       } else {
         Repository repo = session.getRepository();
         Session session = repo.loginAdministrative(userId);
-        lrr = new LiteResourceResolver(session, userId, authnInfo);
+        lrr = new LiteResourceResolver(session, userId, authnInfo, blobAccess);
       }
       return lrr;
     } catch (AccessDeniedException e) {
@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.resource.lite;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -27,6 +29,7 @@ import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.util.BlobAccess;
 
 import java.util.Map;
 
@@ -49,6 +52,9 @@ public class LiteResourceResolverFactory implements ResourceResolverFactory {
   @Reference
   private Repository repository;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
+
   /**
    * name of user name property in authentication information map. Copied from
    * {@link org.apache.sling.api.resource.ResourceResolverFactory.USER} until we're using
@@ -68,7 +74,7 @@ public class LiteResourceResolverFactory implements ResourceResolverFactory {
       // bundle >= 2.1.0
       String userId = (String) authnInfo.get(ResourceResolverFactory.USER);
       Session session = repository.loginAdministrative();
-      return new LiteResourceResolver(session, userId, authnInfo);
+      return new LiteResourceResolver(session, userId, authnInfo, blobAccess);
     } catch (AccessDeniedException e) {
       throw new LoginException(e.getMessage(), e);
     } catch (StorageClientException e) {
@@ -88,7 +94,7 @@ public class LiteResourceResolverFactory implements ResourceResolverFactory {
       // bundle >= 2.1.0
       String userId = (String) authnInfo.get(ResourceResolverFactory.USER);
       Session session = repository.loginAdministrative(userId);
-      return new LiteResourceResolver(session, userId, authnInfo);
+      return new LiteResourceResolver(session, userId, authnInfo, blobAccess);
     } catch (AccessDeniedException e) {
       throw new LoginException(e.getMessage(), e);
     } catch (StorageClientException e) {
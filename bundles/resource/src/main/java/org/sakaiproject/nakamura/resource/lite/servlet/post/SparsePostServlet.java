@@ -52,6 +52,7 @@ import org.sakaiproject.nakamura.resource.lite.servlet.post.operations.ImportOpe
 import org.sakaiproject.nakamura.resource.lite.servlet.post.operations.ModifyOperation;
 import org.sakaiproject.nakamura.resource.lite.servlet.post.operations.MoveOperation;
 import org.sakaiproject.nakamura.resource.lite.servlet.post.operations.NopOperation;
+import org.sakaiproject.nakamura.util.BlobAccess;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -146,6 +147,11 @@ public class SparsePostServlet extends SlingAllMethodsServlet {
 
   private ImportOperation importOperation;
 
+  private MoveOperation moveOperation;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindBlobAccess", unbind = "unbindBlobAccess")
+  private volatile BlobAccess blobAccess;
+
   private VersioningConfiguration baseVersioningConfiguration;
 
   @Override
@@ -154,10 +160,13 @@ public class SparsePostServlet extends SlingAllMethodsServlet {
     modifyOperation = new ModifyOperation(defaultNodeNameGenerator, dateParser,
         getServletContext());
     modifyOperation.setExtraNodeNameGenerators(cachedNodeNameGenerators);
+    modifyOperation.setBlobAccess(blobAccess);
 
     // other predefined operations
+    moveOperation = new MoveOperation();
+    moveOperation.setBlobAccess(blobAccess);
     postOperations.put(SlingPostConstants.OPERATION_COPY, new CopyOperation());
-    postOperations.put(SlingPostConstants.OPERATION_MOVE, new MoveOperation());
+    postOperations.put(SlingPostConstants.OPERATION_MOVE, moveOperation);
     postOperations.put(SlingPostConstants.OPERATION_DELETE, new DeleteOperation());
     postOperations.put(SlingPostConstants.OPERATION_NOP, new NopOperation());
     postOperations.put(SlingPostConstants.OPERATION_CHECKIN, new CheckinOperation());
@@ -462,6 +471,27 @@ public class SparsePostServlet extends SlingAllMethodsServlet {
     }
   }
 
+  protected void bindBlobAccess(BlobAccess blobAccess) {
+    this.blobAccess = blobAccess;
+    updateBlobAccess();
+  }
+
+  protected void unbindBlobAccess(BlobAccess blobAccess) {
+    if (this.blobAccess == blobAccess) {
+      this.blobAccess = null;
+      updateBlobAccess();
+    }
+  }
+
+  private void updateBlobAccess() {
+    if (this.modifyOperation != null) {
+      this.modifyOperation.setBlobAccess(this.blobAccess);
+    }
+    if (this.moveOperation != null) {
+      this.moveOperation.setBlobAccess(this.blobAccess);
+    }
+  }
+
   protected void bindNodeNameGenerator(ServiceReference ref) {
     synchronized (this.delayedNodeNameGenerators) {
       if (this.componentContext == null) {
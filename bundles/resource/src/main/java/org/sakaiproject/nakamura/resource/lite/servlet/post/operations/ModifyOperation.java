@@ -39,6 +39,8 @@ import org.sakaiproject.nakamura.api.resource.lite.SparseNonExistingResource;
 import org.sakaiproject.nakamura.api.resource.lite.SparsePropertyValueHandler;
 import org.sakaiproject.nakamura.api.resource.lite.SparseRequestProperty;
 import org.sakaiproject.nakamura.resource.lite.servlet.post.helper.SparseFileUploadHandler;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 
 import java.io.IOException;
 import java.util.List;
@@ -60,6 +62,8 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
    */
   private final SparseFileUploadHandler uploadHandler;
 
+  private volatile BlobAccess blobAccess;
+
   public ModifyOperation(NodeNameGenerator defaultNodeNameGenerator,
       DateParser dateParser, ServletContext servletContext) {
     super(defaultNodeNameGenerator);
@@ -67,6 +71,14 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
     this.uploadHandler = new SparseFileUploadHandler(servletContext);
   }
 
+  /**
+   * @param blobAccess
+   *          The blob store, or null if it is not available.
+   */
+  public void setBlobAccess(BlobAccess blobAccess) {
+    this.blobAccess = blobAccess;
+  }
+
   @Override
   protected void doRun(SlingHttpServletRequest request, HtmlResponse response,
       ContentManager contentManager, List<Modification> changes, String contentPath) throws StorageClientException, AccessDeniedException, IOException  {
@@ -83,6 +95,7 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
           contentPathHandled = true;
         }
         contentManager.move(from, to);
+        ContentBlobUtils.copyReferences(blobAccess, contentManager, from, to);
         changes.add(Modification.onMoved(from, property.getPath()));
         property.setDelete(false);
       } else if (property.hasRepositoryCopySource()) {
@@ -92,6 +105,7 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
           contentPathHandled = true;
         }
         contentManager.copy(from, to, true);
+        ContentBlobUtils.copyReferences(blobAccess, contentManager, from, to);
         changes.add(Modification.onCopied(from, property.getPath()));
         property.setDelete(false);
       } else if ( property.isDelete()) {
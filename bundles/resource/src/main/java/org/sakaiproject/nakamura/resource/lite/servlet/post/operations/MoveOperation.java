@@ -25,6 +25,8 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.ActionRecord;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.AbstractSparsePostOperation;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
 
 import java.util.ArrayList;
@@ -34,6 +36,16 @@ public class MoveOperation extends AbstractSparsePostOperation {
 
   private static final String DEST = ":dest";
 
+  private volatile BlobAccess blobAccess;
+
+  /**
+   * @param blobAccess
+   *          The blob store, or null if it is not available.
+   */
+  public void setBlobAccess(BlobAccess blobAccess) {
+    this.blobAccess = blobAccess;
+  }
+
   public void doRun(SlingHttpServletRequest request, HtmlResponse response,
       ContentManager contentManager, List<Modification> changes, String contentPath)
       throws StorageClientException, AccessDeniedException {
@@ -44,6 +56,8 @@ public class MoveOperation extends AbstractSparsePostOperation {
         from, to);
     for (int i = 0; i < moves.size(); i++) {
       ActionRecord move = moves.get(i);
+      ContentBlobUtils.copyReferences(blobAccess, contentManager, move.getFrom(),
+          move.getTo());
       changes.add(Modification.onMoved(move.getFrom(), move.getTo()));
     }
   }
@@ -1,5 +1,7 @@
 package org.sakaiproject.nakamura.api.search;
 
+import com.google.common.base.Predicate;
+
 import java.util.List;
 
 public interface DeletedPathsService {
@@ -10,4 +12,12 @@ public interface DeletedPathsService {
    * query.
    */
   List<String> getDeletedPaths();
+
+  /**
+   * Get a filter for the paths that were deleted since the last Solr commit across all
+   * nodes in the cluster, for removing deleted items from search hits. A path is matched
+   * if it or one of its ancestors was deleted. The filter is meant for a single search and
+   * only sees deletes on other nodes made before it was created.
+   */
+  Predicate<String> getDeletedPathsFilter();
 }
\ No newline at end of file
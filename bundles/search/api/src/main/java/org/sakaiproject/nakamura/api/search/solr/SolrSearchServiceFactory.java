@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.api.search.solr;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 
+import java.util.Map;
+
 public interface SolrSearchServiceFactory {
 
   SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query,
@@ -26,4 +28,21 @@ public interface SolrSearchServiceFactory {
 
   SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query)
       throws SolrSearchException;
+
+  /**
+   * Count the matches of a query for each value of some fields, without fetching any of
+   * the matching documents. The same reader restrictions are applied as for
+   * {@link #getSearchResultSet(SlingHttpServletRequest, Query, boolean)}.
+   *
+   * @param request
+   * @param query
+   * @param asAnon
+   * @param fields
+   *          the fields to count the values of.
+   * @return for each field, the number of matches for each of its values. Values without
+   *         matches are left out.
+   * @throws SolrSearchException
+   */
+  Map<String, Map<String, Long>> getFacetCounts(SlingHttpServletRequest request,
+      Query query, boolean asAnon, String... fields) throws SolrSearchException;
 }
@@ -19,6 +19,11 @@ package org.sakaiproject.nakamura.search;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
@@ -36,6 +41,8 @@ import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 
+import com.google.common.base.Predicate;
+
 /**
  * Manage a cache of deleted paths as signaled by content deletion events. The cache is
  * cleared when an index commit event is received.
@@ -44,6 +51,11 @@ import org.sakaiproject.nakamura.api.search.solr.Query;
  * overwriting a centrally managed but unsynchronized cache. Each machine should have only
  * one version of this service actively managing that machines cache so it should always
  * work with the authoritative state.
+ * <p>
+ * Each machine keeps its own deletes in a {@link PathTrie}, so a delete under an already
+ * deleted parent is dropped and deleting a parent removes the entries of its children.
+ * The entries of other machines are read into a trie that is rebuilt only when their
+ * count or commit generation changes.
  */
 @Component
 @Service
@@ -55,12 +67,33 @@ import org.sakaiproject.nakamura.api.search.solr.Query;
 public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsService {
   public static final String DELETED_PATH_CACHE = "deletedPathQueue";
 
+  /**
+   * The deleted paths of another machine as last read from the cache.
+   */
+  private static final class ServerPaths {
+    private final String stamp;
+    private final List<String> paths;
+    private final PathTrie trie;
+
+    private ServerPaths(String stamp, List<String> paths, PathTrie trie) {
+      this.stamp = stamp;
+      this.paths = paths;
+      this.trie = trie;
+    }
+  }
+
   @Reference
   private CacheManagerService cacheManagerService;
 
   @Reference
   private ClusterTrackingService clusterTrackingService;
 
+  private final PathTrie localTrie = new PathTrie();
+  /** the deleted paths of this machine by index, in the order they were deleted */
+  private final Map<Integer, String> localPaths = new TreeMap<Integer, String>();
+  private final ReadWriteLock localLock = new ReentrantReadWriteLock();
+  private final Map<String, ServerPaths> serverPaths = new ConcurrentHashMap<String, ServerPaths>();
+
   public DeletedPathsServiceImpl() {
   }
 
@@ -88,39 +121,85 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
     Cache<String> cache = getDeletedPathCache();
     String myId = clusterTrackingService.getCurrentServerId();
 
-    // add the new path to the last position
     int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    cache.put("path[" + pathCount + "]@" + myId,
-        SearchUtil.escapeString(path, Query.SOLR));
+    List<Integer> collapsed;
+    localLock.writeLock().lock();
+    try {
+      collapsed = localTrie.add(path, pathCount);
+      if (collapsed == null) {
+        // already covered by a deleted parent
+        return;
+      }
+      for (Integer idx : collapsed) {
+        localPaths.remove(idx);
+      }
+      localPaths.put(pathCount, path);
+    } finally {
+      localLock.writeLock().unlock();
+    }
+
+    // add the new path to the last position
+    cache.put("path[" + pathCount + "]@" + myId, path);
     cache.put("pathCount@" + myId, String.valueOf(pathCount + 1));
 
-    // clean out any paths that start with the path we've just added
-    for (int idx = 0; idx < pathCount; idx++) {
-      String key = "path[" + idx + "]@" + myId;
-      String cachedPath = cache.get(key);
-      // check for null in case a previous pass deleted the element. we don't do garbage
-      // collection because the list is expected to be too short lived.
-      if (cachedPath != null && !cachedPath.equals(path) && cachedPath.startsWith(path)) {
-        cache.remove(key);
-      }
+    // clean out any paths under the path we've just added
+    for (Integer idx : collapsed) {
+      cache.remove("path[" + idx + "]@" + myId);
     }
   }
 
   /**
-   * Clear the list of deleted nodes for this node.
+   * Clear the list of deleted nodes for this node, and move on to the next commit
+   * generation.
    */
   private synchronized void clearDeletedPaths() {
     Cache<String> cache = getDeletedPathCache();
     String myId = clusterTrackingService.getCurrentServerId();
 
+    localLock.writeLock().lock();
+    try {
+      localTrie.clear();
+      localPaths.clear();
+    } finally {
+      localLock.writeLock().unlock();
+    }
+
     int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
     for (int idx = 0; idx < pathCount; idx++) {
       cache.remove("path[" + idx + "]@" + myId);
     }
 
+    int generation = PropertiesUtil.toInteger(cache.get("generation@" + myId), 0);
+    cache.put("generation@" + myId, Integer.toString(generation + 1));
     cache.put("pathCount@" + myId, Integer.toString(0));
   }
 
+  /**
+   * @param cache
+   * @param serverId
+   *          the id of another machine.
+   * @return the deleted paths of that machine.
+   */
+  private ServerPaths getServerPaths(Cache<String> cache, String serverId) {
+    String pathCount = cache.get("pathCount@" + serverId);
+    String stamp = cache.get("generation@" + serverId) + ":" + pathCount;
+    ServerPaths current = serverPaths.get(serverId);
+    if (current == null || !current.stamp.equals(stamp)) {
+      List<String> paths = new ArrayList<String>();
+      PathTrie trie = new PathTrie();
+      int count = PropertiesUtil.toInteger(pathCount, 0);
+      for (int idx = 0; idx < count; idx++) {
+        String path = cache.get("path[" + idx + "]@" + serverId);
+        if (path != null && trie.add(path, idx) != null) {
+          paths.add(path);
+        }
+      }
+      current = new ServerPaths(stamp, paths, trie);
+      serverPaths.put(serverId, current);
+    }
+    return current;
+  }
+
   // ---------- DeletedPathsService interface ----------------------------------
   /**
    * {@inheritDoc}
@@ -131,23 +210,68 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
   public List<String> getDeletedPaths() {
     List<String> deletedPaths = new ArrayList<String>();
     Cache<String> cache = getDeletedPathCache();
+    String myId = clusterTrackingService.getCurrentServerId();
 
     for (ClusterServer server : clusterTrackingService.getAllServers()) {
       String serverId = server.getServerId();
-      int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + serverId), 0);
-
-      for (int idx = 0; idx < pathCount; idx++) {
-        String path = (String)cache.get("path[" + idx + "]@" + serverId);
-
-        if (path != null) {
-          deletedPaths.add(SearchUtil.escapeString(path, Query.SOLR));
+      List<String> paths;
+      if (serverId.equals(myId)) {
+        localLock.readLock().lock();
+        try {
+          paths = new ArrayList<String>(localPaths.values());
+        } finally {
+          localLock.readLock().unlock();
         }
+      } else {
+        paths = getServerPaths(cache, serverId).paths;
+      }
+      for (String path : paths) {
+        deletedPaths.add(SearchUtil.escapeString(path, Query.SOLR));
       }
     }
 
     return deletedPaths;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPathsFilter()
+   */
+  @Override
+  public Predicate<String> getDeletedPathsFilter() {
+    Cache<String> cache = getDeletedPathCache();
+    String myId = clusterTrackingService.getCurrentServerId();
+    final List<PathTrie> others = new ArrayList<PathTrie>();
+    for (ClusterServer server : clusterTrackingService.getAllServers()) {
+      String serverId = server.getServerId();
+      if (!serverId.equals(myId)) {
+        PathTrie trie = getServerPaths(cache, serverId).trie;
+        if (trie.size() > 0) {
+          others.add(trie);
+        }
+      }
+    }
+    return new Predicate<String>() {
+      public boolean apply(String path) {
+        localLock.readLock().lock();
+        try {
+          if (localTrie.covers(path)) {
+            return true;
+          }
+        } finally {
+          localLock.readLock().unlock();
+        }
+        for (PathTrie trie : others) {
+          if (trie.covers(path)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    };
+  }
+
   // ---------- EventHandler interface -----------------------------------------
   public void handleEvent(Event event) {
     String topic = event.getTopic();
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trie of deleted paths, one node per path segment. A deleted path covers everything
+ * below it, so deleting a parent collapses the tombstones of its children. Not thread
+ * safe.
+ */
+class PathTrie {
+
+  private static final class Node {
+    private Map<String, Node> children;
+    /** index of the tombstone for this path, -1 if the path itself was not deleted */
+    private int tombstone = -1;
+  }
+
+  private Node root = new Node();
+  private int size;
+
+  /**
+   * Add a tombstone.
+   *
+   * @param path
+   *          the deleted path.
+   * @param index
+   *          an index to identify the tombstone by.
+   * @return the indexes of the tombstones collapsed under the new one, or null if the path
+   *         was already covered and nothing was added.
+   */
+  List<Integer> add(String path, int index) {
+    Node node = root;
+    for (String segment : StringUtils.split(path, '/')) {
+      if (node.tombstone >= 0) {
+        return null;
+      }
+      if (node.children == null) {
+        node.children = new HashMap<String, Node>();
+      }
+      Node child = node.children.get(segment);
+      if (child == null) {
+        child = new Node();
+        node.children.put(segment, child);
+      }
+      node = child;
+    }
+    if (node.tombstone >= 0) {
+      return null;
+    }
+    List<Integer> collapsed = new ArrayList<Integer>();
+    collect(node.children, collapsed);
+    node.children = null;
+    node.tombstone = index;
+    size = size - collapsed.size() + 1;
+    return collapsed;
+  }
+
+  private void collect(Map<String, Node> children, List<Integer> collapsed) {
+    if (children != null) {
+      for (Node child : children.values()) {
+        if (child.tombstone >= 0) {
+          collapsed.add(child.tombstone);
+        }
+        collect(child.children, collapsed);
+      }
+    }
+  }
+
+  /**
+   * @param path
+   * @return true if the path or one of its ancestors has a tombstone.
+   */
+  boolean covers(String path) {
+    if (size == 0 || path == null) {
+      return false;
+    }
+    Node node = root;
+    for (String segment : StringUtils.split(path, '/')) {
+      if (node.tombstone >= 0) {
+        return true;
+      }
+      if (node.children == null) {
+        return false;
+      }
+      node = node.children.get(segment);
+      if (node == null) {
+        return false;
+      }
+    }
+    return node.tombstone >= 0;
+  }
+
+  /**
+   * @return the number of tombstones.
+   */
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    root = new Node();
+    size = 0;
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The readers filter query of each user, built from the user id and every group the user
+ * is a member of. Principals are sorted so the same user always gets the same filter
+ * string, which lets Solr reuse the filter from its filterCache.
+ *
+ * A change to an authorizable drops the entry of that authorizable and of every user that
+ * has it as a principal. Entries also expire after a time to pick up changes made on
+ * other servers.
+ */
+class ReaderFilterCache {
+
+  private static final class CachedFilter {
+    private final String filter;
+    private final Set<String> principals;
+    private final long expires;
+
+    private CachedFilter(String filter, Set<String> principals, long expires) {
+      this.filter = filter;
+      this.principals = principals;
+      this.expires = expires;
+    }
+  }
+
+  private final AtomicLong generation = new AtomicLong();
+  private final Map<String, CachedFilter> filters;
+  private final long ttl;
+
+  /**
+   * @param maxEntries
+   *          the most users kept, least recently used are discarded first.
+   * @param ttl
+   *          the time in ms a filter is kept.
+   */
+  ReaderFilterCache(final int maxEntries, long ttl) {
+    this.ttl = ttl;
+    this.filters = new LinkedHashMap<String, CachedFilter>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, CachedFilter> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @param escapedPrincipals
+   *          the principals, already escaped for Solr.
+   * @return the readers filter query, with the principals in a stable order.
+   */
+  static String buildFilter(Collection<String> escapedPrincipals) {
+    StringBuilder sb = new StringBuilder("readers:(");
+    boolean first = true;
+    for (String principal : new TreeSet<String>(escapedPrincipals)) {
+      if (!first) {
+        sb.append(" OR ");
+      }
+      sb.append(principal);
+      first = false;
+    }
+    return sb.append(")").toString();
+  }
+
+  /**
+   * @param userId
+   * @return the filter or null if there is no current filter.
+   */
+  String get(String userId) {
+    CachedFilter cached;
+    synchronized (filters) {
+      cached = filters.get(userId);
+    }
+    if (cached == null || cached.expires < System.currentTimeMillis()) {
+      return null;
+    }
+    return cached.filter;
+  }
+
+  /**
+   * @return the current generation, take this before reading the principals so that a
+   *         change while reading them stops the result being cached.
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * @param userId
+   * @param principals
+   *          the ids of the groups the user is a member of, not escaped.
+   * @param filter
+   *          the filter built from the principals.
+   * @param filterGeneration
+   *          the generation taken before the principals were read.
+   */
+  void put(String userId, Set<String> principals, String filter, long filterGeneration) {
+    CachedFilter cached = new CachedFilter(filter, principals, System.currentTimeMillis()
+        + ttl);
+    synchronized (filters) {
+      if (filterGeneration == generation.get()) {
+        filters.put(userId, cached);
+      }
+    }
+  }
+
+  /**
+   * Drop the filters that depend on an authorizable.
+   *
+   * @param authorizableId
+   *          the id of the user or group that changed.
+   */
+  void invalidate(String authorizableId) {
+    synchronized (filters) {
+      generation.incrementAndGet();
+      filters.remove(authorizableId);
+      for (Iterator<CachedFilter> i = filters.values().iterator(); i.hasNext();) {
+        if (i.next().principals.contains(authorizableId)) {
+          i.remove();
+        }
+      }
+    }
+  }
+}
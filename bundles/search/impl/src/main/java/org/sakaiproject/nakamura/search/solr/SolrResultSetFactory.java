@@ -24,6 +24,7 @@ import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
@@ -36,6 +37,8 @@ import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.params.CommonParams;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -61,16 +64,19 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.List;
 
 /**
  *
  */
 @Component(metatype = true)
-@Service
-@Property(name = "type", value = Query.SOLR)
-
-public class SolrResultSetFactory implements ResultSetFactory {
+@Service(value = { ResultSetFactory.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "type", value = Query.SOLR),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+public class SolrResultSetFactory implements ResultSetFactory, EventHandler {
   @Property(longValue = 100L)
   private static final String VERY_SLOW_QUERY_TIME = "verySlowQueryTime";
   @Property(longValue = 10L)
@@ -79,6 +85,17 @@ public class SolrResultSetFactory implements ResultSetFactory {
   private static final String DEFAULT_MAX_RESULTS = "defaultMaxResults";
   @Property(value = "POST")
   private static final String HTTP_METHOD = "httpMethod";
+  /**
+   * The time in seconds the readers filter of a user is cached, this bounds how long a
+   * membership change made on another server takes to show in search results.
+   */
+  @Property(intValue = 60)
+  private static final String READER_CACHE_TTL = "readerCacheTtl";
+  /**
+   * The number of users whose readers filter is cached.
+   */
+  @Property(intValue = 1000)
+  private static final String READER_CACHE_SIZE = "readerCacheSize";
 
   /** only used to mark the logger */
   private final class SlowQueryLogger { }
@@ -96,6 +113,7 @@ public class SolrResultSetFactory implements ResultSetFactory {
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
   private METHOD queryMethod;
+  private ReaderFilterCache readerCache = new ReaderFilterCache(1000, 60000L);
 
   @Activate
   protected void activate(Map<?, ?> props) {
@@ -104,6 +122,23 @@ public class SolrResultSetFactory implements ResultSetFactory {
     slowQueryThreshold = PropertiesUtil.toLong(props.get(SLOW_QUERY_TIME), 10L);
     verySlowQueryThreshold = PropertiesUtil.toLong(props.get(VERY_SLOW_QUERY_TIME), 100L);
     queryMethod = METHOD.valueOf(PropertiesUtil.toString(props.get(HTTP_METHOD), "POST"));
+    readerCache = new ReaderFilterCache(PropertiesUtil.toInteger(
+        props.get(READER_CACHE_SIZE), 1000), PropertiesUtil.toInteger(
+        props.get(READER_CACHE_TTL), 60) * 1000L);
+  }
+
+  /**
+   * {@inheritDoc}
+   * A change to a user or group can change the groups a user is a member of, so drop the
+   * readers filters that depend on it.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object path = event.getProperty("path");
+    if (path != null) {
+      readerCache.invalidate(String.valueOf(path));
+    }
   }
 
   /**
@@ -154,14 +189,7 @@ public class SolrResultSetFactory implements ResultSetFactory {
       } else {
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
         if (!User.ADMIN_USER.equals(session.getUserId())) {
-          AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable user = am.findAuthorizable(session.getUserId());
-          Set<String> readers = Sets.newHashSet();
-          for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-            readers.add(SearchUtil.escapeString(gi.next().getId(), Query.SOLR));
-          }
-          readers.add(SearchUtil.escapeString(session.getUserId(), Query.SOLR));
-          filterQueries.add("readers:(" + StringUtils.join(readers," OR ") + ")");
+          filterQueries.add(getReaderFilter(session));
         }
       }
 
@@ -169,12 +197,6 @@ public class SolrResultSetFactory implements ResultSetFactory {
       // some things on the server that the UI doesn't want (e.g. collection groups)
       filterQueries.add("-exclude:true");
 
-      // filter out deleted items
-      List<String> deletedPaths = deletedPathsService.getDeletedPaths();
-      if (!deletedPaths.isEmpty()) {
-        // these are escaped as they are collected
-        filterQueries.add("-path:(" + StringUtils.join(deletedPaths, " OR ") + ")");
-      }
       // save filterQuery changes
       queryOptions.put(CommonParams.FQ, filterQueries);
 
@@ -198,7 +220,10 @@ public class SolrResultSetFactory implements ResultSetFactory {
         }
       } catch (UnsupportedEncodingException e) {
       }
-      SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response);
+      // filter out items deleted since the last commit from the hits, rather than adding
+      // them to the query where they would defeat the filter cache.
+      SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response,
+          deletedPathsService.getDeletedPathsFilter());
       if ( LOGGER.isDebugEnabled()) {
         LOGGER.debug("Got {} hits in {} ms", rs.getSize(), response.getElapsedTime());
       }
@@ -212,6 +237,34 @@ public class SolrResultSetFactory implements ResultSetFactory {
     }
   }
 
+  /**
+   * @param session
+   * @return the readers filter query for the user of the session.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  private String getReaderFilter(Session session) throws StorageClientException,
+      AccessDeniedException {
+    String userId = session.getUserId();
+    String filter = readerCache.get(userId);
+    if (filter == null) {
+      long generation = readerCache.getGeneration();
+      AuthorizableManager am = session.getAuthorizableManager();
+      Authorizable user = am.findAuthorizable(userId);
+      Set<String> principals = Sets.newHashSet();
+      Set<String> readers = Sets.newHashSet();
+      for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
+        String groupId = gi.next().getId();
+        principals.add(groupId);
+        readers.add(SearchUtil.escapeString(groupId, Query.SOLR));
+      }
+      readers.add(SearchUtil.escapeString(userId, Query.SOLR));
+      filter = ReaderFilterCache.buildFilter(readers);
+      readerCache.put(userId, principals, filter, generation);
+    }
+    return filter;
+  }
+
   /**
    * @param request
    * @param query
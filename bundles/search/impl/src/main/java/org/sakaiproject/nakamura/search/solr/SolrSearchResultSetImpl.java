@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.search.solr;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.UnmodifiableIterator;
 
 import org.apache.solr.client.solrj.response.FacetField;
@@ -43,11 +44,23 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrSearchResultSetImpl.class);
 
   private final QueryResponse queryResponse;
+  private final Predicate<String> deletedPaths;
   private SolrDocumentList responseList;
 
   public SolrSearchResultSetImpl(QueryResponse queryResponse) {
+    this(queryResponse, null);
+  }
+
+  /**
+   * @param queryResponse
+   * @param deletedPaths
+   *          matches the paths of hits that should be dropped, may be null.
+   */
+  public SolrSearchResultSetImpl(QueryResponse queryResponse,
+      Predicate<String> deletedPaths) {
     LOGGER.debug("new SolrSearchResultSetImpl(QueryResponse {})", queryResponse);
     this.queryResponse = queryResponse;
+    this.deletedPaths = deletedPaths;
   }
 
   public Iterator<Result> getResultSetIterator() {
@@ -155,6 +168,28 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
           }
         }
       }
+      removeDeleted();
+    }
+  }
+
+  /**
+   * Drop hits that have been deleted but are still in the index until the next commit.
+   * The total is reduced by the hits dropped from this page.
+   */
+  private void removeDeleted() {
+    if (deletedPaths == null || responseList.isEmpty()) {
+      return;
+    }
+    int removed = 0;
+    for (Iterator<SolrDocument> i = responseList.iterator(); i.hasNext();) {
+      Object path = i.next().getFirstValue("path");
+      if (path != null && deletedPaths.apply(String.valueOf(path))) {
+        i.remove();
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      responseList.setNumFound(Math.max(0, responseList.getNumFound() - removed));
     }
   }
 
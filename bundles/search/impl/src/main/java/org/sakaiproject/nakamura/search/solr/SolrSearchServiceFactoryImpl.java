@@ -27,14 +27,22 @@ import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.FacetField.Count;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 
@@ -77,4 +85,52 @@ public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
       Query query) throws SolrSearchException {
     return getSearchResultSet(request, query, false);
   }
+
+  /**
+   * {@inheritDoc}
+   * Runs the query with no rows and a field facet on each of the fields, so only the
+   * bucket counts come back from Solr.
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory#getFacetCounts(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.sakaiproject.nakamura.api.search.solr.Query, boolean, java.lang.String[])
+   */
+  public Map<String, Map<String, Long>> getFacetCounts(SlingHttpServletRequest request,
+      Query query, boolean asAnon, String... fields) throws SolrSearchException {
+    Map<String, Object> options = Maps.newHashMap();
+    if (query.getOptions() != null) {
+      options.putAll(query.getOptions());
+    }
+    // sorting and paging mean nothing without rows.
+    options.remove(CommonParams.SORT);
+    options.remove(SolrSearchConstants.PARAMS_PAGE);
+    options.put(SolrSearchConstants.PARAMS_ITEMS_PER_PAGE, "0");
+    options.put(FacetParams.FACET, "true");
+    options.put(FacetParams.FACET_FIELD, fields);
+    options.put(FacetParams.FACET_MINCOUNT, "1");
+    options.put(FacetParams.FACET_LIMIT, "-1");
+    SolrSearchResultSet rs = getSearchResultSet(request, new Query(query.getName(),
+        query.getType(), query.getQueryString(), options), asAnon);
+    if (rs == null) {
+      return Collections.emptyMap();
+    }
+    return toCounts(rs.getFacetFields());
+  }
+
+  static Map<String, Map<String, Long>> toCounts(List<FacetField> facetFields) {
+    Map<String, Map<String, Long>> counts = new LinkedHashMap<String, Map<String, Long>>();
+    if (facetFields != null) {
+      for (FacetField facetField : facetFields) {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        if (facetField.getValues() != null) {
+          for (Count count : facetField.getValues()) {
+            if (count.getCount() > 0) {
+              values.put(count.getName(), count.getCount());
+            }
+          }
+        }
+        counts.put(facetField.getName(), values);
+      }
+    }
+    return counts;
+  }
 }
@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Totals of sparse queries, keyed by the user and the query properties without the paging
+ * options. Each total remembers the paths and resource types its query is restricted to,
+ * and a content write seen by this server drops only the totals under its path. Totals
+ * also expire after a time to pick up writes made on other servers. A total that is not
+ * restricted to a path could be changed by almost any write, so it is not dropped by
+ * writes and is kept for a much shorter time instead.
+ */
+class SparseCountCache {
+
+  static final String PATH = "path";
+  static final String RESOURCE_TYPE = "resourceType";
+  static final String SLING_RESOURCE_TYPE = "sling:resourceType";
+
+  private static final class CachedCount {
+    private final long count;
+    private final Set<String> paths;
+    private final Set<String> resourceTypes;
+    private final long expires;
+
+    private CachedCount(long count, Set<String> paths, Set<String> resourceTypes,
+        long expires) {
+      this.count = count;
+      this.paths = paths;
+      this.resourceTypes = resourceTypes;
+      this.expires = expires;
+    }
+
+    /**
+     * @return true if a change to the path, to an item of the resource type if it is
+     *         known, can change this total. Totals not restricted to a path only expire.
+     */
+    private boolean dependsOn(String path, String resourceType, boolean subtree) {
+      if (paths.isEmpty()) {
+        return false;
+      }
+      if (resourceType != null && !resourceTypes.isEmpty()
+          && !resourceTypes.contains(resourceType)) {
+        return false;
+      }
+      for (String queryPath : paths) {
+        if (isUnder(path, queryPath) || (subtree && isUnder(queryPath, path))) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private final AtomicLong generation = new AtomicLong();
+  private final Map<String, CachedCount> counts;
+  private final long ttl;
+  private final long unscopedTtl;
+
+  /**
+   * @param maxEntries
+   *          the most counts kept, least recently used are discarded first.
+   * @param ttl
+   *          the time in ms a count is kept.
+   * @param unscopedTtl
+   *          the time in ms a count of a query that is not restricted to a path is kept.
+   */
+  SparseCountCache(final int maxEntries, long ttl, long unscopedTtl) {
+    this.ttl = ttl;
+    this.unscopedTtl = unscopedTtl;
+    this.counts = new LinkedHashMap<String, CachedCount>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, CachedCount> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Build the cache key for a query, paging options (_page, _items) and sort options do
+   * not change the total so they are left out.
+   *
+   * @param userId
+   * @param props
+   * @return
+   */
+  static String getKey(String userId, Map<String, Object> props) {
+    Map<String, Object> keyProps = new TreeMap<String, Object>();
+    for (Entry<String, Object> e : props.entrySet()) {
+      String name = e.getKey();
+      if ("_page".equals(name) || "_items".equals(name) || name.startsWith("_sort")) {
+        continue;
+      }
+      keyProps.put(name, normalize(e.getValue()));
+    }
+    return userId + ":" + keyProps;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object normalize(Object value) {
+    if (value instanceof Map) {
+      Map<String, Object> sorted = new TreeMap<String, Object>();
+      for (Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+        sorted.put(e.getKey(), normalize(e.getValue()));
+      }
+      return sorted;
+    } else if (value instanceof Collection) {
+      List<Object> list = new ArrayList<Object>();
+      for (Object o : (Collection<Object>) value) {
+        list.add(normalize(o));
+      }
+      return list;
+    }
+    return value;
+  }
+
+  /**
+   * @param key
+   * @return the count or null if there is no current count. A negative count is more
+   *         than can be counted, as with result set sizes.
+   */
+  Long get(String key) {
+    CachedCount cached;
+    synchronized (counts) {
+      cached = counts.get(key);
+    }
+    if (cached == null || cached.expires < System.currentTimeMillis()) {
+      return null;
+    }
+    return cached.count;
+  }
+
+  /**
+   * @return the current generation, take this before running a count so that a write
+   *         during the count stops the result being cached.
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * @param key
+   * @param props
+   *          the query properties, the paths and resource types the query is restricted
+   *          to are taken from them.
+   * @param count
+   * @param countGeneration
+   *          the generation taken before the count was run.
+   */
+  void put(String key, Map<String, Object> props, long count, long countGeneration) {
+    Set<String> resourceTypes = values(props.get(RESOURCE_TYPE));
+    resourceTypes.addAll(values(props.get(SLING_RESOURCE_TYPE)));
+    Set<String> paths = values(props.get(PATH));
+    CachedCount cached = new CachedCount(count, paths, resourceTypes,
+        System.currentTimeMillis() + (paths.isEmpty() ? unscopedTtl : ttl));
+    synchronized (counts) {
+      if (countGeneration == generation.get()) {
+        counts.put(key, cached);
+      }
+    }
+  }
+
+  /**
+   * Drop the counts a change could alter.
+   *
+   * @param path
+   *          the path that changed.
+   * @param resourceType
+   *          the resource type of the item that changed, or null if it is not known.
+   * @param subtree
+   *          true if the change applies to everything under the path as well, as an ACL
+   *          change does.
+   */
+  void invalidate(String path, String resourceType, boolean subtree) {
+    synchronized (counts) {
+      generation.incrementAndGet();
+      for (Iterator<CachedCount> i = counts.values().iterator(); i.hasNext();) {
+        if (i.next().dependsOn(path, resourceType, subtree)) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop every count.
+   */
+  void invalidate() {
+    synchronized (counts) {
+      generation.incrementAndGet();
+      counts.clear();
+    }
+  }
+
+  private static Set<String> values(Object value) {
+    Set<String> values = new HashSet<String>();
+    if (value == null) {
+      return values;
+    } else if (value instanceof Collection) {
+      for (Object o : (Collection<?>) value) {
+        values.add(String.valueOf(o));
+      }
+    } else {
+      values.add(String.valueOf(value));
+    }
+    return values;
+  }
+
+  /**
+   * @return true if the path is the parent path or under it.
+   */
+  private static boolean isUnder(String path, String parent) {
+    return path.equals(parent)
+        || path.startsWith(parent.endsWith("/") ? parent : parent + "/");
+  }
+}
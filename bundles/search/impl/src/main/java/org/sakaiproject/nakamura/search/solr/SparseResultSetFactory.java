@@ -28,6 +28,7 @@ import java.net.URLDecoder;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.lucene.index.Term;
@@ -40,6 +41,8 @@ import org.apache.lucene.util.Version;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.schema.TextField;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -62,22 +65,55 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- *
+ * Runs queries directly against sparse content. Totals for paged queries are cached per
+ * user and query, and a local content write drops the cached totals under its path.
  */
 @Component(metatype = true)
-@Service
-@Property(name = "type", value = Query.SPARSE)
-public class SparseResultSetFactory implements ResultSetFactory {
+@Service(value = { ResultSetFactory.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "type", value = Query.SPARSE),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE",
+        "org/sakaiproject/nakamura/lite/content/MOVE",
+        "org/sakaiproject/nakamura/lite/accesscontrol/UPDATED" }) })
+public class SparseResultSetFactory implements ResultSetFactory, EventHandler {
   @Property(longValue = 100L)
   private static final String VERY_SLOW_QUERY_TIME = "verySlowQueryTime";
   @Property(longValue = 10L)
   private static final String SLOW_QUERY_TIME = "slowQueryTime";
   @Property(intValue = 100)
   private static final String DEFAULT_MAX_RESULTS = "defaultMaxResults";
+  /**
+   * The most matches a count query will iterate over, starting from the page after the
+   * one requested.
+   */
+  @Property(intValue = 100)
+  private static final String MAX_COUNT_RESULTS = "maxCountResults";
+  /**
+   * The time in seconds a total is cached, this bounds how stale a total can be after
+   * writes on other servers.
+   */
+  @Property(intValue = 60)
+  private static final String COUNT_CACHE_TTL = "countCacheTtl";
+  /**
+   * The time in seconds a total of a query that is not restricted to a path is cached.
+   * These are not dropped by writes, as nearly any write could change them.
+   */
+  @Property(intValue = 5)
+  private static final String UNSCOPED_COUNT_CACHE_TTL = "unscopedCountCacheTtl";
+  /**
+   * The number of totals cached.
+   */
+  @Property(intValue = 1000)
+  private static final String COUNT_CACHE_SIZE = "countCacheSize";
 
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
+  private int maxCountResults = 100;
+  private SparseCountCache countCache = new SparseCountCache(1000, 60000L, 5000L);
 
   /** only used to mark the logger */
   private final class SlowQueryLogger { }
@@ -91,6 +127,28 @@ public class SparseResultSetFactory implements ResultSetFactory {
         defaultMaxResults);
     slowQueryThreshold = PropertiesUtil.toLong(props.get(SLOW_QUERY_TIME), 10L);
     verySlowQueryThreshold = PropertiesUtil.toLong(props.get(VERY_SLOW_QUERY_TIME), 100L);
+    maxCountResults = PropertiesUtil.toInteger(props.get(MAX_COUNT_RESULTS), 100);
+    countCache = new SparseCountCache(PropertiesUtil.toInteger(props.get(COUNT_CACHE_SIZE),
+        1000), PropertiesUtil.toInteger(props.get(COUNT_CACHE_TTL), 60) * 1000L,
+        PropertiesUtil.toInteger(props.get(UNSCOPED_COUNT_CACHE_TTL), 5) * 1000L);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Drop the totals a content or ACL change could alter. An ACL change can alter the
+   * totals of queries anywhere under its path, a move is not narrowed down.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object path = event.getProperty("path");
+    if (path == null || event.getTopic().endsWith("/MOVE")) {
+      countCache.invalidate();
+      return;
+    }
+    Object resourceType = event.getProperty("resourceType");
+    countCache.invalidate(String.valueOf(path), resourceType == null ? null : String
+        .valueOf(resourceType), event.getTopic().contains("/accesscontrol/"));
   }
 
   /**
@@ -167,7 +225,7 @@ public class SparseResultSetFactory implements ResultSetFactory {
       LOGGER.debug(e.getLocalizedMessage(), e);
     }
     SolrSearchResultSet rs = new SparseSearchResultSet(items, defaultMaxResults);
-    return getResultSetWithCount(rs, props, cm);
+    return getResultSetWithCount(rs, props, cm, session.getUserId());
     } catch (AccessDeniedException e) {
       throw new SolrSearchException(500, e.getMessage());
     } catch (StorageClientException e) {
@@ -178,38 +236,35 @@ public class SparseResultSetFactory implements ResultSetFactory {
   }
 
   /**
-   * A standard paged OAE search returns a "total" value in the response. This may not
-   * be an exact count of all potential matches, but should be enough to let
-   * client-side code display a reasonable paging UX.  With a Solr search, "total" is
-   * derived from SolrDocumentList's getNumFound(). But a Sparse query
-   * result provides no equivalent functionality, and Sparse currently doesn't support
-   * SQL-style "count" queries. As a result, the only way to find out if there are
-   * more matches available is to do more searching and iterating.
-   *
-   * What's supplied here is a very rough negotiation between (A) leaving the client-side
-   * completely in the dark and (B) retrieving every single match in the DB on every
-   * single query.
+   * A standard paged OAE search returns a "total" value in the response. With a Solr
+   * search, "total" is derived from SolrDocumentList's getNumFound(). A Sparse query
+   * result provides no equivalent and Sparse doesn't support SQL-style "count" queries,
+   * so totals are counted and cached.
    * <ul>
-   * <li>If the current page's search returned more than zero results but fewer than the page size,
-   * then this is the last page available. Estimate "total" as the current page offset plus
-   * the current number of results.
-   * <li>If the current page's search returned zero results, then we assume that any earlier pages
-   * were full, and we estimate "total" as the current page offset. This may be wildly off, but it
-   * should help keep client-side paging from vanishing unexpectedly.
-   * <li>If the current page's search returned a full page of results, then a second query is needed
-   * to hint at the remaining count. We try to retrieve a maximum-page-size's worth of results
-   * as a compromise between speed and accuracy.
+   * <li>If the current page's search returned more than zero results but fewer than the
+   * page size, then this is the last page and the total is exact: the current page offset
+   * plus the current number of results. It is cached for later pages.
+   * <li>Otherwise a cached total for the same user and query is used if nothing it
+   * depends on has been written since it was counted, and it reaches past a full page.
+   * <li>Otherwise one count query iterates over up to maxCountResults matches from the
+   * next page on, as the page probe this replaced did, and the result is cached. If the
+   * count query is full there are more matches than were counted, and the total is the
+   * negative of the number known, the "more than can be counted" size. Pages past that
+   * count again.
+   * <li>An empty page after the first one reports the cached total, or its offset if
+   * there is none.
    * </ul>
    *
    * @param queryResultSet
    * @param props
    * @param cm
+   * @param userId
    * @return
    * @throws StorageClientException
    * @throws AccessDeniedException
    */
   private SolrSearchResultSet getResultSetWithCount(SolrSearchResultSet queryResultSet,
-      Map<String, Object> props, ContentManager cm) throws StorageClientException, AccessDeniedException {
+      Map<String, Object> props, ContentManager cm, String userId) throws StorageClientException, AccessDeniedException {
     final SolrSearchResultSet finalResultSet;
     final long queryCount = queryResultSet.getSize();
 
@@ -218,57 +273,35 @@ public class SparseResultSetFactory implements ResultSetFactory {
       // tinkering.
       finalResultSet = queryResultSet;
     } else {
-      // Solr search results include both the desired page of results and a fuller count
-      // of matches. Sparse queries only return the requested page of results, with no
-      // other information.
-      final long count;
       long nitems = Long.valueOf(String.valueOf(props.get("_" + PARAMS_ITEMS_PER_PAGE)));
       long page = Long.valueOf(String.valueOf(props.get("_" + PARAMS_PAGE)));
       long offset = page * nitems;
-      if (queryCount == 0) {
-        if (page > 0) {
-          // If the current page results are empty, that says nothing about whether
-          // earlier pages would have been full. It's possible that there are no matches
-          // at all, in which case the reported count will be even more misleading than usual.
-          try {
-            LOGGER.info("Empty results from paged sparse query {}", URLDecoder.decode(props.toString(),"UTF-8"));
-          } catch (UnsupportedEncodingException e) {
-            LOGGER.debug(e.getLocalizedMessage(), e);
-          }
-        }
-        count = offset;
+      String key = SparseCountCache.getKey(userId, props);
+      long count;
+      if (queryCount > 0 && queryCount < nitems) {
+        count = offset + queryCount;
+        countCache.put(key, props, count, countCache.getGeneration());
+      } else if (queryCount == 0 && page == 0) {
+        count = 0;
+        countCache.put(key, props, count, countCache.getGeneration());
       } else {
-        // Currently the only way to get a count of Sparse matches outside the specified
-        // page range is to perform a larger paged query. Sparse query restrictions
-        // mean that a very inaccurate count is still very likely (as compared to
-        // a "count()" query in SQL).
-        if (queryCount == nitems) {
+        Long cached = countCache.get(key);
+        if (queryCount == 0) {
+          count = (cached == null) ? offset : cached;
+        } else if (cached != null && Math.abs(cached) > offset + queryCount) {
+          count = cached;
+        } else {
+          long generation = countCache.getGeneration();
           long nextOffset = offset + nitems;
-          long countStartPage = nextOffset / defaultMaxResults;
-          long countOffset = countStartPage * defaultMaxResults;
-          props.put("_" + PARAMS_PAGE, Long.toString(countStartPage));
-          props.put("_" + PARAMS_ITEMS_PER_PAGE, Integer.toString(defaultMaxResults));
-          long tquery = System.currentTimeMillis();
-          Iterable<Content> countItems = cm.find(props);
-          tquery = System.currentTimeMillis() - tquery;
-          try {
-            if ( tquery > verySlowQueryThreshold ) {
-              SLOW_QUERY_LOGGER.error("Very slow count retrieval from sparse query {} ms {} ",tquery, URLDecoder.decode(props.toString(),"UTF-8"));
-            } else if ( tquery > slowQueryThreshold ) {
-              SLOW_QUERY_LOGGER.warn("Slow count retrieval from sparse query {} ms {} ",tquery, URLDecoder.decode(props.toString(),"UTF-8"));
-            }
-          } catch (UnsupportedEncodingException e) {
-            LOGGER.debug(e.getLocalizedMessage(), e);
-          }
-          long additionalCount = 0;
-          final Iterator<Content> countIterator = countItems.iterator();
-          while (countIterator.hasNext()) {
-            countIterator.next();
-            additionalCount++;
+          long countStartPage = nextOffset / maxCountResults;
+          long counted = countMatches(props, cm, countStartPage);
+          if (counted < maxCountResults) {
+            // the count never reports fewer than the pages already seen.
+            count = Math.max(countStartPage * maxCountResults + counted, offset + queryCount);
+          } else {
+            count = -(countStartPage * maxCountResults + counted);
           }
-          count = countOffset + additionalCount;
-        } else {
-          count = offset + queryCount;
+          countCache.put(key, props, count, generation);
         }
       }
       finalResultSet = new SearchResultSetSizeWrapper(queryResultSet, count);
@@ -276,6 +309,43 @@ public class SparseResultSetFactory implements ResultSetFactory {
     return finalResultSet;
   }
 
+  /**
+   * Count the matches for a query on one page of maxCountResults.
+   *
+   * @param props
+   * @param cm
+   * @param countPage
+   *          the page of maxCountResults to count.
+   * @return
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  private long countMatches(Map<String, Object> props, ContentManager cm, long countPage)
+      throws StorageClientException, AccessDeniedException {
+    Map<String, Object> countProps = Maps.newHashMap(props);
+    countProps.put("_" + PARAMS_PAGE, Long.toString(countPage));
+    countProps.put("_" + PARAMS_ITEMS_PER_PAGE, Integer.toString(maxCountResults));
+    long tquery = System.currentTimeMillis();
+    Iterable<Content> countItems = cm.find(countProps);
+    long count = 0;
+    final Iterator<Content> countIterator = countItems.iterator();
+    while (count < maxCountResults && countIterator.hasNext()) {
+      countIterator.next();
+      count++;
+    }
+    tquery = System.currentTimeMillis() - tquery;
+    try {
+      if ( tquery > verySlowQueryThreshold ) {
+        SLOW_QUERY_LOGGER.error("Very slow count retrieval from sparse query {} ms {} ",tquery, URLDecoder.decode(props.toString(),"UTF-8"));
+      } else if ( tquery > slowQueryThreshold ) {
+        SLOW_QUERY_LOGGER.warn("Slow count retrieval from sparse query {} ms {} ",tquery, URLDecoder.decode(props.toString(),"UTF-8"));
+      }
+    } catch (UnsupportedEncodingException e) {
+      LOGGER.debug(e.getLocalizedMessage(), e);
+    }
+    return count;
+  }
+
   /**
    * @param clause
    * @param clauseQuery
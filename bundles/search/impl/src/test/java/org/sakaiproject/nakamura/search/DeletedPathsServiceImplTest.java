@@ -18,6 +18,8 @@
 package org.sakaiproject.nakamura.search;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
@@ -36,6 +38,7 @@ import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
@@ -134,4 +137,39 @@ public class DeletedPathsServiceImplTest {
 
     assertEquals(keeperPaths, service.getDeletedPaths());
   }
+
+  @Test
+  public void testDeletedPathsFilter() throws Exception {
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/first/second")));
+    Predicate<String> deleted = service.getDeletedPathsFilter();
+    assertTrue(deleted.apply("/first/second"));
+    assertTrue(deleted.apply("/first/second/child"));
+    assertFalse(deleted.apply("/first"));
+    assertFalse(deleted.apply("/first/secondary"));
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT", ImmutableMap
+        .of()));
+    assertFalse(service.getDeletedPathsFilter().apply("/first/second"));
+  }
+
+  @Test
+  public void testOtherServerPaths() throws Exception {
+    Cache<String> cache = cacheManagerService.getCache(
+        DeletedPathsServiceImpl.DELETED_PATH_CACHE, CacheScope.CLUSTERREPLICATED);
+    cache.put("pathCount@other", "2");
+    cache.put("path[0]@other", "/a/b");
+    cache.put("path[1]@other", "/c");
+    ClusterServer other = org.mockito.Mockito.mock(ClusterServer.class);
+    when(other.getServerId()).thenReturn("other");
+    when(clusterTrackingService.getAllServers()).thenReturn(
+        Lists.newArrayList(clusterServer, other));
+
+    assertEquals(Lists.newArrayList("/a/b", "/c"), service.getDeletedPaths());
+    assertTrue(service.getDeletedPathsFilter().apply("/c/d"));
+
+    cache.put("generation@other", "1");
+    cache.put("pathCount@other", "0");
+    assertFalse(service.getDeletedPathsFilter().apply("/c/d"));
+  }
 }
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ */
+public class PathTrieTest {
+
+  @Test
+  public void testParentCollapsesChildren() {
+    PathTrie trie = new PathTrie();
+    assertEquals(0, trie.add("/a/b/c", 0).size());
+    assertEquals(0, trie.add("/a/b/d", 1).size());
+    assertEquals(0, trie.add("/a/x", 2).size());
+    assertEquals(3, trie.size());
+
+    List<Integer> collapsed = trie.add("/a/b", 3);
+    Collections.sort(collapsed);
+    assertEquals(Lists.newArrayList(0, 1), collapsed);
+    assertEquals(2, trie.size());
+
+    // already covered by /a/b
+    assertNull(trie.add("/a/b/e", 4));
+    assertNull(trie.add("/a/b", 5));
+  }
+
+  @Test
+  public void testCovers() {
+    PathTrie trie = new PathTrie();
+    assertFalse(trie.covers("/a"));
+    trie.add("/a/b", 0);
+    assertTrue(trie.covers("/a/b"));
+    assertTrue(trie.covers("/a/b/c/d"));
+    assertFalse(trie.covers("/a"));
+    assertFalse(trie.covers("/a/bc"));
+    assertFalse(trie.covers(null));
+    trie.clear();
+    assertFalse(trie.covers("/a/b"));
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+public class ReaderFilterCacheTest {
+
+  @Test
+  public void filterIsCanonical() {
+    String filter = ReaderFilterCache.buildFilter(Lists.newArrayList("ieb", "g-b", "g-a"));
+    assertEquals("readers:(g-a OR g-b OR ieb)", filter);
+    assertEquals(filter, ReaderFilterCache.buildFilter(Lists.newArrayList("g-b", "ieb",
+        "g-a")));
+  }
+
+  @Test
+  public void membershipChangeDropsDependentFilters() {
+    ReaderFilterCache cache = new ReaderFilterCache(10, 60000L);
+    assertNull(cache.get("ieb"));
+    cache.put("ieb", ImmutableSet.of("g-a", "g-b"), "ieb-filter", cache.getGeneration());
+    cache.put("zach", ImmutableSet.of("g-c"), "zach-filter", cache.getGeneration());
+    assertEquals("ieb-filter", cache.get("ieb"));
+
+    cache.invalidate("g-b");
+    assertNull(cache.get("ieb"));
+    assertEquals("zach-filter", cache.get("zach"));
+
+    cache.invalidate("zach");
+    assertNull(cache.get("zach"));
+  }
+
+  @Test
+  public void changeWhileReadingIsNotCached() {
+    ReaderFilterCache cache = new ReaderFilterCache(10, 60000L);
+    long generation = cache.getGeneration();
+    cache.invalidate("g-a");
+    cache.put("ieb", ImmutableSet.of("g-a"), "ieb-filter", generation);
+    assertNull(cache.get("ieb"));
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isNull;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.easymock.Capture;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+
+import java.util.Map;
+
+public class SolrSearchServiceFactoryImplTest {
+
+  @Test
+  public void facetCountsFetchNoRows() throws Exception {
+    FacetField category = new FacetField("category");
+    category.add("message", 612);
+    category.add("invitation", 3);
+    category.add("chat", 0);
+
+    SolrSearchResultSet rs = createMock(SolrSearchResultSet.class);
+    expect(rs.getFacetFields()).andReturn(Lists.newArrayList(category));
+    ResultSetFactory resultSetFactory = createMock(ResultSetFactory.class);
+    Capture<Query> query = new Capture<Query>();
+    expect(resultSetFactory.processQuery((SlingHttpServletRequest) isNull(),
+        capture(query), eq(false))).andReturn(rs);
+    replay(rs, resultSetFactory);
+
+    SolrSearchServiceFactoryImpl factory = new SolrSearchServiceFactoryImpl();
+    factory.bindResultSetFactories(resultSetFactory, ImmutableMap.of("type", Query.SOLR));
+    Map<String, Map<String, Long>> counts = factory.getFacetCounts(null, new Query(
+        "path:a\\:zach/message*", ImmutableMap.<String, Object> of(CommonParams.SORT,
+            "_created desc")), false, "category");
+
+    assertEquals(ImmutableMap.of("category", ImmutableMap.of("message", 612L,
+        "invitation", 3L)), counts);
+    Map<String, Object> options = query.getValue().getOptions();
+    assertEquals("0", options.get(SolrSearchConstants.PARAMS_ITEMS_PER_PAGE));
+    assertEquals("true", options.get(FacetParams.FACET));
+    assertArrayEquals(new String[] { "category" },
+        (String[]) options.get(FacetParams.FACET_FIELD));
+    assertFalse(options.containsKey(CommonParams.SORT));
+    verify(rs, resultSetFactory);
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+public class SparseCountCacheTest {
+
+  @Test
+  public void keyIgnoresPaging() {
+    Map<String, Object> page0 = Maps.newHashMap();
+    page0.put("sling:resourceType", "sakai/pooled-content");
+    page0.put("orset0", ImmutableMap.of("a", "1", "b", Lists.newArrayList("2", "3")));
+    page0.put("_page", "0");
+    page0.put("_items", "10");
+    Map<String, Object> page3 = Maps.newHashMap(page0);
+    page3.put("_page", "3");
+    page3.put("_items", "25");
+    page3.put("_sortOn", "_lastModified");
+    assertEquals(SparseCountCache.getKey("ieb", page0), SparseCountCache.getKey("ieb", page3));
+    assertEquals(false, SparseCountCache.getKey("ieb", page0).equals(
+        SparseCountCache.getKey("anonymous", page0)));
+  }
+
+  @Test
+  public void writesDropDependentCounts() {
+    Map<String, Object> pages = ImmutableMap.<String, Object> of("path", "/sites/a/_pages",
+        "resourceType", "sakai/page");
+    SparseCountCache cache = new SparseCountCache(10, 60000L, 60000L);
+    assertNull(cache.get("pages"));
+    cache.put("pages", pages, 42, cache.getGeneration());
+    assertEquals(Long.valueOf(42), cache.get("pages"));
+
+    // other resource types and other paths leave the count alone
+    cache.invalidate("/sites/a/_pages/welcome/file", "sakai/file", false);
+    cache.invalidate("/sites/b/_pages/welcome", "sakai/page", false);
+    assertEquals(Long.valueOf(42), cache.get("pages"));
+
+    // a page under the path, or an item of unknown type, drops the count
+    cache.invalidate("/sites/a/_pages/welcome", "sakai/page", false);
+    assertNull(cache.get("pages"));
+    cache.put("pages", pages, 42, cache.getGeneration());
+    cache.invalidate("/sites/a/_pages/welcome", null, false);
+    assertNull(cache.get("pages"));
+
+    // an ACL change above the path drops the count, a content change does not
+    cache.put("pages", pages, 42, cache.getGeneration());
+    cache.invalidate("/sites/a", null, false);
+    assertEquals(Long.valueOf(42), cache.get("pages"));
+    cache.invalidate("/sites/a", null, true);
+    assertNull(cache.get("pages"));
+  }
+
+  @Test
+  public void countsWithoutPathOnlyExpire() {
+    Map<String, Object> anyPath = ImmutableMap.<String, Object> of("sling:resourceType",
+        Lists.newArrayList("sakai/pooled-content", "sakai/page"));
+    SparseCountCache cache = new SparseCountCache(10, 60000L, 60000L);
+    cache.put("anyPath", anyPath, 7, cache.getGeneration());
+    cache.invalidate("/sites/b/_pages/welcome", "sakai/page", false);
+    cache.invalidate("/sites", null, true);
+    assertEquals(Long.valueOf(7), cache.get("anyPath"));
+    cache.invalidate();
+    assertNull(cache.get("anyPath"));
+
+    cache = new SparseCountCache(10, 60000L, -1L);
+    cache.put("anyPath", anyPath, 7, cache.getGeneration());
+    assertNull(cache.get("anyPath"));
+  }
+
+  @Test
+  public void countsDuringWritesAreNotCached() {
+    Map<String, Object> props = ImmutableMap.<String, Object> of("path", "/a");
+    SparseCountCache cache = new SparseCountCache(10, 60000L, 60000L);
+    long generation = cache.getGeneration();
+    cache.invalidate("/b", null, false);
+    cache.put("k", props, 43, generation);
+    assertNull(cache.get("k"));
+    cache.put("k", props, 43, cache.getGeneration());
+    cache.invalidate();
+    assertNull(cache.get("k"));
+  }
+
+  @Test
+  public void expiresAndEvicts() {
+    Map<String, Object> props = ImmutableMap.<String, Object> of();
+    SparseCountCache cache = new SparseCountCache(2, -1L, -1L);
+    cache.put("k", props, 1, cache.getGeneration());
+    assertNull(cache.get("k"));
+    cache = new SparseCountCache(2, 60000L, 60000L);
+    cache.put("a", props, 1, cache.getGeneration());
+    cache.put("b", props, 2, cache.getGeneration());
+    cache.get("a");
+    cache.put("c", props, 3, cache.getGeneration());
+    assertEquals(Long.valueOf(1), cache.get("a"));
+    assertNull(cache.get("b"));
+  }
+}
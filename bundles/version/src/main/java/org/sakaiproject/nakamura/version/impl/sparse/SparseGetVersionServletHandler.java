@@ -19,6 +19,9 @@ package org.sakaiproject.nakamura.version.impl.sparse;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -35,6 +38,8 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.AbstractSafeMethodsServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.SafeServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.util.BlobAccess;
+import org.sakaiproject.nakamura.util.ContentBlobUtils;
 import org.sakaiproject.nakamura.version.impl.jcr.VersionRequestPathInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,6 +60,9 @@ public class SparseGetVersionServletHandler extends AbstractSafeMethodsServletRe
 
   public static final Logger LOG = LoggerFactory.getLogger(SparseGetVersionServletHandler.class);
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile BlobAccess blobAccess;
+
   /**
    * {@inheritDoc}
    * 
@@ -74,7 +82,7 @@ public class SparseGetVersionServletHandler extends AbstractSafeMethodsServletRe
       return;
     }    
     Resource resource = request.getResource();
-    Content content = resource.adaptTo(Content.class);
+    final Content content = resource.adaptTo(Content.class);
     final ContentManager contentManager = resource.adaptTo(ContentManager.class);
     Content versionContentTemp;
     try {
@@ -125,6 +133,12 @@ public class SparseGetVersionServletHandler extends AbstractSafeMethodsServletRe
               .setContentLength(toLong(versionContent
                       .getProperty(Content.LENGTH_FIELD)));
           try {
+            // Saved versions keep the blob reference the body had at the time.
+            String blobId = ContentBlobUtils.getBlobId(versionContent, null);
+            if (blobId != null) {
+              return (AdapterType) ContentBlobUtils.getBlobInputStream(blobAccess,
+                  contentManager, content.getPath(), blobId);
+            }
             return (AdapterType) contentManager.getVersionInputStream(versionContent.getPath(), versionName);
           } catch (AccessDeniedException e) {
             LOG.warn(e.getMessage());
@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads blobs for callers that have read the content item referring to them. The blob
+ * store registers this as a service, components that read content bodies reference it and
+ * pass it to {@link ContentBlobUtils}.
+ */
+public interface BlobAccess {
+  /**
+   * @param path
+   *          The content item referring to the blob.
+   * @param blobId
+   * @return the body of the blob, or null if the item holds no reference to it.
+   */
+  InputStream getInputStream(String path, String blobId) throws StorageClientException,
+      AccessDeniedException, IOException;
+
+  /**
+   * @param path
+   *          The content item referring to the blob.
+   * @param blobId
+   * @return true if the item holds a reference to the blob and the blob has a body.
+   */
+  boolean hasBody(String path, String blobId) throws StorageClientException,
+      AccessDeniedException;
+
+  /**
+   * Gives a content item copied or moved from another the references the other had to
+   * the blobs it refers to.
+   *
+   * @param fromPath
+   * @param toPath
+   */
+  void copyReferences(String fromPath, String toPath) throws StorageClientException,
+      AccessDeniedException;
+}
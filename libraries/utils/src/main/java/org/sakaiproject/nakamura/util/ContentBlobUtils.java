@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Uploaded bodies can be kept in a content addressed store where every distinct body is
+ * stored once, under its SHA-1 hash, and content items refer to it by that hash. These
+ * helpers read a body through such a reference, or from the content item itself when it
+ * has none.
+ *
+ * Users can't read the blob store. A blob is read by the {@link BlobAccess} service of the
+ * store once the caller has been allowed to read the content item referring to it, and
+ * only if the store holds a reference from that item to the blob. Callers pass in the
+ * {@link BlobAccess} they reference, which is null when the store is not running.
+ */
+public class ContentBlobUtils {
+
+  /**
+   * The property holding the hash of the blob with the body of a content item. Bodies of
+   * alternative streams use the alternative field of this property. It is never written
+   * out.
+   */
+  public static final String BLOB_FIELD = "sakai:blob";
+
+  /**
+   * Where the blobs are kept.
+   */
+  public static final String BLOB_ROOT = "/var/blobs";
+
+  /**
+   * @param name
+   * @return true if the property is a blob reference, of the main body or of an
+   *         alternative stream.
+   */
+  public static boolean isBlobField(String name) {
+    return name.equals(BLOB_FIELD) || name.startsWith(BLOB_FIELD + "/");
+  }
+
+  /**
+   * @param content
+   * @param streamId
+   *          The alternative stream, or null for the main body.
+   * @return the hash of the blob holding the body, or null if the body is not in the blob
+   *         store.
+   */
+  public static String getBlobId(Content content, String streamId) {
+    Object blobId = content.getProperty(StorageClientUtils.getAltField(BLOB_FIELD, streamId));
+    return (blobId == null) ? null : String.valueOf(blobId);
+  }
+
+  /**
+   * @param blobId
+   *          The hash of the blob.
+   * @return the path of the blob.
+   */
+  public static String getBlobPath(String blobId) {
+    return BLOB_ROOT + "/" + blobId.substring(0, 2) + "/" + blobId;
+  }
+
+  /**
+   * @param blobAccess
+   *          The blob store, or null if it is not available.
+   * @param contentManager
+   *          The content manager of the caller.
+   * @param content
+   * @param streamId
+   *          The alternative stream, or null for the main body.
+   * @return the body of the content item, or null if it has none.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   *           if the caller can't read the content item.
+   * @throws IOException
+   */
+  public static InputStream getInputStream(BlobAccess blobAccess,
+      ContentManager contentManager, Content content, String streamId)
+      throws StorageClientException, AccessDeniedException, IOException {
+    String blobId = getBlobId(content, streamId);
+    if (blobId != null) {
+      return getBlobInputStream(blobAccess, contentManager, content.getPath(), blobId);
+    }
+    return contentManager.getInputStream(content.getPath(), streamId);
+  }
+
+  /**
+   * @param blobAccess
+   *          The blob store, or null if it is not available.
+   * @param contentManager
+   *          The content manager of the caller.
+   * @param path
+   *          The content item referring to the blob, such as the item a saved version
+   *          belongs to.
+   * @param blobId
+   * @return the body of the blob, or null if the item holds no reference to it.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   *           if the caller can't read the content item.
+   * @throws IOException
+   */
+  public static InputStream getBlobInputStream(BlobAccess blobAccess,
+      ContentManager contentManager, String path, String blobId)
+      throws StorageClientException, AccessDeniedException, IOException {
+    // throws AccessDeniedException if the caller can't read the item.
+    if (contentManager.get(path) == null) {
+      return null;
+    }
+    return checkAvailable(blobAccess, path).getInputStream(path, blobId);
+  }
+
+  /**
+   * @param blobAccess
+   *          The blob store, or null if it is not available.
+   * @param contentManager
+   *          The content manager of the caller.
+   * @param content
+   * @param streamId
+   *          The alternative stream, or null for the main body.
+   * @return true if the content item has a body, either of its own or in the blob store.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public static boolean hasBody(BlobAccess blobAccess, ContentManager contentManager,
+      Content content, String streamId) throws StorageClientException,
+      AccessDeniedException {
+    String blobId = getBlobId(content, streamId);
+    if (blobId != null) {
+      return contentManager.get(content.getPath()) != null
+          && checkAvailable(blobAccess, content.getPath()).hasBody(content.getPath(),
+              blobId);
+    }
+    return contentManager.hasBody(content.getPath(), streamId);
+  }
+
+  /**
+   * Keeps the bodies of a content item readable after it has been copied or moved, the
+   * copy refers to the same blobs but needs references of its own to read them.
+   *
+   * @param blobAccess
+   *          The blob store, or null if it is not available.
+   * @param contentManager
+   *          The content manager of the caller, which must be able to read both items.
+   * @param fromPath
+   *          The item copied or moved, it need not exist any more.
+   * @param toPath
+   *          The copy.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public static void copyReferences(BlobAccess blobAccess, ContentManager contentManager,
+      String fromPath, String toPath) throws StorageClientException,
+      AccessDeniedException {
+    // both throw AccessDeniedException if the caller can't read the item.
+    contentManager.get(fromPath);
+    Content to = contentManager.get(toPath);
+    if (to == null) {
+      return;
+    }
+    for (String name : to.getProperties().keySet()) {
+      if (isBlobField(name)) {
+        checkAvailable(blobAccess, toPath).copyReferences(fromPath, toPath);
+        return;
+      }
+    }
+  }
+
+  private static BlobAccess checkAvailable(BlobAccess blobAccess, String path)
+      throws StorageClientException {
+    if (blobAccess == null) {
+      throw new StorageClientException("The blob store is not available for " + path);
+    }
+    return blobAccess;
+  }
+}
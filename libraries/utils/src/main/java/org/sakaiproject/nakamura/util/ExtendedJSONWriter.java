@@ -74,6 +74,9 @@ public class ExtendedJSONWriter extends JSONWriter {
   public static void writeValueMapInternals(JSONWriter writer, Map<String, ?> valueMap) throws JSONException {
     if (valueMap != null) {
       for (Entry<String, ?> entry : valueMap.entrySet()) {
+        if (ContentBlobUtils.isBlobField(entry.getKey())) {
+          continue;
+        }
         writer.key(entry.getKey());
         writeValueInternal(writer, entry.getValue());
       }
@@ -168,6 +171,9 @@ public class ExtendedJSONWriter extends JSONWriter {
     for (Entry<String, Object> prop : props.entrySet()) {
       String propName = prop.getKey();
       Object propValue = prop.getValue();
+      if (ContentBlobUtils.isBlobField(propName)) {
+        continue;
+      }
 
       write.key(propName);
       if (propValue instanceof Object[]) {
@@ -213,6 +213,17 @@ public class ResponseWrapper extends SlingHttpServletResponseWrapper {
     return boas;
   }
 
+  /**
+   * Copy the data written to the underlying response stream without building a String.
+   *
+   * @param out
+   * @throws IOException
+   */
+  public void writeData(OutputStream out) throws IOException {
+    pw.flush();
+    boas.writeTo(out);
+  }
+
   /**
    * @return The status code returned by the underlying response
    */